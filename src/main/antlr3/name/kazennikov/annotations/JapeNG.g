@@ -24,6 +24,7 @@ tokens {
     NAME;
     PRIORITY;
     SIMPLE_RHS;
+    REPLACE;
     ATTR;
     VAL;
     REF_VAL;
@@ -92,6 +93,7 @@ op: '!=' -> ^(OP["neq"])
   | '>=' -> ^(OP["greater_eq"])
   | '<' -> ^(OP["lesser"])
   | '<=' -> ^(OP["lesser_eq"])
+  | '<:' -> ^(OP["subtype"])
   | SIMPLE -> ^(OP["custom"] SIMPLE)
   ;
 
@@ -112,7 +114,9 @@ javaCode: '{' ( '}'-> ^(EMPTY_RHS)
                 | code+=(SIMPLE | DIGITS | STRING | '(' | ')' | ',' | '.' | '<' | '>' | '[' | ']' | ':' | '=' | '!=' | '+' | '-' |'!' | '|' | javaCode)+ '}'
                 -> ^(JAVA));
 labelings: labeling (',' labeling)* -> labeling+;
-labeling: ':' SIMPLE '.' SIMPLE '=' '{' (attr (',' attr )*)?'}' -> ^(SIMPLE_RHS ^(NAME SIMPLE+) attr*);
+labeling: ':' SIMPLE '.' SIMPLE '=' '{' (attr (',' attr )*)?'}' -> ^(SIMPLE_RHS ^(NAME SIMPLE+) attr*)
+        // replace the bound annotations: :label.Type := {...}
+        | ':' SIMPLE '.' SIMPLE ':' '=' '{' (attr (',' attr )*)?'}' -> ^(SIMPLE_RHS ^(NAME SIMPLE+) REPLACE attr*);
 
 attr:  attrName '=' attrValue -> ^(ATTR attrName attrValue);
 attrValue: value -> ^(VAL value)
@@ -53,6 +53,7 @@ public class Annotation implements CharSequence, Comparable<Annotation> {
 	Object data;
 	
 	Map<String, Object> features;
+	Map<String, NumericValue> numeric; // cached numeric views of the features
 	
 	Annotation(Document doc, String type, int start, int end, Map<String, Object> features) {
 		this.doc = doc;
@@ -88,10 +89,20 @@ public class Annotation implements CharSequence, Comparable<Annotation> {
 	
 	public void setStart(int start) {
 		this.start = start;
+		modified();
 	}
 
 	public void setEnd(int end) {
 		this.end = end;
+		modified();
+	}
+	
+	/**
+	 * Notify the document on change of the annotation span or type
+	 */
+	protected void modified() {
+		if(doc != null)
+			doc.invalidateViews();
 	}
 
 	public Set<String> getFeatureNames() {
@@ -112,6 +123,30 @@ public class Annotation implements CharSequence, Comparable<Annotation> {
 		features.put(feat, value);
 	}
 	
+	/**
+	 * Get numeric view of the feature value. The view is cached until the feature value
+	 * is replaced
+	 * 
+	 * @param feat feature name
+	 * @return numeric view, or null if the feature is missing or isn't a number
+	 */
+	public NumericValue getNumericFeature(String feat) {
+		Object value = features.get(feat);
+		if(value == null)
+			return null;
+		
+		if(numeric == null)
+			numeric = new HashMap<>(4);
+		
+		NumericValue v = numeric.get(feat);
+		if(v == null || v.source != value) {
+			v = NumericValue.of(value);
+			numeric.put(feat, v);
+		}
+		
+		return v.isNumber()? v : null;
+	}
+	
 	public Map<String, Object> getFeatureMap() {
 		return features;
 	}
@@ -210,6 +245,7 @@ public class Annotation implements CharSequence, Comparable<Annotation> {
 
 	public void setType(String type) {
 		this.type = type;
+		modified();
 	}
 
 	@Override
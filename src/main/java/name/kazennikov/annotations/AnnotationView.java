@@ -0,0 +1,235 @@
+package name.kazennikov.annotations;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Sorted view of the document annotations of given types.
+ * <p>
+ * The view holds the annotations in document order and the following annotation index:
+ * for each annotation, the index of the first annotation that starts at or after its end.
+ * Views are cached by the document (see {@link Document#getView(Set)}) and are updated
+ * from the document journal of added annotations, so a view of a later phase costs
+ * a merge of the annotations added by the previous phases instead of a full scan and sort.
+ * Removal of annotations and change of their spans or types drop the cached views.
+ * <p>
+ * The view lists are shared, so they must not be modified. Each update makes new lists,
+ * so a list obtained before the update is still valid.
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class AnnotationView {
+	final Set<String> types;
+	AnnotationList annotations;
+	int[] next;
+	int journalPos; // position of the first annotation in the document journal that isn't merged into the view
+
+	AnnotationView(Set<String> types) {
+		this.types = new HashSet<>(types);
+	}
+
+	public Set<String> getTypes() {
+		return types;
+	}
+
+	/**
+	 * Get annotations of the view, in document order
+	 */
+	public AnnotationList getAnnotations() {
+		return annotations;
+	}
+
+	/**
+	 * Get following annotation index of the view annotations
+	 */
+	public int[] getNext() {
+		return next;
+	}
+
+	/**
+	 * Build the view from the document annotations
+	 */
+	void build(Document doc) {
+		annotations = doc.get(types.toArray(new String[types.size()]));
+
+		next = computeNext(annotations);
+		journalPos = doc.journal.size();
+	}
+
+	/**
+	 * Merge annotations added to the document since the last update. Added annotations
+	 * are placed after the view annotations with same span.
+	 * <p>
+	 * The following annotation index isn't recomputed: the index of a view annotation is shifted
+	 * to the new position of its following annotation, and only moved back over the added annotations
+	 * placed right before it that start at or after the annotation end. The index is searched only
+	 * for the added annotations
+	 */
+	void update(Document doc) {
+		AnnotationList added = null;
+
+		for(int i = journalPos; i < doc.journal.size(); i++) {
+			Annotation a = doc.journal.get(i);
+			if(types.contains(a.getType())) {
+				if(added == null)
+					added = new AnnotationList();
+				added.add(a);
+			}
+		}
+
+		journalPos = doc.journal.size();
+
+		if(added == null)
+			return;
+
+		added.sort();
+		int size = annotations.size();
+		AnnotationList merged = new AnnotationList(size + added.size());
+		int[] pos = new int[size + 1]; // new positions of the view annotations
+		int[] addedPos = new int[added.size()];
+		int i = 0;
+		int j = 0;
+
+		while(i < size || j < added.size()) {
+			if(i == size || (j < added.size() && Annotation.COMPARATOR.compare(added.get(j), annotations.get(i)) < 0)) {
+				addedPos[j] = merged.size();
+				merged.add(added.get(j++));
+			} else {
+				pos[i] = merged.size();
+				merged.add(annotations.get(i++));
+			}
+		}
+
+		pos[size] = merged.size();
+		int[] mergedNext = new int[merged.size()];
+
+		for(i = 0; i < size; i++) {
+			int end = annotations.get(i).getEnd();
+			int n = pos[next[i]];
+			int gapStart = next[i] > 0? pos[next[i] - 1] + 1 : 0;
+
+			// added annotations placed before the following annotation could start at or after the end
+			while(n > gapStart && merged.get(n - 1).getStart() >= end) {
+				n--;
+			}
+
+			mergedNext[pos[i]] = n;
+		}
+
+		for(j = 0; j < addedPos.length; j++) {
+			mergedNext[addedPos[j]] = following(merged, addedPos[j]);
+		}
+
+		annotations = merged;
+		next = mergedNext;
+	}
+
+	/**
+	 * Find the first annotation that starts at or after the end of the annotation
+	 *
+	 * @param input annotations, in document order
+	 * @param index annotation index
+	 * @return following annotation index, or the list size
+	 */
+	static int following(AnnotationList input, int index) {
+		int end = input.get(index).getEnd();
+		int lo = index;
+
+		// empty annotation, the following annotations are the ones at its start
+		while(lo > 0 && input.get(lo - 1).getStart() >= end) {
+			lo--;
+		}
+
+		if(input.get(lo).getStart() >= end)
+			return lo;
+
+		// starts[lo] < end <= starts[hi], where hi == size stands for the list end
+		int step = 1;
+		int hi = lo + 1;
+
+		while(hi < input.size() && input.get(hi).getStart() < end) {
+			lo = hi;
+			step <<= 1;
+			hi = lo + step;
+		}
+
+		if(hi > input.size())
+			hi = input.size();
+
+		while(hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if(input.get(mid).getStart() < end) {
+				lo = mid;
+			} else {
+				hi = mid;
+			}
+		}
+
+		return hi;
+	}
+
+	/**
+	 * Compute following annotation index of a sorted annotation list. For each annotation the index
+	 * holds the index of the first annotation that starts at or after its end, or the list size.
+	 * <p>
+	 * Note that a binary search for the end offset, as was used before, lands on any of the annotations
+	 * that start at the end, and the annotations before it are never matched as following ones.
+	 * The first of them is taken here, so the matching doesn't depend on the search path.
+	 * <p>
+	 * The following annotation is usually close, so it is found by a galloping search from the annotation itself
+	 *
+	 * @param input annotations, in document order
+	 * @return following annotation index
+	 */
+	public static int[] computeNext(AnnotationList input) {
+		int size = input.size();
+		int[] starts = new int[size];
+		for(int i = 0; i < size; i++) {
+			starts[i] = input.get(i).getStart();
+		}
+
+		int[] next = new int[size];
+
+		for(int i = 0; i < size; i++) {
+			int end = input.get(i).getEnd();
+
+			if(starts[i] >= end) {
+				// empty annotation, the following annotations are the ones at its start
+				int j = i;
+				while(j > 0 && starts[j - 1] >= end) {
+					j--;
+				}
+				next[i] = j;
+				continue;
+			}
+
+			// starts[lo] < end <= starts[hi], where hi == size stands for the list end
+			int lo = i;
+			int step = 1;
+			int hi = i + 1;
+
+			while(hi < size && starts[hi] < end) {
+				lo = hi;
+				step <<= 1;
+				hi = lo + step;
+			}
+
+			if(hi > size)
+				hi = size;
+
+			while(hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				if(starts[mid] < end) {
+					lo = mid;
+				} else {
+					hi = mid;
+				}
+			}
+
+			next[i] = hi;
+		}
+
+		return next;
+	}
+}
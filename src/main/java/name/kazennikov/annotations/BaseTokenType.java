@@ -1,10 +1,17 @@
 package name.kazennikov.annotations;
 
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Base type hierarchy for tokens 
+ * Base type hierarchy for tokens.
+ * <p>
+ * Registered types get dense ids and precomputed ancestor bitsets (the type itself and all
+ * its ancestors), so the subtype check is a single bit test. Lookups by name and id don't lock,
+ * as they are done on each match of the token type matchers
  * 
  * @author Anton Kazennikov
  *
@@ -17,10 +24,30 @@ public class BaseTokenType implements TokenType, Serializable {
 	
 	final TokenType parent;
 	final String name;
+	final int id;
+	final long[] ancestors; // bitset of ids of the type and its registered ancestors
 
-	private BaseTokenType(String name, TokenType parent) {
+	private BaseTokenType(String name, TokenType parent, int id) {
 		this.name = name;
 		this.parent = parent;
+		this.id = id;
+		
+		ancestors = new long[(id >>> 6) + 1];
+		ancestors[id >>> 6] |= 1L << id;
+		
+		for(TokenType p = parent; p != null; p = p.parent()) {
+			if(p instanceof BaseTokenType) {
+				int pid = ((BaseTokenType) p).id;
+				ancestors[pid >>> 6] |= 1L << pid;
+			}
+		}
+	}
+	
+	/**
+	 * Get dense id of the type
+	 */
+	public int getId() {
+		return id;
 	}
 	
 	@Override
@@ -32,7 +59,8 @@ public class BaseTokenType implements TokenType, Serializable {
 	public String toString() {
 		return name;
 	}
-	private static HashMap<String, TokenType> types = new HashMap<String, TokenType>();
+	private static Map<String, TokenType> types = new ConcurrentHashMap<String, TokenType>();
+	private static List<TokenType> byId = new CopyOnWriteArrayList<TokenType>();
 	public final static TokenType NULL = BaseTokenType.add("null", null);
 	public final static TokenType TEXT = BaseTokenType.add("text", null);
 	
@@ -63,6 +91,11 @@ public class BaseTokenType implements TokenType, Serializable {
 		if(this == type)
 			return true;
 		
+		if(type instanceof BaseTokenType) {
+			int tid = ((BaseTokenType) type).id;
+			return (tid >>> 6) < ancestors.length && (ancestors[tid >>> 6] & (1L << tid)) != 0;
+		}
+		
 		TokenType p = this.parent;
 		
 		while(p != null) {
@@ -92,16 +125,34 @@ public class BaseTokenType implements TokenType, Serializable {
 	 * @param parent parent
 	 * @return
 	 */
-	public static TokenType add(String name, TokenType parent) {
+	public static synchronized TokenType add(String name, TokenType parent) {
 		TokenType t = types.get(name);
 		
 		if(t != null)
 			return t;
 		
-		t = new BaseTokenType(name, parent);
+		t = new BaseTokenType(name, parent, types.size());
+		// publish by id first, so a type found by name is also found by its id
+		byId.add(t);
 		types.put(name, t);
 		return t;
 	}
+	
+	/**
+	 * Get type by id
+	 * @param id type id
+	 * @return if type doesn't exist, return null
+	 */
+	public static TokenType getType(int id) {
+		return id >= 0 && id < byId.size()? byId.get(id) : null;
+	}
+	
+	/**
+	 * Resolve deserialized type to the registered one, as ids depend on the registration order
+	 */
+	private Object readResolve() {
+		return add(name, parent);
+	}
 
 	@Override
 	public TokenType parent() {
@@ -0,0 +1,157 @@
+package name.kazennikov.annotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tokenizer that writes tokens into a {@link TokenBuffer}.
+ * <p>
+ * The tokenizer could split the text at safe boundaries: positions where a token starts regardless of
+ * the text before them. The chunks between the boundaries are tokenized independently, so the tokens
+ * of the chunks in text order are same as the tokens of the whole text.
+ * <p>
+ * The buffer could be attached to the document by {@link Document#setTokens(TokenBuffer, BufferTokenizer)},
+ * then the token annotations are added by the tokenizer on first access to the document annotations
+ * of the token types
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public interface BufferTokenizer {
+	/**
+	 * Find safe boundary in the text
+	 *
+	 * @param text text
+	 * @param from first candidate position, greater than 0
+	 * @param to end of the candidate positions
+	 * @return boundary in [from, to), or -1 if there is no boundary
+	 */
+	public int findBoundary(String text, int from, int to);
+
+	/**
+	 * Tokenize a chunk of the text
+	 *
+	 * @param text text
+	 * @param start chunk start, a safe boundary or 0
+	 * @param end chunk end, a safe boundary or the text length
+	 * @param buf output buffer
+	 */
+	public void tokenize(String text, int start, int end, TokenBuffer buf);
+
+	/**
+	 * Get annotation type of the tokens with given type id
+	 */
+	public String getAnnotationType(int type);
+
+	/**
+	 * Add annotations of the buffer tokens to the document
+	 *
+	 * @param doc document
+	 * @param buf tokens of the document, filled by this tokenizer
+	 */
+	public void addAnnotations(Document doc, TokenBuffer buf);
+
+	/**
+	 * Tokenization of the text split by safe boundaries on a fork-join pool
+	 */
+	public static class Chunks {
+		public static final int DEFAULT_CHUNK_SIZE = 1 << 18;
+
+		/**
+		 * Tokenizes a range of chunks
+		 */
+		static class Task extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+
+			final BufferTokenizer tokenizer;
+			final String text;
+			final int[] bounds;
+			final TokenBuffer[] buffers;
+			final int from;
+			final int to;
+
+			public Task(BufferTokenizer tokenizer, String text, int[] bounds, TokenBuffer[] buffers, int from, int to) {
+				this.tokenizer = tokenizer;
+				this.text = text;
+				this.bounds = bounds;
+				this.buffers = buffers;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if(to - from == 1) {
+					TokenBuffer buf = new TokenBuffer((bounds[from + 1] - bounds[from]) / 4);
+					tokenizer.tokenize(text, bounds[from], bounds[from + 1], buf);
+					buffers[from] = buf;
+					return;
+				}
+
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(tokenizer, text, bounds, buffers, from, mid),
+						new Task(tokenizer, text, bounds, buffers, mid, to));
+			}
+		}
+
+		/**
+		 * Split text into chunks of at least given size by safe boundaries
+		 *
+		 * @return chunk bounds: 0, boundaries, text length
+		 */
+		public static int[] split(BufferTokenizer tokenizer, String text, int chunkSize) {
+			List<Integer> bounds = new ArrayList<>();
+			bounds.add(0);
+			int pos = chunkSize;
+
+			while(pos < text.length() - chunkSize) {
+				int boundary = tokenizer.findBoundary(text, pos, Math.min(pos + chunkSize, text.length()));
+
+				if(boundary < 0) {
+					pos += chunkSize;
+					continue;
+				}
+
+				bounds.add(boundary);
+				pos = boundary + chunkSize;
+			}
+
+			bounds.add(text.length());
+
+			int[] res = new int[bounds.size()];
+			for(int i = 0; i < res.length; i++) {
+				res[i] = bounds.get(i);
+			}
+
+			return res;
+		}
+
+		/**
+		 * Tokenize text. If the pool is given, the text is split into chunks
+		 * that are tokenized in parallel
+		 *
+		 * @param tokenizer tokenizer
+		 * @param text text
+		 * @param pool fork-join pool, or null for sequential tokenization
+		 * @param chunkSize minimal chunk size
+		 * @param buf output buffer, tokens are appended in text order
+		 */
+		public static void tokenize(BufferTokenizer tokenizer, String text, ForkJoinPool pool, int chunkSize, TokenBuffer buf) {
+			int[] bounds = pool != null && text.length() >= 2 * chunkSize? split(tokenizer, text, chunkSize) : null;
+
+			if(bounds == null || bounds.length < 3) {
+				tokenizer.tokenize(text, 0, text.length(), buf);
+				return;
+			}
+
+			TokenBuffer[] buffers = new TokenBuffer[bounds.length - 1];
+			pool.invoke(new Task(tokenizer, text, bounds, buffers, 0, buffers.length));
+
+			for(TokenBuffer b : buffers) {
+				buf.addAll(b);
+			}
+		}
+	}
+}
@@ -3,8 +3,13 @@ package name.kazennikov.annotations;
 import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.hash.TIntObjectHashMap;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
@@ -33,6 +38,22 @@ public class Document extends Annotation implements CharSequence {
 
 	int nextID = 0;
 	
+	int batchDepth = 0;
+	AnnotationList pending = new AnnotationList();
+	
+	Map<Set<String>, AnnotationView> views = new HashMap<>(); // cached annotation views by types
+	AnnotationList journal = new AnnotationList(); // annotations added since the least recent view update
+	
+	/**
+	 * Minimal journal length that drops the views that fall behind
+	 */
+	public static final int MIN_JOURNAL_LIMIT = 1024;
+	
+	TokenBuffer tokens; // attached tokens, not yet added as annotations
+	BufferTokenizer tokenizer; // tokenizer of the attached tokens
+	int tokensID; // first annotation id reserved for the attached tokens
+	Set<String> tokenTypes; // annotation types of the attached tokens, computed on demand
+	
 	public Document() {	
 		this("");
 	}
@@ -64,6 +85,7 @@ public class Document extends Annotation implements CharSequence {
      * @return
      */
 	public AnnotationList get(String... types) {
+		materializeTokens(Arrays.asList(types));
         AnnotationList anns = new AnnotationList();
         TIntObjectIterator<Annotation> it = annotationById.iterator();
         
@@ -84,6 +106,7 @@ public class Document extends Annotation implements CharSequence {
 	}
 	
 	public AnnotationList getAll() {
+		materializeTokens();
 		AnnotationList l = new AnnotationList(annotationById.size());
 		TIntObjectIterator<Annotation> it = annotationById.iterator();
 		
@@ -103,6 +126,7 @@ public class Document extends Annotation implements CharSequence {
 	 * @return
 	 */
 	public AnnotationList getCovering(int start, int end) {
+		materializeTokens();
 		AnnotationList anns = new AnnotationList();
 		TIntObjectIterator<Annotation> it = annotationById.iterator();
 		
@@ -119,6 +143,7 @@ public class Document extends Annotation implements CharSequence {
 	}
 	
 	public AnnotationList get(Predicate<Annotation> predicate) {
+		materializeTokens();
 		AnnotationList anns = new AnnotationList();
 
 		TIntObjectIterator<Annotation> it = annotationById.iterator();
@@ -142,6 +167,7 @@ public class Document extends Annotation implements CharSequence {
 	 * @return
 	 */
 	public AnnotationList getOverlapping(int start, int end) {
+		materializeTokens();
 		AnnotationList anns = new AnnotationList();
 		
 		TIntObjectIterator<Annotation> it = annotationById.iterator();
@@ -166,6 +192,18 @@ public class Document extends Annotation implements CharSequence {
      * @param annotationTypes annotation names
      */
     public boolean contains(String... annotationTypes) {
+		materializeTokens(Arrays.asList(annotationTypes));
+		return containsAdded(annotationTypes);
+    }
+    
+    /**
+     * Checks if document has any of this annotations, not counting the attached tokens
+     * (see {@link #setTokens(TokenBuffer, BufferTokenizer)}). The attached tokens aren't
+     * added as annotations
+     * 
+     * @param annotationTypes annotation names
+     */
+    public boolean containsAdded(String... annotationTypes) {
 		TIntObjectIterator<Annotation> it = annotationById.iterator();
 		
 		while(it.hasNext()) {
@@ -182,6 +220,54 @@ public class Document extends Annotation implements CharSequence {
 
 
 
+    /**
+     * Start batch mode. In the batch mode new annotations are collected in a buffer
+     * and added to the document on {@link #commitBatch()}. So they aren't visible
+     * to the document queries until the commit, and annotations without explicit id
+     * get their ids on the commit.
+     * <p>
+     * Batches could be nested, the annotations are committed by the outermost batch
+     */
+    public void beginBatch() {
+    	batchDepth++;
+    }
+    
+    /**
+     * Commit batch. The buffered annotations are sorted, get their ids in the document
+     * order and are added to the document in a single bulk step.
+     * <p>
+     * If an annotation can't be added (e.g. its id is taken), the batch is still closed
+     * and its buffer is cleared, the annotations added before the failed one stay in the document
+     */
+    public void commitBatch() {
+    	if(batchDepth == 0)
+    		throw new IllegalStateException("Document isn't in the batch mode");
+    	
+    	batchDepth--;
+    	
+    	if(batchDepth > 0 || pending.isEmpty())
+    		return;
+    	
+    	try {
+    		pending.sort();
+    		annotationById.ensureCapacity(annotationById.size() + pending.size());
+
+    		for(Annotation a : pending) {
+    			putAnnotation(a);
+    		}
+    	} finally {
+    		pending.clear();
+    	}
+    }
+    
+    /**
+     * Checks if the document is in the batch mode
+     */
+    public boolean isBatch() {
+    	return batchDepth > 0;
+    }
+
+
     /**
      * Add annotation to the document.
      * An error is signaled if an annotation with same id already exists in the
@@ -191,8 +277,26 @@ public class Document extends Annotation implements CharSequence {
      * @return added annotation
      */
 	protected Annotation addAnnotation(Annotation ann) {
+		if(tokens != null && ann.id >= tokensID && ann.id < tokensID + tokens.size())
+			throw new IllegalStateException("Annotation id=" + ann.id + " is reserved for the attached tokens");
+		
 		ann.setDoc(this);
 		
+		if(batchDepth > 0) {
+			pending.add(ann);
+			return ann;
+		}
+		
+		return putAnnotation(ann);
+	}
+	
+	/**
+	 * Put annotation into the annotation index
+	 * 
+	 * @param ann annotation
+	 * @return added annotation
+	 */
+	protected Annotation putAnnotation(Annotation ann) {
 		if(ann.id == Annotation.UNASSIGNED_ID) {
 			ann.id = nextID;
 		}
@@ -202,6 +306,14 @@ public class Document extends Annotation implements CharSequence {
 		
 		annotationById.put(ann.id, ann);
 		nextID = Math.max(ann.id, nextID) + 1;
+		
+		if(!views.isEmpty()) {
+			journal.add(ann);
+			
+			if(journal.size() > MIN_JOURNAL_LIMIT && journal.size() > annotationById.size() / 2)
+				dropStaleViews();
+		}
+		
 		/*AnnotationList start = annotationsByStart.get(ann.getStart());
 		
 		if(start == null) {
@@ -279,6 +391,7 @@ public class Document extends Annotation implements CharSequence {
 	 * @return list of annotations
 	 */
 	public AnnotationList getAnnotationsWithin(Annotation a, Predicate<Annotation> p) {
+		materializeTokens();
 		AnnotationList anns = new AnnotationList();
 		
 		TIntObjectIterator<Annotation> it = annotationById.iterator();
@@ -319,6 +432,7 @@ public class Document extends Annotation implements CharSequence {
 	 * @return
 	 */
 	public AnnotationList get(String type, Predicate<Annotation> predicate) {
+		materializeTokens(Arrays.asList(type));
 		AnnotationList anns = new AnnotationList();
 		TIntObjectIterator<Annotation> it = annotationById.iterator();
 		
@@ -425,7 +539,84 @@ public class Document extends Annotation implements CharSequence {
         }
     }
     
+    /**
+     * Get sorted view of the annotations of given types. The views are cached and updated
+     * incrementally on addition of annotations
+     * 
+     * @param types annotation types
+     * @return annotation view
+     */
+    public AnnotationView getView(Set<String> types) {
+		materializeTokens(types);
+    	AnnotationView view = views.get(types);
+    	
+    	if(view == null) {
+    		view = new AnnotationView(types);
+    		view.build(this);
+    		views.put(view.types, view);
+    	} else {
+    		view.update(this);
+    	}
+    	
+    	compactJournal();
+    	return view;
+    }
+    
+    /**
+     * Drop the journal head that is already merged into all cached views
+     */
+    void compactJournal() {
+    	int pos = journal.size();
+    	for(AnnotationView v : views.values()) {
+    		pos = Math.min(pos, v.journalPos);
+    	}
+    	
+    	if(pos == 0)
+    		return;
+    	
+    	journal.subList(0, pos).clear();
+    	for(AnnotationView v : views.values()) {
+    		v.journalPos -= pos;
+    	}
+    }
+    
+    /**
+     * Drop the cached views that lag behind the journal by more than a half of its length.
+     * Such views are rebuilt on request, as a full scan costs about the same as the merge
+     * of a journal comparable to the document. Called when the journal grows over a half of
+     * the document annotations, so the journal stays bounded when some views are never
+     * requested again
+     */
+    void dropStaleViews() {
+    	Iterator<AnnotationView> it = views.values().iterator();
+    	
+    	while(it.hasNext()) {
+    		if(it.next().journalPos < journal.size() / 2)
+    			it.remove();
+    	}
+    	
+    	if(views.isEmpty()) {
+    		journal.clear();
+    	} else {
+    		compactJournal();
+    	}
+    }
+    
+    /**
+     * Drop cached annotation views. Called on removal of annotations and change of
+     * annotation spans or types
+     */
+    public void invalidateViews() {
+    	if(views.isEmpty())
+    		return;
+    	
+    	views.clear();
+    	journal.clear();
+    }
+    
     public void removeIf(Predicate<Annotation> p) {
+		materializeTokens();
+    	invalidateViews();
 
     	TIntObjectIterator<Annotation> it = annotationById.iterator();
 
@@ -439,6 +630,8 @@ public class Document extends Annotation implements CharSequence {
     }
     
     public void removeIfNot(Predicate<Annotation> p) {
+		materializeTokens();
+    	invalidateViews();
 
     	TIntObjectIterator<Annotation> it = annotationById.iterator();
 
@@ -452,14 +645,17 @@ public class Document extends Annotation implements CharSequence {
     }
   
 	public void remove(Annotation a) {
+		invalidateViews();
         annotationById.remove(a.getId());
 	}
 
     public Annotation getById(int id) {
+		materializeTokens();
         return annotationById.get(id);
     }
 
 	public void removeAll(Collection<? extends Annotation> c) {
+		invalidateViews();
 		for(Annotation a : c) {
 			annotationById.remove(a.getId());
 		}		
@@ -470,7 +666,97 @@ public class Document extends Annotation implements CharSequence {
 	 * @return
 	 */
     public int size() {
-    	return annotationById.size();
+    	return annotationById.size() + (tokens != null? tokens.size() : 0);
+    }
+    
+    /**
+     * Attach tokens to the document. The token annotations are added by the tokenizer on first
+     * access to the annotations of the token types or to the annotations of any type, until then
+     * token consumers could work on the buffer.
+     * The tokens get same annotation ids as if they were added on the attachment, so these ids
+     * can't be used by other annotations.
+     * <p>
+     * Previously attached tokens are added as annotations
+     * 
+     * @param tokens tokens of the document text
+     * @param tokenizer tokenizer that filled the buffer
+     */
+    public void setTokens(TokenBuffer tokens, BufferTokenizer tokenizer) {
+    	materializeTokens();
+    	this.tokens = tokens;
+    	this.tokenizer = tokenizer;
+    	this.tokenTypes = null;
+    	tokensID = nextID;
+    	nextID += tokens.size();
+    }
+    
+    /**
+     * Get attached tokens, that aren't yet added as annotations. The buffer doesn't contain
+     * token annotations added by other means
+     * 
+     * @return token buffer, or null if there are no attached tokens
+     */
+    public TokenBuffer getTokens() {
+    	return tokens;
+    }
+    
+    /**
+     * Get tokenizer of the attached tokens
+     */
+    public BufferTokenizer getTokenizer() {
+    	return tokenizer;
+    }
+    
+    /**
+     * Add attached tokens as annotations, if some of them have one of the given types. Queries of
+     * the given types call it, so the tokens stay attached while other annotation types are read
+     * 
+     * @param types annotation types
+     */
+    void materializeTokens(Collection<String> types) {
+    	if(tokens == null)
+    		return;
+    	
+    	if(tokenTypes == null) {
+    		tokenTypes = new HashSet<>();
+    		for(int i = 0; i < tokens.size(); i++) {
+    			tokenTypes.add(tokenizer.getAnnotationType(tokens.getType(i)));
+    		}
+    	}
+    	
+    	for(String type : types) {
+    		if(tokenTypes.contains(type)) {
+    			materializeTokens();
+    			return;
+    		}
+    	}
+    }
+    
+    /**
+     * Add attached tokens as annotations. The tokens are added immediately even in the batch mode,
+     * with their reserved ids
+     */
+    public void materializeTokens() {
+    	if(tokens == null)
+    		return;
+    	
+    	TokenBuffer tokens = this.tokens;
+    	BufferTokenizer tokenizer = this.tokenizer;
+    	this.tokens = null;
+    	this.tokenizer = null;
+    	this.tokenTypes = null;
+    	
+    	int depth = batchDepth;
+    	int next = nextID;
+    	batchDepth = 0;
+    	nextID = tokensID;
+    	
+    	try {
+    		tokenizer.addAnnotations(this, tokens);
+    	} finally {
+    		batchDepth = depth;
+    		nextID = Math.max(next, nextID);
+    	}
     }
 	
 	
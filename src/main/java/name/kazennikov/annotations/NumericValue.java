@@ -0,0 +1,111 @@
+package name.kazennikov.annotations;
+
+/**
+ * Numeric view of a feature value. Numbers are taken as is, strings are parsed as
+ * integral or floating point numbers.
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public final class NumericValue {
+	final Object source; // viewed feature value
+	final boolean number; // true, if the source is a number
+	final boolean integral;
+	final long longValue;
+	final double doubleValue;
+
+	NumericValue(Object source, boolean integral, long longValue, double doubleValue) {
+		this.source = source;
+		this.number = true;
+		this.integral = integral;
+		this.longValue = longValue;
+		this.doubleValue = doubleValue;
+	}
+
+	NumericValue(Object source) {
+		this.source = source;
+		this.number = false;
+		this.integral = false;
+		this.longValue = 0;
+		this.doubleValue = Double.NaN;
+	}
+
+	/**
+	 * Make numeric view of the value
+	 *
+	 * @param value feature value
+	 * @return numeric view, check {@link #isNumber()} for non-numeric values
+	 */
+	public static NumericValue of(Object value) {
+		if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			long v = ((Number) value).longValue();
+			return new NumericValue(value, true, v, v);
+		}
+
+		if(value instanceof Number) {
+			double v = ((Number) value).doubleValue();
+			return new NumericValue(value, false, (long) v, v);
+		}
+
+		if(value == null)
+			return new NumericValue(null);
+
+		String s = value.toString();
+
+		if(isIntegral(s)) {
+			try {
+				long v = Long.parseLong(s);
+				return new NumericValue(value, true, v, v);
+			} catch(NumberFormatException e) {
+				// too long, parsed as double
+			}
+		}
+
+		try {
+			double v = Double.parseDouble(s);
+			return new NumericValue(value, false, (long) v, v);
+		} catch(NumberFormatException e) {
+			return new NumericValue(value);
+		}
+	}
+
+	static boolean isIntegral(String s) {
+		int start = s.startsWith("-") || s.startsWith("+")? 1 : 0;
+		if(start == s.length())
+			return false;
+
+		for(int i = start; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if(ch < '0' || ch > '9')
+				return false;
+		}
+
+		return true;
+	}
+
+	public Object getSource() {
+		return source;
+	}
+
+	/**
+	 * Checks if the value is a number
+	 */
+	public boolean isNumber() {
+		return number;
+	}
+
+	/**
+	 * Checks if the value is an integral number
+	 */
+	public boolean isIntegral() {
+		return integral;
+	}
+
+	public long longValue() {
+		return longValue;
+	}
+
+	public double doubleValue() {
+		return doubleValue;
+	}
+}
@@ -0,0 +1,120 @@
+package name.kazennikov.annotations;
+
+import java.util.Arrays;
+
+/**
+ * Primitive buffer of tokens. A token is a row of parallel int arrays: start, end, type id and rule id.
+ * The meaning of the type and rule ids is defined by the tokenizer that filled the buffer.
+ * <p>
+ * The buffer is reusable: {@link #clear()} keeps the allocated arrays
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class TokenBuffer {
+	int size;
+	int[] starts;
+	int[] ends;
+	int[] types;
+	int[] rules;
+
+	public TokenBuffer() {
+		this(16);
+	}
+
+	public TokenBuffer(int capacity) {
+		capacity = Math.max(capacity, 1);
+		starts = new int[capacity];
+		ends = new int[capacity];
+		types = new int[capacity];
+		rules = new int[capacity];
+	}
+
+	void ensureCapacity(int capacity) {
+		if(capacity <= starts.length)
+			return;
+
+		capacity = Math.max(capacity, starts.length + (starts.length >> 1));
+		starts = Arrays.copyOf(starts, capacity);
+		ends = Arrays.copyOf(ends, capacity);
+		types = Arrays.copyOf(types, capacity);
+		rules = Arrays.copyOf(rules, capacity);
+	}
+
+	/**
+	 * Add token to the buffer
+	 *
+	 * @param start token start
+	 * @param end token end
+	 * @param type token type id
+	 * @param rule token rule id
+	 */
+	public void add(int start, int end, int type, int rule) {
+		ensureCapacity(size + 1);
+		starts[size] = start;
+		ends[size] = end;
+		types[size] = type;
+		rules[size] = rule;
+		size++;
+	}
+
+	/**
+	 * Replace token in the buffer
+	 *
+	 * @param index token index
+	 */
+	public void set(int index, int start, int end, int type, int rule) {
+		starts[index] = start;
+		ends[index] = end;
+		types[index] = type;
+		rules[index] = rule;
+	}
+
+	/**
+	 * Truncate the buffer
+	 *
+	 * @param size new size, not greater than the current size
+	 */
+	public void truncate(int size) {
+		if(size > this.size)
+			throw new IllegalArgumentException("Can't truncate buffer of size " + this.size + " to " + size);
+
+		this.size = size;
+	}
+
+	/**
+	 * Append all tokens of other buffer
+	 */
+	public void addAll(TokenBuffer other) {
+		ensureCapacity(size + other.size);
+		System.arraycopy(other.starts, 0, starts, size, other.size);
+		System.arraycopy(other.ends, 0, ends, size, other.size);
+		System.arraycopy(other.types, 0, types, size, other.size);
+		System.arraycopy(other.rules, 0, rules, size, other.size);
+		size += other.size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getStart(int index) {
+		return starts[index];
+	}
+
+	public int getEnd(int index) {
+		return ends[index];
+	}
+
+	public int getType(int index) {
+		return types[index];
+	}
+
+	public int getRule(int index) {
+		return rules[index];
+	}
+}
@@ -1,12 +1,16 @@
 package name.kazennikov.annotations.annotators;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import name.kazennikov.annotations.AnnotationConstants;
 import name.kazennikov.annotations.Annotator;
 import name.kazennikov.annotations.BaseTokenType;
+import name.kazennikov.annotations.BufferTokenizer;
 import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.TokenBuffer;
 import name.kazennikov.annotations.TokenType;
 
 
@@ -35,7 +39,7 @@ import name.kazennikov.annotations.TokenType;
  *     <li>MISC - for other char sequences
  * </ul>
  */
-public abstract class AbstractTokenizer implements Annotator {
+public abstract class AbstractTokenizer implements Annotator, BufferTokenizer {
 //	public static final String DIGITS = "digits";
 //	public static final String LETTERS = "letters";
 //	public static final String ALPHANUM = "alphanum";
@@ -44,6 +48,9 @@ public abstract class AbstractTokenizer implements Annotator {
 //	public static final String PUNC = "punc";
 	
 	String tokenAnnotationType = AnnotationConstants.TOKEN;
+	ForkJoinPool pool;
+	int chunkSize = BufferTokenizer.Chunks.DEFAULT_CHUNK_SIZE;
+	boolean bufferOutput;
 
     public AbstractTokenizer() {
     }
@@ -56,6 +63,42 @@ public abstract class AbstractTokenizer implements Annotator {
 		this.tokenAnnotationType = tokenAnnotationType;
 	}
 
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Set pool for parallel tokenization of large documents
+	 * 
+	 * @param pool fork-join pool, or null for sequential tokenization
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Set minimal size of text chunk for parallel tokenization
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public boolean isBufferOutput() {
+		return bufferOutput;
+	}
+
+	/**
+	 * Set buffer output mode. In this mode the tokens are attached to the document as a {@link TokenBuffer},
+	 * and the token annotations are added on first access to the document annotations
+	 */
+	public void setBufferOutput(boolean bufferOutput) {
+		this.bufferOutput = bufferOutput;
+	}
+
     
     
 
@@ -74,6 +117,73 @@ public abstract class AbstractTokenizer implements Annotator {
      */
     public abstract boolean isSeparator(char ch);
 
+    /**
+     * Character class bits
+     */
+    public static final int SEPARATOR = 1;
+    public static final int WHITESPACE = 2;
+    public static final int NEWLINE = 4;
+    public static final int LETTER = 8;
+    public static final int DIGIT = 16;
+    public static final int OTHER = 32; // neither letter nor digit
+
+    volatile byte[] classes; // char -> class bits
+
+    /**
+     * Get character class table. The table is built on first use from {@link #isSeparator(char)}
+     * and {@link #isWhitespace(char)}, subclasses should call {@link #resetClasses()} if the separators change
+     */
+    protected byte[] getClasses() {
+        byte[] classes = this.classes;
+
+        if(classes == null) {
+            classes = buildClasses();
+            this.classes = classes;
+        }
+
+        return classes;
+    }
+
+    /**
+     * Drop the character class table, it will be rebuilt on next use
+     */
+    protected void resetClasses() {
+        classes = null;
+    }
+
+    byte[] buildClasses() {
+        byte[] classes = new byte[1 << 16];
+
+        for(int i = 0; i < classes.length; i++) {
+            char ch = (char) i;
+            int c = 0;
+
+            if(isSeparator(ch)) {
+                c |= SEPARATOR;
+            }
+
+            if(isWhitespace(ch)) {
+                c |= WHITESPACE;
+            }
+
+            if(ch == '\n' || ch == '\r') {
+                c |= NEWLINE;
+            }
+
+            if(Character.isLetter(ch)) {
+                c |= LETTER;
+            } else if(Character.isDigit(ch)) {
+                c |= DIGIT;
+            } else {
+                c |= OTHER;
+            }
+
+            classes[i] = (byte) c;
+        }
+
+        return classes;
+    }
+
     /**
      * Infer type for non-punctuation token
      *
@@ -83,26 +193,30 @@ public abstract class AbstractTokenizer implements Annotator {
      * @return inferred type
      */
     public TokenType infer(String text, int start, int end) {
-        boolean hasDigits = false;
-        boolean hasLetters = false;
+        byte[] classes = getClasses();
+        int mask = 0;
 
         while(start < end) {
-            char ch = text.charAt(start);
-            if(Character.isLetter(ch)) {
-                hasLetters = true;
-            } else if(Character.isDigit(ch)) {
-                hasDigits = true;
-            } else {
-                return BaseTokenType.MISC;
-            }
+            mask |= classes[text.charAt(start)];
             start++;
         }
 
-        if(hasDigits && hasLetters) {
+        return infer(mask);
+    }
+
+    /**
+     * Infer type for non-punctuation token from union of its character classes
+     */
+    protected TokenType infer(int mask) {
+        if((mask & OTHER) != 0) {
+            return BaseTokenType.MISC;
+        }
+
+        if((mask & (DIGIT | LETTER)) == (DIGIT | LETTER)) {
             return BaseTokenType.ALPHANUM;
         }
 
-        if(hasDigits) {
+        if((mask & DIGIT) != 0) {
             return BaseTokenType.DIGITS;
         }
 
@@ -114,50 +228,131 @@ public abstract class AbstractTokenizer implements Annotator {
         return true;
     }
 
+    /**
+     * Tokenize the document. Characters are classified by the class table, the content token
+     * type is inferred from the classes collected during the scan.
+     * <p>
+     * If the pool is set, large documents are split at whitespace into chunks that are tokenized in parallel
+     */
     @Override
     public void annotate(Document doc) {
+        annotate(doc, new TokenBuffer());
+    }
+
+    /**
+     * Tokenize the document into the buffer. In the buffer output mode the buffer is attached
+     * to the document, otherwise the token annotations are added and the buffer could be reused
+     *
+     * @param doc document
+     * @param buf token buffer, it is cleared before the tokenization
+     */
+    public void annotate(Document doc, TokenBuffer buf) {
+        buf.clear();
+        BufferTokenizer.Chunks.tokenize(this, doc.getText(), pool, chunkSize, buf);
+
+        if(bufferOutput) {
+            doc.setTokens(buf, this);
+        } else {
+            addAnnotations(doc, buf);
+        }
+    }
+
+    @Override
+    public String getAnnotationType(int type) {
+        return tokenAnnotationType;
+    }
+
+    @Override
+    public void addAnnotations(Document doc, TokenBuffer buf) {
+        TokenType[] types = new TokenType[16];
+
+        for(int i = 0; i < buf.size(); i++) {
+            int id = buf.getType(i);
 
-        String text = doc.getText();
-        int pos = 0;
-        int start = 0;
+            if(id >= types.length) {
+                types = Arrays.copyOf(types, id + 1);
+            }
+
+            if(types[id] == null) {
+                types[id] = BaseTokenType.getType(id);
+            }
+
+            add(doc, buf.getStart(i), buf.getEnd(i), types[id]);
+        }
+    }
+
+    /**
+     * Get token type id, the type must be a registered {@link BaseTokenType}
+     */
+    static int typeId(TokenType type) {
+        if(!(type instanceof BaseTokenType))
+            throw new IllegalStateException("Token type '" + type + "' isn't registered");
+
+        return ((BaseTokenType) type).getId();
+    }
+
+    /**
+     * Find safe boundary: start of a whitespace run
+     */
+    @Override
+    public int findBoundary(String text, int from, int to) {
+        byte[] classes = getClasses();
+
+        for(int pos = from; pos < to; pos++) {
+            if((classes[text.charAt(pos)] & WHITESPACE) != 0 && (classes[text.charAt(pos - 1)] & WHITESPACE) == 0) {
+                return pos;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Tokenize the text chunk. The token types are ids of {@link BaseTokenType}, the rule ids are 0
+     */
+    @Override
+    public void tokenize(String text, int from, int to, TokenBuffer buf) {
+        byte[] classes = getClasses();
+        int pos = from;
+        int start = from;
+        int mask = 0; // classes of the current content token
 
-        while(pos < text.length()) {
-            char ch = text.charAt(pos);
-            boolean isSep = isSeparator(ch);
-            boolean isWS = isWhitespace(ch);
+        while(pos < to) {
+            int c = classes[text.charAt(pos)];
 
-            if(isSep || isWS) {
+            if((c & (SEPARATOR | WHITESPACE)) != 0) {
                 // add char sequence between separators
                 if(start != pos) {
-                    add(doc, start, pos, infer(text, start, pos));
+                    buf.add(start, pos, typeId(infer(mask)), 0);
                 }
 
                 int tStart = pos;
-                if(isWS) {
-                    boolean isNewline = (ch == '\n' || ch == '\r');
+                if((c & WHITESPACE) != 0) {
+                    int ws = 0;
 
-                    while(pos < text.length()) {
-                        ch = text.charAt(pos);
-                        isNewline = isNewline || ch == '\n' || ch == '\r';
-                        if(!isWhitespace(ch)) {
+                    while(pos < to) {
+                        c = classes[text.charAt(pos)];
+                        if((c & WHITESPACE) == 0) {
                             break;
                         }
+                        ws |= c;
                         pos++;
                     }
-                    add(doc, tStart, pos, isNewline ? BaseTokenType.NEWLINE : BaseTokenType.SPACE);
+                    buf.add(tStart, pos, typeId((ws & NEWLINE) != 0 ? BaseTokenType.NEWLINE : BaseTokenType.SPACE), 0);
                 } else {
-                    int puncStart = pos;
                     pos++;
-                    add(doc, puncStart, pos, BaseTokenType.PUNC);
+                    buf.add(tStart, pos, typeId(BaseTokenType.PUNC), 0);
                 }
                 start = pos;
+                mask = 0;
                 continue;
             }
 
+            mask |= c;
             pos++;
         }
         if(start != pos) {
-            add(doc, start, pos, infer(text, start, pos));
+            buf.add(start, pos, typeId(infer(mask)), 0);
         }
     }
 
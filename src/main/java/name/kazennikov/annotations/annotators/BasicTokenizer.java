@@ -23,6 +23,7 @@ public class BasicTokenizer extends AbstractTokenizer {
 
     public void setSeparator(String sepSet) {
         sep = CharMatcher.anyOf(sepSet);
+        resetClasses();
     }
 
     @Override
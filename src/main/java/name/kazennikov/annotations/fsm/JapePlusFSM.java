@@ -1,21 +1,40 @@
 package name.kazennikov.annotations.fsm;
 
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.PrintWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import name.kazennikov.alphabet.Alphabet;
+import name.kazennikov.annotations.Annotation;
 import name.kazennikov.annotations.patterns.AnnotationMatcher;
 import name.kazennikov.annotations.patterns.AnnotationMatcherPatternElement;
 import name.kazennikov.annotations.patterns.AnnotationMatchers;
 import name.kazennikov.annotations.patterns.AnnotationMatchers.ANDMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.FeatureAccessor;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.FeatureEqMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.StringMetaFeatureAccessor;
 import name.kazennikov.annotations.patterns.BasePatternElement;
 import name.kazennikov.annotations.patterns.PatternElement;
 import name.kazennikov.annotations.patterns.PatternElement.Operator;
@@ -39,12 +58,27 @@ import com.google.common.base.Objects;
  * <li> decomposes annotation matchers to atomic matchers
  * </ul>
  * 
+ * The FSM could also be built lazily (see {@link Builder#buildLazy(int)}). Then the NFA is
+ * determinized on demand: a state is created when it is first reached and its transitions are
+ * computed when they are first requested. Up to a given number of states are kept by the FSM in
+ * a cache with the second chance (clock) eviction, an approximation of the LRU order. The lazy
+ * transitions reference their destinations weakly, so an evicted state is reclaimed by the garbage
+ * collector when it isn't used by the matchers, and is determinized again when it is reached next time.
+ * A state keeps its number while it is in use, the numbers of the reclaimed states are reused, so
+ * the numbers are bounded by the number of the states in use.
+ * 
  * @author Anton Kazennikov
  *
  */
 public class JapePlusFSM {
 	public static final int GROUP_START = -1;
 	
+	/**
+	 * Minimal number of equality transitions on the same (type, feature) pair
+	 * in a state to compile them into a value dispatch
+	 */
+	public static final int MIN_DISPATCH_SIZE = 4;
+	
 	/**
 	 * Intermediate FSM representation for ease of determinization and minimization
 	 * 
@@ -266,6 +300,16 @@ public class JapePlusFSM {
 			JapePlusFSM fsm = new JapePlusFSM(this);
 			return fsm;
 		}
+		
+		/**
+		 * Builds a lazily determinized JapePlusFSM. The current FSM is used as an NFA
+		 * 
+		 * @param cacheSize maximal number of cached DFA states
+		 * @return
+		 */
+		public JapePlusFSM buildLazy(int cacheSize) {
+			return new JapePlusFSM(this, cacheSize);
+		}
 	}
 
 	
@@ -279,16 +323,42 @@ public class JapePlusFSM {
 	public static class State {
 		int number;
 		List<Transition> transitions = new ArrayList<>();
+		Dispatch[] dispatch;
 		Set<Rule> rules;
 		boolean isFinal;
+		boolean canConsume;
+		Rule bestRule;
+		
+		// lazy determinization
+		JapePlusFSM owner;
+		TIntArrayList nfaStates; // NFA states of this DFA state, sorted
+		boolean referenced; // reached since the last eviction pass
+		volatile boolean expanded; // transitions are computed
+		volatile boolean closed; // group closure properties are computed
 		
 		public int getNumber() {
 			return number;
 		}
 		
 		public List<Transition> getTransitions() {
+			if(!expanded)
+				return owner.expand(this);
+			
 			return transitions;
 		}
+		
+		/**
+		 * Get value dispatch of the transition
+		 * 
+		 * @param index transition index
+		 * @return dispatch, or null if the transition isn't a part of a dispatch
+		 */
+		public Dispatch getDispatch(int index) {
+			if(!expanded)
+				owner.expand(this);
+			
+			return dispatch != null? dispatch[index] : null;
+		}
 
 		public boolean isFinal() {
 			return isFinal;
@@ -298,6 +368,30 @@ public class JapePlusFSM {
 			return rules;
 		}
 		
+		/**
+		 * Checks if an annotation consuming transition is reachable from this state
+		 * by group transitions
+		 */
+		public boolean canConsume() {
+			if(!closed)
+				owner.close(this);
+			
+			return canConsume;
+		}
+		
+		/**
+		 * Get best rule (in Appelt sense) of the final states reachable
+		 * from this state by group transitions
+		 * 
+		 * @return best rule, or null if there is no such final states
+		 */
+		public Rule getBestRule() {
+			if(!closed)
+				owner.close(this);
+			
+			return bestRule;
+		}
+		
 		@Override
 		public String toString() {
 			return Objects.toStringHelper(this)
@@ -349,6 +443,10 @@ public class JapePlusFSM {
 		State src;
 		State dest;
 		
+		// destination of a lazy state, could be reclaimed when not in use
+		TIntArrayList destStates;
+		volatile WeakReference<State> destRef;
+		
 		int type;
 		
 		List<TypeMatcher> matchers = new ArrayList<>();
@@ -362,7 +460,17 @@ public class JapePlusFSM {
 		}
 		
 		public State getDest() {
-			return dest;
+			if(dest != null)
+				return dest;
+			
+			State s = destRef.get();
+			if(s == null) {
+				s = src.owner.lookup(destStates);
+				destRef = new WeakReference<>(s);
+			}
+			
+			s.referenced = true;
+			return s;
 		}
 		
 		public State getSrc() {
@@ -373,15 +481,127 @@ public class JapePlusFSM {
 		public String toString() {
 			return Objects.toStringHelper(this)
 					.add("from", src.number)
-					.add("to", dest.number)
+					.add("to", getDest().number)
 					.add("type", type)
 					.toString();
 		}
 
 	}
 	
+	/**
+	 * Value dispatch of a state.<p>
+	 * 
+	 * Groups state transitions of form <code>{type.feature == value}</code> on the
+	 * same (type, feature) pair into a map from value to the transitions. So the matcher does
+	 * single feature fetch and hash lookup instead of testing each transition
+	 * 
+	 * @author Anton Kazennikov
+	 *
+	 */
+	public static class Dispatch {
+		String type;
+		FeatureAccessor accessor;
+		int first; // index of the first transition of the dispatch in the state
+		Map<Object, List<Transition>> transitions = new HashMap<>();
+		TObjectIntHashMap<Transition> order = new TObjectIntHashMap<>();
+		TIntObjectHashMap<String[]> hashed; // text hash -> values, for the annotation text dispatch
+		
+		public String getType() {
+			return type;
+		}
+		
+		public FeatureAccessor getAccessor() {
+			return accessor;
+		}
+		
+		/**
+		 * Get index of the first dispatch transition in the state transitions
+		 */
+		public int getFirst() {
+			return first;
+		}
+		
+		/**
+		 * Get transitions for the feature value
+		 * 
+		 * @param value feature value
+		 * @return transitions, or null if there is no transitions for the value
+		 */
+		public List<Transition> get(Object value) {
+			return transitions.get(value);
+		}
+		
+		/**
+		 * Get transitions for the feature value of the annotation. The annotation text
+		 * is looked up by its hash and compared in place
+		 * 
+		 * @param a annotation of the dispatch type
+		 * @return transitions, or null if there is no transitions for the value
+		 */
+		public List<Transition> get(Annotation a) {
+			if(hashed != null) {
+				String[] values = hashed.get(StringMetaFeatureAccessor.hash(a));
+				if(values == null)
+					return null;
+				
+				for(String value : values) {
+					if(accessor.valueEquals(a, value))
+						return transitions.get(value);
+				}
+				
+				return null;
+			}
+			
+			Object value = accessor.getValue(a);
+			return value == null? null : transitions.get(value);
+		}
+		
+		/**
+		 * Add transition on the feature value
+		 * 
+		 * @param value feature value
+		 * @param t transition
+		 * @param index index of the transition in the state transitions
+		 */
+		void add(Object value, Transition t, int index) {
+			List<Transition> l = transitions.get(value);
+			if(l == null) {
+				l = new ArrayList<>(1);
+				transitions.put(value, l);
+				
+				// other values never equal to the annotation text
+				if(accessor instanceof StringMetaFeatureAccessor && value instanceof String) {
+					if(hashed == null)
+						hashed = new TIntObjectHashMap<>();
+					
+					String[] values = hashed.get(value.hashCode());
+					values = values == null? new String[1] : Arrays.copyOf(values, values.length + 1);
+					values[values.length - 1] = (String) value;
+					hashed.put(value.hashCode(), values);
+				}
+			}
+			l.add(t);
+			order.put(t, index);
+		}
+		
+		/**
+		 * Get index of the transition in the state transitions
+		 * 
+		 * @param t dispatch transition
+		 */
+		public int indexOf(Transition t) {
+			return order.get(t);
+		}
+		
+		public int size() {
+			return order.size();
+		}
+	}
+	
 	Alphabet<AnnotationMatcher> matchers = new Alphabet<>(1);
 	Alphabet<String> groups;
+	TObjectIntHashMap<String> groupIds = new TObjectIntHashMap<>(10, 0.5f, -1);
+	int groupCount;
 	
 
 	List<State> states = new ArrayList<>();	
@@ -394,6 +614,30 @@ public class JapePlusFSM {
 	
 	State start;
 	
+	// lazy determinization
+	IntermediateFSM nfa;
+	Alphabet<AnnotationMatcher> nfaMatchers;
+	int cacheSize;
+	LinkedHashMap<TIntArrayList, State> cache = new LinkedHashMap<>(); // in eviction order
+	Map<TIntArrayList, StateRef> live = new HashMap<>(); // states in use, cached or not
+	ReferenceQueue<State> reclaimed = new ReferenceQueue<>();
+	TIntArrayList freeNumbers = new TIntArrayList(); // numbers of the reclaimed states
+	int nextNumber;
+	
+	/**
+	 * Reference to a lazy state that releases the state number when the state is reclaimed
+	 */
+	static class StateRef extends WeakReference<State> {
+		final TIntArrayList nfaStates;
+		final int number;
+		
+		StateRef(State s, ReferenceQueue<State> queue) {
+			super(s, queue);
+			this.nfaStates = s.nfaStates;
+			this.number = s.number;
+		}
+	}
+	
 	protected JapePlusFSM(Builder builder) {
 		this.groups = builder.groups;
 		
@@ -404,6 +648,7 @@ public class JapePlusFSM {
 			s.number = i;
 			s.rules = s0.getFinals();
 			s.isFinal = s.rules != null && !s.rules.isEmpty();
+			s.expanded = true;
 			stateMap.put(s0, s);
 			states.add(s);
 		}
@@ -416,10 +661,501 @@ public class JapePlusFSM {
 				Transition t = convertTransition(t0, builder.matchers);
 				s.transitions.add(t);
 				transitions.add(t);
+				
+				if(t.type < GROUP_START) {
+					int groupId = -t.type - 1;
+					groupIds.put(groups.get(groupId), groupId);
+					groupCount = Math.max(groupCount, groupId + 1);
+				}
 			}
 		}
 		
 		start = stateMap.get(builder.fsm.getStart());
+		
+		computeStateProperties();
+	}
+	
+	protected JapePlusFSM() {
+	}
+	
+	/**
+	 * Compute value dispatches and group closure properties of all states
+	 */
+	void computeStateProperties() {
+		for(State s : states) {
+			buildDispatch(s);
+			computeClosure(s, s, new HashSet<Object>());
+			s.closed = true;
+		}
+	}
+	
+	/**
+	 * Write FSM tables: groups, states and transitions with their atomic matchers. Rules
+	 * are written as rule numbers, matchers are written as objects
+	 * 
+	 * @param out output
+	 * @throws IOException
+	 */
+	public void write(ObjectOutput out) throws IOException {
+		if(isLazy())
+			throw new IllegalStateException("Lazily determinized FSM can't be written");
+		
+		out.writeInt(groupCount);
+		out.writeInt(groupIds.size());
+		for(String name : groupIds.keySet()) {
+			out.writeUTF(name);
+			out.writeInt(groupIds.get(name));
+		}
+		
+		out.writeInt(states.size());
+		out.writeInt(start.number);
+		
+		for(State s : states) {
+			out.writeInt(s.rules != null? s.rules.size() : 0);
+			if(s.rules != null) {
+				for(Rule r : s.rules) {
+					out.writeInt(r.getNumber());
+				}
+			}
+			
+			out.writeInt(s.transitions.size());
+			for(Transition t : s.transitions) {
+				out.writeInt(t.dest.number);
+				out.writeInt(t.type);
+				out.writeInt(t.matchers.size());
+				
+				for(TypeMatcher tm : t.matchers) {
+					out.writeObject(tm.type);
+					out.writeInt(tm.matchers.size());
+					for(int i = 0; i < tm.matchers.size(); i++) {
+						out.writeObject(tm.matchers.get(i));
+						out.writeInt(tm.flags.get(i));
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Read FSM tables written by {@link #write(ObjectOutput)}
+	 * 
+	 * @param in input
+	 * @param rules phase rules, indexed by rule number
+	 * @return read FSM
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static JapePlusFSM read(ObjectInput in, List<Rule> rules) throws IOException, ClassNotFoundException {
+		JapePlusFSM fsm = new JapePlusFSM();
+		fsm.groups = new Alphabet<>(1);
+		fsm.groupCount = in.readInt();
+		
+		String[] groupNames = new String[fsm.groupCount];
+		int groupIdCount = in.readInt();
+		for(int i = 0; i < groupIdCount; i++) {
+			String name = in.readUTF();
+			int id = in.readInt();
+			fsm.groupIds.put(name, id);
+			groupNames[id] = name;
+		}
+		
+		// restore group alphabet ids, unused ids are filled by placeholders
+		for(int i = 1; i < fsm.groupCount; i++) {
+			fsm.groups.get(groupNames[i] != null? groupNames[i] : "#" + i);
+		}
+		
+		int stateCount = in.readInt();
+		int start = in.readInt();
+		
+		for(int i = 0; i < stateCount; i++) {
+			State s = new State();
+			s.number = i;
+			s.expanded = true;
+			fsm.states.add(s);
+		}
+		
+		fsm.start = fsm.states.get(start);
+		
+		for(State s : fsm.states) {
+			s.rules = new HashSet<>();
+			int ruleCount = in.readInt();
+			for(int i = 0; i < ruleCount; i++) {
+				s.rules.add(rules.get(in.readInt()));
+			}
+			
+			s.isFinal = !s.rules.isEmpty();
+			
+			int transitionCount = in.readInt();
+			for(int i = 0; i < transitionCount; i++) {
+				Transition t = new Transition();
+				t.src = s;
+				t.dest = fsm.states.get(in.readInt());
+				t.type = in.readInt();
+				
+				int typeMatcherCount = in.readInt();
+				for(int j = 0; j < typeMatcherCount; j++) {
+					TypeMatcher tm = fsm.new TypeMatcher();
+					tm.type = (String) in.readObject();
+					
+					int matcherCount = in.readInt();
+					for(int k = 0; k < matcherCount; k++) {
+						AnnotationMatcher m = (AnnotationMatcher) in.readObject();
+						tm.matchers.add(m);
+						tm.matchersIndexes.add(fsm.matchers.get(m));
+						tm.flags.add(in.readInt());
+					}
+					
+					t.matchers.add(tm);
+				}
+				
+				s.transitions.add(t);
+				fsm.transitions.add(t);
+			}
+		}
+		
+		fsm.computeStateProperties();
+		return fsm;
+	}
+	
+	/**
+	 * Create lazily determinized FSM
+	 * 
+	 * @param builder builder with the rules NFA
+	 * @param cacheSize maximal number of cached states
+	 */
+	protected JapePlusFSM(Builder builder, int cacheSize) {
+		this.groups = builder.groups;
+		this.nfa = builder.fsm;
+		this.nfaMatchers = builder.matchers;
+		this.cacheSize = Math.max(cacheSize, 1);
+		
+		// group ids are needed before matching, so collect them from the NFA
+		for(int i = 0; i < nfa.size(); i++) {
+			for(FSATransition<Set<Rule>> t0 : nfa.getState(i).getTransitions()) {
+				if(t0.getLabel() < GROUP_START) {
+					int groupId = -t0.getLabel() - 1;
+					groupIds.put(groups.get(groupId), groupId);
+					groupCount = Math.max(groupCount, groupId + 1);
+				}
+			}
+		}
+		
+		TIntArrayList s0 = new TIntArrayList();
+		s0.add(nfa.getStart().getNumber());
+		start = lookup(closure(s0));
+	}
+	
+	/**
+	 * Checks if this FSM is determinized on demand
+	 */
+	public boolean isLazy() {
+		return nfa != null;
+	}
+	
+	/**
+	 * Compute epsilon closure of NFA states
+	 * 
+	 * @param nfaStates NFA states
+	 * @return sorted closure states
+	 */
+	TIntArrayList closure(TIntArrayList nfaStates) {
+		TIntArrayList closure = new TIntArrayList(nfaStates);
+		TIntArrayList queue = new TIntArrayList(nfaStates);
+		Set<Integer> visited = new HashSet<>();
+		
+		for(int i = 0; i < nfaStates.size(); i++) {
+			visited.add(nfaStates.get(i));
+		}
+		
+		while(!queue.isEmpty()) {
+			int n = queue.removeAt(queue.size() - 1);
+			
+			for(FSATransition<Set<Rule>> t0 : nfa.getState(n).getTransitions()) {
+				int dest = t0.getDest().getNumber();
+				if(t0.getLabel() == name.kazennikov.fsa.Constants.EPSILON && visited.add(dest)) {
+					closure.add(dest);
+					queue.add(dest);
+				}
+			}
+		}
+		
+		closure.sort();
+		return closure;
+	}
+	
+	/**
+	 * Get DFA state for a set of NFA states. If the state isn't cached, the state is returned
+	 * if it is still in use, or a new state is created. The state is put into the cache
+	 * 
+	 * @param nfaStates sorted NFA states closure
+	 * @return DFA state
+	 */
+	synchronized State lookup(TIntArrayList nfaStates) {
+		State s = cache.get(nfaStates);
+		if(s != null)
+			return s;
+		
+		expunge();
+		StateRef ref = live.get(nfaStates);
+		s = ref != null? ref.get() : null;
+		
+		if(s == null) {
+			s = new State();
+			s.owner = this;
+			s.nfaStates = nfaStates;
+			s.rules = new HashSet<>();
+			
+			for(int i = 0; i < nfaStates.size(); i++) {
+				s.rules.addAll(nfa.getState(nfaStates.get(i)).getFinals());
+			}
+			
+			s.isFinal = !s.rules.isEmpty();
+			s.number = freeNumbers.isEmpty()? nextNumber++ : freeNumbers.removeAt(freeNumbers.size() - 1);
+			live.put(nfaStates, new StateRef(s, reclaimed));
+		}
+		
+		cache.put(nfaStates, s);
+		evict();
+		return s;
+	}
+	
+	/**
+	 * Evict states from the full cache. A state reached since the last pass is moved to the
+	 * cache end instead of the eviction
+	 */
+	void evict() {
+		while(cache.size() > cacheSize) {
+			Iterator<State> it = cache.values().iterator();
+			State s = it.next();
+			it.remove();
+			
+			if(s.referenced) {
+				s.referenced = false;
+				cache.put(s.nfaStates, s);
+			}
+		}
+	}
+	
+	/**
+	 * Release numbers of the reclaimed states
+	 */
+	void expunge() {
+		for(Reference<? extends State> r = reclaimed.poll(); r != null; r = reclaimed.poll()) {
+			StateRef ref = (StateRef) r;
+			if(live.get(ref.nfaStates) == ref)
+				live.remove(ref.nfaStates);
+			
+			freeNumbers.add(ref.number);
+		}
+	}
+	
+	/**
+	 * Compute transitions of a lazy state. The transitions are computed once and kept by the state
+	 * 
+	 * @param s lazy state
+	 * @return state transitions
+	 */
+	synchronized List<Transition> expand(State s) {
+		if(s.expanded)
+			return s.transitions;
+		
+		Map<Integer, TIntArrayList> moves = new TreeMap<>();
+		
+		for(int i = 0; i < s.nfaStates.size(); i++) {
+			for(FSATransition<Set<Rule>> t0 : nfa.getState(s.nfaStates.get(i)).getTransitions()) {
+				if(t0.getLabel() == name.kazennikov.fsa.Constants.EPSILON)
+					continue;
+				
+				TIntArrayList dests = moves.get(t0.getLabel());
+				if(dests == null) {
+					dests = new TIntArrayList();
+					moves.put(t0.getLabel(), dests);
+				}
+				
+				dests.add(t0.getDest().getNumber());
+			}
+		}
+		
+		List<Transition> transitions = new ArrayList<>(moves.size());
+		
+		for(Map.Entry<Integer, TIntArrayList> e : moves.entrySet()) {
+			Transition t = new Transition();
+			t.src = s;
+			t.type = e.getKey();
+			State dest = lookup(closure(e.getValue()));
+			
+			// states don't keep the evicted ones from the garbage collector
+			t.destStates = dest.nfaStates;
+			t.destRef = new WeakReference<>(dest);
+			
+			if(t.type >= 0) {
+				convertMatcher(nfaMatchers.get(t.type), t.matchers);
+			}
+			
+			transitions.add(t);
+		}
+		
+		s.transitions = transitions;
+		buildDispatch(s);
+		s.expanded = true;
+		
+		return transitions;
+	}
+	
+	/**
+	 * Compute group closure properties of a lazy state
+	 * 
+	 * @param s lazy state
+	 */
+	synchronized void close(State s) {
+		if(s.closed)
+			return;
+		
+		computeClosure(s, s, new HashSet<Object>());
+		s.closed = true;
+	}
+	
+	/**
+	 * Compute properties of the group transitions closure of a state
+	 * 
+	 * @param s target state
+	 * @param current current state of the closure
+	 * @param visited visited states (NFA state sets for the lazy states, as uncached
+	 * states could be recreated after they are reclaimed)
+	 */
+	void computeClosure(State s, State current, Set<Object> visited) {
+		if(!visited.add(current.nfaStates != null? current.nfaStates : current))
+			return;
+		
+		if(current.isFinal) {
+			for(Rule r : current.rules) {
+				if(s.bestRule == null || r.compareAppelt(s.bestRule) > 0)
+					s.bestRule = r;
+			}
+		}
+		
+		for(Transition t : current.getTransitions()) {
+			if(t.type >= 0) {
+				s.canConsume = true;
+			} else {
+				computeClosure(s, t.getDest(), visited);
+			}
+		}
+	}
+	
+	/**
+	 * Get rules of the final states reachable from the state. For a lazily determinized FSM
+	 * the rules are collected from the NFA states of the state, so no DFA states are expanded
+	 * 
+	 * @param state FSM state
+	 * @return reachable rules
+	 */
+	public static Set<Rule> reachableRules(State state) {
+		Set<Rule> res = new LinkedHashSet<>();
+		
+		if(state.owner != null) {
+			IntermediateFSM nfa = state.owner.nfa;
+			Set<Integer> visited = new HashSet<>();
+			TIntArrayList stack = new TIntArrayList(state.nfaStates);
+			
+			for(int i = 0; i < stack.size(); i++) {
+				visited.add(stack.get(i));
+			}
+			
+			while(!stack.isEmpty()) {
+				FSAState<Set<Rule>> s0 = nfa.getState(stack.removeAt(stack.size() - 1));
+				res.addAll(s0.getFinals());
+				
+				for(FSATransition<Set<Rule>> t0 : s0.getTransitions()) {
+					if(visited.add(t0.getDest().getNumber()))
+						stack.add(t0.getDest().getNumber());
+				}
+			}
+			
+			return res;
+		}
+		
+		Set<State> visited = Collections.newSetFromMap(new IdentityHashMap<State, Boolean>());
+		List<State> queue = new ArrayList<>();
+		visited.add(state);
+		queue.add(state);
+		
+		for(int i = 0; i < queue.size(); i++) {
+			State s = queue.get(i);
+			if(s.isFinal)
+				res.addAll(s.rules);
+			
+			for(Transition t : s.transitions) {
+				if(visited.add(t.dest))
+					queue.add(t.dest);
+			}
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Get equality matcher of a transition that could be dispatched by value. The transition
+	 * must have a single non-negated feature equality constraint
+	 * 
+	 * @param t transition
+	 * @return equality matcher, or null
+	 */
+	static FeatureEqMatcher dispatchMatcher(Transition t) {
+		if(t.type < 0 || t.matchers.size() != 1)
+			return null;
+		
+		TypeMatcher tm = t.matchers.get(0);
+		if(tm.type == null || tm.matchers.size() != 1 || tm.flags.get(0) != 0)
+			return null;
+		
+		AnnotationMatcher m = tm.matchers.get(0);
+		if(m.getClass() != FeatureEqMatcher.class)
+			return null;
+		
+		return (FeatureEqMatcher) m;
+	}
+	
+	/**
+	 * Compile equality transitions on the same (type, feature) pair of the state
+	 * into value dispatches
+	 * 
+	 * @param s state
+	 */
+	void buildDispatch(State s) {
+		Map<List<Object>, Dispatch> dispatches = new HashMap<>();
+		
+		for(int i = 0; i < s.transitions.size(); i++) {
+			Transition t = s.transitions.get(i);
+			FeatureEqMatcher m = dispatchMatcher(t);
+			if(m == null)
+				continue;
+			
+			List<Object> key = Arrays.<Object>asList(m.getType(), m.getAccessor());
+			Dispatch d = dispatches.get(key);
+			
+			if(d == null) {
+				d = new Dispatch();
+				d.type = m.getType();
+				d.accessor = m.getAccessor();
+				d.first = i;
+				dispatches.put(key, d);
+			}
+			
+			d.add(m.getConstant(), t, i);
+		}
+		
+		for(Dispatch d : dispatches.values()) {
+			if(d.size() < MIN_DISPATCH_SIZE)
+				continue;
+			
+			if(s.dispatch == null)
+				s.dispatch = new Dispatch[s.transitions.size()];
+			
+			for(Transition t : d.order.keySet()) {
+				s.dispatch[d.order.get(t)] = d;
+			}
+		}
 	}
 
 	/**
@@ -514,6 +1250,35 @@ public class JapePlusFSM {
 	public String getGroupName(int index) {
 		return groups.get(index);
 	}
+	
+	/**
+	 * Get group index (binding slot) by group name
+	 * 
+	 * @param name group name
+	 * @return group index, or -1 if there is no such group in the FSM
+	 */
+	public int getGroupId(String name) {
+		return groupIds.get(name);
+	}
+	
+	/**
+	 * Get upper bound of group indexes, i.e. size of the binding slot array
+	 * @return
+	 */
+	public int getGroupCount() {
+		return groupCount;
+	}
+
+	/**
+	 * Get number of states. For a lazily determinized FSM, the number of the cached states
+	 * @return
+	 */
+	public int getStateCount() {
+		if(isLazy())
+			return cache.size();
+		
+		return states.size();
+	}
 
 	/**
 	 * Get start state
@@ -4,6 +4,7 @@ import gnu.trove.list.array.TIntArrayList;
 import name.kazennikov.annotations.Annotation;
 import name.kazennikov.annotations.AnnotationConstants;
 import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.TokenBuffer;
 
 public class TokenDAFSAGazetteer extends AbstractDAFSAGazetteer {
 
@@ -93,8 +94,29 @@ public class TokenDAFSAGazetteer extends AbstractDAFSAGazetteer {
 
 	}
 
+	/**
+	 * Get attached tokens of the document, if they are the only tokens of the document.
+	 * Otherwise, the tokens should be read from the annotations
+	 */
+	static TokenBuffer getTokens(Document doc) {
+		TokenBuffer buf = doc.getTokens();
+		return buf != null && !doc.containsAdded(AnnotationConstants.TOKEN)? buf : null;
+	}
+
 	TIntArrayList getStarts(Document doc) {
 		TIntArrayList t = new TIntArrayList();
+		TokenBuffer buf = getTokens(doc);
+
+		if(buf != null) {
+			// attached tokens, read without making annotations
+			for(int i = 0; i < buf.size(); i++) {
+				if(isToken(doc, buf, i))
+					t.add(buf.getStart(i));
+			}
+
+			return t;
+		}
+
 		for(Annotation a : doc.get(AnnotationConstants.TOKEN)) {
 			t.add(a.getStart());
 		}
@@ -104,12 +126,27 @@ public class TokenDAFSAGazetteer extends AbstractDAFSAGazetteer {
 
 	TIntArrayList getEnds(Document doc) {
 		TIntArrayList t = new TIntArrayList();
+		TokenBuffer buf = getTokens(doc);
+
+		if(buf != null) {
+			for(int i = 0; i < buf.size(); i++) {
+				if(isToken(doc, buf, i))
+					t.add(buf.getEnd(i));
+			}
+
+			return t;
+		}
+
 		for(Annotation a : doc.get(AnnotationConstants.TOKEN)) {
 			t.add(a.getEnd());
 		}
 
 		return t;
 	}
+
+	static boolean isToken(Document doc, TokenBuffer buf, int index) {
+		return AnnotationConstants.TOKEN.equals(doc.getTokenizer().getAnnotationType(buf.getType(index)));
+	}
 	
 	@Override
 	public String getName() {
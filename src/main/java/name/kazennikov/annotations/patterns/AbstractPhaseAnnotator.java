@@ -3,6 +3,7 @@ package name.kazennikov.annotations.patterns;
 import java.io.File;
 import java.nio.charset.Charset;
 
+import name.kazennikov.annotations.AnnotationView;
 import name.kazennikov.annotations.Annotator;
 import name.kazennikov.annotations.Document;
 
@@ -10,6 +11,8 @@ import com.google.common.io.Files;
 
 public abstract class AbstractPhaseAnnotator implements Annotator {
 	protected Phase phase;
+	protected boolean batchOutput;
+	protected JapeProfiler profiler;
 
 	public Phase getPhase() {
 		return phase;
@@ -19,11 +22,69 @@ public abstract class AbstractPhaseAnnotator implements Annotator {
 		this.phase = phase;
 	}
 	
+	public boolean isBatchOutput() {
+		return batchOutput;
+	}
+
+	/**
+	 * Set batch output mode. In this mode RHS output of the phase is buffered and
+	 * committed to the document in a single bulk step at the phase end
+	 * (see {@link Document#beginBatch()})
+	 * 
+	 * @param batchOutput batch output flag
+	 */
+	public void setBatchOutput(boolean batchOutput) {
+		this.batchOutput = batchOutput;
+	}
+	
+	public JapeProfiler getProfiler() {
+		return profiler;
+	}
+	
+	/**
+	 * Set profiler of the phase matching. The recursive and lattice engines don't copy
+	 * FSM instances, so their copy counters stay zero
+	 * 
+	 * @param profiler profiler, or null to disable profiling
+	 */
+	public void setProfiler(JapeProfiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * Begin phase output to the document
+	 * @param doc document
+	 */
+	protected void beginOutput(Document doc) {
+		if(batchOutput)
+			doc.beginBatch();
+	}
+	
+	/**
+	 * End phase output to the document
+	 * @param doc document
+	 */
+	protected void endOutput(Document doc) {
+		if(batchOutput)
+			doc.commitBatch();
+	}
+	
 	public void init() {
 		if(!phase.isCompiled())
 			phase.compile();
 	}
 	
+	/**
+	 * Annotate document over the phase input view that is already fetched from the document
+	 * (see {@link FusedPhaseAnnotator}). By default, the input is fetched again
+	 * 
+	 * @param doc document
+	 * @param view phase input view
+	 */
+	public void annotate(Document doc, AnnotationView view) {
+		annotate(doc);
+	}
+	
 	@Override
 	public String getName() {
 		return phase.name;
@@ -41,6 +102,7 @@ public abstract class AbstractPhaseAnnotator implements Annotator {
 		String source = Files.toString(file, Charset.forName("UTF-8"));
 		Phase p = SinglePhaseJapeASTParser.parsePhase(config, source);
 		a.setPhase(p);
+		a.setProfiler(config.getProfiler());
 		a.init();
 		return a;
 	}
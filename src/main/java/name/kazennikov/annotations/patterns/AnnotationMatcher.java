@@ -1,13 +1,16 @@
 package name.kazennikov.annotations.patterns;
 
+import java.io.Serializable;
+
 import name.kazennikov.annotations.Annotation;
 
 /**
- * Basic annotation matcher. Used in JAPE-like rules to advance current position in annotation FSA
+ * Basic annotation matcher. Used in JAPE-like rules to advance current position in annotation FSA.
+ * Matchers are serializable, as they are stored in the compiled grammars
  * @author Anton Kazennikov
  *
  */
-public interface AnnotationMatcher {
+public interface AnnotationMatcher extends Serializable {
 	/**
 	 * Match given annotation
 	 * 
@@ -2,6 +2,8 @@ package name.kazennikov.annotations.patterns;
 
 
 public class AnnotationMatcherPatternElement implements PatternElement {
+	private static final long serialVersionUID = 1L;
+
 	AnnotationMatcher matcher;
 	
 	public AnnotationMatcherPatternElement(AnnotationMatcher matcher) {
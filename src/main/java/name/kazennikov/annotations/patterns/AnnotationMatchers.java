@@ -1,10 +1,16 @@
 package name.kazennikov.annotations.patterns;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.BaseTokenType;
+import name.kazennikov.annotations.NumericValue;
+import name.kazennikov.annotations.TokenType;
 
 import com.google.common.base.Objects;
 
@@ -15,6 +21,8 @@ public class AnnotationMatchers {
 	}
 	
 	public static abstract class BaseMatcher implements AnnotationMatcher {
+		private static final long serialVersionUID = 1L;
+
 		String type;
 		
 		public BaseMatcher(String type) {
@@ -56,6 +64,7 @@ public class AnnotationMatchers {
 	 *
 	 */
 	public static class TypeMatcher extends BaseMatcher {
+		private static final long serialVersionUID = 1L;
 
 		/**
 		 * Construct a type matcher
@@ -76,7 +85,9 @@ public class AnnotationMatchers {
 		}
 	}
 	
-	public static abstract class FeatureAccessor {
+	public static abstract class FeatureAccessor implements Serializable {
+		private static final long serialVersionUID = 1L;
+
 		String name;
 		
 		public FeatureAccessor(String name) {
@@ -89,6 +100,67 @@ public class AnnotationMatchers {
 		
 		public abstract Object getValue(Annotation a);
 		
+		/**
+		 * Checks if the annotation has the feature value
+		 */
+		public boolean hasValue(Annotation a) {
+			return getValue(a) != null;
+		}
+		
+		/**
+		 * Checks if the feature value of the annotation equals to the given value
+		 * 
+		 * @param a annotation
+		 * @param value value to compare with
+		 */
+		public boolean valueEquals(Annotation a, Object value) {
+			Object v = getValue(a);
+			return v != null && value.equals(v);
+		}
+		
+		/**
+		 * Reset the regex matcher to the string form of the feature value of the annotation
+		 * 
+		 * @param m regex matcher
+		 * @param a annotation
+		 * @return false, if the annotation has no feature value
+		 */
+		public boolean reset(Matcher m, Annotation a) {
+			Object v = getValue(a);
+			if(v == null)
+				return false;
+			
+			m.reset(v.toString());
+			return true;
+		}
+		
+		/**
+		 * Run regex DFA over the string form of the feature value of the annotation
+		 * 
+		 * @param dfa regex DFA
+		 * @param a annotation
+		 * @return {@link RegexDFA#MATCH}, {@link RegexDFA#NO_MATCH} or {@link RegexDFA#FALLBACK}
+		 */
+		public int run(RegexDFA dfa, Annotation a) {
+			Object v = getValue(a);
+			if(v == null)
+				return RegexDFA.NO_MATCH;
+			
+			String s = v.toString();
+			return dfa.run(s, 0, s.length());
+		}
+		
+		/**
+		 * Compare the feature value of the annotation with the comparison constant
+		 * 
+		 * @param a annotation
+		 * @param c comparison constant
+		 * @return -1, 0, 1, or {@link ComparisonConstant#INCOMPARABLE}
+		 */
+		public int compare(Annotation a, ComparisonConstant c) {
+			return c.compareValue(getValue(a));
+		}
+		
 		@Override
 		public int hashCode() {
 			return name.hashCode();
@@ -114,6 +186,8 @@ public class AnnotationMatchers {
 	
 	
 	public static class SimpleFeatureAccessor extends FeatureAccessor {
+		private static final long serialVersionUID = 1L;
+
 		public SimpleFeatureAccessor(String name) {
 			super(name);
 		}
@@ -122,6 +196,16 @@ public class AnnotationMatchers {
 		public Object getValue(Annotation a) {
 			return a.getFeature(name);
 		}
+		
+		@Override
+		public int compare(Annotation a, ComparisonConstant c) {
+			if(c.isNumber()) {
+				NumericValue v = a.getNumericFeature(name);
+				return v != null? c.compare(v) : c.compareString(a.getFeature(name));
+			}
+			
+			return c.compareString(a.getFeature(name));
+		}
 
 		@Override
 		public String getName() {
@@ -134,7 +218,13 @@ public class AnnotationMatchers {
 		}
 	}
 	
+	/**
+	 * Annotation text accessor. The text is compared and matched in place, in the document
+	 * text, so the matching doesn't allocate annotation substrings
+	 */
 	public static class StringMetaFeatureAccessor extends FeatureAccessor {
+		private static final long serialVersionUID = 1L;
+
 		public StringMetaFeatureAccessor() {
 			super("string");
 		}
@@ -144,6 +234,45 @@ public class AnnotationMatchers {
 			return a.getText();
 		}
 		
+		@Override
+		public boolean hasValue(Annotation a) {
+			return true;
+		}
+		
+		@Override
+		public boolean valueEquals(Annotation a, Object value) {
+			if(!(value instanceof String))
+				return false;
+			
+			String s = (String) value;
+			return s.length() == a.length() && a.getDoc().getText().regionMatches(a.getStart(), s, 0, s.length());
+		}
+		
+		@Override
+		public boolean reset(Matcher m, Annotation a) {
+			m.reset(a.getDoc().getText());
+			m.region(a.getStart(), a.getEnd());
+			return true;
+		}
+		
+		@Override
+		public int run(RegexDFA dfa, Annotation a) {
+			return dfa.run(a.getDoc().getText(), a.getStart(), a.getEnd());
+		}
+		
+		/**
+		 * Compute hash of the annotation text, same as {@link String#hashCode()} of the text
+		 */
+		public static int hash(Annotation a) {
+			String text = a.getDoc().getText();
+			int h = 0;
+			for(int i = a.getStart(); i < a.getEnd(); i++) {
+				h = 31 * h + text.charAt(i);
+			}
+			
+			return h;
+		}
+		
 		@Override
 		public String toString() {
 			return "@string";
@@ -151,6 +280,8 @@ public class AnnotationMatchers {
 	}
 	
 	public static class LengthMetaFeatureAccessor extends FeatureAccessor {
+		private static final long serialVersionUID = 1L;
+
 		public LengthMetaFeatureAccessor() {
 			super("length");
 		}
@@ -160,6 +291,21 @@ public class AnnotationMatchers {
 			return a.length();
 		}
 		
+		@Override
+		public boolean hasValue(Annotation a) {
+			return true;
+		}
+		
+		@Override
+		public boolean valueEquals(Annotation a, Object value) {
+			return value instanceof Integer && ((Integer) value).intValue() == a.length();
+		}
+		
+		@Override
+		public int compare(Annotation a, ComparisonConstant c) {
+			return c.compare(a.length());
+		}
+		
 		@Override
 		public String toString() {
 			return "@length";
@@ -177,6 +323,8 @@ public class AnnotationMatchers {
 	 *
 	 */
 	public static abstract class BaseFeatureMatcher extends BaseMatcher {
+		private static final long serialVersionUID = 1L;
+
 		FeatureAccessor fa;
 		Object value;
 		
@@ -194,12 +342,35 @@ public class AnnotationMatchers {
 			return fa.getValue(a);
 		}
 		
+		public FeatureAccessor getAccessor() {
+			return fa;
+		}
+		
+		/**
+		 * Get constant value of the matcher
+		 */
+		public Object getConstant() {
+			return value;
+		}
+		
 		
 		
 		
 		@Override
 		public boolean match(Annotation a) {
-			Object anValue = getValue(a);
+			if(type != null && !a.getType().equals(type))
+				return false;
+			
+			return matchFeature(a);
+		}
+		
+		/**
+		 * Match feature of the annotation of the matcher type
+		 * 
+		 * @param a annotation
+		 */
+		public boolean matchFeature(Annotation a) {
+			Object anValue = fa.getValue(a);
 			if(anValue == null)
 				return false;
 			
@@ -244,6 +415,8 @@ public class AnnotationMatchers {
 	}
 	
 	public static class NegativeMatcher extends BaseFeatureMatcher {
+		private static final long serialVersionUID = 1L;
+
 		BaseFeatureMatcher matcher;
 
 		public NegativeMatcher(BaseFeatureMatcher matcher) {
@@ -251,6 +424,11 @@ public class AnnotationMatchers {
 			this.matcher = matcher;
 		}
 
+		@Override
+		public boolean matchFeature(Annotation a) {
+			return fa.hasValue(a) && !matcher.matchFeature(a);
+		}
+
 		@Override
 		public boolean matchValue(Object annotationValue, Object matcherValue) {
 			return !matcher.matchValue(annotationValue, matcherValue);
@@ -260,6 +438,8 @@ public class AnnotationMatchers {
 		
 		
 	public static class FeatureEqMatcher extends BaseFeatureMatcher {
+		private static final long serialVersionUID = 1L;
+
 		public FeatureEqMatcher(String type, FeatureAccessor fa, Object value) {
 			super(type, fa, value);
 		}
@@ -269,51 +449,133 @@ public class AnnotationMatchers {
 			return String.format("{%s%s == '%s'}", type, fa, value);
 		}
 		
+		@Override
+		public boolean matchFeature(Annotation a) {
+			return fa.valueEquals(a, value);
+		}
+		
 		@Override
 		public boolean matchValue(Object annotationObject, Object value) {
 			return value.equals(annotationObject);
 		}
 	}
 	
-	public static class FeatureRegexMatcher extends BaseFeatureMatcher {
+	/**
+	 * Base regex matcher. The regex is compiled to DFA (see {@link RegexDFA}) if possible, so
+	 * the matching is linear in the value length. Otherwise, or if the DFA can't match the value, the
+	 * <code>java.util.regex</code> matcher is used. It is reset over the feature value (in place, for the annotation text),
+	 * with a regex matcher per thread, so the matching doesn't allocate. The matcher is reset to an empty
+	 * string after the matching, so it doesn't retain the document text
+	 */
+	public static abstract class BaseRegexMatcher extends BaseFeatureMatcher {
+		private static final long serialVersionUID = 1L;
+
 		Pattern p;
-		public FeatureRegexMatcher(String type, FeatureAccessor fa, Object value) {
+		RegexDFA dfa;
+		transient ThreadLocal<Matcher> matchers;
+		
+		public BaseRegexMatcher(String type, FeatureAccessor fa, Object value, boolean find) {
 			super(type, fa, value);
 			p = Pattern.compile(value.toString());
+			dfa = RegexDFA.compile(value.toString(), find);
+			matchers = newMatchers();
 		}
 		
-		@Override
-		public String toString() {
-			return String.format("{%s%s ==~ '%s'}", type, fa, value);
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			matchers = newMatchers();
 		}
 		
-
+		/**
+		 * Get compiled regex DFA
+		 * 
+		 * @return regex DFA, or null if the regex isn't supported by the DFA compiler
+		 */
+		public RegexDFA getDFA() {
+			return dfa;
+		}
+		
+		ThreadLocal<Matcher> newMatchers() {
+			return new ThreadLocal<Matcher>() {
+				@Override
+				protected Matcher initialValue() {
+					return p.matcher("");
+				}
+			};
+		}
+		
+		@Override
+		public boolean matchFeature(Annotation a) {
+			if(dfa != null) {
+				int res = fa.run(dfa, a);
+				if(res != RegexDFA.FALLBACK)
+					return res == RegexDFA.MATCH;
+			}
+			
+			Matcher m = matchers.get();
+			try {
+				return fa.reset(m, a) && match(m);
+			} finally {
+				m.reset("");
+			}
+		}
 		
 		@Override
 		public boolean matchValue(Object annotationObject, Object value) {
-			String strAn = annotationObject.toString();
-			Matcher m = p.matcher(strAn);
-			return m.matches();
+			String s = annotationObject.toString();
+			
+			if(dfa != null) {
+				int res = dfa.run(s, 0, s.length());
+				if(res != RegexDFA.FALLBACK)
+					return res == RegexDFA.MATCH;
+			}
+			
+			Matcher m = matchers.get();
+			try {
+				return match(m.reset(s));
+			} finally {
+				m.reset("");
+			}
 		}
+		
+		/**
+		 * Match the reset regex matcher
+		 */
+		public abstract boolean match(Matcher m);
+	}
+	
+	public static class FeatureRegexMatcher extends BaseRegexMatcher {
+		private static final long serialVersionUID = 1L;
 
+		public FeatureRegexMatcher(String type, FeatureAccessor fa, Object value) {
+			super(type, fa, value, false);
+		}
 		
+		@Override
+		public String toString() {
+			return String.format("{%s%s ==~ '%s'}", type, fa, value);
+		}
+		
+		@Override
+		public boolean match(Matcher m) {
+			return m.matches();
+		}
 	}
 	
-	public static class FeatureContainsRegexMatcher extends BaseFeatureMatcher {
-		Pattern p;
+	public static class FeatureContainsRegexMatcher extends BaseRegexMatcher {
+		private static final long serialVersionUID = 1L;
+
 		public FeatureContainsRegexMatcher(String type, FeatureAccessor fa, Object value) {
-			super(type, fa, value);
-			p = Pattern.compile(value.toString());
+			super(type, fa, value, true);
 		}
 		
 		@Override
 		public String toString() {
 			return String.format("{%s%s =~ '%s'}", type, fa, value);
 		}
+		
 		@Override
-		public boolean matchValue(Object annotationObject, Object value) {
-			String strAn = annotationObject.toString();
-			Matcher m = p.matcher(strAn);
+		public boolean match(Matcher m) {
 			return m.find();
 		}
 	}
@@ -329,6 +591,8 @@ public class AnnotationMatchers {
 	 *
 	 */
 	public static class ANDMatcher implements AnnotationMatcher {
+		private static final long serialVersionUID = 1L;
+
 		List<AnnotationMatcher> matchers;
 
 		public ANDMatcher(List<AnnotationMatcher> matchers) {
@@ -360,6 +624,8 @@ public class AnnotationMatchers {
 	 *
 	 */
 	public static final class NOTAnnotationMatcher implements AnnotationMatcher {
+		private static final long serialVersionUID = 1L;
+
 		AnnotationMatcher matcher;
 		
 		public NOTAnnotationMatcher(AnnotationMatcher matcher) {
@@ -382,7 +648,141 @@ public class AnnotationMatchers {
 	}
 	
 	
-	public static class FeatureLesserMatcher extends BaseFeatureMatcher {
+	/**
+	 * Constant of a comparison matcher, resolved to a number (if possible) and a string at compile time.
+	 * Numbers are compared as longs if both sides are integral, otherwise as doubles. Strings are compared
+	 * lexicographically, if the constant is a string and the feature value isn't a number
+	 */
+	public static final class ComparisonConstant implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Result of comparison of incomparable values
+		 */
+		public static final int INCOMPARABLE = Integer.MIN_VALUE;
+		
+		final boolean number;
+		final boolean integral;
+		final long longValue;
+		final double doubleValue;
+		final String stringValue; // null, if the constant isn't a string
+		
+		public ComparisonConstant(Object value) {
+			NumericValue v = NumericValue.of(value);
+			number = v.isNumber();
+			integral = v.isIntegral();
+			longValue = v.longValue();
+			doubleValue = v.doubleValue();
+			stringValue = value instanceof String? (String) value : null;
+		}
+		
+		public boolean isNumber() {
+			return number;
+		}
+		
+		/**
+		 * Compare integral value with the constant
+		 */
+		public int compare(long value) {
+			if(!number)
+				return INCOMPARABLE;
+			
+			return integral? Long.compare(value, longValue) : Double.compare(value, doubleValue);
+		}
+		
+		/**
+		 * Compare floating point value with the constant
+		 */
+		public int compare(double value) {
+			if(!number)
+				return INCOMPARABLE;
+			
+			return Double.compare(value, doubleValue);
+		}
+		
+		/**
+		 * Compare numeric value with the constant
+		 */
+		public int compare(NumericValue value) {
+			return value.isIntegral()? compare(value.longValue()) : compare(value.doubleValue());
+		}
+		
+		/**
+		 * Compare feature value with the constant
+		 * 
+		 * @param value feature value
+		 * @return -1, 0, 1, or {@link #INCOMPARABLE}
+		 */
+		public int compareValue(Object value) {
+			if(value == null)
+				return INCOMPARABLE;
+			
+			if(number) {
+				NumericValue v = NumericValue.of(value);
+				if(v.isNumber())
+					return compare(v);
+			}
+			
+			return compareString(value);
+		}
+		
+		/**
+		 * Compare non-numeric feature value with the constant
+		 * 
+		 * @param value feature value
+		 * @return -1, 0, 1, or {@link #INCOMPARABLE}
+		 */
+		public int compareString(Object value) {
+			if(stringValue == null || value == null || value instanceof Number)
+				return INCOMPARABLE;
+			
+			return Integer.signum(value.toString().compareTo(stringValue));
+		}
+		
+		@Override
+		public String toString() {
+			return stringValue != null? stringValue : integral? Long.toString(longValue) : Double.toString(doubleValue);
+		}
+	}
+	
+	/**
+	 * Base comparison matcher. The constant is resolved once, the feature values are compared
+	 * by the feature accessor (see {@link FeatureAccessor#compare(Annotation, ComparisonConstant)}),
+	 * through the cached numeric views of the annotation features
+	 */
+	public static abstract class BaseComparisonMatcher extends BaseFeatureMatcher {
+		private static final long serialVersionUID = 1L;
+
+		ComparisonConstant constant;
+		
+		public BaseComparisonMatcher(String type, FeatureAccessor fa, Object value) {
+			super(type, fa, value);
+			constant = new ComparisonConstant(value);
+		}
+		
+		@Override
+		public boolean matchFeature(Annotation a) {
+			int res = fa.compare(a, constant);
+			return res != ComparisonConstant.INCOMPARABLE && test(res);
+		}
+		
+		@Override
+		public boolean matchValue(Object annotationObject, Object value) {
+			int res = constant.compareValue(annotationObject);
+			return res != ComparisonConstant.INCOMPARABLE && test(res);
+		}
+		
+		/**
+		 * Test comparison result of the feature value and the constant
+		 * 
+		 * @param res comparison result: -1, 0 or 1
+		 */
+		public abstract boolean test(int res);
+	}
+	
+	public static class FeatureLesserMatcher extends BaseComparisonMatcher {
+		private static final long serialVersionUID = 1L;
+
 		public FeatureLesserMatcher(String type, FeatureAccessor fa, Object value) {
 			super(type, fa, value);
 		}
@@ -393,15 +793,14 @@ public class AnnotationMatchers {
 		}
 		
 		@Override
-		public boolean matchValue(Object annotationObject, Object value) {
-			if(value instanceof Comparable || annotationObject instanceof Comparable) {
-				
-			}
-			return ((Comparable) annotationObject).compareTo(value) < 0;
+		public boolean test(int res) {
+			return res < 0;
 		}
 	}
 	
-	public static class FeatureLesserEqMatcher extends BaseFeatureMatcher {
+	public static class FeatureLesserEqMatcher extends BaseComparisonMatcher {
+		private static final long serialVersionUID = 1L;
+
 		public FeatureLesserEqMatcher(String type, FeatureAccessor fa, Object value) {
 			super(type, fa, value);
 		}
@@ -412,15 +811,14 @@ public class AnnotationMatchers {
 		}
 		
 		@Override
-		public boolean matchValue(Object annotationObject, Object value) {
-			if(value instanceof Comparable || annotationObject instanceof Comparable) {
-				
-			}
-			return ((Comparable) annotationObject).compareTo(value) <= 0;
+		public boolean test(int res) {
+			return res <= 0;
 		}
 	}
 	
-	public static class FeatureGreaterMatcher extends BaseFeatureMatcher {
+	public static class FeatureGreaterMatcher extends BaseComparisonMatcher {
+		private static final long serialVersionUID = 1L;
+
 		public FeatureGreaterMatcher(String type, FeatureAccessor fa, Object value) {
 			super(type, fa, value);
 		}
@@ -431,15 +829,14 @@ public class AnnotationMatchers {
 		}
 		
 		@Override
-		public boolean matchValue(Object annotationObject, Object value) {
-			if(value instanceof Comparable || annotationObject instanceof Comparable) {
-				
-			}
-			return ((Comparable) annotationObject).compareTo(value) > 0;
+		public boolean test(int res) {
+			return res > 0;
 		}
 	}
 	
-	public static class FeatureGreaterEqMatcher extends BaseFeatureMatcher {
+	public static class FeatureGreaterEqMatcher extends BaseComparisonMatcher {
+		private static final long serialVersionUID = 1L;
+
 		public FeatureGreaterEqMatcher(String type, FeatureAccessor fa, Object value) {
 			super(type, fa, value);
 		}
@@ -450,12 +847,48 @@ public class AnnotationMatchers {
 		}
 		
 		@Override
-		public boolean matchValue(Object annotationObject, Object value) {
-			if(value instanceof Comparable || annotationObject instanceof Comparable) {
-				
-			}
-			return ((Comparable) annotationObject).compareTo(value) >= 0;
+		public boolean test(int res) {
+			return res >= 0;
 		}
 	}
 
+	/**
+	 * Token type subsumption matcher: <code>{Token.type <: punc}</code> matches tokens
+	 * of the type or its subtypes. Feature values could be token types or registered type names.
+	 * The type is resolved on the first match, as the types could be registered after the grammar compilation
+	 */
+	public static class FeatureSubtypeMatcher extends BaseFeatureMatcher {
+		private static final long serialVersionUID = 1L;
+
+		transient TokenType tokenType;
+		
+		public FeatureSubtypeMatcher(String type, FeatureAccessor fa, Object value) {
+			super(type, fa, value);
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("{%s%s <: '%s'}", type, fa, value);
+		}
+		
+		TokenType tokenType() {
+			if(tokenType == null)
+				tokenType = BaseTokenType.getType(value.toString());
+			
+			return tokenType;
+		}
+		
+		@Override
+		public boolean matchValue(Object annotationObject, Object value) {
+			TokenType t = tokenType();
+			if(t == null)
+				return false;
+			
+			if(annotationObject instanceof TokenType)
+				return ((TokenType) annotationObject).is(t);
+			
+			TokenType at = BaseTokenType.getType(annotationObject.toString());
+			return at != null && at.is(t);
+		}
+	}
 }
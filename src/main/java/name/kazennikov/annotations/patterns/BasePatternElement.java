@@ -5,6 +5,8 @@ import java.util.Arrays;
 import java.util.List;
 
 public class BasePatternElement implements PatternElement {
+	private static final long serialVersionUID = 1L;
+
 	Operator op;
 	String name;
 	List<PatternElement> args;
@@ -0,0 +1,200 @@
+package name.kazennikov.annotations.patterns;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.AnnotationList;
+
+/**
+ * Bindings of a fired rule.
+ * <p>
+ * Binding labels are resolved to integer slots on phase compilation (slot is the
+ * group index of the phase FSM), and a slot holds indexes of the bound annotations in the
+ * phase input. Annotation lists and the {@link Map} view are built lazily, so
+ * precompiled RHS (as {@link SimpleRHS}) doesn't pay for them. Java RHS code could still
+ * use the bindings as <code>Map&lt;String, AnnotationList&gt;</code>, including modification.
+ * <p>
+ * Once the map view is built, it holds the bindings: the slot accessors read the map, so the
+ * bindings changed by a RHS are seen by the following RHS of the rule
+ * 
+ * @author Anton Kazennikov
+ *
+ */
+public class Bindings extends AbstractMap<String, AnnotationList> {
+	final Phase phase;
+	final AnnotationList input;
+	final int[] inputTypes;
+	final TIntArrayList[] slots;
+	
+	AnnotationList[] lists;
+	Map<String, AnnotationList> map;
+	
+	/**
+	 * Construct bindings
+	 * 
+	 * @param phase compiled phase
+	 * @param input phase input
+	 * @param inputTypes type ids of the input annotations
+	 * @param slots indexes of the bound input annotations, by slot
+	 */
+	public Bindings(Phase phase, AnnotationList input, int[] inputTypes, TIntArrayList[] slots) {
+		this.phase = phase;
+		this.input = input;
+		this.inputTypes = inputTypes;
+		this.slots = slots;
+	}
+	
+	/**
+	 * Get binding map, build it on first use
+	 */
+	Map<String, AnnotationList> map() {
+		if(map == null) {
+			Map<String, AnnotationList> m = new LinkedHashMap<>();
+			for(int slot = 0; slot < slots.length; slot++) {
+				if(slots[slot] != null) {
+					m.put(phase.fsm.getGroupName(slot), get(slot));
+				}
+			}
+			map = m;
+		}
+		
+		return map;
+	}
+	
+	/**
+	 * Checks if the slot is bound
+	 * @param slot binding slot
+	 */
+	public boolean isBound(int slot) {
+		if(slot < 0 || slot >= slots.length)
+			return false;
+		
+		if(map != null)
+			return map.get(phase.fsm.getGroupName(slot)) != null;
+		
+		return slots[slot] != null;
+	}
+	
+	/**
+	 * Get number of annotations bound to the slot
+	 * @param slot binding slot
+	 */
+	public int size(int slot) {
+		if(!isBound(slot))
+			return 0;
+		
+		return map != null? get(slot).size() : slots[slot].size();
+	}
+	
+	/**
+	 * Get bound annotation
+	 * 
+	 * @param slot binding slot
+	 * @param index annotation index in the binding
+	 */
+	public Annotation get(int slot, int index) {
+		if(map != null)
+			return get(slot).get(index);
+		
+		return input.get(slots[slot].get(index));
+	}
+	
+	/**
+	 * Get first annotation of given type in the slot
+	 * 
+	 * @param slot binding slot
+	 * @param typeId annotation type id (see {@link Phase#getTypeId(String)})
+	 * @return annotation, or null if there is no such annotation
+	 */
+	public Annotation find(int slot, int typeId) {
+		if(!isBound(slot))
+			return null;
+		
+		if(map != null) {
+			for(Annotation a : get(slot)) {
+				if(phase.getTypeId(a.getType()) == typeId)
+					return a;
+			}
+			
+			return null;
+		}
+		
+		TIntArrayList l = slots[slot];
+		for(int i = 0; i < l.size(); i++) {
+			int index = l.get(i);
+			if(inputTypes[index] == typeId)
+				return input.get(index);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get annotations bound to the slot
+	 * 
+	 * @param slot binding slot
+	 * @return annotation list, or null if slot is not bound
+	 */
+	public AnnotationList get(int slot) {
+		if(!isBound(slot))
+			return null;
+		
+		if(map != null)
+			return map.get(phase.fsm.getGroupName(slot));
+		
+		if(lists == null)
+			lists = new AnnotationList[slots.length];
+		
+		AnnotationList l = lists[slot];
+		
+		if(l == null) {
+			TIntArrayList indexes = slots[slot];
+			l = new AnnotationList(indexes.size());
+			for(int i = 0; i < indexes.size(); i++) {
+				l.add(input.get(indexes.get(i)));
+			}
+			lists[slot] = l;
+		}
+		
+		return l;
+	}
+	
+	@Override
+	public AnnotationList get(Object key) {
+		if(map != null)
+			return map.get(key);
+		
+		if(!(key instanceof String))
+			return null;
+		
+		return get(phase.fsm.getGroupId((String) key));
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		if(map != null)
+			return map.containsKey(key);
+		
+		return key instanceof String && isBound(phase.fsm.getGroupId((String) key));
+	}
+	
+	@Override
+	public AnnotationList put(String key, AnnotationList value) {
+		return map().put(key, value);
+	}
+	
+	@Override
+	public AnnotationList remove(Object key) {
+		return map().remove(key);
+	}
+
+	@Override
+	public Set<Map.Entry<String, AnnotationList>> entrySet() {
+		return map().entrySet();
+	}
+}
@@ -0,0 +1,365 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import name.kazennikov.annotations.fsm.JapePlusFSM;
+import name.kazennikov.logger.Logger;
+import name.kazennikov.tools.EclipseECJWrapper;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Compiled JAPE grammar (a single phase or a multi-phase grammar) that could be stored
+ * to a binary archive and loaded without parsing, FSM construction and Java RHS compilation.
+ * <p>
+ * The archive holds SHA-1 hashes of the grammar source files, the phase options, rules with
+ * their LHS and RHS (serialized simple RHS and bytecode of the compiled Java RHS), and the phase FSM tables
+ * with the annotation matchers. The LHS are kept so the loaded phases could be recompiled,
+ * folded (see {@link TokenJoinCompiler}) and analyzed (see {@link GrammarAnalyzer}) as the parsed ones. The Java RHS classes of an archive are loaded by a separate
+ * class loader.
+ * <p>
+ * Lazily determinized phases can't be stored, so grammars are always compiled from the source
+ * under a lazy configuration. The phases of a loaded grammar get the configuration passed to
+ * {@link #load(JapeConfiguration, File, File)}.
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class CompiledGrammar {
+	private static final Logger logger = Logger.getLogger();
+
+	public static final int MAGIC = 0x4A415045; // JAPE
+	public static final int VERSION = 5;
+
+	static final int RHS_OBJECT = 0;
+	static final int RHS_CLASS = 1;
+
+	String name; // multi-phase grammar name, null for single phase grammar
+	List<Phase> phases = new ArrayList<>();
+	List<File> sources = new ArrayList<>();
+	List<String> hashes = new ArrayList<>();
+
+	public String getName() {
+		return name;
+	}
+
+	public List<Phase> getPhases() {
+		return phases;
+	}
+
+	public List<File> getSources() {
+		return sources;
+	}
+
+	/**
+	 * Compute hash of a grammar source file
+	 *
+	 * @param file source file
+	 * @return SHA-1 hash in hex
+	 * @throws IOException
+	 */
+	public static String hash(File file) throws IOException {
+		return Files.hash(file, Hashing.sha1()).toString();
+	}
+
+	/**
+	 * Add grammar source file
+	 *
+	 * @param file source file
+	 * @throws IOException
+	 */
+	public void addSource(File file) throws IOException {
+		sources.add(file);
+		hashes.add(hash(file));
+	}
+
+	/**
+	 * Checks if some source file of the grammar was changed or removed
+	 */
+	public boolean isStale() {
+		try {
+			for(int i = 0; i < sources.size(); i++) {
+				File f = sources.get(i);
+				if(!f.exists() || !hash(f).equals(hashes.get(i)))
+					return true;
+			}
+		} catch(IOException e) {
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Parse and compile the grammar
+	 *
+	 * @param config JAPE configuration
+	 * @param file grammar file
+	 * @return compiled grammar
+	 * @throws Exception
+	 */
+	public static CompiledGrammar compile(JapeConfiguration config, File file) throws Exception {
+		MultiPhaseJapeASTParser parser = new MultiPhaseJapeASTParser();
+		parser.setConfig(config);
+		parser.setFile(file);
+		return parser.compileGrammar();
+	}
+
+	/**
+	 * Load compiled grammar from the archive. If the archive is missing, unreadable or stale,
+	 * the grammar is compiled from the source and the archive is rewritten. Under a lazy
+	 * determinization configuration the archive isn't used at all
+	 *
+	 * @param config JAPE configuration
+	 * @param file grammar file
+	 * @param archive archive file
+	 * @return compiled grammar
+	 * @throws Exception
+	 */
+	public static CompiledGrammar load(JapeConfiguration config, File file, File archive) throws Exception {
+		if(config != null && config.isLazyDeterminization())
+			return compile(config, file);
+
+		if(archive.exists()) {
+			try {
+				CompiledGrammar g = read(archive);
+				if(!g.isStale()) {
+					for(Phase p : g.phases) {
+						p.config = config;
+					}
+					return g;
+				}
+
+				logger.info("Compiled grammar %s is stale", archive);
+			} catch(Exception e) {
+				logger.warn("Failed to read compiled grammar %s: %s", archive, e);
+			}
+		}
+
+		CompiledGrammar g = compile(config, file);
+
+		try {
+			g.write(archive);
+		} catch(Exception e) {
+			logger.warn("Failed to write compiled grammar %s: %s", archive, e);
+		}
+
+		return g;
+	}
+
+	/**
+	 * Write the grammar to the archive. The archive is written to a unique temporary file
+	 * in the archive directory first, then renamed
+	 *
+	 * @param archive archive file
+	 * @throws IOException
+	 */
+	public void write(File archive) throws IOException {
+		File tmp = File.createTempFile(archive.getName(), ".tmp", archive.getAbsoluteFile().getParentFile());
+
+		try(ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			write(out);
+		} catch(IOException | RuntimeException e) {
+			tmp.delete();
+			throw e;
+		}
+
+		if(!tmp.renameTo(archive)) {
+			archive.delete();
+			if(!tmp.renameTo(archive))
+				throw new IOException("Can't rename " + tmp + " to " + archive);
+		}
+	}
+
+	public void write(ObjectOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		out.writeInt(sources.size());
+		for(int i = 0; i < sources.size(); i++) {
+			out.writeUTF(sources.get(i).getPath());
+			out.writeUTF(hashes.get(i));
+		}
+
+		out.writeObject(name);
+		out.writeInt(phases.size());
+
+		for(Phase p : phases) {
+			writePhase(p, out);
+		}
+	}
+
+	/**
+	 * Read grammar from the archive. The source hashes aren't checked
+	 *
+	 * @param archive archive file
+	 * @return compiled grammar
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static CompiledGrammar read(File archive) throws IOException, ClassNotFoundException {
+		try(ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(archive)))) {
+			return read(in);
+		}
+	}
+
+	public static CompiledGrammar read(ObjectInput in) throws IOException, ClassNotFoundException {
+		if(in.readInt() != MAGIC)
+			throw new IOException("Not a compiled grammar");
+
+		int version = in.readInt();
+		if(version != VERSION)
+			throw new IOException("Unsupported compiled grammar version: " + version);
+
+		CompiledGrammar g = new CompiledGrammar();
+
+		int sourceCount = in.readInt();
+		for(int i = 0; i < sourceCount; i++) {
+			g.sources.add(new File(in.readUTF()));
+			g.hashes.add(in.readUTF());
+		}
+
+		g.name = (String) in.readObject();
+		EclipseECJWrapper.SpecialClassLoader loader = new EclipseECJWrapper.SpecialClassLoader();
+
+		int phaseCount = in.readInt();
+		for(int i = 0; i < phaseCount; i++) {
+			g.phases.add(readPhase(in, loader));
+		}
+
+		return g;
+	}
+
+	static void writePhase(Phase p, ObjectOutput out) throws IOException {
+		if(!p.isCompiled())
+			p.compile();
+
+		out.writeUTF(p.name);
+		out.writeUTF(p.mode.name());
+		out.writeObject(p.partition);
+
+		out.writeInt(p.input.size());
+		for(String type : p.input) {
+			out.writeUTF(type);
+		}
+
+		out.writeInt(p.rules.size());
+		for(Rule r : p.rules) {
+			out.writeUTF(r.name);
+			out.writeInt(r.priority);
+			out.writeInt(r.number);
+			out.writeObject(new ArrayList<>(r.lhs));
+
+			out.writeInt(r.rhs.size());
+			for(RHS rhs : r.rhs) {
+				writeRHS(rhs, out);
+			}
+		}
+
+		p.fsm.write(out);
+	}
+
+	/**
+	 * Write RHS. Java RHS are written as bytecode of their classes, other RHS
+	 * are serialized
+	 */
+	static void writeRHS(RHS rhs, ObjectOutput out) throws IOException {
+		if(rhs instanceof JavaRHSBuilder.JavaRHS) {
+			rhs = ((JavaRHSBuilder.JavaRHS) rhs).getCompiled();
+			if(rhs == null)
+				throw new IllegalStateException("Java RHS isn't compiled");
+		}
+		
+		ClassLoader cl = rhs.getClass().getClassLoader();
+
+		if(cl instanceof EclipseECJWrapper.SpecialClassLoader) {
+			String className = rhs.getClass().getName();
+			Map<String, byte[]> classes = ((EclipseECJWrapper.SpecialClassLoader) cl).getByteCode(className);
+
+			out.writeInt(RHS_CLASS);
+			out.writeUTF(className);
+			out.writeInt(classes.size());
+
+			for(Map.Entry<String, byte[]> e : classes.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeInt(e.getValue().length);
+				out.write(e.getValue());
+			}
+		} else {
+			out.writeInt(RHS_OBJECT);
+			out.writeObject(rhs);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static Phase readPhase(ObjectInput in, EclipseECJWrapper.SpecialClassLoader loader) throws IOException, ClassNotFoundException {
+		Phase p = new Phase();
+		p.name = in.readUTF();
+		p.mode = MatchMode.valueOf(in.readUTF());
+		p.partition = (String) in.readObject();
+
+		int inputCount = in.readInt();
+		for(int i = 0; i < inputCount; i++) {
+			p.input.add(in.readUTF());
+		}
+
+		int ruleCount = in.readInt();
+		for(int i = 0; i < ruleCount; i++) {
+			Rule r = new Rule();
+			r.name = in.readUTF();
+			r.priority = in.readInt();
+			r.number = in.readInt();
+			r.lhs.addAll((List<PatternElement>) in.readObject());
+
+			int rhsCount = in.readInt();
+			for(int j = 0; j < rhsCount; j++) {
+				r.rhs.add(readRHS(in, loader));
+			}
+
+			p.rules.add(r);
+		}
+
+		p.fsm = JapePlusFSM.read(in, p.rules);
+		p.link();
+		return p;
+	}
+
+	static RHS readRHS(ObjectInput in, EclipseECJWrapper.SpecialClassLoader loader) throws IOException, ClassNotFoundException {
+		int kind = in.readInt();
+
+		if(kind == RHS_OBJECT)
+			return (RHS) in.readObject();
+
+		if(kind != RHS_CLASS)
+			throw new IOException("Unknown RHS kind: " + kind);
+
+		String className = in.readUTF();
+		int classCount = in.readInt();
+
+		for(int i = 0; i < classCount; i++) {
+			String name = in.readUTF();
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			loader.addClass(name, bytes);
+		}
+
+		try {
+			return (RHS) loader.loadClass(className).newInstance();
+		} catch(InstantiationException | IllegalAccessException e) {
+			throw new IOException("Can't instantiate RHS class " + className, e);
+		}
+	}
+}
@@ -1,14 +1,15 @@
 package name.kazennikov.annotations.patterns;
 
-import java.util.Map;
+import java.io.Serializable;
 
 import name.kazennikov.annotations.AnnotationList;
 import name.kazennikov.annotations.Document;
 
-public class EmptyRHS implements RHS {
+public class EmptyRHS implements RHS, Serializable {
+	private static final long serialVersionUID = 1L;
 
 	@Override
-	public boolean execute(Document doc, AnnotationList input, Map<String, AnnotationList> bindings) {
+	public boolean execute(Document doc, AnnotationList input, Bindings bindings) {
 		return true;
 	}
 
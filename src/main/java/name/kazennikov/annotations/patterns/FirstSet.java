@@ -0,0 +1,224 @@
+package name.kazennikov.annotations.patterns;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.fsm.JapePlusFSM.State;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Transition;
+import name.kazennikov.annotations.fsm.JapePlusFSM.TypeMatcher;
+
+/**
+ * First-set of a compiled phase: (type, constant constraint) pairs that could start any rule of the
+ * phase.
+ * <p>
+ * The set is computed from consuming transitions of the FSM start state (following the group
+ * start/end transitions). For each transition one trigger annotation type is taken with an
+ * optional cheap constraint (non-negated simple feature equality). If some rule could start
+ * with an arbitrary annotation or could match an empty sequence, the first-set is disabled.
+ * <p>
+ * The matchers use the first-set to skip input positions where no rule could start
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class FirstSet {
+	boolean enabled;
+
+	/**
+	 * Trigger constraints by type id. Empty list means that any annotation of the type is a trigger,
+	 * null means that the type isn't a trigger
+	 */
+	List<List<AnnotationMatcher>> triggers = new ArrayList<>();
+
+	/**
+	 * Check if this first-set could be used for filtering of the start positions
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Compute first-set of a compiled phase
+	 * @param phase compiled phase
+	 * @return first-set
+	 */
+	public static FirstSet compute(Phase phase) {
+		FirstSet fs = new FirstSet();
+
+		for(int i = 0; i < phase.typeIds.size(); i++) {
+			fs.triggers.add(null);
+		}
+
+		fs.enabled = fs.collect(phase, phase.fsm.getStart(), new HashSet<State>());
+		return fs;
+	}
+
+	/**
+	 * Collect triggers from consuming transitions reachable from the state by group transitions
+	 *
+	 * @param phase compiled phase
+	 * @param state current state
+	 * @param visited visited states
+	 * @return false, if the first-set can't be used for filtering
+	 */
+	boolean collect(Phase phase, State state, Set<State> visited) {
+		if(!visited.add(state))
+			return true;
+
+		// rule matches an empty sequence
+		if(state.isFinal())
+			return false;
+
+		for(Transition t : state.getTransitions()) {
+			if(t.getType() < 0) { // group start or group end
+				if(!collect(phase, t.getDest(), visited))
+					return false;
+
+				continue;
+			}
+
+			// every type matcher of the transition must match on the start position, so any of them
+			// is a trigger. The first type matcher with known type is used
+			boolean added = false;
+			for(TypeMatcher tm : t.getMatchers()) {
+				if(addTrigger(phase, tm)) {
+					added = true;
+					break;
+				}
+			}
+
+			if(!added)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Add trigger from the type matcher
+	 *
+	 * @param phase compiled phase
+	 * @param tm type matcher
+	 * @return false, if the type matcher could match an annotation of arbitrary type
+	 */
+	boolean addTrigger(Phase phase, TypeMatcher tm) {
+		if(tm.getType() == null)
+			return false;
+
+		// negated matchers match annotations of other types, so at least one
+		// non-negated matcher is needed to restrict the type
+		AnnotationMatcher constraint = null;
+		boolean typed = false;
+		TIntArrayList flags = tm.getFlags();
+
+		for(int i = 0; i < tm.getMatchers().size(); i++) {
+			if(flags.get(i) != 0)
+				continue;
+
+			typed = true;
+			AnnotationMatcher m = tm.getMatchers().get(i);
+
+			if(constraint == null && m instanceof AnnotationMatchers.FeatureEqMatcher
+					&& ((AnnotationMatchers.FeatureEqMatcher) m).fa instanceof AnnotationMatchers.SimpleFeatureAccessor) {
+				constraint = m;
+			}
+		}
+
+		if(!typed)
+			return false;
+
+		int typeId = phase.getTypeId(tm.getType());
+
+		// type isn't in the phase input, so the transition never fires
+		if(typeId < 0)
+			return true;
+
+		List<AnnotationMatcher> l = triggers.get(typeId);
+
+		if(constraint == null) {
+			triggers.set(typeId, new ArrayList<AnnotationMatcher>());
+		} else if(l == null) {
+			l = new ArrayList<>();
+			l.add(constraint);
+			triggers.set(typeId, l);
+		} else if(!l.isEmpty() && !l.contains(constraint)) {
+			l.add(constraint);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Check if the annotation is a trigger
+	 *
+	 * @param input phase input
+	 * @param inputTypes type ids of the input annotations
+	 * @param index annotation index
+	 */
+	public boolean isTrigger(AnnotationList input, int[] inputTypes, int index) {
+		int typeId = inputTypes[index];
+		if(typeId < 0)
+			return false;
+
+		List<AnnotationMatcher> l = triggers.get(typeId);
+		if(l == null)
+			return false;
+
+		if(l.isEmpty())
+			return true;
+
+		for(int i = 0; i < l.size(); i++) {
+			if(l.get(i).match(input.get(index)))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Compute start index array for the phase input. The matcher advances from a position that
+	 * doesn't match to <code>nextAnnotationIndex[position]</code>, so for each index the array
+	 * holds first index on this chain that could start a match (or input size, if there is
+	 * no such index).
+	 * <p>
+	 * As the matching on a position considers all following annotations with the same start offset,
+	 * a position could start a match if any of them is a trigger
+	 *
+	 * @param input phase input
+	 * @param inputTypes type ids of the input annotations
+	 * @param nextAnnotationIndex next annotation index array
+	 * @return start index array
+	 */
+	public int[] computeStartIndex(AnnotationList input, int[] inputTypes, int[] nextAnnotationIndex) {
+		int size = input.size();
+		boolean[] startable = new boolean[size];
+		int[] startIndex = new int[size];
+
+		for(int i = size - 1; i >= 0; i--) {
+			startable[i] = isTrigger(input, inputTypes, i)
+					|| (i + 1 < size && startable[i + 1] && input.get(i + 1).getStart() == input.get(i).getStart());
+		}
+
+		for(int i = size - 1; i >= 0; i--) {
+			int next = nextAnnotationIndex[i];
+
+			if(startable[i] || next <= i) { // don't skip on non-advancing positions
+				startIndex[i] = i;
+			} else {
+				startIndex[i] = next < size? startIndex[next] : size;
+			}
+		}
+
+		return startIndex;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("FirstSet{enabled=%s, triggers=%s}", enabled, triggers);
+	}
+}
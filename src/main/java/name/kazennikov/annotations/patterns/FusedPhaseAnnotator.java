@@ -0,0 +1,252 @@
+package name.kazennikov.annotations.patterns;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import name.kazennikov.annotations.AnnotationView;
+import name.kazennikov.annotations.Annotator;
+import name.kazennikov.annotations.Document;
+
+/**
+ * Annotator that executes a group of consecutive independent phases in a single sweep
+ * over the document.
+ * <p>
+ * Phases are independent if their RHS are simple (so the only effect of a phase is addition of
+ * annotations of known types) and no phase of the group reads (as input or partition type)
+ * the output types of the preceding phases of the group. For such phases the input of each
+ * phase is same before and after the preceding phases of the group, so the phase inputs are
+ * taken from the cached document views (see {@link Document#getView(Set)}) at the group start.
+ * <p>
+ * The sweep drives the matchers of all group phases: on each step the matcher with the leftmost
+ * cursor is advanced. Each phase keeps its own FSM and match mode, as the rule priorities,
+ * Appelt resolution and cursor advance are defined per phase. Matched rules are recorded
+ * (see {@link IterativeJapeAnnotator.Matcher#setDeferred(boolean)}) and their RHS are executed
+ * phase by phase after the sweep, so the output is same as for the sequential execution of the phases.
+ * <p>
+ * Only the phases of {@link IterativeJapeAnnotator} are fused.
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class FusedPhaseAnnotator implements Annotator {
+	List<IterativeJapeAnnotator> annotators = new ArrayList<>();
+	Set<String> output = new HashSet<>(); // union of the phase output types
+
+	public List<IterativeJapeAnnotator> getAnnotators() {
+		return annotators;
+	}
+
+	/**
+	 * Checks if the phase annotator could be added to the group
+	 *
+	 * @param a phase annotator
+	 */
+	public boolean canAdd(AbstractPhaseAnnotator a) {
+		if(!isFusable(a))
+			return false;
+
+		for(String type : readTypes(a)) {
+			if(output.contains(type))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Add phase annotator to the end of the group
+	 *
+	 * @param a phase annotator
+	 */
+	public void add(AbstractPhaseAnnotator a) {
+		if(!canAdd(a))
+			throw new IllegalArgumentException("Phase " + a.getName() + " depends on the preceding phases");
+
+		annotators.add((IterativeJapeAnnotator) a);
+		output.addAll(outputTypes(a.getPhase()));
+	}
+
+	/**
+	 * Checks if the phase annotator could be executed in a group
+	 */
+	static boolean isFusable(AbstractPhaseAnnotator a) {
+		return a.getClass() == IterativeJapeAnnotator.class && outputTypes(a.getPhase()) != null;
+	}
+
+	/**
+	 * Get annotation types read by the phase annotator
+	 */
+	static Set<String> readTypes(AbstractPhaseAnnotator a) {
+		Set<String> types = new HashSet<>(a.getPhase().input);
+
+		if(a.getPhase().partition != null)
+			types.add(a.getPhase().partition);
+
+		return types;
+	}
+
+	/**
+	 * Get annotation types produced by the phase
+	 *
+	 * @param phase phase
+	 * @return output types, or null if the phase has RHS with unknown effects (as Java RHS)
+	 * or RHS that removes annotations (as replace RHS)
+	 */
+	static Set<String> outputTypes(Phase phase) {
+		Set<String> types = new HashSet<>();
+
+		for(Rule r : phase.rules) {
+			for(RHS rhs : r.rhs) {
+				if(rhs instanceof SimpleRHS) {
+					if(((SimpleRHS) rhs).replace)
+						return null;
+					types.add(((SimpleRHS) rhs).type);
+				} else if(!(rhs instanceof EmptyRHS)) {
+					return null;
+				}
+			}
+		}
+
+		return types;
+	}
+
+	/**
+	 * Fuse consecutive independent phase annotators of the sequence. Other annotators
+	 * are left as is
+	 *
+	 * @param annotators annotator sequence
+	 * @return fused annotator sequence
+	 */
+	public static List<Annotator> fuse(List<? extends Annotator> annotators) {
+		List<Annotator> res = new ArrayList<>();
+		FusedPhaseAnnotator group = null;
+
+		for(Annotator a : annotators) {
+			if(a instanceof AbstractPhaseAnnotator) {
+				AbstractPhaseAnnotator pa = (AbstractPhaseAnnotator) a;
+
+				if(group != null && group.canAdd(pa)) {
+					group.add(pa);
+					continue;
+				}
+
+				flush(res, group);
+				group = null;
+
+				if(isFusable(pa)) {
+					group = new FusedPhaseAnnotator();
+					group.add(pa);
+					continue;
+				}
+			} else {
+				flush(res, group);
+				group = null;
+			}
+
+			res.add(a);
+		}
+
+		flush(res, group);
+		return res;
+	}
+
+	static void flush(List<Annotator> res, FusedPhaseAnnotator group) {
+		if(group == null)
+			return;
+
+		if(group.annotators.size() == 1) {
+			res.add(group.annotators.get(0));
+		} else {
+			res.add(group);
+		}
+	}
+
+	/**
+	 * Fetch inputs of the group phases
+	 *
+	 * @param doc document
+	 * @return input view of each phase. Phases with same input share the view
+	 */
+	public List<AnnotationView> getInputs(Document doc) {
+		List<AnnotationView> inputs = new ArrayList<>(annotators.size());
+
+		for(AbstractPhaseAnnotator a : annotators) {
+			inputs.add(doc.getView(a.getPhase().input));
+		}
+
+		return inputs;
+	}
+
+	@Override
+	public void annotate(Document doc) {
+		List<AnnotationView> inputs = getInputs(doc);
+		List<IterativeJapeAnnotator.Matcher> matchers = new ArrayList<>(annotators.size());
+
+		for(int i = 0; i < annotators.size(); i++) {
+			IterativeJapeAnnotator a = annotators.get(i);
+			IterativeJapeAnnotator.Matcher m = new IterativeJapeAnnotator.Matcher(doc, a.getPhase(), inputs.get(i));
+			m.setProfiler(a.getProfiler());
+			m.setDeferred(true);
+			m.reset();
+			matchers.add(m);
+		}
+
+		try {
+			sweep(matchers);
+
+			// execute RHS in the phase order
+			for(int i = 0; i < annotators.size(); i++) {
+				IterativeJapeAnnotator a = annotators.get(i);
+				a.beginOutput(doc);
+				try {
+					matchers.get(i).fireDeferred();
+				} finally {
+					a.endOutput(doc);
+				}
+			}
+		} finally {
+			for(IterativeJapeAnnotator.Matcher m : matchers) {
+				m.mergeProfile();
+			}
+		}
+	}
+
+	/**
+	 * Advance the matchers until all cursors leave the input. The matcher with the leftmost cursor is advanced first
+	 */
+	static void sweep(List<IterativeJapeAnnotator.Matcher> matchers) {
+		while(true) {
+			IterativeJapeAnnotator.Matcher next = null;
+
+			for(IterativeJapeAnnotator.Matcher m : matchers) {
+				if(m.hasNext() && (next == null || m.offset() < next.offset()))
+					next = m;
+			}
+
+			if(next == null)
+				return;
+
+			next.step();
+		}
+	}
+
+	@Override
+	public boolean isApplicable(Document doc) {
+		return true;
+	}
+
+	@Override
+	public String getName() {
+		StringBuilder sb = new StringBuilder();
+
+		for(AbstractPhaseAnnotator a : annotators) {
+			if(sb.length() > 0)
+				sb.append('+');
+			sb.append(a.getName());
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,427 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import name.kazennikov.annotations.fsm.JapePlusFSM;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Dispatch;
+import name.kazennikov.annotations.fsm.JapePlusFSM.State;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Transition;
+import name.kazennikov.annotations.fsm.JapePlusFSM.TypeMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.ANDMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.BaseRegexMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.NOTAnnotationMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.NegativeMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.StringMetaFeatureAccessor;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Static analyzer of the JAPE grammar performance hazards.
+ * <p>
+ * The analyzer checks the rules and the determinized phase FSM for:
+ * <ul>
+ * <li> nested unbounded repetitions and unbounded repetitions of elements that could match nothing,
+ *      as they have many ways to split the same input
+ * <li> matchers without annotation type, as they are evaluated on every input annotation at the position
+ * <li> regular expression matchers on <code>@string</code> that aren't compiled to DFA, in the hot states,
+ *      i.e. the states that are entered at each input position
+ * <li> DFA state explosion, in number of states and in the DFA to NFA size ratio
+ * <li> worst-case instance fan-out of a state: the number of FSM instances that could be made by a single
+ *      step from the state, counting the group transitions and the consuming transitions of
+ *      the group closure of the state. Transitions of a value dispatch are counted once, a transition
+ *      without annotation type is counted as number of the phase input types
+ * </ul>
+ * The {@link #main(String[])} exits with non-zero status if an error is found, so it could be used
+ * as a build step
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class GrammarAnalyzer {
+	public static enum Severity {
+		WARNING,
+		ERROR
+	}
+
+	/**
+	 * Found hazard
+	 */
+	public static class Issue {
+		final Severity severity;
+		final String phase;
+		final String rule; // rule name, or null for the phase issues
+		final String kind;
+		final String message;
+
+		public Issue(Severity severity, String phase, String rule, String kind, String message) {
+			this.severity = severity;
+			this.phase = phase;
+			this.rule = rule;
+			this.kind = kind;
+			this.message = message;
+		}
+
+		public Severity getSeverity() {
+			return severity;
+		}
+
+		public String getKind() {
+			return kind;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s%s [%s]: %s", severity, phase, rule != null? "/" + rule : "", kind, message);
+		}
+	}
+
+	int fanOutWarning = 16;
+	int fanOutError = 64;
+	int stateWarning = 5000;
+	int stateError = 50000;
+	double blowupWarning = 10.0; // DFA to NFA size ratio
+	boolean warningsAsErrors;
+
+	public void setFanOutThresholds(int warning, int error) {
+		this.fanOutWarning = warning;
+		this.fanOutError = error;
+	}
+
+	public void setStateThresholds(int warning, int error) {
+		this.stateWarning = warning;
+		this.stateError = error;
+	}
+
+	public void setBlowupWarning(double blowupWarning) {
+		this.blowupWarning = blowupWarning;
+	}
+
+	public void setWarningsAsErrors(boolean warningsAsErrors) {
+		this.warningsAsErrors = warningsAsErrors;
+	}
+
+	/**
+	 * Analyze the phase
+	 *
+	 * @param phase parsed phase
+	 * @return found issues
+	 */
+	public List<Issue> analyze(Phase phase) {
+		List<Issue> issues = new ArrayList<>();
+
+		for(Rule r : phase.rules) {
+			analyzeRule(phase, r, issues);
+		}
+
+		// analyze fully determinized FSM, the phase FSM could be lazy
+		JapePlusFSM.Builder builder = new JapePlusFSM.Builder();
+		for(Rule r : phase.rules) {
+			builder.addRule(r);
+		}
+
+		int nfaSize = builder.size();
+		JapePlusFSM fsm = builder.build();
+		analyzeFSM(phase, fsm, nfaSize, issues);
+
+		if(warningsAsErrors) {
+			for(int i = 0; i < issues.size(); i++) {
+				Issue issue = issues.get(i);
+				if(issue.severity == Severity.WARNING)
+					issues.set(i, new Issue(Severity.ERROR, issue.phase, issue.rule, issue.kind, issue.message));
+			}
+		}
+
+		return issues;
+	}
+
+	void analyzeRule(Phase phase, Rule r, List<Issue> issues) {
+		for(int i = 0; i < r.lhs.size(); i++) {
+			analyzeElement(phase, r, r.lhs.get(i), null, i == 0, issues);
+		}
+	}
+
+	/**
+	 * Analyze pattern element of the rule
+	 *
+	 * @param phase phase
+	 * @param r rule
+	 * @param e pattern element
+	 * @param star enclosing unbounded repetition, or null
+	 * @param first true, if the element could start the rule
+	 * @param issues found issues
+	 */
+	void analyzeElement(Phase phase, Rule r, PatternElement e, RangePatternElement star, boolean first, List<Issue> issues) {
+		if(e instanceof AnnotationMatcherPatternElement) {
+			AnnotationMatcher m = ((AnnotationMatcherPatternElement) e).matcher();
+			if(!hasType(m)) {
+				issues.add(new Issue(first? Severity.ERROR : Severity.WARNING, phase.name, r.name, "wildcard",
+						"matcher has no annotation type" + (first? " and starts the rule, so it is tried at every input position" : "")));
+			}
+			return;
+		}
+
+		if(e instanceof RangePatternElement) {
+			RangePatternElement range = (RangePatternElement) e;
+
+			if(range.max() == RangePatternElement.INFINITE) {
+				if(star != null) {
+					issues.add(new Issue(Severity.WARNING, phase.name, r.name, "nested-kleene",
+							String.format("unbounded repetition %s is nested in unbounded repetition %s", range, star)));
+				}
+
+				if(nullable(range.element)) {
+					issues.add(new Issue(Severity.ERROR, phase.name, r.name, "nullable-kleene",
+							String.format("unbounded repetition %s repeats an element that could match nothing", range)));
+				}
+
+				star = range;
+			}
+
+			analyzeElement(phase, r, range.element, star, first, issues);
+			return;
+		}
+
+		if(e.op() == PatternElement.Operator.OR) {
+			for(int i = 0; i < e.size(); i++) {
+				analyzeElement(phase, r, e.get(i), star, first, issues);
+			}
+		} else {
+			for(int i = 0; i < e.size(); i++) {
+				analyzeElement(phase, r, e.get(i), star, first, issues);
+				first = first && nullable(e.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Checks if the matcher constrains the annotation type. Conjunctions are typed
+	 * if some of their atoms are typed, as they are decomposed by type in the FSM
+	 */
+	static boolean hasType(AnnotationMatcher m) {
+		if(m instanceof ANDMatcher) {
+			for(AnnotationMatcher atom : ((ANDMatcher) m).getMatchers()) {
+				if(hasType(atom))
+					return true;
+			}
+
+			return false;
+		}
+
+		if(m instanceof NOTAnnotationMatcher)
+			return false;
+
+		return m.getType() != null;
+	}
+
+	/**
+	 * Checks if the pattern element could match empty input
+	 */
+	static boolean nullable(PatternElement e) {
+		if(e instanceof AnnotationMatcherPatternElement)
+			return false;
+
+		if(e instanceof RangePatternElement)
+			return ((RangePatternElement) e).min() == 0 || nullable(e.get(0));
+
+		if(e.op() == PatternElement.Operator.OR) {
+			for(int i = 0; i < e.size(); i++) {
+				if(nullable(e.get(i)))
+					return true;
+			}
+
+			return false;
+		}
+
+		for(int i = 0; i < e.size(); i++) {
+			if(!nullable(e.get(i)))
+				return false;
+		}
+
+		return true;
+	}
+
+	void analyzeFSM(Phase phase, JapePlusFSM fsm, int nfaSize, List<Issue> issues) {
+		int size = fsm.getStateCount();
+
+		if(size > stateError) {
+			issues.add(new Issue(Severity.ERROR, phase.name, null, "states",
+					String.format("DFA has %d states, limit is %d", size, stateError)));
+		} else if(size > stateWarning) {
+			issues.add(new Issue(Severity.WARNING, phase.name, null, "states",
+					String.format("DFA has %d states, limit is %d", size, stateWarning)));
+		}
+
+		if(nfaSize > 0 && size > nfaSize * blowupWarning) {
+			issues.add(new Issue(Severity.WARNING, phase.name, null, "blowup",
+					String.format("DFA has %d states for NFA of %d states", size, nfaSize)));
+		}
+
+		// hot states: the start state and its group closure
+		Set<State> hot = closure(fsm.getStart());
+
+		for(int i = 0; i < size; i++) {
+			State s = fsm.getState(i);
+			int fanOut = fanOut(phase, s);
+
+			if(fanOut > fanOutWarning) {
+				issues.add(new Issue(fanOut > fanOutError? Severity.ERROR : Severity.WARNING, phase.name, rules(s), "fan-out",
+						String.format("state %d could make %d instances on a single step, limit is %d", s.getNumber(), fanOut,
+								fanOut > fanOutError? fanOutError : fanOutWarning)));
+			}
+
+			if(!hot.contains(s))
+				continue;
+
+			for(Transition t : s.getTransitions()) {
+				if(t.getType() < 0)
+					continue;
+
+				for(TypeMatcher tm : t.getMatchers()) {
+					for(AnnotationMatcher m : tm.getMatchers()) {
+						if(isStringRegex(m)) {
+							issues.add(new Issue(Severity.WARNING, phase.name, rules(t.getDest()), "hot-regex",
+									String.format("backtracking regex matcher %s is evaluated at every input position", m)));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks if the matcher is a backtracking regular expression matcher on <code>@string</code>
+	 */
+	static boolean isStringRegex(AnnotationMatcher m) {
+		if(m instanceof NOTAnnotationMatcher)
+			return isStringRegex(((NOTAnnotationMatcher) m).getMatcher());
+
+		if(m instanceof NegativeMatcher)
+			return isStringRegex(((NegativeMatcher) m).matcher);
+
+		// regexes compiled to DFA are matched in linear time
+		if(m instanceof BaseRegexMatcher)
+			return ((BaseRegexMatcher) m).getDFA() == null && ((BaseRegexMatcher) m).getAccessor() instanceof StringMetaFeatureAccessor;
+
+		return false;
+	}
+
+	/**
+	 * Get group closure of the state: the state and the states reachable from it by group transitions
+	 */
+	static Set<State> closure(State state) {
+		Set<State> res = Collections.newSetFromMap(new IdentityHashMap<State, Boolean>());
+		List<State> stack = new ArrayList<>();
+		res.add(state);
+		stack.add(state);
+
+		while(!stack.isEmpty()) {
+			State s = stack.remove(stack.size() - 1);
+
+			for(Transition t : s.getTransitions()) {
+				if(t.getType() < 0 && res.add(t.getDest()))
+					stack.add(t.getDest());
+			}
+		}
+
+		return res;
+	}
+
+	/**
+	 * Estimate worst-case number of instances made by a single step from the state
+	 */
+	int fanOut(Phase phase, State state) {
+		int fanOut = 0;
+
+		for(State s : closure(state)) {
+			List<Transition> transitions = s.getTransitions();
+
+			for(int i = 0; i < transitions.size(); i++) {
+				Transition t = transitions.get(i);
+
+				if(t.getType() < 0) {
+					fanOut++;
+					continue;
+				}
+
+				Dispatch d = s.getDispatch(i);
+				if(d != null && d.getFirst() != i)
+					continue;
+
+				int weight = 1;
+				for(TypeMatcher tm : t.getMatchers()) {
+					if(tm.getType() == null)
+						weight *= Math.max(1, phase.input.size());
+				}
+
+				fanOut += weight;
+			}
+		}
+
+		return fanOut;
+	}
+
+	static String rules(State s) {
+		List<String> names = new ArrayList<>();
+		for(Rule r : JapeEngineUtils.reachableRules(s)) {
+			names.add(r.name);
+		}
+
+		return Joiner.on(',').join(names);
+	}
+
+	/**
+	 * Analyze grammar files. Options:
+	 * <ul>
+	 * <li> <code>-Werror</code> treat warnings as errors
+	 * <li> <code>-fanout warning error</code> fan-out thresholds
+	 * <li> <code>-states warning error</code> DFA size thresholds
+	 * </ul>
+	 * Exits with status 1 if an error is found
+	 */
+	public static void main(String[] args) throws Exception {
+		GrammarAnalyzer analyzer = new GrammarAnalyzer();
+		JapeConfiguration config = new JapeConfiguration();
+		int errors = 0;
+		int warnings = 0;
+
+		for(int i = 0; i < args.length; i++) {
+			switch(args[i]) {
+			case "-Werror":
+				analyzer.setWarningsAsErrors(true);
+				continue;
+			case "-fanout":
+				analyzer.setFanOutThresholds(Integer.parseInt(args[i + 1]), Integer.parseInt(args[i + 2]));
+				i += 2;
+				continue;
+			case "-states":
+				analyzer.setStateThresholds(Integer.parseInt(args[i + 1]), Integer.parseInt(args[i + 2]));
+				i += 2;
+				continue;
+			}
+
+			CompiledGrammar g = CompiledGrammar.compile(config, new File(args[i]));
+
+			for(Phase p : g.getPhases()) {
+				for(Issue issue : analyzer.analyze(p)) {
+					System.out.println(issue);
+
+					if(issue.severity == Severity.ERROR) {
+						errors++;
+					} else {
+						warnings++;
+					}
+				}
+			}
+		}
+
+		System.out.printf("%d errors, %d warnings%n", errors, warnings);
+
+		if(errors > 0)
+			System.exit(1);
+	}
+}
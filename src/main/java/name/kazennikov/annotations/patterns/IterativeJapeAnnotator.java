@@ -2,31 +2,31 @@ package name.kazennikov.annotations.patterns;
 
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TLongHashSet;
 
 import java.io.File;
 import java.nio.charset.Charset;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Deque;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import name.kazennikov.annotations.Annotation;
 import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.AnnotationView;
 import name.kazennikov.annotations.Document;
 import name.kazennikov.annotations.annotators.BasicTokenizer;
 import name.kazennikov.annotations.fsm.JapePlusFSM;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Dispatch;
 import name.kazennikov.annotations.fsm.JapePlusFSM.State;
 import name.kazennikov.annotations.fsm.JapePlusFSM.Transition;
 import name.kazennikov.annotations.fsm.JapePlusFSM.TypeMatcher;
+import name.kazennikov.annotations.patterns.JapeEngineUtils.DispatchMatches;
 import name.kazennikov.logger.Logger;
 
 import org.apache.log4j.BasicConfigurator;
 
-import com.google.common.base.Predicate;
 import com.google.common.io.Files;
 
 public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
@@ -35,14 +35,15 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 
 	public static class FSMInstance {
 		List<TIntArrayList> stack;
-		List<String> keys;
+		TIntArrayList slots;
 		List<TIntArrayList> values;
 		int position = 0;
+		int end = -1; // end offset of the matched annotations
 		JapePlusFSM.State state;
 		Rule rule;
 
 		public void init() {
-			keys = new ArrayList<>();
+			slots = new TIntArrayList();
 			values = new ArrayList<>();
 			stack = new ArrayList<>();
 		}
@@ -57,10 +58,10 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 			}
 		}
 
-		public void pop(String groupName) {
+		public void pop(int slot) {
 			TIntArrayList l = stack.get(stack.size() - 1);
 			stack.remove(stack.size() - 1);
-			keys.add(groupName);
+			slots.add(slot);
 			values.add(l);
 		}
 
@@ -71,17 +72,12 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 		}
 		
 
-		public Map<String, AnnotationList> bindings(AnnotationList input) {
-			Map<String, AnnotationList> map = new HashMap<String, AnnotationList>();
-			for(int i = 0; i < keys.size(); i++) {
-				AnnotationList l = new AnnotationList();
-				TIntIterator it = values.get(i).iterator();
-				while(it.hasNext()) {
-					l.add(input.get(it.next()));
-				}
-				map.put(keys.get(i), l);
+		public Bindings bindings(Phase phase, AnnotationList input, int[] inputTypes) {
+			TIntArrayList[] bound = new TIntArrayList[phase.fsm.getGroupCount()];
+			for(int i = 0; i < slots.size(); i++) {
+				bound[slots.get(i)] = values.get(i);
 			}
-			return map;
+			return new Bindings(phase, input, inputTypes, bound);
 		}
 
 
@@ -90,95 +86,251 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 
 	public static class Matcher {
 		AnnotationList input;
+		int[] inputTypes;
 		int[] nextAnnotationIndex;
+		int[] startIndex;
 		int[] followingAnnotationIndex;
 		Document doc;
 		Phase phase;
 		
 		Deque<FSMInstance> activeInstances = new ArrayDeque<>();//new LinkedList<>();
 		List<FSMInstance> finalInstances = new ArrayList<>();
+		FSMInstance best; // current Appelt winner
+		TLongHashSet matchedSpans = new TLongHashSet();
 		
 		TIntArrayList matched = new TIntArrayList();
+		DispatchMatches dispatched = new DispatchMatches();
+		
+		List<RuleMatch> deferred;
+		
+		int index; // matching cursor
+		
+		JapeProfiler profiler;
+		JapeProfiler.PhaseProfile profile; // local profile, null if profiling is off
+		JapeProfiler.Counters counters; // counters of the currently advanced state
 
-		public Matcher(Document doc, final Phase phase) {
+		public Matcher(Document doc, Phase phase) {
+			this(doc, phase, doc.getView(phase.input));
+		}
+		
+		/**
+		 * Construct matcher over a cached annotation view of the document
+		 * 
+		 * @param doc document
+		 * @param phase compiled phase
+		 * @param view view of the phase input types
+		 */
+		public Matcher(Document doc, Phase phase, AnnotationView view) {
+			this(doc, phase, view.getAnnotations(), view.getNext());
+		}
+		
+		/**
+		 * Construct matcher over given phase input
+		 * 
+		 * @param doc document
+		 * @param phase compiled phase
+		 * @param input phase input annotations, in document order
+		 */
+		public Matcher(Document doc, Phase phase, AnnotationList input) {
+			this(doc, phase, input, AnnotationView.computeNext(input));
+		}
+		
+		/**
+		 * Construct matcher over given phase input and its following annotation index
+		 * 
+		 * @param doc document
+		 * @param phase compiled phase
+		 * @param input phase input annotations, in document order
+		 * @param nextAnnotationIndex following annotation index of the input
+		 */
+		public Matcher(Document doc, Phase phase, AnnotationList input, int[] nextAnnotationIndex) {
 			this.phase = phase;
 			this.doc = doc;
-			input = doc.get(new Predicate<Annotation>() {
-
-				@Override
-				public boolean apply(Annotation input) {
-					return phase.input.contains(input.getType());
-				}
-
-			}); 
+			this.input = input;
 
-			nextAnnotationIndex = computeNextAnnotationIndex(input);
-		}
-
-		public static int[] computeNextAnnotationIndex(AnnotationList input) {
-			int nextAnnotationIndex[] = new int[input.size()];
+			inputTypes = JapeEngineUtils.computeInputTypes(phase, input);
+			this.nextAnnotationIndex = nextAnnotationIndex;
 			
-			for(int i = 0; i < input.size(); i++) {
-				int index = Collections.binarySearch(input, input.get(i), new Comparator<Annotation>() {
-
-					@Override
-					public int compare(Annotation o1, Annotation o2) {
-						return Integer.compare(o1.getStart(), o2.getEnd());
-					}
-				});
-				
-				if(index < 0) {
-					index = -index - 1;
-				}
-				nextAnnotationIndex[i] = index;
+			if(phase.firstSet.isEnabled()) {
+				startIndex = phase.firstSet.computeStartIndex(input, inputTypes, nextAnnotationIndex);
 			}
+		}
 
-			return nextAnnotationIndex;
+		public static int[] computeNextAnnotationIndex(AnnotationList input) {
+			return AnnotationView.computeNext(input);
 		}
 
+		/**
+		 * Set profiler of the matching. The profile is merged into the profiler at the end of {@link #execute()}
+		 * 
+		 * @param profiler profiler, or null to disable profiling
+		 */
+		public void setProfiler(JapeProfiler profiler) {
+			this.profiler = profiler;
+			this.profile = profiler != null? profiler.newProfile(phase) : null;
+		}
+		
 		public void execute() {
-			int index = 0;
-
-			while(index < input.size()) {
-				FSMInstance initInst = FSMInstance.newInstance();
-				initInst.position = index;
-				initInst.state = phase.fsm.getStart();
-				activeInstances.add(initInst);
+			try {
+				reset();
 				
-				while(!activeInstances.isEmpty()) {
-					FSMInstance inst = activeInstances.removeFirst();
-					if(tryAdvance(inst))
-						break;
+				while(hasNext()) {
+					step();
 				}
+			} finally {
+				mergeProfile();
+			}
+		}
+		
+		/**
+		 * Merge the local profile into the profiler
+		 */
+		public void mergeProfile() {
+			if(profile != null) {
+				profiler.merge(profile);
+				profile = profiler.newProfile(phase);
+				counters = null;
+			}
+		}
+		
+		/**
+		 * Move the matching cursor to the input start
+		 */
+		public void reset() {
+			index = seek(0);
+		}
+		
+		/**
+		 * Checks if the matching cursor is in the input
+		 */
+		public boolean hasNext() {
+			return index >= 0 && index < input.size();
+		}
+		
+		/**
+		 * Get document offset of the matching cursor
+		 */
+		public int offset() {
+			return input.get(index).getStart();
+		}
+		
+		/**
+		 * Skip positions where no rule could start
+		 */
+		int seek(int index) {
+			if(startIndex != null && index >= 0 && index < input.size())
+				return startIndex[index];
+			
+			return index;
+		}
+		
+		/**
+		 * Match the phase at the cursor, apply matched rules and advance the cursor
+		 */
+		public void step() {
+			FSMInstance initInst = FSMInstance.newInstance();
+			initInst.position = index;
+			initInst.state = phase.fsm.getStart();
+			activeInstances.add(initInst);
+			
+			while(!activeInstances.isEmpty()) {
+				FSMInstance inst = activeInstances.removeFirst();
+				if(tryAdvance(inst))
+					break;
+			}
+			
+			// instances left after the early stop
+			activeInstances.clear();
+			
+			// if something has matched
+			if(!finalInstances.isEmpty() || best != null) {
+				int start = index;
+				index = applyRules(index);
 				
-				// if something has matched
-				if(!finalInstances.isEmpty()) {
-					index = applyRules(index);
-					finalInstances.clear();
-				} else {
-					index = skipToNextIndex(index);
-				}
+				// empty match, advance to avoid looping on the same position
+				if(index >= 0 && index <= start)
+					index = skipToNextIndex(start);
 				
-				if(index < 0)
-					break;				
+				finalInstances.clear();
+				matchedSpans.clear();
+				best = null;
+			} else {
+				index = skipToNextIndex(index);
 			}
+			
+			index = seek(index);
 		}
 		
 		
+		public Bindings bindings(FSMInstance inst) {
+			return inst.bindings(phase, input, inputTypes);
+		}
+		
+		/**
+		 * Set deferred mode. In the deferred mode the matcher doesn't execute RHS of the matched
+		 * rules, but records them. As the matcher input is fixed on construction, the matching
+		 * doesn't depend on the RHS actions, so the recorded matches could be executed later.
+		 * 
+		 * @param deferred deferred mode flag
+		 */
+		public void setDeferred(boolean deferred) {
+			this.deferred = deferred? new ArrayList<RuleMatch>() : null;
+		}
+		
+		/**
+		 * Get recorded matches of the deferred mode
+		 */
+		public List<RuleMatch> getMatches() {
+			return deferred;
+		}
+		
+		/**
+		 * Execute RHS of the recorded matches and leave the deferred mode
+		 */
+		public void fireDeferred() {
+			List<RuleMatch> matches = deferred;
+			deferred = null;
+			
+			for(RuleMatch m : matches) {
+				fire(m.rule, m.bindings);
+			}
+		}
+		
+		/**
+		 * Fire matched rule
+		 * 
+		 * @param rule matched rule
+		 * @param bindings rule bindings
+		 */
+		public void fire(Rule rule, Bindings bindings) {
+			if(deferred != null) {
+				deferred.add(new RuleMatch(rule, bindings));
+				return;
+			}
+			
+			long start = profile != null? System.nanoTime() : 0;
+			
+			for(RHS rhs : rule.rhs()) {
+				rhs.execute(doc, input, bindings);
+			}
+			
+			if(profile != null) {
+				JapeProfiler.Counters c = profile.rule(rule);
+				c.firings++;
+				c.rhsTime += System.nanoTime() - start;
+			}
+		}
+		
 		public int execOnce() {
 			FSMInstance inst = finalInstances.get(0);
-			for(RHS rhs : inst.rule.rhs()) {
-				rhs.execute(doc, input, inst.bindings(input));
-			}
+			fire(inst.rule, bindings(inst));
 
 			return -1;
 		}
 		
 		public int execFirst() {
 			FSMInstance inst = finalInstances.get(0);
-			for(RHS rhs : inst.rule.rhs()) {
-				rhs.execute(doc, input, inst.bindings(input));
-			}
+			fire(inst.rule, bindings(inst));
 
 			return inst.position;
 		}
@@ -186,9 +338,7 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 		public int execAll(int startIndex) {
 			for(int i = 0; i < finalInstances.size(); i++) {
 				FSMInstance inst = finalInstances.get(i);
-				for(RHS rhs : inst.rule.rhs()) {
-					rhs.execute(doc, input, inst.bindings(input));
-				}
+				fire(inst.rule, bindings(inst));
 			}
 			
 			return skipToNextIndex(startIndex);
@@ -198,9 +348,7 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 			int maxPos = Integer.MIN_VALUE;
 			for(int i = 0; i < finalInstances.size(); i++) {
 				FSMInstance inst = finalInstances.get(i);
-				for(RHS rhs : inst.rule.rhs()) {
-					rhs.execute(doc, input, inst.bindings(input));
-				}
+				fire(inst.rule, bindings(inst));
 
 				maxPos = Math.max(maxPos, inst.position);
 			}
@@ -209,29 +357,8 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 		}
 		
 		public int execAppelt() {
-			Collections.sort(finalInstances, new Comparator<FSMInstance>() {
-
-				@Override
-				public int compare(FSMInstance o1, FSMInstance o2) {
-					int res = o2.position - o1.position;
-					if(res != 0)
-						return res;
-					
-					res = o2.rule.getPriority() - o1.rule.getPriority();
-					if(res != 0)
-						return res;
-					
-					res = o2.rule.number - o1.rule.number;
-								
-					return res;
-				}
-			});
-			
-			for(RHS rhs : finalInstances.get(0).rule.rhs()) {
-				rhs.execute(doc, input, finalInstances.get(0).bindings(input));
-			}
-
-			return finalInstances.get(0).position;
+			fire(best.rule, bindings(best));
+			return best.position;
 		}
 
 		
@@ -253,26 +380,74 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 		}
 		
 		public FSMInstance copy(FSMInstance src) {
+			if(counters != null)
+				counters.copies++;
+			
 			FSMInstance copy = new FSMInstance();
 
-			copy.keys = new ArrayList<>(src.keys.size());
+			copy.slots = new TIntArrayList(src.slots);
 			copy.values = new ArrayList<>(src.values.size());
 			copy.stack = new ArrayList<>();
 			copy.position = src.position;
+			copy.end = src.end;
 			copy.state = src.state;
 
 			for(TIntArrayList l : src.stack) {
 				copy.stack.add(new TIntArrayList(l));
 			}
 
-			for(int i = 0; i < src.keys.size(); i++) {
-				copy.keys.add(src.keys.get(i));
+			for(int i = 0; i < src.values.size(); i++) {
 				copy.values.add(new TIntArrayList(src.values.get(i)));
 			}
 
 			return copy;
 		}
 		
+		/**
+		 * Add matched annotation to the instance
+		 * 
+		 * @param inst FSM instance
+		 * @param annotIndex annotation index
+		 */
+		public void addMatching(FSMInstance inst, int annotIndex) {
+			inst.addMatching(annotIndex);
+			inst.end = Math.max(inst.end, input.get(annotIndex).getEnd());
+		}
+		
+		/**
+		 * Register instance that reached a final state. In the Appelt mode only the current winner is
+		 * kept, in the Brill and All modes matches with same rule and span are registered once
+		 * 
+		 * @param instance FSM instance in a final state
+		 * @param r matched rule
+		 */
+		public void addFinal(FSMInstance instance, Rule r) {
+			if(profile != null)
+				profile.rule(r).matches++;
+			
+			switch(phase.mode) {
+			case APPELT:
+				if(best == null || JapeEngineUtils.isAppeltBetter(instance.position, r, best.position, best.rule)) {
+					best = copy(instance);
+					best.rule = r;
+				}
+				return;
+				
+			case BRILL:
+			case ALL:
+				if(!matchedSpans.add(JapeEngineUtils.spanKey(r, instance.end)))
+					return;
+				break;
+				
+			default:
+				break;
+			}
+			
+			FSMInstance inst = copy(instance);
+			inst.rule = r;	
+			finalInstances.add(inst);
+		}
+		
 		/**
 		 * Try to advance current FSMInstance
 		 * @param inst instance to advance
@@ -281,35 +456,52 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 		public boolean tryAdvance(FSMInstance instance) {
 			State state = instance.state;
 			
+			if(profile != null) {
+				counters = profile.state(state);
+				counters.instances++;
+			}
+			
+			// drop instances that can't beat the current winner
+			if(best != null && !JapeEngineUtils.canBeatAppelt(state, instance.position, input.size(), best.position, best.rule))
+				return false;
+			
 			if(state.isFinal()) {
 				for(Rule r : state.getRules()) {
-					FSMInstance inst = copy(instance);
-					inst.rule = r;	
-					finalInstances.add(inst);
+					addFinal(instance, r);
 				}
 				
 				if(phase.mode == MatchMode.FIRST || phase.mode == MatchMode.ONCE)
 					return true;
 			}
-			boolean singleTr = state.getTransitions().size() == 1;
+			List<Transition> transitions = state.getTransitions();
+			boolean singleTr = transitions.size() == 1;
+			dispatched.clear();
 			
-			for(int i = 0; i < state.getTransitions().size(); i++) {
-				Transition t = state.getTransitions().get(i);
+			for(int i = 0; i < transitions.size(); i++) {
+				Transition t = transitions.get(i);
 				int type = t.getType();
-							
+				
+				if(counters != null)
+					counters.transitions++;
+				
 				if(type == JapePlusFSM.GROUP_START) {
 					FSMInstance inst = singleTr? instance : copy(instance);
 					inst.state = t.getDest();
 					inst.push();
 					activeInstances.addLast(inst);
 				} else if(type < 0) { // group end
-					String groupName = phase.fsm.getGroupName(-type - 1);
 					FSMInstance inst = singleTr? instance : copy(instance);
-					inst.pop(groupName);
+					inst.pop(-type - 1);
 					inst.state = t.getDest();
 					activeInstances.addLast(inst);
 				} else {
-					generateMatching(t, instance, singleTr);
+					Dispatch d = state.getDispatch(i);
+					
+					if(d == null) {
+						generateMatching(t, instance, singleTr);
+					} else {
+						generateDispatchMatching(t, i, d, instance);
+					}
 				}			
 			}
 
@@ -331,6 +523,34 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 		}
 
 		
+		/**
+		 * Follow matches of a dispatch transition. The whole dispatch is matched on its first transition
+		 * 
+		 * @param t dispatch transition
+		 * @param index transition index in the state
+		 * @param d value dispatch
+		 * @param instance FSM instance
+		 */
+		public void generateDispatchMatching(Transition t, int index, Dispatch d, FSMInstance instance) {
+			if(instance.position >= input.size())
+				return;
+			
+			TLongArrayList matches = dispatched.get(d, input, instance.position);
+			
+			if(counters != null && d.getFirst() == index)
+				counters.evaluations++;
+			
+			for(int i = DispatchMatches.first(matches, index); DispatchMatches.isMatch(matches, i, index); i++) {
+				int annotIndex = (int) matches.get(i);
+				
+				FSMInstance inst = copy(instance);
+				addMatching(inst, annotIndex);
+				inst.position = nextAnnotationIndex[annotIndex];
+				inst.state = t.getDest();
+				activeInstances.addLast(inst);
+			}
+		}
+		
 		public void trySingleConstraintMatch(FSMInstance instance, State dest, TypeMatcher typeMatcher, boolean singleTr) {
 			List<AnnotationMatcher> matchers = typeMatcher.getMatchers();
 			TIntArrayList flags = typeMatcher.getFlags();
@@ -351,6 +571,9 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 					int flag = flags.get(matcherIndex);
 					boolean res0 = matcher.match(a);
 
+					if(counters != null)
+						counters.evaluations++;
+
 					if(flag == 1)
 						res0 = !res0;
 
@@ -370,7 +593,7 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 			
 			if(singleTr && matched.size() == 1) {
 				int annotIndex = matched.get(0);
-				instance.addMatching(annotIndex);
+				addMatching(instance, annotIndex);
 				int nextIndex = nextAnnotationIndex[annotIndex];
 				
 				instance.position = nextIndex;
@@ -381,7 +604,7 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 				while(it.hasNext()) {
 					int annotIndex = it.next();
 					FSMInstance inst = copy(instance);
-					inst.addMatching(annotIndex);
+					addMatching(inst, annotIndex);
 					int nextIndex = nextAnnotationIndex[annotIndex];
 					
 					inst.position = nextIndex;
@@ -403,7 +626,7 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 				int nextIndex = Integer.MIN_VALUE;
 			
 				for(int annotIndex : matched) {
-					inst.addMatching(annotIndex);
+					addMatching(inst, annotIndex);
 					nextIndex = Math.max(nextIndex, nextAnnotationIndex[annotIndex]);
 				}
 				
@@ -430,6 +653,9 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 						int flag = flags.get(matcherIndex);
 						boolean res0 = matcher.match(a);
 
+						if(counters != null)
+							counters.evaluations++;
+
 						if(flag == 1)
 							res0 = !res0;
 						
@@ -473,8 +699,22 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 
 	@Override
 	public void annotate(Document doc) {
-		Matcher m = new Matcher(doc, phase);
-		m.execute();
+		execute(doc, new Matcher(doc, phase));
+	}
+	
+	@Override
+	public void annotate(Document doc, AnnotationView view) {
+		execute(doc, new Matcher(doc, phase, view));
+	}
+	
+	void execute(Document doc, Matcher m) {
+		m.setProfiler(profiler);
+		beginOutput(doc);
+		try {
+			m.execute();
+		} finally {
+			endOutput(doc);
+		}
 		//doc.sortAnnotations();
 		
 	}
@@ -486,6 +726,7 @@ public class IterativeJapeAnnotator extends AbstractPhaseAnnotator {
 		String source = Files.toString(file, Charset.forName("UTF-8"));
 		Phase p = SinglePhaseJapeASTParser.parsePhase(config, source);
 		a.setPhase(p);
+		a.setProfiler(config.getProfiler());
 		a.init();
 		return a;
 	}
@@ -1,12 +1,20 @@
 package name.kazennikov.annotations.patterns;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 
 import name.kazennikov.annotations.patterns.AnnotationMatchers.FeatureAccessor;
 
 public class JapeConfiguration {
+	public static final int DEFAULT_DFA_CACHE_SIZE = 10000;
+	
 	Map<String, FeatureAccessor> accessors = new HashMap<String, AnnotationMatchers.FeatureAccessor>();
+	boolean lazyDeterminization;
+	int dfaCacheSize = DEFAULT_DFA_CACHE_SIZE;
+	File classCacheDir;
+	boolean fusePhases;
+	JapeProfiler profiler;
 	
 	
 	public JapeConfiguration() {
@@ -21,6 +29,67 @@ public class JapeConfiguration {
 	public void registerMetaFeature(FeatureAccessor fa) {
 		accessors.put(fa.getName(), fa);
 	}
+	
+	/**
+	 * Checks if the phase FSMs are determinized on demand during matching instead of
+	 * the full determinization on compilation
+	 */
+	public boolean isLazyDeterminization() {
+		return lazyDeterminization;
+	}
+	
+	public void setLazyDeterminization(boolean lazyDeterminization) {
+		this.lazyDeterminization = lazyDeterminization;
+	}
+	
+	/**
+	 * Get maximal number of cached DFA states of a lazily determinized phase FSM
+	 */
+	public int getDfaCacheSize() {
+		return dfaCacheSize;
+	}
+	
+	public void setDfaCacheSize(int dfaCacheSize) {
+		this.dfaCacheSize = dfaCacheSize;
+	}
+	
+	/**
+	 * Get directory of the compiled Java RHS bytecode cache
+	 * 
+	 * @return cache directory, or null if the bytecode isn't cached
+	 */
+	public File getClassCacheDir() {
+		return classCacheDir;
+	}
+	
+	public void setClassCacheDir(File classCacheDir) {
+		this.classCacheDir = classCacheDir;
+	}
+	
+	/**
+	 * Checks if consecutive independent phases of a multi-phase grammar are executed
+	 * in a single sweep over the document (see {@link FusedPhaseAnnotator})
+	 */
+	public boolean isFusePhases() {
+		return fusePhases;
+	}
+	
+	public void setFusePhases(boolean fusePhases) {
+		this.fusePhases = fusePhases;
+	}
+	
+	/**
+	 * Get profiler of the phase annotators made from this configuration
+	 * 
+	 * @return profiler, or null if profiling is off
+	 */
+	public JapeProfiler getProfiler() {
+		return profiler;
+	}
+	
+	public void setProfiler(JapeProfiler profiler) {
+		this.profiler = profiler;
+	}
 
 
 }
@@ -1,17 +1,25 @@
 package name.kazennikov.annotations.patterns;
 
+import gnu.trove.list.array.TLongArrayList;
+
 import java.io.File;
 import java.nio.charset.Charset;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 import name.kazennikov.annotations.Annotation;
 import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.AnnotationView;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.fsm.JapePlusFSM;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Dispatch;
+import name.kazennikov.annotations.fsm.JapePlusFSM.State;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Transition;
 
 import com.google.common.io.Files;
 
 public class JapeEngineUtils {
-	
 	public static Phase compilePhase(JapeConfiguration config, File file) throws Exception {
 		String src = Files.toString(file, Charset.forName("UTF-8"));
 		Phase phase = SinglePhaseJapeASTParser.parsePhase(config, src);
@@ -20,26 +28,188 @@ public class JapeEngineUtils {
 	}
 	
 	public static int[] computeFollowingAnnotationIndex(AnnotationList input) {
-		int nextAnnotationIndex[] = new int[input.size()];
+		return AnnotationView.computeNext(input);
+	}
+	
+	/**
+	 * Get phase input annotations of the document
+	 * 
+	 * @param doc document
+	 * @param phase phase
+	 * @return input annotations, in document order. The list is shared by the document view and must not be modified
+	 */
+	public static AnnotationList getInput(Document doc, Phase phase) {
+		return doc.getView(phase.input).getAnnotations();
+	}
+	
+	/**
+	 * Match value dispatch of a state on the annotations that start at given position.
+	 * Found matches are encoded as <code>transitionIndex &lt;&lt; 32 | annotationIndex</code>
+	 * and sorted, so they are in the state transition order
+	 * 
+	 * @param d value dispatch
+	 * @param input phase input
+	 * @param position start position in the input
+	 * @param matched output list of matches 
+	 */
+	public static void matchDispatch(Dispatch d, AnnotationList input, int position, TLongArrayList matched) {
+		matched.resetQuick();
+		int startPos = input.get(position).getStart();
+		
+		for(int annotIndex = position; annotIndex < input.size(); annotIndex++) {
+			Annotation a = input.get(annotIndex);
+			
+			if(a.getStart() != startPos)
+				break;
+			
+			if(!a.getType().equals(d.getType()))
+				continue;
+			
+			List<Transition> transitions = d.get(a);
+			if(transitions == null)
+				continue;
+			
+			for(int i = 0; i < transitions.size(); i++) {
+				matched.add(((long) d.indexOf(transitions.get(i)) << 32) | annotIndex);
+			}
+		}
+		
+		if(matched.size() > 1) {
+			matched.sort();
+		}
+	}
+	
+	/**
+	 * Checks if a match is better than the other one in Appelt sense: longer match
+	 * (in terms of the next input index) is better, then higher priority, then later rule
+	 * 
+	 * @param position next input index of the match
+	 * @param rule matched rule
+	 * @param bestPosition next input index of the other match
+	 * @param bestRule rule of the other match
+	 */
+	public static boolean isAppeltBetter(int position, Rule rule, int bestPosition, Rule bestRule) {
+		if(position != bestPosition)
+			return position > bestPosition;
+		
+		return rule.compareAppelt(bestRule) > 0;
+	}
+	
+	/**
+	 * Checks if an FSM instance could produce a match better than the current Appelt winner.
+	 * If the instance can't consume more annotations, all its matches end at the current position, so
+	 * only the best rule reachable by group transitions is considered
+	 * 
+	 * @param state instance state
+	 * @param position instance position
+	 * @param inputSize size of the phase input
+	 * @param bestPosition next input index of the current winner
+	 * @param bestRule rule of the current winner
+	 */
+	public static boolean canBeatAppelt(State state, int position, int inputSize, int bestPosition, Rule bestRule) {
+		if(state.canConsume() && position < inputSize)
+			return true;
+		
+		Rule r = state.getBestRule();
+		return r != null && isAppeltBetter(position, r, bestPosition, bestRule);
+	}
+	
+	/**
+	 * Compute key of a match span for deduplication of matches
+	 * 
+	 * @param rule matched rule
+	 * @param end end offset of the match
+	 */
+	public static long spanKey(Rule rule, int end) {
+		return ((long) rule.getNumber() << 32) | (end & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Get rules of the final states reachable from the state
+	 * 
+	 * @param state FSM state
+	 * @return reachable rules
+	 */
+	public static Set<Rule> reachableRules(State state) {
+		return JapePlusFSM.reachableRules(state);
+	}
+	
+	/**
+	 * Compute type ids of the phase input annotations
+	 * 
+	 * @param phase compiled phase
+	 * @param input phase input
+	 * @return type id for each input annotation
+	 */
+	public static int[] computeInputTypes(Phase phase, AnnotationList input) {
+		int[] types = new int[input.size()];
 		
 		for(int i = 0; i < input.size(); i++) {
-			int index = Collections.binarySearch(input, input.get(i), new Comparator<Annotation>() {
-
-				@Override
-				public int compare(Annotation o1, Annotation o2) {
-					return Integer.compare(o1.getStart(), o2.getEnd());
-				}
-			});
+			types[i] = phase.getTypeId(input.get(i).getType());
+		}
+		
+		return types;
+	}
+	
+	/**
+	 * Matches of the value dispatches of a state at an input position. A dispatch is matched once,
+	 * on its first transition, then each dispatch transition takes its own matches in turn, so the matches
+	 * are followed in the state transition order, as without the dispatch
+	 */
+	public static class DispatchMatches {
+		final List<Dispatch> dispatches = new ArrayList<>();
+		final List<TLongArrayList> matches = new ArrayList<>();
+		int size;
+		
+		public void clear() {
+			size = 0;
+		}
+		
+		/**
+		 * Get matches of the dispatch, the dispatch is matched on the first call
+		 * 
+		 * @param d value dispatch
+		 * @param input phase input
+		 * @param position start position in the input
+		 * @return matches, as of {@link JapeEngineUtils#matchDispatch(Dispatch, AnnotationList, int, TLongArrayList)}
+		 */
+		public TLongArrayList get(Dispatch d, AnnotationList input, int position) {
+			for(int i = 0; i < size; i++) {
+				if(dispatches.get(i) == d)
+					return matches.get(i);
+			}
 			
-			if(index < 0) {
-				index = -index - 1;
+			if(size == dispatches.size()) {
+				dispatches.add(d);
+				matches.add(new TLongArrayList());
+			} else {
+				dispatches.set(size, d);
 			}
-			nextAnnotationIndex[i] = index;
+			
+			TLongArrayList l = matches.get(size++);
+			matchDispatch(d, input, position, l);
+			return l;
+		}
+		
+		/**
+		 * Find first match of the transition
+		 * 
+		 * @param matches dispatch matches
+		 * @param transition transition index
+		 * @return index of the first match of the transition, or of the next transition match
+		 */
+		public static int first(TLongArrayList matches, int transition) {
+			int index = matches.binarySearch((long) transition << 32);
+			return index >= 0? index : -index - 1;
+		}
+		
+		/**
+		 * Checks if the match at the index is a match of the transition
+		 */
+		public static boolean isMatch(TLongArrayList matches, int index, int transition) {
+			return index < matches.size() && (int) (matches.get(index) >>> 32) == transition;
 		}
-
-		return nextAnnotationIndex;
 	}
-
 	
 	
 
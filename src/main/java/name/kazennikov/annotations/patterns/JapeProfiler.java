@@ -0,0 +1,336 @@
+package name.kazennikov.annotations.patterns;
+
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import name.kazennikov.annotations.fsm.JapePlusFSM.State;
+
+/**
+ * Profiler of the JAPE phase matching.
+ * <p>
+ * The profiler records, per FSM state, the number of FSM instances advanced in the state and
+ * copied from it, transitions attempted and annotation matcher evaluations, and per rule, the number
+ * of matches, RHS firings and time spent in RHS execution.
+ * <p>
+ * The cost of a state is split evenly among the rules that are reachable from the state, so the cost
+ * of a rule is its share of the states where the rule could still match, and the rule costs sum up
+ * to the matching work of the states with reachable rules. The report sorts rules by this cost.
+ * <p>
+ * Matchers collect counters into a local {@link PhaseProfile} and merge it to the profiler
+ * at the end of matching, so a profiler could be shared by parallel matchers
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class JapeProfiler {
+
+	/**
+	 * Profiling counters
+	 */
+	public static class Counters {
+		public long instances;    // instances advanced
+		public long copies;       // instance copies
+		public long transitions;  // transitions attempted
+		public long evaluations;  // annotation matcher evaluations
+		public long matches;      // matches registered
+		public long firings;      // RHS firings
+		public long rhsTime;      // time spent in RHS, ns
+
+		public void add(Counters c) {
+			instances += c.instances;
+			copies += c.copies;
+			transitions += c.transitions;
+			evaluations += c.evaluations;
+			matches += c.matches;
+			firings += c.firings;
+			rhsTime += c.rhsTime;
+		}
+
+		/**
+		 * Matching work: advanced instances, attempted transitions and matcher evaluations
+		 */
+		public long work() {
+			return instances + transitions + evaluations;
+		}
+	}
+
+	/**
+	 * Counters of a single phase
+	 */
+	public static class PhaseProfile {
+		final Phase phase;
+		final TIntObjectHashMap<Counters> states = new TIntObjectHashMap<>();
+		final TIntObjectHashMap<Counters> rules = new TIntObjectHashMap<>();
+		final TIntObjectHashMap<State> stateRefs = new TIntObjectHashMap<>(); // profiled states by number
+
+		public PhaseProfile(Phase phase) {
+			this.phase = phase;
+		}
+
+		public Phase getPhase() {
+			return phase;
+		}
+
+		/**
+		 * Get counters of the FSM state
+		 */
+		public Counters state(State s) {
+			Counters c = states.get(s.getNumber());
+			if(c == null) {
+				c = new Counters();
+				states.put(s.getNumber(), c);
+				stateRefs.put(s.getNumber(), s);
+			}
+
+			return c;
+		}
+
+		/**
+		 * Get counters of the rule
+		 */
+		public Counters rule(Rule r) {
+			Counters c = rules.get(r.getNumber());
+			if(c == null) {
+				c = new Counters();
+				rules.put(r.getNumber(), c);
+			}
+
+			return c;
+		}
+
+		void add(PhaseProfile p) {
+			add(states, p.states);
+			add(rules, p.rules);
+			stateRefs.putAll(p.stateRefs);
+		}
+
+		static void add(TIntObjectHashMap<Counters> dest, TIntObjectHashMap<Counters> src) {
+			TIntObjectIterator<Counters> it = src.iterator();
+			while(it.hasNext()) {
+				it.advance();
+				Counters c = dest.get(it.key());
+				if(c == null) {
+					c = new Counters();
+					dest.put(it.key(), c);
+				}
+				c.add(it.value());
+			}
+		}
+
+		/**
+		 * Compute rule statistics: own counters of the rule and its shares of the counters of the states
+		 * where the rule is reachable
+		 */
+		List<RuleStats> ruleStats() {
+			Map<Rule, RuleStats> stats = new IdentityHashMap<>();
+			for(Rule r : phase.rules) {
+				RuleStats rs = new RuleStats(phase, r);
+				Counters c = rules.get(r.getNumber());
+				if(c != null)
+					rs.counters.add(c);
+				stats.put(r, rs);
+			}
+
+			TIntObjectIterator<Counters> it = states.iterator();
+			while(it.hasNext()) {
+				it.advance();
+				List<Rule> reachable = new ArrayList<>(JapeEngineUtils.reachableRules(stateRefs.get(it.key())));
+				Collections.sort(reachable, RULE_ORDER);
+				Counters c = it.value();
+				int n = reachable.size();
+
+				for(int i = 0; i < n; i++) {
+					RuleStats rs = stats.get(reachable.get(i));
+					rs.counters.instances += share(c.instances, i, n);
+					rs.counters.copies += share(c.copies, i, n);
+					rs.counters.transitions += share(c.transitions, i, n);
+					rs.counters.evaluations += share(c.evaluations, i, n);
+					rs.states++;
+				}
+			}
+
+			return new ArrayList<>(stats.values());
+		}
+
+		/**
+		 * Get i-th of n shares of a counter. The remainder is given to the first shares,
+		 * so the shares sum up to the counter
+		 */
+		static long share(long value, int i, int n) {
+			return value / n + (i < value % n? 1 : 0);
+		}
+	}
+
+	/**
+	 * Statistics of a rule
+	 */
+	public static class RuleStats {
+		final Phase phase;
+		final Rule rule;
+		final Counters counters = new Counters();
+		int states; // number of visited states where the rule is reachable
+
+		public RuleStats(Phase phase, Rule rule) {
+			this.phase = phase;
+			this.rule = rule;
+		}
+
+		public Phase getPhase() {
+			return phase;
+		}
+
+		public Rule getRule() {
+			return rule;
+		}
+
+		public Counters getCounters() {
+			return counters;
+		}
+	}
+
+	/**
+	 * Order rules by number
+	 */
+	static final Comparator<Rule> RULE_ORDER = new Comparator<Rule>() {
+		@Override
+		public int compare(Rule o1, Rule o2) {
+			return Integer.compare(o1.getNumber(), o2.getNumber());
+		}
+	};
+
+	/**
+	 * Order rules by matching work, then by RHS time
+	 */
+	public static final Comparator<RuleStats> COST_ORDER = new Comparator<RuleStats>() {
+		@Override
+		public int compare(RuleStats o1, RuleStats o2) {
+			int res = Long.compare(o2.counters.work(), o1.counters.work());
+			return res != 0? res : Long.compare(o2.counters.rhsTime, o1.counters.rhsTime);
+		}
+	};
+
+	final Map<Phase, PhaseProfile> phases = new IdentityHashMap<>();
+	final List<Phase> order = new ArrayList<>();
+
+	/**
+	 * Make new local profile of the phase. The profile should be merged to the profiler
+	 * by {@link #merge(PhaseProfile)}
+	 *
+	 * @param phase profiled phase
+	 */
+	public PhaseProfile newProfile(Phase phase) {
+		return new PhaseProfile(phase);
+	}
+
+	/**
+	 * Merge local profile to the profiler
+	 */
+	public synchronized void merge(PhaseProfile p) {
+		PhaseProfile dest = phases.get(p.phase);
+		if(dest == null) {
+			dest = new PhaseProfile(p.phase);
+			phases.put(p.phase, dest);
+			order.add(p.phase);
+		}
+
+		dest.add(p);
+	}
+
+	public synchronized void reset() {
+		phases.clear();
+		order.clear();
+	}
+
+	/**
+	 * Get profile of the phase
+	 *
+	 * @return merged phase profile, or null if the phase wasn't profiled
+	 */
+	public synchronized PhaseProfile getProfile(Phase phase) {
+		return phases.get(phase);
+	}
+
+	/**
+	 * Get statistics of all profiled rules, sorted by cost
+	 */
+	public synchronized List<RuleStats> getRuleStats() {
+		List<RuleStats> stats = new ArrayList<>();
+		for(Phase p : order) {
+			stats.addAll(phases.get(p).ruleStats());
+		}
+
+		Collections.sort(stats, COST_ORDER);
+		return stats;
+	}
+
+	/**
+	 * Print report of the most expensive rules
+	 *
+	 * @param pw output writer
+	 * @param limit maximal number of rules in the report
+	 */
+	public synchronized void report(PrintWriter pw, int limit) {
+		List<RuleStats> stats = getRuleStats();
+		long total = 0;
+		for(Phase p : order) {
+			TIntObjectIterator<Counters> it = phases.get(p).states.iterator();
+			while(it.hasNext()) {
+				it.advance();
+				total += it.value().work();
+			}
+		}
+
+		pw.printf("%-20s %-24s %7s %12s %12s %12s %12s %12s %10s %10s %10s%n", "Phase", "Rule", "Work%",
+				"Work", "Instances", "Copies", "Transitions", "Evaluations", "Matches", "Firings", "RHS ms");
+
+		for(int i = 0; i < stats.size() && i < limit; i++) {
+			RuleStats rs = stats.get(i);
+			Counters c = rs.counters;
+			pw.printf("%-20s %-24s %7.2f %12d %12d %12d %12d %12d %10d %10d %10.3f%n", rs.phase.name, rs.rule.name,
+					total == 0? 0.0 : 100.0 * c.work() / total, c.work(), c.instances, c.copies, c.transitions,
+					c.evaluations, c.matches, c.firings, c.rhsTime / 1e6);
+		}
+
+		pw.flush();
+	}
+
+	/**
+	 * Write tab-separated dump of the rule and state counters. Each line is
+	 * <code>kind phase id name instances copies transitions evaluations matches firings rhsTimeNs</code>,
+	 * where kind is <code>rule</code> or <code>state</code>
+	 *
+	 * @param pw output writer
+	 */
+	public synchronized void dump(PrintWriter pw) {
+		pw.println("kind\tphase\tid\tname\tinstances\tcopies\ttransitions\tevaluations\tmatches\tfirings\trhsTimeNs");
+
+		for(Phase p : order) {
+			PhaseProfile profile = phases.get(p);
+
+			for(RuleStats rs : profile.ruleStats()) {
+				dump(pw, "rule", p, rs.rule.getNumber(), rs.rule.name, rs.counters);
+			}
+
+			TIntObjectIterator<Counters> it = profile.states.iterator();
+			while(it.hasNext()) {
+				it.advance();
+				dump(pw, "state", p, it.key(), "", it.value());
+			}
+		}
+
+		pw.flush();
+	}
+
+	static void dump(PrintWriter pw, String kind, Phase p, int id, String name, Counters c) {
+		pw.printf("%s\t%s\t%d\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d%n", kind, p.name, id, name, c.instances, c.copies,
+				c.transitions, c.evaluations, c.matches, c.firings, c.rhsTime);
+	}
+}
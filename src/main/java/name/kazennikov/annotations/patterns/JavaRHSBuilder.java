@@ -1,48 +1,251 @@
 package name.kazennikov.annotations.patterns;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.logger.Logger;
 import name.kazennikov.tools.EclipseECJWrapper;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Builder of Java RHS actions.
+ * <p>
+ * The RHS blocks are collected with {@link #add(List, String)} and compiled together by
+ * {@link #compile()} in a single compiler invocation. The compiled classes are loaded by
+ * a class loader of the batch, so the batches of different grammars could be compiled in parallel
+ * and unloaded with their grammars.
+ * <p>
+ * If the class cache directory is set, the batch bytecode is stored there, keyed by
+ * SHA-1 hash of the batch sources, and reused by the next compilation of the same sources
+ *
+ * @author Anton Kazennikov
+ *
+ */
 public class JavaRHSBuilder {
+	private static final Logger logger = Logger.getLogger();
 	private static AtomicInteger actionClassNumber = new AtomicInteger();
-	
-	
 
-	public static RHS build(String packageName, List<String> imports, String code) throws Exception {
-		
+	public static final int CACHE_MAGIC = 0x4A524853; // JRHS
+
+	/**
+	 * Java RHS of the batch. Delegates to the instance of the compiled class
+	 */
+	public static class JavaRHS implements RHS {
+		final List<String> imports;
+		final String code;
+		RHS rhs;
+
+		public JavaRHS(List<String> imports, String code) {
+			this.imports = imports;
+			this.code = code;
+		}
+
+		/**
+		 * Get instance of the compiled class, or null if the batch isn't compiled yet
+		 */
+		public RHS getCompiled() {
+			return rhs;
+		}
+
+		@Override
+		public boolean execute(Document doc, AnnotationList input, Bindings bindings) {
+			if(rhs == null)
+				throw new IllegalStateException("RHS isn't compiled: " + code);
+
+			return rhs.execute(doc, input, bindings);
+		}
+	}
+
+	File cacheDir;
+	List<JavaRHS> pending = new ArrayList<>();
+
+	public JavaRHSBuilder() {
+	}
+
+	/**
+	 * Construct builder with the class cache
+	 *
+	 * @param cacheDir class cache directory, or null
+	 */
+	public JavaRHSBuilder(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Add RHS block to the batch
+	 *
+	 * @param imports additional imports, could be null
+	 * @param code RHS code block
+	 * @return RHS that is usable after the batch compilation
+	 */
+	public JavaRHS add(List<String> imports, String code) {
+		JavaRHS rhs = new JavaRHS(imports, code);
+		pending.add(rhs);
+		return rhs;
+	}
+
+	static String source(String className, List<String> imports, String code) {
 		StringBuilder sb = new StringBuilder();
-		
-		String className = "JapeNGActionClass" + actionClassNumber.incrementAndGet();
-		
+
 		sb//.append("package " + packageName).append(";\n")
 		.append("import java.util.*;\n")
 		.append("import name.kazennikov.annotations.*;\n")
-		.append("import name.kazennikov.annotations.patterns.RHS;\n");
+		.append("import name.kazennikov.annotations.patterns.RHS;\n")
+		.append("import name.kazennikov.annotations.patterns.Bindings;\n");
 		if(imports != null) {
 			for(String imp : imports) {
 				sb.append("import ").append(imp).append(";\n");
 			}
 		}
-		
+
 		sb.append("public class " + className + " implements RHS {\n")
-		.append("@Override public boolean execute(Document doc, AnnotationList input, Map<String, AnnotationList> bindings)\n")
+		.append("@Override public boolean execute(Document doc, AnnotationList input, Bindings bindings)\n")
 		.append(code)
 		.append("}");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Compile all added RHS blocks
+	 *
+	 * @throws Exception
+	 */
+	public void compile() throws Exception {
+		if(pending.isEmpty())
+			return;
+
+		Hasher hasher = Hashing.sha1().newHasher();
+		for(JavaRHS rhs : pending) {
+			hasher.putString(String.valueOf(rhs.imports)).putChar('\0');
+			hasher.putString(rhs.code).putChar('\0');
+		}
+
+		String hash = hasher.hash().toString();
+
+		// class names depend on the batch hash, so the cached bytecode is valid for the same sources
+		Map<String, String> sources = new LinkedHashMap<>();
+		List<String> classNames = new ArrayList<>();
+		for(int i = 0; i < pending.size(); i++) {
+			JavaRHS rhs = pending.get(i);
+			String className = "JapeNGAction" + hash.substring(0, 16) + "_" + i;
+			classNames.add(className);
+			sources.put(className, source(className, rhs.imports, rhs.code));
+		}
+
+		File cacheFile = cacheDir != null? new File(cacheDir, hash + ".classes") : null;
+		Map<String, byte[]> classes = null;
+
+		if(cacheFile != null && cacheFile.exists()) {
+			try {
+				classes = readCache(cacheFile);
+			} catch(IOException e) {
+				logger.warn("Failed to read class cache %s: %s", cacheFile, e);
+			}
+		}
+
+		if(classes == null) {
+			StringWriter w = new StringWriter();
+			classes = EclipseECJWrapper.compile(sources, w);
+			if(classes == null)
+				throw new IllegalStateException("RHS code not compiled:" + w);
+
+			if(cacheFile != null) {
+				try {
+					writeCache(cacheFile, classes);
+				} catch(IOException e) {
+					logger.warn("Failed to write class cache %s: %s", cacheFile, e);
+				}
+			}
+		}
+
+		EclipseECJWrapper.SpecialClassLoader loader = new EclipseECJWrapper.SpecialClassLoader();
+		for(Map.Entry<String, byte[]> e : classes.entrySet()) {
+			loader.addClass(e.getKey(), e.getValue());
+		}
+
+		for(int i = 0; i < pending.size(); i++) {
+			pending.get(i).rhs = (RHS) loader.loadClass(classNames.get(i)).newInstance();
+		}
+
+		pending.clear();
+	}
+
+	static Map<String, byte[]> readCache(File file) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if(in.readInt() != CACHE_MAGIC)
+				throw new IOException("Not a class cache file");
+
+			Map<String, byte[]> classes = new LinkedHashMap<>();
+			int count = in.readInt();
+
+			for(int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				classes.put(name, bytes);
+			}
+
+			return classes;
+		}
+	}
+
+	static void writeCache(File file, Map<String, byte[]> classes) throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(CACHE_MAGIC);
+			out.writeInt(classes.size());
+
+			for(Map.Entry<String, byte[]> e : classes.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeInt(e.getValue().length);
+				out.write(e.getValue());
+			}
+		} catch(IOException | RuntimeException e) {
+			tmp.delete();
+			throw e;
+		}
+
+		if(!tmp.renameTo(file)) {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Compile single RHS block
+	 */
+	public static RHS build(String packageName, List<String> imports, String code) throws Exception {
+		String className = "JapeNGActionClass" + actionClassNumber.incrementAndGet();
 		StringWriter w = new StringWriter();
-		Class<?> clazz = EclipseECJWrapper.compileClass(sb.toString(), className, w);
+		Class<?> clazz = EclipseECJWrapper.compileClass(source(className, imports, code), className, w);
 		if(clazz == null)
 			throw new IllegalStateException("RHS code not compiled:" + code);
-		
+
 		RHS o = (RHS) clazz.newInstance();
-		
+
 		return o;
 
 	}
-	
-	
+
+
 	public static void main(String[] args) throws Exception {
 		RHS rhs = build("foo", null, "{List<String> foo = null; return true;}");
 	}
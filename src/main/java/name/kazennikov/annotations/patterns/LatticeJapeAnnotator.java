@@ -0,0 +1,551 @@
+package name.kazennikov.annotations.patterns;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.AnnotationView;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.fsm.JapePlusFSM;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Dispatch;
+import name.kazennikov.annotations.fsm.JapePlusFSM.State;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Transition;
+import name.kazennikov.annotations.fsm.JapePlusFSM.TypeMatcher;
+import name.kazennikov.annotations.patterns.JapeEngineUtils.DispatchMatches;
+
+/**
+ * JAPE phase annotator that runs the phase FSM over the annotation lattice with dynamic programming.
+ * <p>
+ * Matching from a start position explores the lattice of (FSM state, input index, match end) nodes in
+ * breadth-first order. Each node is created once and keeps a back-pointer to the node it was
+ * reached from and the step (group start/end or matched annotations) taken. So the work for a
+ * start position is bounded by the number of states times the input size times the number of
+ * distinct match ends, instead of the number of distinct paths, as in the {@link IterativeJapeAnnotator}
+ * and {@link RecursiveJapeAnnotator}. The match end is a part of the node, so matches with different
+ * spans are never merged.
+ * <p>
+ * Bindings are reconstructed from the back-pointers only for the fired matches. If several paths
+ * reach the same node, the first one (in breadth-first order) is kept, so bindings of the
+ * ambiguous matches could differ from the other engines.
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class LatticeJapeAnnotator extends AbstractPhaseAnnotator {
+
+	public static class Matcher {
+		static final int STEP_ROOT = 0;
+		static final int STEP_GROUP_START = 1;
+		static final int STEP_GROUP_END = 2;
+		static final int STEP_MATCH = 3;
+		static final int STEP_MULTI_MATCH = 4;
+
+		AnnotationList input;
+		int[] inputTypes;
+		int[] nextAnnotationIndex;
+		int[] startIndex;
+		Document doc;
+		Phase phase;
+
+		// lattice nodes
+		List<State> nodeState = new ArrayList<>();
+		TIntArrayList nodePosition = new TIntArrayList();
+		TIntArrayList nodePrev = new TIntArrayList();
+		TIntArrayList nodeStep = new TIntArrayList();
+		TIntArrayList nodeData = new TIntArrayList();
+		TIntArrayList nodeEnd = new TIntArrayList();
+		TIntArrayList nodeSame = new TIntArrayList(); // previous node with same state and position, or -1
+		List<int[]> multiMatches = new ArrayList<>();
+		TLongIntHashMap nodeIds = new TLongIntHashMap(64, 0.5f, -1L, -1); // (state, position) -> last node
+
+		// matches
+		TIntArrayList finalNodes = new TIntArrayList();
+		List<Rule> finalRules = new ArrayList<>();
+		int best = -1; // current Appelt winner node
+		Rule bestRule;
+		TLongHashSet matchedSpans = new TLongHashSet();
+
+		DispatchMatches dispatched = new DispatchMatches();
+
+		JapeProfiler profiler;
+		JapeProfiler.PhaseProfile profile; // local profile, null if profiling is off
+		JapeProfiler.Counters counters; // counters of the currently expanded state
+
+		public Matcher(Document doc, Phase phase) {
+			this(doc, phase, doc.getView(phase.input));
+		}
+		
+		/**
+		 * Construct matcher over a cached annotation view of the document
+		 * 
+		 * @param doc document
+		 * @param phase compiled phase
+		 * @param view view of the phase input types
+		 */
+		public Matcher(Document doc, Phase phase, AnnotationView view) {
+			this(doc, phase, view.getAnnotations(), view.getNext());
+		}
+
+		/**
+		 * Construct matcher over given phase input
+		 *
+		 * @param doc document
+		 * @param phase compiled phase
+		 * @param input phase input annotations, in document order
+		 */
+		public Matcher(Document doc, Phase phase, AnnotationList input) {
+			this(doc, phase, input, AnnotationView.computeNext(input));
+		}
+		
+		/**
+		 * Construct matcher over given phase input and its following annotation index
+		 * 
+		 * @param doc document
+		 * @param phase compiled phase
+		 * @param input phase input annotations, in document order
+		 * @param nextAnnotationIndex following annotation index of the input
+		 */
+		public Matcher(Document doc, Phase phase, AnnotationList input, int[] nextAnnotationIndex) {
+			this.doc = doc;
+			this.phase = phase;
+			this.input = input;
+
+			inputTypes = JapeEngineUtils.computeInputTypes(phase, input);
+			this.nextAnnotationIndex = nextAnnotationIndex;
+
+			if(phase.firstSet.isEnabled()) {
+				startIndex = phase.firstSet.computeStartIndex(input, inputTypes, nextAnnotationIndex);
+			}
+		}
+
+		/**
+		 * Set profiler of the matching. The profile is merged into the profiler at the end of {@link #execute()}
+		 * 
+		 * @param profiler profiler, or null to disable profiling
+		 */
+		public void setProfiler(JapeProfiler profiler) {
+			this.profiler = profiler;
+			this.profile = profiler != null? profiler.newProfile(phase) : null;
+		}
+
+		public void execute() {
+			try {
+				match();
+			} finally {
+				if(profile != null) {
+					profiler.merge(profile);
+					profile = profiler.newProfile(phase);
+					counters = null;
+				}
+			}
+		}
+
+		void match() {
+			int index = 0;
+
+			while(index < input.size()) {
+				// skip positions where no rule could start
+				if(startIndex != null) {
+					index = startIndex[index];
+					if(index >= input.size())
+						break;
+				}
+
+				reset();
+				addNode(phase.fsm.getStart(), index, -1, STEP_ROOT, 0, -1);
+
+				// nodes are appended in breadth-first order
+				for(int node = 0; node < nodeState.size(); node++) {
+					if(expand(node))
+						break;
+				}
+
+				if(!finalNodes.isEmpty() || best >= 0) {
+					int start = index;
+					index = applyRules(index);
+
+					// empty match, advance to avoid looping on the same position
+					if(index >= 0 && index <= start)
+						index = skipToNextIndex(start);
+				} else {
+					index = skipToNextIndex(index);
+				}
+
+				if(index < 0)
+					break;
+			}
+		}
+
+		/**
+		 * Clear the lattice and the matches of the previous start position
+		 */
+		void reset() {
+			nodeState.clear();
+			nodePosition.resetQuick();
+			nodePrev.resetQuick();
+			nodeStep.resetQuick();
+			nodeData.resetQuick();
+			nodeEnd.resetQuick();
+			nodeSame.resetQuick();
+			multiMatches.clear();
+			nodeIds.clear();
+
+			finalNodes.resetQuick();
+			finalRules.clear();
+			best = -1;
+			bestRule = null;
+			matchedSpans.clear();
+		}
+
+		/**
+		 * Add lattice node, if it doesn't exist yet
+		 *
+		 * @param state FSM state
+		 * @param position input position
+		 * @param prev previous node
+		 * @param step step type from the previous node
+		 * @param data step data (group slot, annotation index or multiple match index)
+		 * @param end end offset of the matched annotations
+		 * @return node id, or -1 if the node already exists
+		 */
+		int addNode(State state, int position, int prev, int step, int data, int end) {
+			long key = ((long) state.getNumber() << 32) | position;
+			int same = nodeIds.get(key);
+
+			for(int n = same; n >= 0; n = nodeSame.get(n)) {
+				if(nodeEnd.get(n) == end)
+					return -1;
+			}
+
+			int id = nodeState.size();
+			nodeIds.put(key, id);
+			nodeSame.add(same);
+			nodeState.add(state);
+			nodePosition.add(position);
+			nodePrev.add(prev);
+			nodeStep.add(step);
+			nodeData.add(data);
+			nodeEnd.add(end);
+			return id;
+		}
+
+		/**
+		 * Expand lattice node
+		 *
+		 * @param node node id
+		 * @return true, if the matching at current start position should stop
+		 */
+		boolean expand(int node) {
+			State state = nodeState.get(node);
+			int position = nodePosition.get(node);
+			int end = nodeEnd.get(node);
+
+			if(profile != null) {
+				counters = profile.state(state);
+				counters.instances++;
+			}
+
+			// skip nodes that can't beat the current winner
+			if(best >= 0 && !JapeEngineUtils.canBeatAppelt(state, position, input.size(), nodePosition.get(best), bestRule))
+				return false;
+
+			if(state.isFinal()) {
+				for(Rule r : state.getRules()) {
+					addFinal(node, r);
+				}
+
+				if(phase.mode == MatchMode.FIRST || phase.mode == MatchMode.ONCE)
+					return true;
+			}
+
+			List<Transition> transitions = state.getTransitions();
+			dispatched.clear();
+
+			for(int i = 0; i < transitions.size(); i++) {
+				Transition t = transitions.get(i);
+				int type = t.getType();
+
+				if(counters != null)
+					counters.transitions++;
+
+				if(type == JapePlusFSM.GROUP_START) {
+					addNode(t.getDest(), position, node, STEP_GROUP_START, 0, end);
+				} else if(type < 0) { // group end
+					addNode(t.getDest(), position, node, STEP_GROUP_END, -type - 1, end);
+				} else {
+					if(position >= input.size())
+						continue;
+
+					Dispatch d = state.getDispatch(i);
+
+					if(d == null) {
+						expandMatch(node, t);
+					} else {
+						expandDispatch(node, t, i, d);
+					}
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Expand matches of a dispatch transition. The whole dispatch is matched on its first transition
+		 */
+		void expandDispatch(int node, Transition t, int index, Dispatch d) {
+			TLongArrayList matches = dispatched.get(d, input, nodePosition.get(node));
+
+			if(counters != null && d.getFirst() == index)
+				counters.evaluations++;
+
+			for(int i = DispatchMatches.first(matches, index); DispatchMatches.isMatch(matches, i, index); i++) {
+				int annotIndex = (int) matches.get(i);
+
+				addNode(t.getDest(), nextAnnotationIndex[annotIndex], node, STEP_MATCH, annotIndex,
+						Math.max(nodeEnd.get(node), input.get(annotIndex).getEnd()));
+			}
+		}
+
+		void expandMatch(int node, Transition t) {
+			List<TypeMatcher> matchers = t.getMatchers();
+			int position = nodePosition.get(node);
+			int startPos = input.get(position).getStart();
+
+			if(matchers.size() == 1) {
+				TypeMatcher tm = matchers.get(0);
+
+				for(int annotIndex = position; annotIndex < input.size(); annotIndex++) {
+					Annotation a = input.get(annotIndex);
+
+					if(a.getStart() != startPos)
+						break;
+
+					if(match(tm, a)) {
+						addNode(t.getDest(), nextAnnotationIndex[annotIndex], node, STEP_MATCH, annotIndex,
+								Math.max(nodeEnd.get(node), a.getEnd()));
+					}
+				}
+			} else {
+				expandMultiMatch(node, t, startPos, 0, new int[matchers.size()]);
+			}
+		}
+
+		void expandMultiMatch(int node, Transition t, int startPos, int tmIndex, int[] matched) {
+			List<TypeMatcher> matchers = t.getMatchers();
+
+			if(tmIndex == matchers.size()) {
+				int next = Integer.MIN_VALUE;
+				int end = nodeEnd.get(node);
+
+				for(int annotIndex : matched) {
+					next = Math.max(next, nextAnnotationIndex[annotIndex]);
+					end = Math.max(end, input.get(annotIndex).getEnd());
+				}
+
+				if(addNode(t.getDest(), next, node, STEP_MULTI_MATCH, multiMatches.size(), end) >= 0) {
+					multiMatches.add(matched.clone());
+				}
+
+				return;
+			}
+
+			TypeMatcher tm = matchers.get(tmIndex);
+
+			for(int annotIndex = nodePosition.get(node); annotIndex < input.size(); annotIndex++) {
+				Annotation a = input.get(annotIndex);
+
+				if(a.getStart() != startPos)
+					break;
+
+				if(match(tm, a)) {
+					matched[tmIndex] = annotIndex;
+					expandMultiMatch(node, t, startPos, tmIndex + 1, matched);
+				}
+			}
+		}
+
+		/**
+		 * Check if all atomic matchers of a type matcher match an annotation
+		 *
+		 * @param tm type matcher
+		 * @param a annotation
+		 */
+		boolean match(TypeMatcher tm, Annotation a) {
+			List<AnnotationMatcher> matchers = tm.getMatchers();
+			TIntArrayList flags = tm.getFlags();
+
+			for(int i = 0; i < matchers.size(); i++) {
+				boolean res = matchers.get(i).match(a);
+
+				if(counters != null)
+					counters.evaluations++;
+
+				if(flags.get(i) == 1)
+					res = !res;
+
+				if(!res)
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Register node that reached a final state
+		 *
+		 * @param node node id
+		 * @param r matched rule
+		 */
+		void addFinal(int node, Rule r) {
+			if(profile != null)
+				profile.rule(r).matches++;
+
+			switch(phase.mode) {
+			case APPELT:
+				if(best < 0 || JapeEngineUtils.isAppeltBetter(nodePosition.get(node), r, nodePosition.get(best), bestRule)) {
+					best = node;
+					bestRule = r;
+				}
+				return;
+
+			case BRILL:
+			case ALL:
+				if(!matchedSpans.add(JapeEngineUtils.spanKey(r, nodeEnd.get(node))))
+					return;
+				break;
+
+			default:
+				break;
+			}
+
+			finalNodes.add(node);
+			finalRules.add(r);
+		}
+
+		/**
+		 * Reconstruct bindings of a node from the back-pointers
+		 *
+		 * @param node node id
+		 * @return bindings
+		 */
+		public Bindings bindings(int node) {
+			TIntArrayList path = new TIntArrayList();
+
+			for(int n = node; n >= 0; n = nodePrev.get(n)) {
+				path.add(n);
+			}
+
+			List<TIntArrayList> stack = new ArrayList<>();
+			TIntArrayList[] bound = new TIntArrayList[phase.fsm.getGroupCount()];
+
+			for(int i = path.size() - 1; i >= 0; i--) {
+				int n = path.get(i);
+
+				switch(nodeStep.get(n)) {
+				case STEP_GROUP_START:
+					stack.add(new TIntArrayList());
+					break;
+
+				case STEP_GROUP_END:
+					bound[nodeData.get(n)] = stack.remove(stack.size() - 1);
+					break;
+
+				case STEP_MATCH:
+					for(TIntArrayList l : stack) {
+						l.add(nodeData.get(n));
+					}
+					break;
+
+				case STEP_MULTI_MATCH:
+					for(int annotIndex : multiMatches.get(nodeData.get(n))) {
+						for(TIntArrayList l : stack) {
+							l.add(annotIndex);
+						}
+					}
+					break;
+				}
+			}
+
+			return new Bindings(phase, input, inputTypes, bound);
+		}
+
+		public void fire(int node, Rule rule) {
+			Bindings bindings = bindings(node);
+			long start = profile != null? System.nanoTime() : 0;
+
+			for(RHS rhs : rule.rhs()) {
+				rhs.execute(doc, input, bindings);
+			}
+
+			if(profile != null) {
+				JapeProfiler.Counters c = profile.rule(rule);
+				c.firings++;
+				c.rhsTime += System.nanoTime() - start;
+			}
+		}
+
+		public int applyRules(int startIndex) {
+			switch(phase.mode) {
+			case ONCE:
+				fire(finalNodes.get(0), finalRules.get(0));
+				return -1;
+
+			case FIRST:
+				fire(finalNodes.get(0), finalRules.get(0));
+				return nodePosition.get(finalNodes.get(0));
+
+			case ALL:
+				for(int i = 0; i < finalNodes.size(); i++) {
+					fire(finalNodes.get(i), finalRules.get(i));
+				}
+				return skipToNextIndex(startIndex);
+
+			case BRILL:
+				int maxPos = Integer.MIN_VALUE;
+				for(int i = 0; i < finalNodes.size(); i++) {
+					fire(finalNodes.get(i), finalRules.get(i));
+					maxPos = Math.max(maxPos, nodePosition.get(finalNodes.get(i)));
+				}
+				return maxPos;
+
+			case APPELT:
+				fire(best, bestRule);
+				return nodePosition.get(best);
+			}
+
+			return -1;
+		}
+
+		public int skipToNextIndex(int index) {
+			if(index >= input.size())
+				return index;
+			return nextAnnotationIndex[index];
+		}
+	}
+
+	@Override
+	public void annotate(Document doc) {
+		execute(doc, new Matcher(doc, phase));
+	}
+	
+	@Override
+	public void annotate(Document doc, AnnotationView view) {
+		execute(doc, new Matcher(doc, phase, view));
+	}
+	
+	void execute(Document doc, Matcher m) {
+		m.setProfiler(profiler);
+		beginOutput(doc);
+		try {
+			m.execute();
+		} finally {
+			endOutput(doc);
+		}
+	}
+}
@@ -26,6 +26,7 @@ public class MultiPhaseJapeASTParser {
 		protected MultiPhaseASTParser(JapeConfiguration config, File file)
 				throws RecognitionException, IOException {
 			super(config, Files.toString(file, Charset.forName("UTF-8")));
+			this.rhsBuilder = MultiPhaseJapeASTParser.this.rhsBuilder;
 		}
 		
 		MultiPhaseDecl parseMultiPhase() {
@@ -45,6 +46,8 @@ public class MultiPhaseJapeASTParser {
 	
 	JapeConfiguration config;
 	File file;
+	File archive; // compiled grammar archive
+	JavaRHSBuilder rhsBuilder; // Java RHS batch shared by all phases of the multi-phase grammar
 	Class<? extends AbstractPhaseAnnotator> phaseAnnotatorClass;
 	
 	public Class<? extends AbstractPhaseAnnotator> getPhaseAnnotatorClass() {
@@ -71,16 +74,37 @@ public class MultiPhaseJapeASTParser {
 		this.file = file;
 	}
 	
+	public File getArchive() {
+		return archive;
+	}
+	
+	/**
+	 * Set compiled grammar archive. If set, the grammar is loaded from the archive,
+	 * and the archive is rebuilt, if it is stale
+	 * 
+	 * @param archive archive file
+	 */
+	public void setArchive(File archive) {
+		this.archive = archive;
+	}
+	
 	
 
 	public Annotator makePhaseAnnotator(Phase p) throws Exception {
 		AbstractPhaseAnnotator a = phaseAnnotatorClass.newInstance();
 		a.setPhase(p);
+		
+		if(config != null)
+			a.setProfiler(config.getProfiler());
+
 		a.init();
 		return a;
 	}
 	
 	public Annotator init() throws Exception {
+		if(archive != null)
+			return makeAnnotator(CompiledGrammar.load(config, file, archive));
+		
 		MultiPhaseASTParser parser = new MultiPhaseASTParser(config, file);
 		
 		String type = parser.getType();
@@ -88,7 +112,19 @@ public class MultiPhaseJapeASTParser {
 			Phase p = parser.parsePhase();
 			return makePhaseAnnotator(p);
 		} else if(type.equals("MULTIPHASE")) {
-			return makeMultiPhaseAnnotator(parser.parseMultiPhase());
+			boolean ownBuilder = rhsBuilder == null;
+			if(ownBuilder)
+				rhsBuilder = new JavaRHSBuilder(config.getClassCacheDir());
+			
+			try {
+				AnnotatorSequence seq = makeMultiPhaseAnnotator(parser.parseMultiPhase());
+				if(ownBuilder)
+					rhsBuilder.compile();
+				return seq;
+			} finally {
+				if(ownBuilder)
+					rhsBuilder = null;
+			}
 		}
 		
 		throw new AnnotationEngineException("undefined grammar type");
@@ -102,11 +138,94 @@ public class MultiPhaseJapeASTParser {
 			MultiPhaseJapeASTParser parser = new MultiPhaseJapeASTParser();
 			parser.config = config;
 			parser.file = new File(this.file.getParent(), s + ".jape");
+			parser.rhsBuilder = rhsBuilder;
 			parser.setPhaseAnnotatorClass(phaseAnnotatorClass);
 			seq.add(parser.init());
 		}
 		
-		return seq;
+		return fuse(seq);
+	}
+	
+	/**
+	 * Make annotator for the compiled grammar
+	 * 
+	 * @param g compiled grammar
+	 * @return phase annotator for a single phase grammar, annotator sequence for a multi-phase grammar
+	 * @throws Exception
+	 */
+	public Annotator makeAnnotator(CompiledGrammar g) throws Exception {
+		if(g.name == null && g.phases.size() == 1)
+			return makePhaseAnnotator(g.phases.get(0));
+		
+		AnnotatorSequence seq = new AnnotatorSequence();
+		seq.setName(g.name);
+		
+		for(Phase p : g.phases) {
+			seq.add(makePhaseAnnotator(p));
+		}
+		
+		return fuse(seq);
+	}
+	
+	/**
+	 * Fuse consecutive independent phases of the sequence, if enabled by the configuration
+	 */
+	AnnotatorSequence fuse(AnnotatorSequence seq) {
+		if(config == null || !config.isFusePhases())
+			return seq;
+		
+		AnnotatorSequence fused = AnnotatorSequence.newInstance(FusedPhaseAnnotator.fuse(seq.getAnnotators()));
+		fused.setName(seq.getName());
+		return fused;
+	}
+	
+	/**
+	 * Parse and compile the grammar. Phases of the nested multi-phase grammars are flattened,
+	 * Java RHS of all phases are compiled as a single batch
+	 * 
+	 * @return compiled grammar
+	 * @throws Exception
+	 */
+	public CompiledGrammar compileGrammar() throws Exception {
+		CompiledGrammar g = new CompiledGrammar();
+		rhsBuilder = new JavaRHSBuilder(config.getClassCacheDir());
+		
+		try {
+			MultiPhaseASTParser parser = new MultiPhaseASTParser(config, file);
+			String type = parser.getType();
+
+			if(type.equals("MULTIPHASE")) {
+				g.name = parser.parseMultiPhase().name;
+			}
+
+			compileGrammar(g, parser);
+			rhsBuilder.compile();
+		} finally {
+			rhsBuilder = null;
+		}
+		
+		return g;
+	}
+	
+	void compileGrammar(CompiledGrammar g, MultiPhaseASTParser parser) throws Exception {
+		g.addSource(file);
+		String type = parser.getType();
+		
+		if(type.equals("PHASE")) {
+			Phase p = parser.parsePhase();
+			p.compile();
+			g.phases.add(p);
+		} else if(type.equals("MULTIPHASE")) {
+			for(String s : parser.parseMultiPhase().phases) {
+				MultiPhaseJapeASTParser child = new MultiPhaseJapeASTParser();
+				child.config = config;
+				child.file = new File(this.file.getParent(), s + ".jape");
+				child.rhsBuilder = rhsBuilder;
+				child.compileGrammar(g, child.new MultiPhaseASTParser(config, child.file));
+			}
+		} else {
+			throw new AnnotationEngineException("undefined grammar type");
+		}
 	}
 	
 	
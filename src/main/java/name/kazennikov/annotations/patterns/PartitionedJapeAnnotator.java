@@ -0,0 +1,191 @@
+package name.kazennikov.annotations.patterns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.AnnotationView;
+import name.kazennikov.annotations.Document;
+
+/**
+ * Phase annotator that partitions the phase input by boundary annotations (as Sentence)
+ * and matches the partitions in parallel.
+ * <p>
+ * The input is cut at the start offsets of the boundary annotations, so each input annotation
+ * belongs to the partition where it starts. It is assumed that the phase matches can't cross the
+ * boundaries. The partitions are matched by {@link IterativeJapeAnnotator.Matcher} in the deferred mode
+ * on a fork-join pool, then RHS of the matched rules are executed on the calling thread in the
+ * document order, so the output is same as for the sequential matching.
+ * <p>
+ * The boundary type is taken from the <code>partition</code> phase option, or from
+ * the annotator, if the option isn't set.
+ * <p>
+ * The RHS gets the whole phase input as <code>input</code>, as in the sequential execution.
+ * If the pool isn't set, a shared pool of daemon threads is used
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class PartitionedJapeAnnotator extends AbstractPhaseAnnotator {
+	public static final String DEFAULT_BOUNDARY_TYPE = "Sentence";
+
+	String boundaryType = DEFAULT_BOUNDARY_TYPE;
+	ForkJoinPool pool;
+
+	/**
+	 * Default pool shared by the annotators, created on first use
+	 */
+	static class DefaultPool {
+		static final ForkJoinPool POOL = new ForkJoinPool();
+	}
+
+	/**
+	 * Matches a range of partitions
+	 */
+	class MatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Document doc;
+		final List<AnnotationList> partitions;
+		final IterativeJapeAnnotator.Matcher[] matchers;
+		final int from;
+		final int to;
+
+		public MatchTask(Document doc, List<AnnotationList> partitions, IterativeJapeAnnotator.Matcher[] matchers, int from, int to) {
+			this.doc = doc;
+			this.partitions = partitions;
+			this.matchers = matchers;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from == 1) {
+				IterativeJapeAnnotator.Matcher m = new IterativeJapeAnnotator.Matcher(doc, phase, partitions.get(from));
+				m.setDeferred(true);
+				m.setProfiler(profiler);
+				m.execute();
+				matchers[from] = m;
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new MatchTask(doc, partitions, matchers, from, mid),
+					new MatchTask(doc, partitions, matchers, mid, to));
+		}
+	}
+
+	public String getBoundaryType() {
+		return boundaryType;
+	}
+
+	public void setBoundaryType(String boundaryType) {
+		this.boundaryType = boundaryType;
+	}
+
+	/**
+	 * Get matching pool: the pool set by {@link #setPool(ForkJoinPool)}, or the shared default pool
+	 */
+	public ForkJoinPool getPool() {
+		return pool != null? pool : DefaultPool.POOL;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Partition phase input by the boundary annotations
+	 *
+	 * @param doc document
+	 * @param input phase input, in document order
+	 * @return list of partitions
+	 */
+	public List<AnnotationList> partition(Document doc, AnnotationList input) {
+		List<AnnotationList> partitions = new ArrayList<>();
+		String type = phase.partition != null? phase.partition : boundaryType;
+		AnnotationList boundaries = type != null? doc.get(type) : new AnnotationList();
+
+		int from = 0;
+		int boundaryIndex = 0;
+
+		for(int i = 0; i < input.size(); i++) {
+			int start = input.get(i).getStart();
+			boolean cut = false;
+
+			while(boundaryIndex < boundaries.size() && boundaries.get(boundaryIndex).getStart() <= start) {
+				cut = true;
+				boundaryIndex++;
+			}
+
+			if(cut && i > from) {
+				partitions.add(new AnnotationList(input.subList(from, i)));
+				from = i;
+			}
+		}
+
+		if(from < input.size()) {
+			partitions.add(from == 0? input : new AnnotationList(input.subList(from, input.size())));
+		}
+
+		return partitions;
+	}
+
+	@Override
+	public void annotate(Document doc) {
+		annotate(doc, doc.getView(phase.input));
+	}
+	
+	@Override
+	public void annotate(Document doc, AnnotationView view) {
+		AnnotationList input = view.getAnnotations();
+		List<AnnotationList> partitions = partition(doc, input);
+
+		if(partitions.size() < 2) {
+			IterativeJapeAnnotator.Matcher m = new IterativeJapeAnnotator.Matcher(doc, phase, view);
+			m.setProfiler(profiler);
+			beginOutput(doc);
+			try {
+				m.execute();
+			} finally {
+				endOutput(doc);
+			}
+			return;
+		}
+
+		IterativeJapeAnnotator.Matcher[] matchers = new IterativeJapeAnnotator.Matcher[partitions.size()];
+		getPool().invoke(new MatchTask(doc, partitions, matchers, 0, partitions.size()));
+
+		JapeProfiler.PhaseProfile profile = profiler != null? profiler.newProfile(phase) : null;
+		beginOutput(doc);
+		try {
+			// execute RHS in document order
+			for(IterativeJapeAnnotator.Matcher m : matchers) {
+				List<RuleMatch> matches = m.getMatches();
+
+				for(RuleMatch match : matches) {
+					long start = profile != null? System.nanoTime() : 0;
+					match.execute(doc, input);
+
+					if(profile != null) {
+						JapeProfiler.Counters c = profile.rule(match.rule);
+						c.firings++;
+						c.rhsTime += System.nanoTime() - start;
+					}
+				}
+
+				// only the first match is applied in the whole document
+				if(phase.mode == MatchMode.ONCE && !matches.isEmpty())
+					break;
+			}
+		} finally {
+			endOutput(doc);
+
+			if(profile != null)
+				profiler.merge(profile);
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package name.kazennikov.annotations.patterns;
 
+import java.io.Serializable;
 
-public interface PatternElement {
+
+public interface PatternElement extends Serializable {
 	public static enum Operator {
 		AN_MATCHER,
 		SEQ,
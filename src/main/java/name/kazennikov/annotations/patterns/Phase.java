@@ -1,5 +1,7 @@
 package name.kazennikov.annotations.patterns;
 
+import gnu.trove.map.hash.TObjectIntHashMap;
+
 import java.io.File;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -16,15 +18,20 @@ public class Phase {
 	
 	String name;
 	MatchMode mode = MatchMode.BRILL;
+	String partition; // partition annotation type
 	Set<String> input = new HashSet<>();
 	List<Rule> rules = new ArrayList<>();
 	JapePlusFSM fsm;
+	TObjectIntHashMap<String> typeIds = new TObjectIntHashMap<>(10, 0.5f, -1);
+	FirstSet firstSet;
+	JapeConfiguration config;
 	
 	@Override
 	public String toString() {
 		return Objects.toStringHelper(this)
 				.add("name", name)
 				.add("mode", mode)
+				.add("partition", partition)
 				.add("input", input)
 				.add("rules", rules)
 				.toString();
@@ -44,7 +51,67 @@ public class Phase {
 			builder.addRule(r);
 		}
 		
-		fsm = builder.build();
+		if(config != null && config.isLazyDeterminization()) {
+			fsm = builder.buildLazy(config.getDfaCacheSize());
+		} else {
+			fsm = builder.build();
+		}
+		
+		link();
+	}
+	
+	/**
+	 * Resolve type ids, first-set and RHS references against the phase FSM. Called after the FSM
+	 * is built or read from a compiled grammar
+	 */
+	void link() {
+		typeIds.clear();
+		for(String type : input) {
+			typeIds.put(type, typeIds.size());
+		}
+		
+		firstSet = FirstSet.compute(this);
+		
+		// resolve binding names and types of the simple RHS to slots and type ids
+		for(Rule r : rules) {
+			for(RHS rhs : r.rhs) {
+				if(rhs instanceof SimpleRHS) {
+					((SimpleRHS) rhs).compile(this);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get id of an input annotation type. Ids are assigned on phase compilation
+	 * 
+	 * @param type annotation type
+	 * @return type id, or -1 if the type isn't in the phase input
+	 */
+	public int getTypeId(String type) {
+		return typeIds.get(type);
+	}
+	
+	public JapePlusFSM getFSM() {
+		return fsm;
+	}
+	
+	/**
+	 * Get partition annotation type of the phase. Phase matches can't
+	 * cross the partition boundaries
+	 * 
+	 * @return partition type, or null if it isn't set
+	 */
+	public String getPartition() {
+		return partition;
+	}
+	
+	public void setPartition(String partition) {
+		this.partition = partition;
+	}
+	
+	public FirstSet getFirstSet() {
+		return firstSet;
 	}
 	
 	public static Phase parse(JapeConfiguration config, File f) throws Exception {
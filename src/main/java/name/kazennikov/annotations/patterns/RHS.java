@@ -1,7 +1,5 @@
 package name.kazennikov.annotations.patterns;
 
-import java.util.Map;
-
 import name.kazennikov.annotations.AnnotationList;
 import name.kazennikov.annotations.Document;
 
@@ -20,9 +18,10 @@ public interface RHS {
 	 * 
 	 * @param doc processed document
 	 * @param input input annotation list
-	 * @param bindings found bindings
+	 * @param bindings found bindings. Could also be used as a map from binding name to
+	 * bound annotations
 	 * 
 	 * @return true on successful RHS execution
 	 */
-	public boolean execute(Document doc, AnnotationList input, Map<String, AnnotationList> bindings);
+	public boolean execute(Document doc, AnnotationList input, Bindings bindings);
 }
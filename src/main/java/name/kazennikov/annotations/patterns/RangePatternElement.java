@@ -1,6 +1,7 @@
 package name.kazennikov.annotations.patterns;
 
 public class RangePatternElement implements PatternElement {
+	private static final long serialVersionUID = 1L;
 	
 	public static int INFINITE = Integer.MAX_VALUE;
 	
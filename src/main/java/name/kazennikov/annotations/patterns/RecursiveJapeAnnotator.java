@@ -1,222 +1,361 @@
 package name.kazennikov.annotations.patterns;
 
-import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TLongHashSet;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import name.kazennikov.annotations.Annotation;
 import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.AnnotationView;
 import name.kazennikov.annotations.Document;
 import name.kazennikov.annotations.annotators.BasicTokenizer;
 import name.kazennikov.annotations.fsm.JapePlusFSM;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Dispatch;
 import name.kazennikov.annotations.fsm.JapePlusFSM.State;
 import name.kazennikov.annotations.fsm.JapePlusFSM.Transition;
 import name.kazennikov.annotations.fsm.JapePlusFSM.TypeMatcher;
+import name.kazennikov.annotations.patterns.JapeEngineUtils.DispatchMatches;
 import name.kazennikov.logger.Logger;
 
 import org.apache.log4j.BasicConfigurator;
 
-import com.google.common.base.Predicate;
-
+/**
+ * JAPE phase annotator that explores the phase FSM depth-first from each start position.
+ * <p>
+ * The depth-first search is run on an explicit work stack of reusable frames instead of the
+ * call stack, so long matches don't overflow the thread stack. The bindings are kept as
+ * int trails of the current path: the matched annotations, the open groups (as offsets in the matched
+ * trail) and the closed groups (as trail ranges). A frame undoes its binding step on return, so no
+ * instance copies are made, and the bindings are materialized only for the final states.
+ * <p>
+ * Match semantics is the same as of the recursive search: for a single constraint transition only
+ * the first matched annotation is followed, all combinations are followed for the multi-constraint
+ * transitions, the search stops at the first final state in the First and Once modes
+ *
+ * @author Anton Kazennikov
+ *
+ */
 public class RecursiveJapeAnnotator extends AbstractPhaseAnnotator {
 	private static final Logger logger = Logger.getLogger();
 
-	public static class FSMInstance {
-		List<AnnotationList> stack;
-		List<String> keys;
-		List<AnnotationList> values;
-		int position = 0;
-		State state;
-		Rule rule;
+	/**
+	 * Work stack frame
+	 */
+	static class Frame {
+		static final int EXEC = 0;
+		static final int MULTI = 1;
 
-		public void init() {
-			keys = new ArrayList<>();
-			values = new ArrayList<>();
-			stack = new ArrayList<>();
-		}
+		int kind;
+		boolean waiting; // frame waits for the result of the child frame
 
-		public FSMInstance copy() {
-			FSMInstance copy = new FSMInstance();
-			copy.keys = new ArrayList<>(this.keys.size());
-			copy.values = new ArrayList<>(this.values.size());
-			copy.stack = new ArrayList<>();
-			copy.position = position;
+		// FSM instance
+		State state;
+		int position;
+		int end;
+
+		// binding trail sizes to restore on return
+		int matchedSize;
+		int openSize;
+		int closedSize;
+		int popped; // group start of the closed group, or -1
+
+		int transition; // next transition (EXEC)
+		DispatchMatches dispatched; // dispatch matches of the state (EXEC)
+
+		// multi-constraint matching (MULTI)
+		Transition t;
+		int tmIndex;
+		int annotIndex;
+		int startPos;
+		int[] matched;
+	}
 
-			for(AnnotationList l : stack) {
-				copy.stack.add(l.copy());
-			}
-			
-			for(int i = 0; i < keys.size(); i++) {
-				copy.keys.add(keys.get(i));
-				copy.values.add(values.get(i).copy());
-			}
+	public static class Matcher {
+		AnnotationList input;
+		int[] inputTypes;
+		int[] nextAnnotationIndex;
+		int[] startIndex;
+		Document doc;
+		Phase phase;
 
-			return copy;
+		// work stack
+		List<Frame> frames = new ArrayList<>();
+		int depth;
+		boolean result; // result of the last returned frame
+
+		// bindings of the current path
+		TIntArrayList matchedTrail = new TIntArrayList();
+		TIntArrayList openGroups = new TIntArrayList();
+		TIntArrayList closedSlots = new TIntArrayList();
+		TIntArrayList closedFrom = new TIntArrayList();
+		TIntArrayList closedTo = new TIntArrayList();
+
+		// matches
+		List<RuleMatch> finals = new ArrayList<>();
+		TIntArrayList finalPositions = new TIntArrayList();
+		RuleMatch best; // current Appelt winner
+		int bestPosition;
+		TLongHashSet matchedSpans = new TLongHashSet();
+
+		JapeProfiler profiler;
+		JapeProfiler.PhaseProfile profile; // local profile, null if profiling is off
+		JapeProfiler.Counters counters; // counters of the state of the top frame
+
+		public Matcher(Document doc, Phase phase) {
+			this(doc, phase, doc.getView(phase.input));
+		}
+		
+		/**
+		 * Construct matcher over a cached annotation view of the document
+		 * 
+		 * @param doc document
+		 * @param phase compiled phase
+		 * @param view view of the phase input types
+		 */
+		public Matcher(Document doc, Phase phase, AnnotationView view) {
+			this(doc, phase, view.getAnnotations(), view.getNext());
 		}
 
-		public void push() {
-			stack.add(new AnnotationList());
+		/**
+		 * Construct matcher over given phase input
+		 *
+		 * @param doc document
+		 * @param phase compiled phase
+		 * @param input phase input annotations, in document order
+		 */
+		public Matcher(Document doc, Phase phase, AnnotationList input) {
+			this(doc, phase, input, AnnotationView.computeNext(input));
 		}
+		
+		/**
+		 * Construct matcher over given phase input and its following annotation index
+		 * 
+		 * @param doc document
+		 * @param phase compiled phase
+		 * @param input phase input annotations, in document order
+		 * @param nextAnnotationIndex following annotation index of the input
+		 */
+		public Matcher(Document doc, Phase phase, AnnotationList input, int[] nextAnnotationIndex) {
+			this.phase = phase;
+			this.doc = doc;
+			this.input = input;
+
+			inputTypes = JapeEngineUtils.computeInputTypes(phase, input);
+			this.nextAnnotationIndex = nextAnnotationIndex;
 
-		public void addMatching(Annotation a) {
-			for(AnnotationList l : stack) {
-				l.add(a);
+			if(phase.firstSet.isEnabled()) {
+				startIndex = phase.firstSet.computeStartIndex(input, inputTypes, nextAnnotationIndex);
 			}
 		}
 
-		public void pop(String groupName) {
-			AnnotationList l = stack.get(stack.size() - 1);
-			stack.remove(stack.size() - 1);
-			keys.add(groupName);
-			values.add(l);
-		}
 
-		public static FSMInstance newInstance() {
-			FSMInstance inst = new FSMInstance();
-			inst.init();
-			return inst;
+		/**
+		 * Set profiler of the matching. The profile is merged into the profiler at the end of {@link #execute()}
+		 * 
+		 * @param profiler profiler, or null to disable profiling
+		 */
+		public void setProfiler(JapeProfiler profiler) {
+			this.profiler = profiler;
+			this.profile = profiler != null? profiler.newProfile(phase) : null;
 		}
 
-		public Map<String, AnnotationList> bindings() {
-			Map<String, AnnotationList> map = new HashMap<String, AnnotationList>();
-			for(int i = 0; i < keys.size(); i++) {
-				map.put(keys.get(i), values.get(i));
+		public void execute() {
+			try {
+				match();
+			} finally {
+				if(profile != null) {
+					profiler.merge(profile);
+					profile = profiler.newProfile(phase);
+					counters = null;
+				}
 			}
-			return map;
 		}
 
+		void match() {
+			int index = 0;
 
-	}
+			while(index < input.size()) {
+				// skip positions where no rule could start
+				if(startIndex != null) {
+					index = startIndex[index];
+					if(index >= input.size())
+						break;
+				}
 
+				run(index);
 
-	public static class Matcher {
-		AnnotationList input;
-		int[] nextAnnotationIndex;
-		Document doc;
-		Phase phase;
-		
-		
-		List<FSMInstance> instances = new ArrayList<>();
+				// if something matched
+				if(!finals.isEmpty() || best != null) {
+					int start = index;
+					index = applyRules(index);
 
-		public Matcher(Document doc, final Phase phase) {
-			this.phase = phase;
-			this.doc = doc;
-			input = doc.get(new Predicate<Annotation>() {
+					// empty match, advance to avoid looping on the same position
+					if(index >= 0 && index <= start)
+						index = skipToNextIndex(start);
 
-				@Override
-				public boolean apply(Annotation input) {
-					return phase.input.contains(input.getType());
+					finals.clear();
+					finalPositions.resetQuick();
+					matchedSpans.clear();
+					best = null;
+				} else {
+					index = skipToNextIndex(index);
 				}
 
-			}); 
+				if(index < 0)
+					break;
 
-			input.sort();		
-			nextAnnotationIndex = JapeEngineUtils.computeFollowingAnnotationIndex(input);
+			}
 		}
 
+		/**
+		 * Run depth-first search from the start position
+		 *
+		 * @param index start position
+		 */
+		void run(int index) {
+			push(Frame.EXEC, phase.fsm.getStart(), index, -1);
 
-		public void execute() {
-			int index = 0;
+			while(depth > 0) {
+				Frame f = frames.get(depth - 1);
 
+				if(profile != null)
+					counters = profile.state(f.state);
 
-			while(index < input.size()) {
-				
-				FSMInstance inst = FSMInstance.newInstance();
-				inst.position = index;
-				inst.state = phase.fsm.getStart();
-				tryExecute(inst);
-				
-				// if something matched
-				if(!instances.isEmpty()) {
-					index = applyRules(index);
-					instances.clear();
-				} else {
-					index = skipToNextIndex(index);
-				}
-				
-				if(index < 0)
+				switch(f.kind) {
+				case Frame.EXEC:
+					stepExec(f);
+					break;
+				case Frame.MULTI:
+					stepMulti(f);
 					break;
-				
+				}
 			}
 		}
-		
-		public int execOnce() {
-			FSMInstance inst = instances.get(0);
-			for(RHS rhs : inst.rule.rhs()) {
-				rhs.execute(doc, input, inst.bindings());
+
+		/**
+		 * Push a new frame on the work stack. Current binding trail sizes are saved in the frame
+		 */
+		Frame push(int kind, State state, int position, int end) {
+			if(depth == frames.size())
+				frames.add(new Frame());
+
+			Frame f = frames.get(depth++);
+			f.kind = kind;
+			f.waiting = false;
+			f.state = state;
+			f.position = position;
+			f.end = end;
+			f.transition = 0;
+			if(f.dispatched != null)
+				f.dispatched.clear();
+			f.matchedSize = matchedTrail.size();
+			f.openSize = openGroups.size();
+			f.closedSize = closedSlots.size();
+			f.popped = -1;
+			return f;
+		}
+
+		/**
+		 * Return from the top frame: restore the bindings and pass the result to the parent frame
+		 */
+		void ret(Frame f, boolean res) {
+			truncate(matchedTrail, f.matchedSize);
+			truncate(closedSlots, f.closedSize);
+			truncate(closedFrom, f.closedSize);
+			truncate(closedTo, f.closedSize);
+
+			if(f.popped >= 0) {
+				openGroups.add(f.popped);
+			} else {
+				truncate(openGroups, f.openSize);
 			}
 
-			return -1;
+			f.state = null;
+			f.t = null;
+			result = res;
+			depth--;
 		}
-		
-		public int execFirst() {
-			FSMInstance inst = instances.get(0);
-			for(RHS rhs : inst.rule.rhs()) {
-				rhs.execute(doc, input, inst.bindings());
+
+		static void truncate(TIntArrayList l, int size) {
+			if(l.size() > size)
+				l.remove(size, l.size() - size);
+		}
+
+		/**
+		 * Push frame for the state reached by the matched annotation
+		 */
+		void pushMatch(State dest, Frame parent, int annotIndex) {
+			push(Frame.EXEC, dest, nextAnnotationIndex[annotIndex], Math.max(parent.end, input.get(annotIndex).getEnd()));
+			matchedTrail.add(annotIndex);
+		}
+
+		/**
+		 * Build bindings from the binding trails of the current path
+		 */
+		public Bindings bindings() {
+			TIntArrayList[] bound = new TIntArrayList[phase.fsm.getGroupCount()];
+			for(int i = 0; i < closedSlots.size(); i++) {
+				int from = closedFrom.get(i);
+				int to = closedTo.get(i);
+				bound[closedSlots.get(i)] = new TIntArrayList(matchedTrail.subList(from, to).toArray());
 			}
+			return new Bindings(phase, input, inputTypes, bound);
+		}
 
-			return inst.position;
+		/**
+		 * Fire matched rule
+		 * 
+		 * @param match rule match
+		 */
+		public void fire(RuleMatch match) {
+			long start = profile != null? System.nanoTime() : 0;
+			match.execute(doc);
+
+			if(profile != null) {
+				JapeProfiler.Counters c = profile.rule(match.getRule());
+				c.firings++;
+				c.rhsTime += System.nanoTime() - start;
+			}
 		}
-		
+
+		public int execOnce() {
+			fire(finals.get(0));
+			return -1;
+		}
+
+		public int execFirst() {
+			fire(finals.get(0));
+			return finalPositions.get(0);
+		}
+
 		public int execAll(int startIndex) {
-			for(int i = 0; i < instances.size(); i++) {
-				FSMInstance inst = instances.get(i);
-				for(RHS rhs : inst.rule.rhs()) {
-					rhs.execute(doc, input, inst.bindings());
-				}
+			for(int i = 0; i < finals.size(); i++) {
+				fire(finals.get(i));
 			}
-			
+
 			return skipToNextIndex(startIndex);
 		}
-		
+
 		public int execBrill() {
 			int maxPos = Integer.MIN_VALUE;
-			for(int i = 0; i < instances.size(); i++) {
-				FSMInstance inst = instances.get(i);
-				for(RHS rhs : inst.rule.rhs()) {
-					rhs.execute(doc, input, inst.bindings());
-				}
-
-				maxPos = Math.max(maxPos, inst.position);
+			for(int i = 0; i < finals.size(); i++) {
+				fire(finals.get(i));
+				maxPos = Math.max(maxPos, finalPositions.get(i));
 			}
-			
+
 			return maxPos;
 		}
-		
-		public int execAppelt() {
-			Collections.sort(instances, new Comparator<FSMInstance>() {
-
-				@Override
-				public int compare(FSMInstance o1, FSMInstance o2) {
-					int res = o2.position - o1.position;
-					if(res != 0)
-						return res;
-					
-					res = o2.rule.getPriority() - o1.rule.getPriority();
-					if(res != 0)
-						return res;
-					
-					res = o2.rule.number - o1.rule.number;
-								
-					return res;
-				}
-			});
-			
-			for(RHS rhs : instances.get(0).rule.rhs()) {
-				rhs.execute(doc, input, instances.get(0).bindings());
-			}
 
-			return instances.get(0).position;
+		public int execAppelt() {
+			fire(best);
+			return bestPosition;
 		}
 
-		
+
 		public int applyRules(int startIndex) {
 			switch(phase.mode) {
 			case ONCE:
@@ -230,190 +369,245 @@ public class RecursiveJapeAnnotator extends AbstractPhaseAnnotator {
 			case APPELT:
 				return execAppelt();
 			}
-			
+
 			return -1;
 		}
-		
 
+		/**
+		 * Register final state of the current path. In the Appelt mode only the current winner is
+		 * kept, in the Brill and All modes matches with same rule and span are registered once
+		 *
+		 * @param f frame in a final state
+		 * @param r matched rule
+		 */
+		public void addFinal(Frame f, Rule r) {
+			if(profile != null)
+				profile.rule(r).matches++;
+
+			switch(phase.mode) {
+			case APPELT:
+				if(best == null || JapeEngineUtils.isAppeltBetter(f.position, r, bestPosition, best.getRule())) {
+					best = new RuleMatch(r, bindings());
+					bestPosition = f.position;
+				}
+				return;
+
+			case BRILL:
+			case ALL:
+				if(!matchedSpans.add(JapeEngineUtils.spanKey(r, f.end)))
+					return;
+				break;
+
+			default:
+				break;
+			}
+
+			finals.add(new RuleMatch(r, bindings()));
+			finalPositions.add(f.position);
+		}
 
 		/**
-		 * Попробовать отматчить fsm начиная с данной позиции
-		 * @param index
-		 * @return true, if we need to continue
+		 * Step of the FSM instance frame: check the final state, then follow transitions one by one.
+		 * The frame returns false, if the search should be stopped
 		 */
-		public boolean tryExecute(FSMInstance instance) {
-			State state = instance.state;
-			if(state.isFinal()) {
-				for(Rule r : state.getRules()) {
-					FSMInstance inst = instance.copy();
-					inst.rule = r;	
-					instances.add(inst);
+		void stepExec(Frame f) {
+			State state = f.state;
+			List<Transition> transitions = state.getTransitions();
+
+			if(f.waiting) {
+				f.waiting = false;
+				if(!result) {
+					ret(f, false);
+					return;
+				}
+			} else if(f.transition == 0) {
+				if(counters != null)
+					counters.instances++;
+
+				// skip instances that can't beat the current winner
+				if(best != null && !JapeEngineUtils.canBeatAppelt(state, f.position, input.size(), bestPosition, best.getRule())) {
+					ret(f, true);
+					return;
+				}
+
+				if(state.isFinal()) {
+					for(Rule r : state.getRules()) {
+						addFinal(f, r);
+					}
+
+					if(phase.mode == MatchMode.FIRST || phase.mode == MatchMode.ONCE) {
+						ret(f, false);
+						return;
+					}
 				}
-				
-				if(phase.mode == MatchMode.FIRST || phase.mode == MatchMode.ONCE)
-					return false;
 			}
-			
-			boolean singleTr = state.getTransitions().size() == 1;
 
-			for(Transition t : state.getTransitions()) {
+			while(f.transition < transitions.size()) {
+				int i = f.transition++;
+				Transition t = transitions.get(i);
 				int type = t.getType();
-				boolean res;
-				
+
+				if(counters != null)
+					counters.transitions++;
+
 				if(type == JapePlusFSM.GROUP_START) {
-					FSMInstance inst = singleTr? instance : instance.copy();
-					inst.push();
-					inst.state = t.getDest();
-					res = tryExecute(inst);
+					f.waiting = true;
+					push(Frame.EXEC, t.getDest(), f.position, f.end);
+					openGroups.add(matchedTrail.size());
+					return;
 				} else if(type < 0) { // group end
-					String groupName = phase.fsm.getGroupName(-type - 1);
-					FSMInstance inst = singleTr? instance : instance.copy();
-					inst.pop(groupName);
-					inst.state = t.getDest();
-					res = tryExecute(inst);
-				} else {
-					
-					if(instance.position >= input.size())
-						return true;
+					f.waiting = true;
+					Frame child = push(Frame.EXEC, t.getDest(), f.position, f.end);
+					child.popped = openGroups.removeAt(openGroups.size() - 1);
+					closedSlots.add(-type - 1);
+					closedFrom.add(child.popped);
+					closedTo.add(matchedTrail.size());
+					return;
+				}
 
-					res = tryMatch(instance, t, singleTr);
+				if(f.position >= input.size()) {
+					ret(f, true);
+					return;
 				}
-				
-				if(!res)
-					return res;
 
-			}
+				Dispatch d = state.getDispatch(i);
 
-			return true;
-		}
+				if(d != null) {
+					// whole dispatch is matched on its first transition
+					if(f.dispatched == null)
+						f.dispatched = new DispatchMatches();
 
-		public boolean tryMatch(FSMInstance instance, Transition t, boolean singleTr) {
-			List<TypeMatcher> matchers = t.getMatchers();
-			if(matchers.size() == 1) {
-				return trySingleConstraintMatch(instance, t.getDest(), matchers.get(0), singleTr);
-			} else {
-				int[] matchedAnnotations = new int[matchers.size()];
-				return tryConstraintsMatch(instance, t.getDest(), matchers, 0, matchedAnnotations);
+					TLongArrayList matches = f.dispatched.get(d, input, f.position);
+
+					if(counters != null && d.getFirst() == i)
+						counters.evaluations++;
+
+					// only first matched annotation is followed
+					int index = DispatchMatches.first(matches, i);
+					if(!DispatchMatches.isMatch(matches, index, i))
+						continue;
+
+					f.waiting = true;
+					pushMatch(t.getDest(), f, (int) matches.get(index));
+					return;
+				}
+
+				List<TypeMatcher> matchers = t.getMatchers();
+
+				if(matchers.size() == 1) {
+					// only first matched annotation is followed
+					int annotIndex = firstMatch(matchers.get(0), f.position);
+					if(annotIndex < 0)
+						continue;
+
+					f.waiting = true;
+					pushMatch(t.getDest(), f, annotIndex);
+					return;
+				}
+
+				f.waiting = true;
+				Frame child = push(Frame.MULTI, state, f.position, f.end);
+				child.t = t;
+				child.tmIndex = 0;
+				child.annotIndex = f.position;
+				child.startPos = input.get(f.position).getStart();
+				child.matched = new int[matchers.size()];
+				return;
 			}
+
+			ret(f, true);
 		}
-		
-		public boolean trySingleConstraintMatch(FSMInstance instance, State dest, TypeMatcher typeMatcher, boolean singleTr) {
-			List<AnnotationMatcher> matchers = typeMatcher.getMatchers();
-			TIntArrayList flags = typeMatcher.getFlags();
-			TIntArrayList matchedAnnots = new TIntArrayList();
-			int startPos = input.get(instance.position).getStart();
 
-			for(int annotIndex = instance.position; annotIndex < input.size(); annotIndex++) {
-				Annotation a = input.get(annotIndex);
+		/**
+		 * Step of the multi-constraint matching frame: follow every annotation matched by the current
+		 * type matcher. The results of the children are ignored
+		 */
+		void stepMulti(Frame f) {
+			List<TypeMatcher> typeMatchers = f.t.getMatchers();
+			TypeMatcher tm = typeMatchers.get(f.tmIndex);
+
+			if(f.waiting) {
+				f.waiting = false;
+				f.annotIndex++;
+			}
 
-				if(a.getStart() != startPos)
+			for(; f.annotIndex < input.size(); f.annotIndex++) {
+				if(input.get(f.annotIndex).getStart() != f.startPos)
 					break;
-				
-				boolean res = true;
 
-				for(int matcherIndex = 0; matcherIndex < matchers.size(); matcherIndex++) {
-					AnnotationMatcher matcher = matchers.get(matcherIndex);
-					int flag = flags.get(matcherIndex);
-					boolean res0 = matcher.match(a);
+				if(!match(tm, f.annotIndex))
+					continue;
 
-					if(flag == 1)
-						res0 = !res0;
+				f.matched[f.tmIndex] = f.annotIndex;
+				f.waiting = true;
 
-					if(!res0) {
-						res = false;
-						break;
+				if(f.tmIndex + 1 < typeMatchers.size()) {
+					Frame child = push(Frame.MULTI, f.state, f.position, f.end);
+					child.t = f.t;
+					child.tmIndex = f.tmIndex + 1;
+					child.annotIndex = f.position;
+					child.startPos = f.startPos;
+					child.matched = f.matched;
+				} else {
+					int nextIndex = Integer.MIN_VALUE;
+					int end = f.end;
+					for(int annotIndex : f.matched) {
+						nextIndex = Math.max(nextIndex, nextAnnotationIndex[annotIndex]);
+						end = Math.max(end, input.get(annotIndex).getEnd());
 					}
-				}
 
-				if(res) {
-					matchedAnnots.add(annotIndex);
+					push(Frame.EXEC, f.t.getDest(), nextIndex, end);
+					matchedTrail.add(f.matched);
 				}
+
+				return;
 			}
-			
-			if(matchedAnnots.isEmpty())
-				return true;
-			
-			if(singleTr && matchedAnnots.size() == 1) {
-				int annotIndex = matchedAnnots.get(0);
-				instance.addMatching(input.get(annotIndex));
-				int nextIndex = nextAnnotationIndex[annotIndex];
-				
-				instance.position = nextIndex;
-				instance.state = dest;
-				return tryExecute(instance);
-			} else {
-				TIntIterator it = matchedAnnots.iterator();
-				while(it.hasNext()) {
-					int annotIndex = it.next();
-					FSMInstance inst = instance.copy();
-					inst.addMatching(input.get(annotIndex));
-					int nextIndex = nextAnnotationIndex[annotIndex];
-					
-					inst.position = nextIndex;
-					inst.state = dest;
-					return tryExecute(inst);
-					
-				}
+
+			ret(f, true);
+		}
+
+		/**
+		 * Find first annotation on the position that matches the type matcher
+		 *
+		 * @param tm type matcher
+		 * @param position input position
+		 * @return annotation index, or -1
+		 */
+		int firstMatch(TypeMatcher tm, int position) {
+			int startPos = input.get(position).getStart();
+
+			for(int annotIndex = position; annotIndex < input.size(); annotIndex++) {
+				if(input.get(annotIndex).getStart() != startPos)
+					break;
+
+				if(match(tm, annotIndex))
+					return annotIndex;
 			}
-			
-			return true;
+
+			return -1;
 		}
 
+		boolean match(TypeMatcher tm, int annotIndex) {
+			List<AnnotationMatcher> matchers = tm.getMatchers();
+			TIntArrayList flags = tm.getFlags();
+			Annotation a = input.get(annotIndex);
 
-		public boolean tryConstraintsMatch(FSMInstance instance, State dest, 
-				List<TypeMatcher> typeMatchers, int tmIndex, int[] matched) {
+			for(int matcherIndex = 0; matcherIndex < matchers.size(); matcherIndex++) {
+				boolean res = matchers.get(matcherIndex).match(a);
 
-			if(tmIndex == typeMatchers.size()) {
-				FSMInstance inst = instance.copy();
-				int nextIndex = Integer.MIN_VALUE;
-				for(int annotIndex : matched) {
-					inst.addMatching(input.get(annotIndex));
-					nextIndex = Math.max(nextIndex, nextAnnotationIndex[annotIndex]);
-				}
-				inst.position = nextIndex;
-				inst.state = dest;
-				
-				return tryExecute(inst);
-			} else {
-				TypeMatcher m = typeMatchers.get(tmIndex);
-				List<AnnotationMatcher> matchers = m.getMatchers();
-				TIntArrayList flags = m.getFlags();
-				int startPos = input.get(instance.position).getStart();
-				
-
-				for(int annotIndex = instance.position; annotIndex < input.size(); annotIndex++) {
-					Annotation a = input.get(annotIndex);
-					
-					if(a.getStart() != startPos)
-						return true;
-					
-					boolean res = true;
-					for(int matcherIndex = 0; matcherIndex < matchers.size(); matcherIndex++) {
-						AnnotationMatcher matcher = matchers.get(matcherIndex);
-						int flag = flags.get(matcherIndex);
-						boolean res0 = matcher.match(a);
-
-						if(flag == 1)
-							res0 = !res0;
-						
-						if(!res0) {
-							res = false;
-							break;
-						}
-					}
-					// if all matchers
-					if(res) {
-						matched[tmIndex] = annotIndex;
-						tryConstraintsMatch(instance, dest, typeMatchers, tmIndex + 1, matched);
-					}
+				if(counters != null)
+					counters.evaluations++;
+
+				if(flags.get(matcherIndex) == 1)
+					res = !res;
 
-				}				
+				if(!res)
+					return false;
 			}
-			
+
 			return true;
 		}
 
-
 		public int skipToNextIndex(int index) {
 			if(index >= input.size())
 				return index;
@@ -437,7 +631,21 @@ public class RecursiveJapeAnnotator extends AbstractPhaseAnnotator {
 
 	@Override
 	public void annotate(Document doc) {
-		Matcher m = new Matcher(doc, phase);
-		m.execute();
+		execute(doc, new Matcher(doc, phase));
+	}
+	
+	@Override
+	public void annotate(Document doc, AnnotationView view) {
+		execute(doc, new Matcher(doc, phase, view));
+	}
+	
+	void execute(Document doc, Matcher m) {
+		m.setProfiler(profiler);
+		beginOutput(doc);
+		try {
+			m.execute();
+		} finally {
+			endOutput(doc);
+		}
 	}
 }
@@ -0,0 +1,939 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import name.kazennikov.fsa.FSA;
+import name.kazennikov.fsa.FSAState;
+import name.kazennikov.fsa.FSATransition;
+
+/**
+ * Deterministic automaton compiled from a regular expression. Used by the feature regex matchers
+ * to match in linear time, without backtracking.
+ * <p>
+ * Supported subset of the <code>java.util.regex</code> syntax:
+ * <ul>
+ * <li> literals, escaped metacharacters, <code>\t \n \r \f \a \e \xhh \\uhhhh</code>
+ * <li> <code>.</code>, <code>\d \D \s \S \w \W</code>
+ * <li> character classes with ranges and negation, without nested classes and intersections
+ * <li> capturing and non-capturing groups, alternation
+ * <li> greedy and reluctant quantifiers <code>* + ? {n} {n,} {n,m}</code>
+ * <li> <code>^</code> at the start and <code>$</code> at the end of the expression without top-level alternation
+ * </ul>
+ * Other constructs (flags, backreferences, lookarounds, word boundaries, possessive quantifiers, etc.) are
+ * unsupported, {@link #compile(String, boolean)} returns null for them, so the matcher falls back to
+ * <code>java.util.regex</code>. Java regexes match code points, so the automaton returns {@link #FALLBACK}
+ * on surrogate characters in the input.
+ * <p>
+ * The automaton is built with the FSA machinery used by the tokenizer: the expression is compiled
+ * to NFA over the character classes of the expression, then determinized and minimized. The subset
+ * construction is bounded by {@link #MAX_DFA_STATES}, as some regexes blow up in DFA, such regexes
+ * are left to <code>java.util.regex</code> too.
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class RegexDFA implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int NO_MATCH = 0;
+	public static final int MATCH = 1;
+	public static final int FALLBACK = -1;
+
+	/**
+	 * Maximal number of NFA states
+	 */
+	public static final int MAX_NFA_STATES = 1000;
+
+	/**
+	 * Maximal number of DFA states
+	 */
+	public static final int MAX_DFA_STATES = 1000;
+
+	/**
+	 * Maximal bound of a counted repetition, as large counted repetitions blow up the DFA
+	 */
+	public static final int MAX_REPEAT = 16;
+
+	static final int SURROGATE_START = 0xD800;
+	static final int SURROGATE_END = 0xE000;
+	static final int CHAR_END = 0x10000;
+	static final char[] LINE_TERMINATORS = {'\n', '\r', '\u0085', '\u2028', '\u2029'};
+
+	final boolean anchorEnd; // accept only at the end of input
+	final int[] bounds; // character class i is [bounds[i], bounds[i + 1])
+	final int[] asciiClasses; // character class of ASCII characters
+	final int classCount;
+	final int start;
+	final int[] table; // state * classCount + class -> state, or -1
+	final boolean[] finals;
+
+	RegexDFA(boolean anchorEnd, int[] bounds, int start, int[] table, boolean[] finals) {
+		this.anchorEnd = anchorEnd;
+		this.bounds = bounds;
+		this.classCount = bounds.length - 1;
+		this.start = start;
+		this.table = table;
+		this.finals = finals;
+
+		asciiClasses = new int[128];
+		for(int i = 0; i < asciiClasses.length; i++) {
+			asciiClasses[i] = findClass(i);
+		}
+	}
+
+	int findClass(int ch) {
+		int index = Arrays.binarySearch(bounds, ch);
+		return index >= 0? index : -index - 2;
+	}
+
+	/**
+	 * Get character class, or -1 for surrogate characters
+	 */
+	int classOf(int ch) {
+		if(ch < 128)
+			return asciiClasses[ch];
+
+		if(ch >= SURROGATE_START && ch < SURROGATE_END)
+			return -1;
+
+		return findClass(ch);
+	}
+
+	/**
+	 * Run the automaton over the text region
+	 *
+	 * @param text text
+	 * @param start region start
+	 * @param end region end
+	 * @return {@link #MATCH}, {@link #NO_MATCH}, or {@link #FALLBACK} if the region contains surrogate characters
+	 */
+	public int run(CharSequence text, int start, int end) {
+		int s = this.start;
+
+		if(!anchorEnd && finals[s])
+			return MATCH;
+
+		for(int i = start; i < end; i++) {
+			int cl = classOf(text.charAt(i));
+			if(cl < 0)
+				return FALLBACK;
+
+			s = table[s * classCount + cl];
+
+			if(s < 0)
+				return NO_MATCH;
+
+			if(!anchorEnd && finals[s])
+				return MATCH;
+		}
+
+		return finals[s]? MATCH : NO_MATCH;
+	}
+
+	public int getStateCount() {
+		return finals.length;
+	}
+
+	/**
+	 * Compile regular expression to DFA
+	 *
+	 * @param regex regular expression, valid for {@link java.util.regex.Pattern}
+	 * @param find if true, the DFA checks if the regex matches some part of the input (as
+	 * {@link java.util.regex.Matcher#find()}), otherwise, if it matches the whole input (as
+	 * {@link java.util.regex.Matcher#matches()})
+	 * @return compiled DFA, or null if the regex has unsupported constructs
+	 */
+	public static RegexDFA compile(String regex, boolean find) {
+		Node node;
+		Parser parser = new Parser(regex);
+
+		try {
+			node = parser.parse();
+		} catch(UnsupportedRegexException e) {
+			return null;
+		}
+
+		boolean anchorStart = !find || parser.anchorStart;
+		boolean anchorEnd = !find || parser.anchorEnd;
+
+		// find() with '$' matches at the end of input, or before the final line terminator.
+		// java.util.regex doesn't match '$' between '\r' and '\n', so such regexes are left to it
+		if(find && parser.anchorEnd) {
+			if(node.contains('\r'))
+				return null;
+
+			List<Node> terminators = new ArrayList<>();
+			terminators.add(new Seq(new ArrayList<Node>()));
+			terminators.add(new Seq(Arrays.<Node>asList(new CharSet('\r'), new CharSet('\n'))));
+			for(char ch : LINE_TERMINATORS) {
+				terminators.add(new CharSet(ch));
+			}
+
+			node = new Seq(Arrays.asList(node, new Alt(terminators)));
+		}
+
+		// character classes: intervals between the bounds of all character sets of the regex
+		TreeSet<Integer> boundSet = new TreeSet<>(Arrays.asList(0, SURROGATE_START, SURROGATE_END, CHAR_END));
+		node.bounds(boundSet);
+		int[] bounds = new int[boundSet.size()];
+		int n = 0;
+		for(int b : boundSet) {
+			bounds[n++] = b;
+		}
+
+		RegexFSA nfa = new RegexFSA();
+		FSAState<Boolean> nfaStart = nfa.getStart();
+
+		if(!anchorStart) {
+			for(int cl = 0; cl < bounds.length - 1; cl++) {
+				nfa.addTransition(nfaStart, nfaStart, cl + 1);
+			}
+		}
+
+		FSAState<Boolean> nfaEnd = node.build(nfa, nfaStart, bounds);
+		if(nfaEnd == null)
+			return null;
+
+		nfaEnd.setFinals(true);
+
+		int classCount = bounds.length - 1;
+		RegexFSA fsa = determinize(nfa, classCount);
+		if(fsa == null)
+			return null;
+
+		RegexFSA temp = new RegexFSA();
+		fsa.minimize(temp);
+		fsa = temp;
+
+		int[] table = new int[fsa.size() * classCount];
+		boolean[] finals = new boolean[fsa.size()];
+		Arrays.fill(table, -1);
+
+		for(int i = 0; i < fsa.size(); i++) {
+			FSAState<Boolean> s = fsa.getState(i);
+			finals[s.getNumber()] = fsa.isFinal(s);
+
+			for(FSATransition<Boolean> t : s.getTransitions()) {
+				table[s.getNumber() * classCount + t.getLabel() - 1] = t.getDest().getNumber();
+			}
+		}
+
+		return new RegexDFA(anchorEnd, bounds, fsa.getStart().getNumber(), table, finals);
+	}
+
+	/**
+	 * Determinize the regex NFA by subset construction, bounded by {@link #MAX_DFA_STATES}
+	 * 
+	 * @param nfa NFA with epsilon transitions
+	 * @param classCount number of character classes
+	 * @return DFA, or null if the DFA is too large
+	 */
+	static RegexFSA determinize(RegexFSA nfa, int classCount) {
+		RegexFSA dfa = new RegexFSA();
+		Map<BitSet, FSAState<Boolean>> states = new HashMap<>();
+		List<BitSet> queue = new ArrayList<>();
+
+		BitSet start = new BitSet();
+		start.set(nfa.getStart().getNumber());
+		closure(nfa, start);
+		states.put(start, dfa.getStart());
+		queue.add(start);
+		mergeFinals(nfa, dfa, dfa.getStart(), start);
+
+		for(int i = 0; i < queue.size(); i++) {
+			BitSet set = queue.get(i);
+			FSAState<Boolean> src = states.get(set);
+			BitSet[] moves = new BitSet[classCount];
+
+			for(int n = set.nextSetBit(0); n >= 0; n = set.nextSetBit(n + 1)) {
+				for(FSATransition<Boolean> t : nfa.getState(n).getTransitions()) {
+					if(t.getLabel() == 0)
+						continue;
+
+					int cl = t.getLabel() - 1;
+					if(moves[cl] == null)
+						moves[cl] = new BitSet();
+
+					moves[cl].set(t.getDest().getNumber());
+				}
+			}
+
+			for(int cl = 0; cl < classCount; cl++) {
+				if(moves[cl] == null)
+					continue;
+
+				closure(nfa, moves[cl]);
+				FSAState<Boolean> dest = states.get(moves[cl]);
+
+				if(dest == null) {
+					if(dfa.size() >= MAX_DFA_STATES)
+						return null;
+
+					dest = dfa.addState();
+					states.put(moves[cl], dest);
+					queue.add(moves[cl]);
+					mergeFinals(nfa, dfa, dest, moves[cl]);
+				}
+
+				dfa.addTransition(src, dest, cl + 1);
+			}
+		}
+
+		return dfa;
+	}
+
+	/**
+	 * Add states reachable by epsilon transitions to the state set
+	 */
+	static void closure(RegexFSA nfa, BitSet set) {
+		List<FSAState<Boolean>> stack = new ArrayList<>();
+		for(int n = set.nextSetBit(0); n >= 0; n = set.nextSetBit(n + 1)) {
+			stack.add(nfa.getState(n));
+		}
+
+		while(!stack.isEmpty()) {
+			FSAState<Boolean> s = stack.remove(stack.size() - 1);
+
+			for(FSATransition<Boolean> t : s.getTransitions()) {
+				if(t.getLabel() == 0 && !set.get(t.getDest().getNumber())) {
+					set.set(t.getDest().getNumber());
+					stack.add(t.getDest());
+				}
+			}
+		}
+	}
+
+	static void mergeFinals(RegexFSA nfa, RegexFSA dfa, FSAState<Boolean> dest, BitSet set) {
+		for(int n = set.nextSetBit(0); n >= 0; n = set.nextSetBit(n + 1)) {
+			dfa.mergeFinals(dest, nfa.getState(n));
+		}
+	}
+
+	/**
+	 * Regex NFA/DFA. State finals mark accepting states
+	 */
+	static class RegexFSA extends FSA<Boolean> {
+
+		@Override
+		public FSAState<Boolean> addState() {
+			FSAState<Boolean> s = super.addState();
+			s.setFinals(false);
+			return s;
+		}
+
+		@Override
+		public void mergeFinals(FSAState<Boolean> dest, FSAState<Boolean> src) {
+			dest.setFinals(dest.getFinals() || src.getFinals());
+		}
+
+		@Override
+		public boolean isFinal(FSAState<Boolean> s) {
+			return s.getFinals();
+		}
+	}
+
+	static class UnsupportedRegexException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Regex syntax tree node
+	 */
+	static abstract class Node {
+		/**
+		 * Add character class bounds of the node
+		 */
+		abstract void bounds(TreeSet<Integer> bounds);
+
+		/**
+		 * Build NFA of the node
+		 *
+		 * @param fsa NFA
+		 * @param from state to build from
+		 * @param bounds character class bounds
+		 * @return end state of the node, or null if the NFA is too large
+		 */
+		abstract FSAState<Boolean> build(RegexFSA fsa, FSAState<Boolean> from, int[] bounds);
+
+		/**
+		 * Checks if the node could match the character
+		 */
+		abstract boolean contains(int ch);
+	}
+
+	/**
+	 * Character set, as sorted disjoint ranges
+	 */
+	static class CharSet extends Node {
+		final List<int[]> ranges = new ArrayList<>();
+
+		CharSet() {
+		}
+
+		CharSet(char ch) {
+			add(ch, ch);
+		}
+
+		void add(int from, int to) {
+			ranges.add(new int[] {from, to});
+		}
+
+		/**
+		 * Get complement of the set, without surrogate characters
+		 */
+		CharSet complement() {
+			boolean[] in = new boolean[CHAR_END];
+			for(int[] r : ranges) {
+				Arrays.fill(in, r[0], r[1] + 1, true);
+			}
+			Arrays.fill(in, SURROGATE_START, SURROGATE_END, true);
+
+			CharSet res = new CharSet();
+			int ch = 0;
+			while(ch < CHAR_END) {
+				if(in[ch]) {
+					ch++;
+					continue;
+				}
+
+				int from = ch;
+				while(ch < CHAR_END && !in[ch]) {
+					ch++;
+				}
+				res.add(from, ch - 1);
+			}
+
+			return res;
+		}
+
+		@Override
+		void bounds(TreeSet<Integer> bounds) {
+			for(int[] r : ranges) {
+				bounds.add(r[0]);
+				bounds.add(r[1] + 1);
+			}
+		}
+
+		@Override
+		boolean contains(int ch) {
+			for(int[] r : ranges) {
+				if(r[0] <= ch && ch <= r[1])
+					return true;
+			}
+
+			return false;
+		}
+
+		@Override
+		FSAState<Boolean> build(RegexFSA fsa, FSAState<Boolean> from, int[] bounds) {
+			if(fsa.size() >= MAX_NFA_STATES)
+				return null;
+
+			FSAState<Boolean> to = fsa.addState();
+			boolean[] added = new boolean[bounds.length - 1];
+
+			for(int[] r : ranges) {
+				for(int cl = Arrays.binarySearch(bounds, r[0]); cl < bounds.length - 1 && bounds[cl] <= r[1]; cl++) {
+					if(!added[cl]) {
+						added[cl] = true;
+						fsa.addTransition(from, to, cl + 1);
+					}
+				}
+			}
+
+			return to;
+		}
+	}
+
+	static class Seq extends Node {
+		final List<Node> nodes;
+
+		Seq(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		void bounds(TreeSet<Integer> bounds) {
+			for(Node n : nodes) {
+				n.bounds(bounds);
+			}
+		}
+
+		@Override
+		boolean contains(int ch) {
+			for(Node n : nodes) {
+				if(n.contains(ch))
+					return true;
+			}
+
+			return false;
+		}
+
+		@Override
+		FSAState<Boolean> build(RegexFSA fsa, FSAState<Boolean> from, int[] bounds) {
+			FSAState<Boolean> s = from;
+			for(Node n : nodes) {
+				s = n.build(fsa, s, bounds);
+				if(s == null)
+					return null;
+			}
+
+			return s;
+		}
+	}
+
+	static class Alt extends Node {
+		final List<Node> nodes;
+
+		Alt(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		void bounds(TreeSet<Integer> bounds) {
+			for(Node n : nodes) {
+				n.bounds(bounds);
+			}
+		}
+
+		@Override
+		boolean contains(int ch) {
+			for(Node n : nodes) {
+				if(n.contains(ch))
+					return true;
+			}
+
+			return false;
+		}
+
+		@Override
+		FSAState<Boolean> build(RegexFSA fsa, FSAState<Boolean> from, int[] bounds) {
+			FSAState<Boolean> to = fsa.addState();
+
+			for(Node n : nodes) {
+				FSAState<Boolean> s = n.build(fsa, from, bounds);
+				if(s == null)
+					return null;
+
+				fsa.addTransition(s, to, 0);
+			}
+
+			return to;
+		}
+	}
+
+	static class Repeat extends Node {
+		final Node node;
+		final int min;
+		final int max; // -1 for unbounded
+
+		Repeat(Node node, int min, int max) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		void bounds(TreeSet<Integer> bounds) {
+			node.bounds(bounds);
+		}
+
+		@Override
+		boolean contains(int ch) {
+			return node.contains(ch);
+		}
+
+		@Override
+		FSAState<Boolean> build(RegexFSA fsa, FSAState<Boolean> from, int[] bounds) {
+			FSAState<Boolean> s = from;
+
+			for(int i = 0; i < min; i++) {
+				s = node.build(fsa, s, bounds);
+				if(s == null)
+					return null;
+			}
+
+			if(max < 0) {
+				FSAState<Boolean> loop = fsa.addState();
+				fsa.addTransition(s, loop, 0);
+				FSAState<Boolean> end = node.build(fsa, loop, bounds);
+				if(end == null)
+					return null;
+
+				fsa.addTransition(end, loop, 0);
+				return loop;
+			}
+
+			FSAState<Boolean> to = fsa.addState();
+
+			for(int i = min; i < max; i++) {
+				fsa.addTransition(s, to, 0);
+				s = node.build(fsa, s, bounds);
+				if(s == null)
+					return null;
+			}
+
+			fsa.addTransition(s, to, 0);
+			return to;
+		}
+	}
+
+	/**
+	 * Recursive descent parser of the supported regex subset
+	 */
+	static class Parser {
+		final String regex;
+		int pos;
+		int depth;
+		boolean anchorStart;
+		boolean anchorEnd;
+
+		Parser(String regex) {
+			this.regex = regex;
+		}
+
+		Node parse() throws UnsupportedRegexException {
+			for(int i = 0; i < regex.length(); i++) {
+				if(Character.isSurrogate(regex.charAt(i)))
+					throw new UnsupportedRegexException();
+			}
+
+			Node node = parseAlt();
+
+			if(pos != regex.length())
+				throw new UnsupportedRegexException();
+
+			return node;
+		}
+
+		boolean atEnd() {
+			return pos >= regex.length();
+		}
+
+		char peek() {
+			return regex.charAt(pos);
+		}
+
+		Node parseAlt() throws UnsupportedRegexException {
+			List<Node> nodes = new ArrayList<>();
+			nodes.add(parseSeq());
+
+			while(!atEnd() && peek() == '|') {
+				pos++;
+				nodes.add(parseSeq());
+			}
+
+			if(nodes.size() == 1)
+				return nodes.get(0);
+
+			// anchors of the top-level alternatives aren't anchors of the whole regex
+			if(depth == 0 && (anchorStart || anchorEnd))
+				throw new UnsupportedRegexException();
+
+			return new Alt(nodes);
+		}
+
+		Node parseSeq() throws UnsupportedRegexException {
+			List<Node> nodes = new ArrayList<>();
+
+			while(!atEnd() && peek() != '|' && peek() != ')') {
+				char ch = peek();
+
+				if(ch == '^') {
+					if(depth != 0 || pos != 0)
+						throw new UnsupportedRegexException();
+
+					pos++;
+					anchorStart = true;
+					continue;
+				}
+
+				if(ch == '$') {
+					if(depth != 0 || pos != regex.length() - 1)
+						throw new UnsupportedRegexException();
+
+					pos++;
+					anchorEnd = true;
+					continue;
+				}
+
+				nodes.add(parseRepeat(parseAtom()));
+			}
+
+			return nodes.size() == 1? nodes.get(0) : new Seq(nodes);
+		}
+
+		Node parseRepeat(Node node) throws UnsupportedRegexException {
+			while(!atEnd()) {
+				char ch = peek();
+				int min;
+				int max;
+
+				if(ch == '*') {
+					pos++;
+					min = 0;
+					max = -1;
+				} else if(ch == '+') {
+					pos++;
+					min = 1;
+					max = -1;
+				} else if(ch == '?') {
+					pos++;
+					min = 0;
+					max = 1;
+				} else if(ch == '{') {
+					pos++;
+					min = parseInt();
+					max = min;
+
+					if(!atEnd() && peek() == ',') {
+						pos++;
+						max = !atEnd() && peek() == '}'? -1 : parseInt();
+					}
+
+					expect('}');
+
+					if(min > MAX_REPEAT || max > MAX_REPEAT)
+						throw new UnsupportedRegexException();
+				} else {
+					return node;
+				}
+
+				// reluctant quantifiers don't change the match existence, possessive ones do
+				if(!atEnd() && peek() == '?') {
+					pos++;
+				} else if(!atEnd() && peek() == '+') {
+					throw new UnsupportedRegexException();
+				}
+
+				node = new Repeat(node, min, max);
+			}
+
+			return node;
+		}
+
+		int parseInt() throws UnsupportedRegexException {
+			int start = pos;
+			while(!atEnd() && peek() >= '0' && peek() <= '9') {
+				pos++;
+			}
+
+			if(start == pos || pos - start > 4)
+				throw new UnsupportedRegexException();
+
+			return Integer.parseInt(regex.substring(start, pos));
+		}
+
+		void expect(char ch) throws UnsupportedRegexException {
+			if(atEnd() || peek() != ch)
+				throw new UnsupportedRegexException();
+
+			pos++;
+		}
+
+		Node parseAtom() throws UnsupportedRegexException {
+			char ch = peek();
+			pos++;
+
+			switch(ch) {
+			case '(':
+				if(!atEnd() && peek() == '?') {
+					pos++;
+					expect(':');
+				}
+
+				depth++;
+				Node node = parseAlt();
+				depth--;
+				expect(')');
+				return node;
+
+			case '.':
+				CharSet dot = new CharSet();
+				for(char t : LINE_TERMINATORS) {
+					dot.add(t, t);
+				}
+				return dot.complement();
+
+			case '[':
+				return parseClass();
+
+			case '\\':
+				return parseEscape(false);
+
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+			case '}':
+			case ']':
+				throw new UnsupportedRegexException();
+
+			default:
+				return new CharSet(ch);
+			}
+		}
+
+		CharSet parseClass() throws UnsupportedRegexException {
+			boolean negated = false;
+			CharSet set = new CharSet();
+
+			if(!atEnd() && peek() == '^') {
+				pos++;
+				negated = true;
+			}
+
+			if(!atEnd() && peek() == ']')
+				throw new UnsupportedRegexException();
+
+			while(true) {
+				if(atEnd())
+					throw new UnsupportedRegexException();
+
+				char ch = peek();
+				pos++;
+
+				if(ch == ']')
+					break;
+
+				if(ch == '[' || (ch == '&' && !atEnd() && peek() == '&'))
+					throw new UnsupportedRegexException();
+
+				int from;
+
+				if(ch == '\\') {
+					CharSet escaped = parseEscape(true);
+
+					if(escaped.ranges.size() != 1 || escaped.ranges.get(0)[0] != escaped.ranges.get(0)[1]) {
+						set.ranges.addAll(escaped.ranges);
+						continue;
+					}
+
+					from = escaped.ranges.get(0)[0];
+				} else {
+					from = ch;
+				}
+
+				// range, unless '-' is the last class character
+				if(pos + 1 < regex.length() && peek() == '-' && regex.charAt(pos + 1) != ']') {
+					pos++;
+					char toCh = peek();
+					pos++;
+					int to;
+
+					if(toCh == '\\') {
+						CharSet escaped = parseEscape(true);
+						if(escaped.ranges.size() != 1 || escaped.ranges.get(0)[0] != escaped.ranges.get(0)[1])
+							throw new UnsupportedRegexException();
+
+						to = escaped.ranges.get(0)[0];
+					} else if(toCh == '[') {
+						throw new UnsupportedRegexException();
+					} else {
+						to = toCh;
+					}
+
+					if(to < from)
+						throw new UnsupportedRegexException();
+
+					set.add(from, to);
+				} else {
+					set.add(from, from);
+				}
+			}
+
+			return negated? set.complement() : set;
+		}
+
+		CharSet parseEscape(boolean inClass) throws UnsupportedRegexException {
+			if(atEnd())
+				throw new UnsupportedRegexException();
+
+			char ch = peek();
+			pos++;
+
+			switch(ch) {
+			case 't':
+				return new CharSet('\t');
+			case 'n':
+				return new CharSet('\n');
+			case 'r':
+				return new CharSet('\r');
+			case 'f':
+				return new CharSet('\f');
+			case 'a':
+				return new CharSet('\u0007');
+			case 'e':
+				return new CharSet('\u001B');
+			case 'x':
+				return new CharSet(parseHex(2));
+			case 'u':
+				return new CharSet(parseHex(4));
+			case 'd':
+				return digits();
+			case 'D':
+				return digits().complement();
+			case 's':
+				return spaces();
+			case 'S':
+				return spaces().complement();
+			case 'w':
+				return wordChars();
+			case 'W':
+				return wordChars().complement();
+			}
+
+			// escaped non-alphanumeric characters are literals
+			if(ch < 128 && !Character.isLetterOrDigit(ch))
+				return new CharSet(ch);
+
+			throw new UnsupportedRegexException();
+		}
+
+		char parseHex(int length) throws UnsupportedRegexException {
+			if(pos + length > regex.length())
+				throw new UnsupportedRegexException();
+
+			try {
+				char ch = (char) Integer.parseInt(regex.substring(pos, pos + length), 16);
+				pos += length;
+
+				if(Character.isSurrogate(ch))
+					throw new UnsupportedRegexException();
+
+				return ch;
+			} catch(NumberFormatException e) {
+				throw new UnsupportedRegexException();
+			}
+		}
+
+		static CharSet digits() {
+			CharSet set = new CharSet();
+			set.add('0', '9');
+			return set;
+		}
+
+		static CharSet spaces() {
+			CharSet set = new CharSet();
+			set.add('\t', '\r'); // \t \n \x0B \f \r
+			set.add(' ', ' ');
+			return set;
+		}
+
+		static CharSet wordChars() {
+			CharSet set = new CharSet();
+			set.add('0', '9');
+			set.add('A', 'Z');
+			set.add('_', '_');
+			set.add('a', 'z');
+			return set;
+		}
+	}
+}
@@ -36,4 +36,20 @@ public class Rule {
 		return priority;
 	}
 	
+	public int getNumber() {
+		return number;
+	}
+	
+	/**
+	 * Compare rules by Appelt preference: priority first, then rule number
+	 * (later rule wins)
+	 * 
+	 * @param other other rule
+	 * @return positive value if this rule is preferred, negative if other rule is preferred, 0 otherwise
+	 */
+	public int compareAppelt(Rule other) {
+		int res = priority - other.priority;
+		return res != 0? res : number - other.number;
+	}
+	
 }
@@ -0,0 +1,60 @@
+package name.kazennikov.annotations.patterns;
+
+import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.Document;
+
+import com.google.common.base.Objects;
+
+/**
+ * Matched rule with its bindings, recorded for later RHS execution
+ * 
+ * @author Anton Kazennikov
+ *
+ */
+public class RuleMatch {
+	final Rule rule;
+	final Bindings bindings;
+	
+	public RuleMatch(Rule rule, Bindings bindings) {
+		this.rule = rule;
+		this.bindings = bindings;
+	}
+	
+	public Rule getRule() {
+		return rule;
+	}
+	
+	public Bindings getBindings() {
+		return bindings;
+	}
+	
+	/**
+	 * Execute RHS of the matched rule
+	 * 
+	 * @param doc target document
+	 */
+	public void execute(Document doc) {
+		execute(doc, bindings.input);
+	}
+	
+	/**
+	 * Execute RHS of the matched rule with given phase input. The bindings are still
+	 * resolved against the input the rule was matched on
+	 * 
+	 * @param doc target document
+	 * @param input phase input passed to the RHS
+	 */
+	public void execute(Document doc, AnnotationList input) {
+		for(RHS rhs : rule.rhs()) {
+			rhs.execute(doc, input, bindings);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("rule", rule.name)
+				.add("bindings", bindings)
+				.toString();
+	}
+}
@@ -1,5 +1,6 @@
 package name.kazennikov.annotations.patterns;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -8,11 +9,23 @@ import java.util.Map;
 import name.kazennikov.annotations.Annotation;
 import name.kazennikov.annotations.AnnotationList;
 import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.tokenizer.TokenFeatureMap;
 
 import com.google.common.base.Objects;
 
-public class SimpleRHS implements RHS {
-	public static abstract class Value {
+/**
+ * RHS that annotates the span of a binding: <code>:label.Type = {feature = value, ...}</code>.
+ * <p>
+ * The replace form <code>:label.Type := {...}</code> removes the bound annotations and adds
+ * the annotation over their span. As the joined tokens of the tokenizer, it has the "string"
+ * and "length" features of its span, unless they are set by the RHS
+ */
+public class SimpleRHS implements RHS, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static abstract class Value implements Serializable {
+		private static final long serialVersionUID = 1L;
+
 		String name;
 		
 		public Value(String name) {
@@ -23,10 +36,19 @@ public class SimpleRHS implements RHS {
 			return name;
 		}
 		
-		public abstract Object value(Map<String, AnnotationList> bindings);
+		/**
+		 * Resolve references of this value against the compiled phase
+		 * @param phase compiled phase
+		 */
+		public void compile(Phase phase) {
+		}
+		
+		public abstract Object value(Bindings bindings);
 	}
 	
 	public static class SimpleValue extends Value {
+		private static final long serialVersionUID = 1L;
+
 		Object value;
 		
 		public SimpleValue(String name, Object value) {
@@ -35,7 +57,7 @@ public class SimpleRHS implements RHS {
 		}
 
 		@Override
-		public Object value(Map<String, AnnotationList> bindings) {
+		public Object value(Bindings bindings) {
 			return value;
 		}
 		
@@ -49,30 +71,32 @@ public class SimpleRHS implements RHS {
 	}
 	
 	public static class BindingValue extends Value {
+		private static final long serialVersionUID = 1L;
+
 		String binding;
 		String annotation;
 		String feature;
 		
+		int slot = -1;
+		int typeId = -1;
+		
 		public BindingValue(String name, String binding, String annotation, String feature) {
 			super(name);
 			this.binding = binding;
 			this.annotation = annotation;
 			this.feature = feature;
 		}
+		
+		@Override
+		public void compile(Phase phase) {
+			slot = phase.fsm.getGroupId(binding);
+			typeId = phase.getTypeId(annotation);
+		}
 
 		@Override		
-		public Object value(Map<String, AnnotationList> bindings) {
-			AnnotationList l = bindings.get(binding);
-			if(l == null)
-				return null;
-			
-			for(Annotation a : l) {
-				if(a.getType().equals(annotation)) {
-					return a.getFeature(feature);
-				}
-			}
-			
-			return null;
+		public Object value(Bindings bindings) {
+			Annotation a = bindings.find(slot, typeId);
+			return a != null? a.getFeature(feature) : null;
 		}
 		
 		@Override
@@ -93,14 +117,29 @@ public class SimpleRHS implements RHS {
 	
 	String bindingName; // target binding
 	String type; // target type
+	boolean replace; // remove the bound annotations
 	List<Value> values = new ArrayList<>();
+	int bindingSlot = -1;
+	
+	/**
+	 * Resolve binding names and annotation types of this RHS to binding slots and type ids
+	 * of the compiled phase
+	 * 
+	 * @param phase compiled phase
+	 */
+	public void compile(Phase phase) {
+		bindingSlot = phase.fsm.getGroupId(bindingName);
+		for(Value v : values) {
+			v.compile(phase);
+		}
+	}
 
 	@Override
-	public boolean execute(Document doc, AnnotationList input, Map<String, AnnotationList> bindings) {
-		AnnotationList binding = bindings.get(bindingName);
-		if(binding != null) {
-			int start = binding.get(0).getStart();
-			int end = binding.get(binding.size() - 1).getEnd();
+	public boolean execute(Document doc, AnnotationList input, Bindings bindings) {
+		int size = bindings.size(bindingSlot);
+		if(size != 0) {
+			int start = bindings.get(bindingSlot, 0).getStart();
+			int end = bindings.get(bindingSlot, size - 1).getEnd();
 			Map<String, Object> feats = new HashMap<>();
 			
 			for(Value v : values) {
@@ -110,7 +149,17 @@ public class SimpleRHS implements RHS {
 				}
 			}
 			
-			doc.addAnnotation(type, start, end, feats);
+			if(replace) {
+				List<Annotation> bound = new ArrayList<>(size);
+				for(int i = 0; i < size; i++) {
+					bound.add(bindings.get(bindingSlot, i));
+				}
+
+				doc.removeAll(bound);
+				doc.addAnnotation(type, start, end, new TokenFeatureMap(doc.getText(), start, end, feats));
+			} else {
+				doc.addAnnotation(type, start, end, feats);
+			}
 		}
 
 		return true;
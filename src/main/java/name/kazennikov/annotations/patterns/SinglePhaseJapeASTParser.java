@@ -29,6 +29,7 @@ public class SinglePhaseJapeASTParser {
 	JapeNGParser parser;
 	CommonTree tree;
 	JapeConfiguration config;
+	JavaRHSBuilder rhsBuilder; // Java RHS batch of the enclosing grammar, if null the phase has its own batch
 
 	
 	public static Phase parsePhase(JapeConfiguration config, String source) throws Exception {
@@ -53,10 +54,16 @@ public class SinglePhaseJapeASTParser {
 	
 	protected Phase parsePhase() throws Exception {
 		Phase phase = new Phase();
+		phase.config = config;
 		
 		if(!getType().equals("PHASE"))
 			return null;
 		
+		boolean ownBuilder = rhsBuilder == null;
+		if(ownBuilder) {
+			rhsBuilder = new JavaRHSBuilder(config != null? config.getClassCacheDir() : null);
+		}
+		
 		phase.name = getName();
 
 		for(int i = 1; i < tree.getChildCount(); i++) {
@@ -88,6 +95,11 @@ public class SinglePhaseJapeASTParser {
 		}
 		
 		
+		if(ownBuilder) {
+			rhsBuilder.compile();
+			rhsBuilder = null;
+		}
+		
 		return phase;
 	}
 
@@ -141,6 +153,9 @@ public class SinglePhaseJapeASTParser {
 				break;
 			case "ATTR": 
 				rhs.values.add(parseAttr(child));
+				break;
+			case "REPLACE":
+				rhs.replace = true;
 			}
 		}
 		
@@ -174,7 +189,7 @@ public class SinglePhaseJapeASTParser {
 
 	protected RHS parseJavaRHS(Tree child) throws Exception {
 		String s = tokenStream.toString(child.getTokenStartIndex(), child.getTokenStopIndex());
-		return JavaRHSBuilder.build("japeng", null, s);
+		return rhsBuilder.add(null, s);
 	}
 
 	protected PatternElement parsePatternElement(Tree bpe) {
@@ -305,10 +320,10 @@ public class SinglePhaseJapeASTParser {
 			}
 			return sb.toString();
 		case "INTEGER":
-			return Integer.parseInt(val.getChild(0).getText());
+			return Integer.parseInt(numberText(val));
 			
 		case "FLOAT":
-			String str = val.getChild(0).getText();
+			String str = numberText(val);
 			if(str.endsWith("f") ||str.endsWith("F"))
 				return Float.parseFloat(str);
 			return Double.parseDouble(str);
@@ -316,6 +331,19 @@ public class SinglePhaseJapeASTParser {
 		return val.getText();
 	}
 
+	/**
+	 * Get text of a number value. The number is parsed as a token sequence (sign, digits, point, etc.),
+	 * so the text is concatenated from all the children
+	 */
+	static String numberText(Tree val) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < val.getChildCount(); i++) {
+			sb.append(val.getChild(i).getText());
+		}
+		
+		return sb.toString();
+	}
+
 	protected AnnotationMatcher parseAnFeat(Tree feats, boolean isSimpleFeature) {
 		String op = feats.getChild(0).getText();
 		Object val = parseVal(feats.getChild(1));
@@ -348,6 +376,8 @@ public class SinglePhaseJapeASTParser {
 			return new AnnotationMatchers.FeatureLesserMatcher(type, fa, val);
 		case "lesser_eq":
 			return new AnnotationMatchers.FeatureLesserEqMatcher(type, fa, val);
+		case "subtype":
+			return new AnnotationMatchers.FeatureSubtypeMatcher(type, fa, val);
 		}
 		
 		throw new IllegalStateException("illegal annotation type feature operation " + op);
@@ -364,6 +394,9 @@ public class SinglePhaseJapeASTParser {
 				String ctrl = child.getChild(0).getText().toUpperCase();
 				phase.mode = MatchMode.valueOf(ctrl);
 				
+			} else if(val.equals("partition")) {
+				assert child.getChildCount() == 1;
+				phase.partition = child.getChild(0).getText();
 			}
 			
 		}
@@ -0,0 +1,525 @@
+package name.kazennikov.annotations.patterns;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.ANDMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.BaseFeatureMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.FeatureAccessor;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.FeatureEqMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.LengthMetaFeatureAccessor;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.NOTAnnotationMatcher;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.SimpleFeatureAccessor;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.StringMetaFeatureAccessor;
+import name.kazennikov.annotations.patterns.AnnotationMatchers.TypeMatcher;
+import name.kazennikov.annotations.tokenizer.SimpleTokenizer;
+import name.kazennikov.annotations.tokenizer.TokenJoins;
+
+/**
+ * Compiler of token postprocessing rules into token joins of {@link SimpleTokenizer}.
+ * <p>
+ * The phase is folded only if its input contains all token types of the tokenizer: the phase matches
+ * sequences over the skipped annotations, while the tokens are joined only if they are adjacent.
+ * A rule of an Appelt phase is folded, if:
+ * <ul>
+ *     <li>its LHS is a sequence or alternative of literal token matchers, as <code>{Token.string == "'"}</code>
+ *     of the token types;
+ *     <li>its RHS is a single replace RHS with constant features that replaces the whole match
+ *     with a phase input type, as <code>:left.Token := {kind = "word"}</code>. The replace RHS computes
+ *     the "string" and "length" features as the tokenizer, so the joined token is the same as the one
+ *     produced by the phase;
+ *     <li>no other rule of the phase could match a span that overlaps its match, or the joined token.
+ * </ul>
+ * The tokenizer produces the joined tokens in a single pass. The folded rules are removed from the phase,
+ * the rest of the rules should be applied by the phase annotator
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class TokenJoinCompiler {
+	public static final int MAX_SEQUENCES = 1024; // maximal number of literal sequences of a rule
+
+	/**
+	 * Literal token
+	 */
+	static class Literal {
+		final String type;
+		final String string;
+
+		public Literal(String type, String string) {
+			this.type = type;
+			this.string = string;
+		}
+	}
+
+	/**
+	 * Rule LHS automaton over annotation matchers, used for the overlap check.
+	 * Ranges are approximated by zero or more repetitions
+	 */
+	static class NFA {
+		List<List<Integer>> eps = new ArrayList<>();
+		List<List<AnnotationMatcher>> labels = new ArrayList<>();
+		List<List<Integer>> dests = new ArrayList<>();
+		int start;
+		int end;
+
+		int addState() {
+			eps.add(new ArrayList<Integer>());
+			labels.add(new ArrayList<AnnotationMatcher>());
+			dests.add(new ArrayList<Integer>());
+			return eps.size() - 1;
+		}
+
+		int build(PatternElement pe, int from) {
+			switch(pe.op()) {
+			case AN_MATCHER: {
+				int to = addState();
+				labels.get(from).add(((AnnotationMatcherPatternElement) pe).matcher());
+				dests.get(from).add(to);
+				return to;
+			}
+
+			case SEQ: {
+				int cur = from;
+				for(int i = 0; i < pe.size(); i++) {
+					cur = build(pe.get(i), cur);
+				}
+				return cur;
+			}
+
+			case OR: {
+				int to = addState();
+				for(int i = 0; i < pe.size(); i++) {
+					eps.get(build(pe.get(i), from)).add(to);
+				}
+				return to;
+			}
+
+			default: {
+				int loop = addState();
+				eps.get(from).add(loop);
+				eps.get(build(pe.get(0), loop)).add(loop);
+				return loop;
+			}
+			}
+		}
+
+		static NFA build(Rule r) {
+			NFA nfa = new NFA();
+			nfa.start = nfa.addState();
+			int cur = nfa.start;
+
+			for(PatternElement pe : r.lhs) {
+				cur = nfa.build(pe, cur);
+			}
+
+			nfa.end = cur;
+			return nfa;
+		}
+
+		BitSet closure(BitSet states) {
+			BitSet res = (BitSet) states.clone();
+			List<Integer> stack = new ArrayList<>();
+			for(int s = res.nextSetBit(0); s >= 0; s = res.nextSetBit(s + 1)) {
+				stack.add(s);
+			}
+
+			while(!stack.isEmpty()) {
+				int s = stack.remove(stack.size() - 1);
+				for(int dest : eps.get(s)) {
+					if(!res.get(dest)) {
+						res.set(dest);
+						stack.add(dest);
+					}
+				}
+			}
+
+			return res;
+		}
+
+		/**
+		 * Consume a token
+		 *
+		 * @param states current states
+		 * @param token token annotation, or null for an arbitrary token
+		 * @param known features of the token that are known
+		 */
+		BitSet step(BitSet states, Annotation token, Map<String, Object> known) {
+			BitSet next = new BitSet();
+
+			for(int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+				for(int i = 0; i < labels.get(s).size(); i++) {
+					if(token == null || canMatch(labels.get(s).get(i), token, known))
+						next.set(dests.get(s).get(i));
+				}
+			}
+
+			return closure(next);
+		}
+
+		/**
+		 * Checks if the rule could match a span that overlaps the token sequence
+		 */
+		boolean overlaps(List<Annotation> tokens, List<Map<String, Object>> known) {
+			BitSet init = new BitSet();
+			init.set(start);
+			init = closure(init);
+
+			// states after a match prefix before the sequence
+			BitSet before = new BitSet();
+			BitSet cur = init;
+			while(true) {
+				BitSet next = step(cur, null, null);
+				next.andNot(before);
+				if(next.isEmpty())
+					break;
+				before.or(next);
+				cur = next;
+			}
+
+			for(int i = 0; i < tokens.size(); i++) {
+				BitSet states = (BitSet) init.clone();
+				if(i == 0)
+					states.or(before);
+
+				for(int j = i; j < tokens.size(); j++) {
+					states = step(states, tokens.get(j), known.get(j));
+
+					if(states.isEmpty())
+						break;
+
+					// the match ends in the sequence, or could be continued after it
+					if(states.get(end) || j == tokens.size() - 1)
+						return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if the matcher result on the token depends only on the known features
+	 */
+	static boolean isKnown(AnnotationMatcher m, Map<String, Object> known) {
+		if(m instanceof TypeMatcher)
+			return true;
+
+		if(m instanceof ANDMatcher) {
+			for(AnnotationMatcher c : ((ANDMatcher) m).getMatchers()) {
+				if(!isKnown(c, known))
+					return false;
+			}
+			return true;
+		}
+
+		if(m instanceof NOTAnnotationMatcher)
+			return isKnown(((NOTAnnotationMatcher) m).getMatcher(), known);
+
+		if(m instanceof BaseFeatureMatcher) {
+			FeatureAccessor fa = ((BaseFeatureMatcher) m).getAccessor();
+			return fa instanceof StringMetaFeatureAccessor || fa instanceof LengthMetaFeatureAccessor
+					|| (fa instanceof SimpleFeatureAccessor && known.containsKey(fa.name));
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks if the matcher could match the token. The check is exact if the matcher depends only
+	 * on the known token features, otherwise only the annotation type is checked
+	 */
+	static boolean canMatch(AnnotationMatcher m, Annotation token, Map<String, Object> known) {
+		if(isKnown(m, known))
+			return m.match(token);
+
+		if(m instanceof ANDMatcher) {
+			for(AnnotationMatcher c : ((ANDMatcher) m).getMatchers()) {
+				if(!canMatch(c, token, known))
+					return false;
+			}
+			return true;
+		}
+
+		if(m instanceof BaseFeatureMatcher)
+			return m.getType() == null || m.getType().equals(token.getType());
+
+		return true;
+	}
+
+	/**
+	 * Expand pattern element into literal token sequences
+	 *
+	 * @return list of sequences, or null if the element isn't literal-only
+	 */
+	static List<List<Literal>> expand(PatternElement pe) {
+		switch(pe.op()) {
+		case AN_MATCHER:
+			Literal l = literal(((AnnotationMatcherPatternElement) pe).matcher());
+			return l != null? Collections.singletonList(Collections.singletonList(l)) : null;
+
+		case SEQ: {
+			List<List<Literal>> res = new ArrayList<>();
+			res.add(new ArrayList<Literal>());
+
+			for(int i = 0; i < pe.size(); i++) {
+				List<List<Literal>> arg = expand(pe.get(i));
+				if(arg == null || res.size() * arg.size() > MAX_SEQUENCES)
+					return null;
+
+				List<List<Literal>> next = new ArrayList<>();
+				for(List<Literal> prefix : res) {
+					for(List<Literal> suffix : arg) {
+						List<Literal> seq = new ArrayList<>(prefix);
+						seq.addAll(suffix);
+						next.add(seq);
+					}
+				}
+				res = next;
+			}
+
+			return res;
+		}
+
+		case OR: {
+			List<List<Literal>> res = new ArrayList<>();
+
+			for(int i = 0; i < pe.size(); i++) {
+				List<List<Literal>> arg = expand(pe.get(i));
+				if(arg == null || res.size() + arg.size() > MAX_SEQUENCES)
+					return null;
+				res.addAll(arg);
+			}
+
+			return res;
+		}
+
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Get literal token of the matcher
+	 *
+	 * @return literal, or null if the matcher isn't a string equality matcher
+	 */
+	static Literal literal(AnnotationMatcher m) {
+		if(!(m instanceof FeatureEqMatcher) || m.getType() == null)
+			return null;
+
+		FeatureEqMatcher fm = (FeatureEqMatcher) m;
+		FeatureAccessor fa = fm.getAccessor();
+		boolean string = fa instanceof StringMetaFeatureAccessor
+				|| (fa instanceof SimpleFeatureAccessor && fa.name.equals("string"));
+
+		if(!string || !(fm.getConstant() instanceof String) || ((String) fm.getConstant()).isEmpty())
+			return null;
+
+		return new Literal(m.getType(), (String) fm.getConstant());
+	}
+
+	/**
+	 * Folding candidate
+	 */
+	static class Candidate {
+		final Rule rule;
+		final List<List<Literal>> sequences;
+		final String type;
+		final Map<String, Object> features;
+
+		public Candidate(Rule rule, List<List<Literal>> sequences, String type, Map<String, Object> features) {
+			this.rule = rule;
+			this.sequences = sequences;
+			this.type = type;
+			this.features = features;
+		}
+	}
+
+	/**
+	 * Make folding candidate of the rule
+	 *
+	 * @return candidate, or null if the rule isn't a literal join
+	 */
+	static Candidate candidate(Phase phase, Collection<String> tokenTypes, Rule r) {
+		if(r.lhs.size() != 1 || r.rhs.size() != 1 || !(r.rhs.get(0) instanceof SimpleRHS))
+			return null;
+
+		PatternElement lhs = r.lhs.get(0);
+		SimpleRHS rhs = (SimpleRHS) r.rhs.get(0);
+
+		// the RHS must replace the whole match
+		if(!rhs.replace || !(lhs instanceof BasePatternElement) || rhs.bindingName == null
+				|| !rhs.bindingName.equals(((BasePatternElement) lhs).getName()) || !phase.input.contains(rhs.type))
+			return null;
+
+		Map<String, Object> features = new HashMap<>();
+		for(SimpleRHS.Value v : rhs.values) {
+			if(!(v instanceof SimpleRHS.SimpleValue))
+				return null;
+
+			Object value = v.value(null);
+			if(value != null)
+				features.put(v.name(), value);
+		}
+
+		List<List<Literal>> sequences = expand(lhs);
+		if(sequences == null)
+			return null;
+
+		for(List<Literal> seq : sequences) {
+			for(Literal l : seq) {
+				if(!tokenTypes.contains(l.type))
+					return null;
+			}
+		}
+
+		return new Candidate(r, sequences, rhs.type, features);
+	}
+
+	/**
+	 * Make token annotations of the sequence and the joined token
+	 */
+	static void tokens(Candidate c, List<Literal> seq, List<Annotation> tokens, List<Map<String, Object>> known,
+			List<Annotation> joined, List<Map<String, Object>> joinedKnown) {
+		StringBuilder sb = new StringBuilder();
+
+		for(Literal l : seq) {
+			Map<String, Object> f = new HashMap<>();
+			f.put("string", l.string);
+			f.put("length", Integer.toString(l.string.length()));
+			Document d = new Document(l.string);
+			tokens.add(d.addAnnotation(l.type, 0, l.string.length(), f));
+			known.add(f);
+			sb.append(l.string);
+		}
+
+		Map<String, Object> f = new HashMap<>();
+		f.put("string", sb.toString());
+		f.put("length", Integer.toString(sb.length()));
+		f.putAll(c.features);
+		Document d = new Document(sb.toString());
+		joined.add(d.addAnnotation(c.type, 0, sb.length(), f));
+		joinedKnown.add(f);
+	}
+
+	/**
+	 * Checks if the rule could match a span that overlaps a match of the candidate or its joined token
+	 */
+	static boolean overlaps(NFA nfa, Candidate c) {
+		for(List<Literal> seq : c.sequences) {
+			List<Annotation> tokens = new ArrayList<>();
+			List<Map<String, Object>> known = new ArrayList<>();
+			List<Annotation> joined = new ArrayList<>();
+			List<Map<String, Object>> joinedKnown = new ArrayList<>();
+			tokens(c, seq, tokens, known, joined, joinedKnown);
+
+			if(nfa.overlaps(tokens, known) || nfa.overlaps(joined, joinedKnown))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Fold literal join rules of the phase into token joins. The folded rules are removed from the phase,
+	 * and the phase is recompiled, if it was compiled
+	 *
+	 * @param phase postprocessing phase
+	 * @param tokenTypes annotation types of the tokenizer output, as {@link SimpleTokenizer#getTokenTypes()}
+	 * @return token joins, empty if no rules were folded
+	 */
+	public static TokenJoins fold(Phase phase, Collection<String> tokenTypes) {
+		TokenJoins joins = new TokenJoins();
+
+		if(phase.mode != MatchMode.APPELT || !phase.input.containsAll(tokenTypes))
+			return joins;
+
+		List<Candidate> candidates = new ArrayList<>();
+		List<Rule> rest = new ArrayList<>();
+
+		for(Rule r : phase.rules) {
+			Candidate c = candidate(phase, tokenTypes, r);
+			if(c != null) {
+				candidates.add(c);
+			} else {
+				rest.add(r);
+			}
+		}
+
+		// drop the candidates that overlap with the rest of the rules, until no more conflicts
+		List<NFA> nfas = new ArrayList<>();
+		for(Rule r : rest) {
+			nfas.add(NFA.build(r));
+		}
+
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+
+			for(int i = 0; i < candidates.size(); i++) {
+				Candidate c = candidates.get(i);
+				for(NFA nfa : nfas) {
+					if(overlaps(nfa, c)) {
+						candidates.remove(i--);
+						rest.add(c.rule);
+						nfas.add(NFA.build(c.rule));
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+
+		if(candidates.isEmpty())
+			return joins;
+
+		// add sequences in the Appelt order, so equal sequences are joined by the best rule
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate o1, Candidate o2) {
+				return o2.rule.compareAppelt(o1.rule);
+			}
+		});
+
+		for(Candidate c : candidates) {
+			for(List<Literal> seq : c.sequences) {
+				String[] types = new String[seq.size()];
+				String[] strings = new String[seq.size()];
+				for(int i = 0; i < seq.size(); i++) {
+					types[i] = seq.get(i).type;
+					strings[i] = seq.get(i).string;
+				}
+
+				joins.add(types, strings, c.type, c.features);
+			}
+		}
+
+		// keep the rest of the rules in the original order
+		Collections.sort(rest, new Comparator<Rule>() {
+			@Override
+			public int compare(Rule o1, Rule o2) {
+				return o1.number - o2.number;
+			}
+		});
+
+		boolean compiled = phase.isCompiled();
+		phase.rules = rest;
+		for(int i = 0; i < rest.size(); i++) {
+			rest.get(i).number = i;
+		}
+
+		if(compiled)
+			phase.compile();
+
+		return joins;
+	}
+}
@@ -26,6 +26,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -33,11 +34,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ForkJoinPool;
 
 import name.kazennikov.annotations.AnnotationEngineException;
 import name.kazennikov.annotations.Annotator;
+import name.kazennikov.annotations.BufferTokenizer;
 import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.TokenBuffer;
 import name.kazennikov.fsa.FSAState;
+import name.kazennikov.fsa.FSATransition;
 
 /**
  * Implementation of a Unicode rule based tokeniser. The tokeniser gets its
@@ -108,7 +113,7 @@ import name.kazennikov.fsa.FSAState;
  * 
  */
 
-public class SimpleTokenizer implements Annotator {
+public class SimpleTokenizer implements Annotator, BufferTokenizer {
 
 	public static class RHS {
 		List<String> attrName = new ArrayList<>();
@@ -233,88 +238,399 @@ public class SimpleTokenizer implements Annotator {
 	TObjectIntHashMap<String> uClasses = getCharTypes();
 
 	/**
-	 * The method that does the actual tokenization.
+	 * Number of the transition table columns, the character types are below it
+	 */
+	static final int CHAR_TYPE_BITS = 5;
+	
+	/**
+	 * Unicode type of each character, as {@link Character#getType(char)}
+	 */
+	static final byte[] CHAR_TYPES = new byte[1 << 16];
+	
+	static {
+		for(int ch = 0; ch < CHAR_TYPES.length; ch++) {
+			CHAR_TYPES[ch] = (byte) Character.getType((char) ch);
+		}
+	}
+	
+	/**
+	 * Token produced by a final state of the tokenizer FSM
+	 */
+	static class Output {
+		final String type;
+		final Map<String, Object> features; // shared by all tokens of the state
+
+		public Output(String type, Map<String, Object> features) {
+			this.type = type;
+			this.features = Collections.unmodifiableMap(features);
+		}
+	}
+	
+	static final Output DEFAULT_OUTPUT = new Output("DEFAULT_TOKEN", Collections.<String, Object>singletonMap("type", "UNKNOWN"));
+	
+	ForkJoinPool pool;
+	int chunkSize = BufferTokenizer.Chunks.DEFAULT_CHUNK_SIZE;
+	boolean bufferOutput;
+	
+	// compiled tokenizer FSM
+	int start;
+	int[] table; // state << CHAR_TYPE_BITS | char type -> state, or -1
+	Output[] finals; // state -> output, or null for non-final states
+	int[] typeIds; // state -> token type id
+	List<String> tokenTypes; // token annotation types by id, DEFAULT_TOKEN is 0
+	
+	TokenJoins tokenJoins; // joins of token sequences, or null
+	Output[] joinOutputs; // join id -> output
+	int[] joinTypeIds; // join id -> token type id
+	boolean[] typePairs; // char type << CHAR_TYPE_BITS | next char type -> true, if a token could contain the pair
+	
+	/**
+	 * Compile the tokenizer FSM into a dense transition table
+	 */
+	void compile() {
+		int size = fsm.size();
+		table = new int[size << CHAR_TYPE_BITS];
+		finals = new Output[size];
+		typeIds = new int[size];
+		tokenTypes = new ArrayList<>();
+		tokenTypes.add(DEFAULT_OUTPUT.type);
+		Arrays.fill(table, -1);
+		
+		for(int i = 0; i < size; i++) {
+			FSAState<List<RHS>> s = fsm.getState(i);
+			
+			if(fsm.isFinal(s)) {
+				Output out = output(s.getFinals());
+				finals[s.getNumber()] = out;
+				
+				if(!tokenTypes.contains(out.type))
+					tokenTypes.add(out.type);
+				typeIds[s.getNumber()] = tokenTypes.indexOf(out.type);
+			}
+			
+			for(FSATransition<List<RHS>> t : s.getTransitions()) {
+				table[(s.getNumber() << CHAR_TYPE_BITS) | t.getLabel()] = t.getDest().getNumber();
+			}
+		}
+		
+		typePairs = new boolean[1 << (2 * CHAR_TYPE_BITS)];
+		for(int i = 0; i < size; i++) {
+			FSAState<List<RHS>> s = fsm.getState(i);
+			
+			for(FSATransition<List<RHS>> t : s.getTransitions()) {
+				for(FSATransition<List<RHS>> next : t.getDest().getTransitions()) {
+					typePairs[(t.getLabel() << CHAR_TYPE_BITS) | next.getLabel()] = true;
+				}
+			}
+		}
+		
+		start = fsm.getStart().getNumber();
+		linkJoins();
+	}
+	
+	/**
+	 * Assign rule and type ids to the token joins
+	 */
+	void linkJoins() {
+		if(tokenJoins == null)
+			return;
+		
+		joinOutputs = new Output[tokenJoins.size()];
+		joinTypeIds = new int[tokenJoins.size()];
+		
+		for(int i = 0; i < tokenJoins.size(); i++) {
+			joinOutputs[i] = new Output(tokenJoins.getType(i), tokenJoins.getFeatures(i));
+			
+			if(!tokenTypes.contains(joinOutputs[i].type))
+				tokenTypes.add(joinOutputs[i].type);
+			joinTypeIds[i] = tokenTypes.indexOf(joinOutputs[i].type);
+		}
+	}
+	
+	public TokenJoins getJoins() {
+		return tokenJoins;
+	}
+	
+	/**
+	 * Set joins of token sequences, applied to the tokenizer output.
+	 * Joined tokens have rule ids starting from the number of the FSM states
+	 * 
+	 * @param joins token joins, or null
+	 */
+	public void setJoins(TokenJoins joins) {
+		this.tokenJoins = joins != null && !joins.isEmpty()? joins : null;
+		
+		if(table != null)
+			linkJoins();
+	}
+	
+	/**
+	 * Get output of the token rule id
+	 */
+	Output output(int rule) {
+		if(rule < 0)
+			return DEFAULT_OUTPUT;
+		
+		return rule < finals.length? finals[rule] : joinOutputs[rule - finals.length];
+	}
+	
+	/**
+	 * Join literal token sequences of the buffer tokens. The sequences are joined left to right,
+	 * the longest sequence wins
+	 * 
+	 * @param content text
+	 * @param buf token buffer
+	 * @param from index of the first token
+	 */
+	void join(String content, TokenBuffer buf, int from) {
+		TokenJoins.Node root = tokenJoins.root;
+		int size = buf.size();
+		int out = from;
+		int i = from;
+		
+		while(i < size) {
+			TokenJoins.Node node = root;
+			int matchEnd = -1;
+			int matchId = -1;
+			
+			for(int j = i; j < size; j++) {
+				if(j > i && buf.getStart(j) != buf.getEnd(j - 1))
+					break;
+				
+				node = node.find(tokenTypes.get(buf.getType(j)), content, buf.getStart(j), buf.getEnd(j));
+				if(node == null)
+					break;
+				
+				if(node.id >= 0) {
+					matchEnd = j + 1;
+					matchId = node.id;
+				}
+			}
+			
+			if(matchEnd > 0) {
+				buf.set(out++, buf.getStart(i), buf.getEnd(matchEnd - 1), joinTypeIds[matchId], finals.length + matchId);
+				i = matchEnd;
+			} else {
+				if(out != i)
+					buf.set(out, buf.getStart(i), buf.getEnd(i), buf.getType(i), buf.getRule(i));
+				out++;
+				i++;
+			}
+		}
+		
+		buf.truncate(out);
+	}
+	
+	/**
+	 * Get token annotation types, indexed by the type ids of the token buffer
+	 */
+	public List<String> getTokenTypes() {
+		return tokenTypes;
+	}
+	
+	/**
+	 * Get length of the character at the position: 2 for a surrogate pair, 1 otherwise
+	 */
+	static int charLength(String content, int pos) {
+		return Character.isHighSurrogate(content.charAt(pos)) && pos + 1 < content.length()
+				&& Character.isLowSurrogate(content.charAt(pos + 1))? 2 : 1;
+	}
+	
+	/**
+	 * Make token output of the matched rules. The features of the later rules take precedence
+	 */
+	static Output output(List<RHS> rhss) {
+		Map<String, Object> features = new HashMap<>();
+		String type = null;
+		
+		for (RHS rhs : rhss) {
+			type = rhs.type;
+			for (int i = 0; i < rhs.attrName.size(); i++) {
+				features.put(rhs.attrName.get(i), rhs.attrValue.get(i));
+			}
+		}
+		
+		return new Output(type, features);
+	}
+	
+	void addToken(Document document, String content, int start, int end, Output output) {
+		document.addAnnotation(output.type, start, end, new TokenFeatureMap(content, start, end, output.features));
+	}
+
+	/**
+	 * The method that does the actual tokenization. If the pool is set, large documents are
+	 * split into chunks that are tokenized in parallel
 	 */
 	@Override
 	public void annotate(Document document) {
-
+		annotate(document, new TokenBuffer());
+	}
+	
+	/**
+	 * Tokenize the document into the buffer. In the buffer output mode the buffer is attached
+	 * to the document, otherwise the token annotations are added and the buffer could be reused
+	 * 
+	 * @param document document
+	 * @param buf token buffer, it is cleared before the tokenization
+	 */
+	public void annotate(Document document, TokenBuffer buf) {
+		buf.clear();
+		BufferTokenizer.Chunks.tokenize(this, document.getText(), pool, chunkSize, buf);
+		
+		if(bufferOutput) {
+			document.setTokens(buf, this);
+		} else {
+			addAnnotations(document, buf);
+		}
+		
+		//document.sortAnnotations();
+	}
+	
+	@Override
+	public String getAnnotationType(int type) {
+		return tokenTypes.get(type);
+	}
+	
+	@Override
+	public void addAnnotations(Document document, TokenBuffer buf) {
 		String content = document.getText();
-		FSAState<List<RHS>> current = fsm.getStart();
-		FSAState<List<RHS>> lastMatch = null;
+		
+		for(int i = 0; i < buf.size(); i++) {
+			int rule = buf.getRule(i);
+			addToken(document, content, buf.getStart(i), buf.getEnd(i), output(rule));
+		}
+	}
+	
+	/**
+	 * Find safe boundary: position between characters of types that can't be
+	 * in the same token, and that can't be inside a joined token sequence. Surrogates are never split
+	 */
+	@Override
+	public int findBoundary(String text, int from, int to) {
+		int prev = CHAR_TYPES[text.charAt(from - 1)];
+		
+		for(int pos = from; pos < to; pos++) {
+			int type = CHAR_TYPES[text.charAt(pos)];
+			
+			if(prev != Character.SURROGATE && type != Character.SURROGATE && !typePairs[(prev << CHAR_TYPE_BITS) | type]
+					&& (tokenJoins == null || !tokenJoins.canJoin(text.charAt(pos - 1), text.charAt(pos))))
+				return pos;
+			
+			prev = type;
+		}
+		
+		return -1;
+	}
+
+	/**
+	 * Tokenize the text chunk. The characters are typed by a precomputed table, surrogate pairs are
+	 * typed by their code points and consumed as a single character.
+	 * <p>
+	 * The token type ids are indexes of {@link #getTokenTypes()}, the rule ids are the final states
+	 * of the compiled FSM, or -1 for DEFAULT_TOKEN. Then the token joins are applied to the chunk tokens
+	 */
+	@Override
+	public void tokenize(String content, int from, int to, TokenBuffer buf) {
+		int[] table = this.table;
+		Output[] finals = this.finals;
+		boolean textEnd = to == content.length();
+		int firstToken = buf.size();
+		
+		int current = start;
+		int lastMatch = -1;
 		// the index of the first character of the token trying to be recognised
-		int tokenStartIdx = 0;
+		int tokenStartIdx = from;
 
-		// the index of the last character of the last token recognised
-		int lastMatchIdx = -1;
-		int charIdx = 0;
+		// the end of the last token recognised
+		int lastMatchEnd = -1;
+		int charIdx = from;
 
-		while (charIdx < content.length()) {
-			char currentChar = content.charAt(charIdx);
-			int charType = Character.getType(currentChar);
+		while (tokenStartIdx < to) {
+			int nextState = -1;
+			int charLength = 1;
+			
+			if(charIdx < to) {
+				char currentChar = content.charAt(charIdx);
+				int charType = CHAR_TYPES[currentChar];
+				
+				if(charType == Character.SURROGATE && charLength(content, charIdx) == 2) {
+					charType = Character.getType(Character.toCodePoint(currentChar, content.charAt(charIdx + 1)));
+					charLength = 2;
+				}
 
-			FSAState<List<RHS>> nextState = current.next(charType);
+				nextState = table[(current << CHAR_TYPE_BITS) | charType];
+			} else if(textEnd) {
+				break;
+			}
+			// the chunk end is a safe boundary, so no token continues past it
 
-			if (nextState != null) {
+			if (nextState >= 0) {
 				current = nextState;
-				if (fsm.isFinal(current)) {
-					lastMatchIdx = charIdx;
+				charIdx += charLength;
+				
+				if (finals[current] != null) {
+					lastMatchEnd = charIdx;
 					lastMatch = current;
 				}
-				charIdx++;
 			} else {
-				Map<String, Object> newTokenFm = new HashMap<>();
-
-				if (lastMatch != null) { // we have a match!
-					String tokenString = content.substring(tokenStartIdx, lastMatchIdx + 1);
-					newTokenFm.put("string", tokenString);
-					newTokenFm.put("length", Integer.toString(tokenString.length()));
-
-					String type = null;
-					for (RHS rhs : lastMatch.getFinals()) {
-						type = rhs.type;
-						for (int i = 0; i < rhs.attrName.size(); i++) {
-							newTokenFm.put(rhs.attrName.get(i), rhs.attrValue.get(i));
-						}
-					}
-
-					document.addAnnotation(type, tokenStartIdx, lastMatchIdx + 1, newTokenFm);
-					charIdx = lastMatchIdx + 1;
+				if (lastMatch >= 0) { // we have a match!
+					buf.add(tokenStartIdx, lastMatchEnd, typeIds[lastMatch], lastMatch);
+					charIdx = lastMatchEnd;
 				} else {
-					String tokenString = content.substring(tokenStartIdx, tokenStartIdx + 1);
-					newTokenFm.put("type", "UNKNOWN");
-					newTokenFm.put("string", tokenString);
-					newTokenFm.put("length", Integer.toString(tokenString.length()));
-					document.addAnnotation("DEFAULT_TOKEN", tokenStartIdx, tokenStartIdx + 1,
-							newTokenFm);
-					charIdx = tokenStartIdx + 1;
-
+					int end = tokenStartIdx + charLength(content, tokenStartIdx);
+					buf.add(tokenStartIdx, end, 0, -1);
+					charIdx = end;
 				}
 
-				lastMatch = null;
-				current = fsm.getStart();
+				lastMatch = -1;
+				current = start;
 				tokenStartIdx = charIdx;
 			}
 
 		}
 
-		if (lastMatch != null) {
-			String tokenString = content.substring(tokenStartIdx, lastMatchIdx + 1);
-			Map<String, Object> newTokenFm = new HashMap<>();
-			newTokenFm.put("string", tokenString);
-			newTokenFm.put("length", Integer.toString(tokenString.length()));
-			String type = null;
-			for (RHS rhs : lastMatch.getFinals()) {
-				type = rhs.type;
-				for (int i = 0; i < rhs.attrName.size(); i++) {
-					newTokenFm.put(rhs.attrName.get(i), rhs.attrValue.get(i));
-				}
-			}
-
-			document.addAnnotation(type, tokenStartIdx, lastMatchIdx + 1, newTokenFm);
+		if (lastMatch >= 0) {
+			buf.add(tokenStartIdx, lastMatchEnd, typeIds[lastMatch], lastMatch);
 		}
 		
-		//document.sortAnnotations();
+		if(tokenJoins != null)
+			join(content, buf, firstToken);
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Set pool for parallel tokenization of large documents
+	 * 
+	 * @param pool fork-join pool, or null for sequential tokenization
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
 
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Set minimal size of text chunk for parallel tokenization
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public boolean isBufferOutput() {
+		return bufferOutput;
+	}
+
+	/**
+	 * Set buffer output mode. In this mode the tokens are attached to the document as a {@link TokenBuffer},
+	 * and the token annotations are added on first access to the document annotations
+	 */
+	public void setBufferOutput(boolean bufferOutput) {
+		this.bufferOutput = bufferOutput;
 	}
 
 	public String getRulesResourceName() {
@@ -384,6 +700,7 @@ public class SimpleTokenizer implements Annotator {
 			temp = new TokenizerFSM();
 			fsm.minimize(temp);
 			fsm = temp;
+			compile();
 		} catch (java.io.IOException ioe) {
 			throw new AnnotationEngineException(ioe);
 		}
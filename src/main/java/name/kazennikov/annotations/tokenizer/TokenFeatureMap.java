@@ -0,0 +1,127 @@
+package name.kazennikov.annotations.tokenizer;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Feature map of a token. The "string" and "length" features are computed on demand from
+ * the token span, the rule features are shared by all tokens of the rule.
+ * <p>
+ * The map is copied on first modification or iteration, so the shared features
+ * are never changed
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class TokenFeatureMap extends AbstractMap<String, Object> {
+	public static final String STRING = "string";
+	public static final String LENGTH = "length";
+
+	final String text;
+	final int start;
+	final int end;
+	final Map<String, Object> shared; // rule features, not modified
+
+	String string;
+	String length;
+	Map<String, Object> own; // copy of the features after the first modification
+
+	/**
+	 * Constructor
+	 *
+	 * @param text document text
+	 * @param start token start
+	 * @param end token end
+	 * @param shared rule features, they take precedence over the computed features
+	 */
+	public TokenFeatureMap(String text, int start, int end, Map<String, Object> shared) {
+		this.text = text;
+		this.start = start;
+		this.end = end;
+		this.shared = shared;
+	}
+
+	String string() {
+		if(string == null)
+			string = text.substring(start, end);
+
+		return string;
+	}
+
+	String length() {
+		if(length == null)
+			length = Integer.toString(end - start);
+
+		return length;
+	}
+
+	/**
+	 * Copy features to own map
+	 */
+	Map<String, Object> own() {
+		if(own == null) {
+			own = new HashMap<>(shared.size() + 4);
+			own.put(STRING, string());
+			own.put(LENGTH, length());
+			own.putAll(shared);
+		}
+
+		return own;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if(own != null)
+			return own.get(key);
+
+		Object value = shared.get(key);
+		if(value != null || shared.containsKey(key))
+			return value;
+
+		if(STRING.equals(key))
+			return string();
+
+		if(LENGTH.equals(key))
+			return length();
+
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if(own != null)
+			return own.containsKey(key);
+
+		return STRING.equals(key) || LENGTH.equals(key) || shared.containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		if(own != null)
+			return own.size();
+
+		return shared.size() + (shared.containsKey(STRING)? 0 : 1) + (shared.containsKey(LENGTH)? 0 : 1);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return own().put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return own().remove(key);
+	}
+
+	@Override
+	public void clear() {
+		own().clear();
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		return own().entrySet();
+	}
+}
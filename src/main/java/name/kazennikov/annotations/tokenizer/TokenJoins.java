@@ -0,0 +1,170 @@
+package name.kazennikov.annotations.tokenizer;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Joins of literal token sequences into single tokens, applied by {@link SimpleTokenizer} to its output.
+ * <p>
+ * The joins are stored in a trie over the token types and strings. The tokens are joined
+ * left to right, the longest sequence wins, as in the Appelt matching. A sequence
+ * is joined only if its tokens are adjacent.
+ *
+ * @author Anton Kazennikov
+ *
+ */
+public class TokenJoins {
+
+	/**
+	 * Trie node: a token of the sequence
+	 */
+	static class Node {
+		final String type;
+		final String string;
+		TIntObjectHashMap<Node[]> next; // string hash -> nodes
+		int id = -1; // join id, or -1 if the sequence isn't joined
+
+		public Node(String type, String string) {
+			this.type = type;
+			this.string = string;
+		}
+
+		/**
+		 * Find next node by the token type and text
+		 */
+		Node find(String type, String text, int start, int end) {
+			if(next == null)
+				return null;
+
+			Node[] nodes = next.get(hash(text, start, end));
+			if(nodes == null)
+				return null;
+
+			for(Node n : nodes) {
+				if(n.string.length() == end - start && n.type.equals(type) && text.regionMatches(start, n.string, 0, n.string.length()))
+					return n;
+			}
+
+			return null;
+		}
+
+		Node add(String type, String string) {
+			Node n = find(type, string, 0, string.length());
+			if(n != null)
+				return n;
+
+			if(next == null)
+				next = new TIntObjectHashMap<>();
+
+			n = new Node(type, string);
+			int hash = string.hashCode();
+			Node[] nodes = next.get(hash);
+			nodes = nodes == null? new Node[1] : Arrays.copyOf(nodes, nodes.length + 1);
+			nodes[nodes.length - 1] = n;
+			next.put(hash, nodes);
+
+			return n;
+		}
+	}
+
+	final Node root = new Node(null, null);
+	final List<String> types = new ArrayList<>(); // joined token types by join id
+	final List<Map<String, Object>> features = new ArrayList<>(); // joined token features by join id
+	final BitSet lastChars = new BitSet(); // last chars of the non-last tokens of the sequences
+	final BitSet firstChars = new BitSet(); // first chars of the non-first tokens of the sequences
+
+	/**
+	 * Same as {@link String#hashCode()} of the text region
+	 */
+	static int hash(String text, int start, int end) {
+		int h = 0;
+		for(int i = start; i < end; i++) {
+			h = 31 * h + text.charAt(i);
+		}
+
+		return h;
+	}
+
+	/**
+	 * Add join of a token sequence
+	 *
+	 * @param tokenTypes annotation types of the sequence tokens
+	 * @param strings strings of the sequence tokens
+	 * @param type annotation type of the joined token
+	 * @param features features of the joined token, "string" and "length" are computed from the token span
+	 *
+	 * @return false, if the sequence is already joined
+	 */
+	public boolean add(String[] tokenTypes, String[] strings, String type, Map<String, Object> features) {
+		if(tokenTypes.length != strings.length || strings.length == 0)
+			throw new IllegalArgumentException("Illegal token sequence");
+
+		Node n = root;
+
+		for(int i = 0; i < strings.length; i++) {
+			if(strings[i].isEmpty())
+				throw new IllegalArgumentException("Empty token in the sequence");
+
+			n = n.add(tokenTypes[i], strings[i]);
+		}
+
+		if(n.id >= 0)
+			return false;
+
+		for(int i = 0; i < strings.length; i++) {
+			if(i > 0)
+				firstChars.set(strings[i].charAt(0));
+
+			if(i < strings.length - 1)
+				lastChars.set(strings[i].charAt(strings[i].length() - 1));
+		}
+
+		n.id = types.size();
+		types.add(type);
+		this.features.add(Collections.unmodifiableMap(features));
+		return true;
+	}
+
+	/**
+	 * Get number of joins
+	 */
+	public int size() {
+		return types.size();
+	}
+
+	public boolean isEmpty() {
+		return types.isEmpty();
+	}
+
+	/**
+	 * Get annotation type of the joined token
+	 *
+	 * @param id join id
+	 */
+	public String getType(int id) {
+		return types.get(id);
+	}
+
+	/**
+	 * Get features of the joined token
+	 *
+	 * @param id join id
+	 */
+	public Map<String, Object> getFeatures(int id) {
+		return features.get(id);
+	}
+
+	/**
+	 * Checks if a joined sequence could have adjacent tokens, the first one ending
+	 * with the given char and the second one starting with the other
+	 */
+	public boolean canJoin(char last, char first) {
+		return lastChars.get(last) && firstChars.get(first);
+	}
+}
@@ -2,11 +2,13 @@ package name.kazennikov.tools;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Writer;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -22,6 +24,7 @@ import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.SimpleJavaFileObject;
 import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
 
 import org.eclipse.jdt.internal.compiler.tool.EclipseCompiler;
 
@@ -56,6 +59,12 @@ public class EclipseECJWrapper {
 		public SpecialJavaFileManager(StandardJavaFileManager sjfm, SpecialClassLoader xcl) {
 			super(sjfm);
 			this.xcl = xcl;
+			
+			try {
+				sjfm.setLocation(StandardLocation.SOURCE_PATH, Collections.<File>emptyList());
+			} catch(IOException e) {
+				throw new IllegalStateException(e);
+			}
 		}
 
 		@Override
@@ -70,6 +79,14 @@ public class EclipseECJWrapper {
 		public ClassLoader getClassLoader(Location location) {
 			return xcl;
 		}
+		
+		/**
+		 * Memory sources belong to the source path. Newer compilers check it for the compilation units
+		 * that aren't files on disk
+		 */
+		public boolean contains(Location location, FileObject fo) throws IOException {
+			return location == StandardLocation.SOURCE_PATH && fo instanceof MemorySource;
+		}
 	}
 
 	public static class MemoryByteCode extends SimpleJavaFileObject {
@@ -78,6 +95,12 @@ public class EclipseECJWrapper {
 		public MemoryByteCode(String name) {
 			super(URI.create("byte:///" + name + ".class"), Kind.CLASS);
 		}
+		
+		public MemoryByteCode(String name, byte[] bytes) {
+			this(name);
+			baos = new ByteArrayOutputStream(bytes.length);
+			baos.write(bytes, 0, bytes.length);
+		}
 
 		@Override
 		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
@@ -104,7 +127,7 @@ public class EclipseECJWrapper {
 		private Map<String, MemoryByteCode> m = new HashMap<String, MemoryByteCode>();
 
 		@Override
-		protected Class<?> findClass(String name) throws ClassNotFoundException {
+		protected synchronized Class<?> findClass(String name) throws ClassNotFoundException {
 			MemoryByteCode mbc = m.get(name);
 			if (mbc == null) {
 				mbc = m.get(name.replace(".", "/"));
@@ -115,9 +138,49 @@ public class EclipseECJWrapper {
 			return defineClass(name, mbc.getBytes(), 0, mbc.getBytes().length);
 		}
 
-		public void addClass(String name, MemoryByteCode mbc) {
+		public synchronized void addClass(String name, MemoryByteCode mbc) {
 			m.put(name, mbc);
 		}
+		
+		public synchronized void addClass(String name, byte[] bytes) {
+			m.put(name, new MemoryByteCode(name, bytes));
+		}
+		
+		/**
+		 * Get bytecode of all classes compiled by or added to this loader
+		 * 
+		 * @return map from class name to bytecode
+		 */
+		public synchronized Map<String, byte[]> getByteCode() {
+			Map<String, byte[]> classes = new HashMap<String, byte[]>();
+			
+			for(Map.Entry<String, MemoryByteCode> e : m.entrySet()) {
+				classes.put(e.getKey(), e.getValue().getBytes());
+			}
+			
+			return classes;
+		}
+		
+		/**
+		 * Get bytecode of a compiled class and its nested classes
+		 * 
+		 * @param className class name
+		 * @return map from class name to bytecode, empty if the class wasn't compiled by this loader
+		 */
+		public synchronized Map<String, byte[]> getByteCode(String className) {
+			Map<String, byte[]> classes = new HashMap<String, byte[]>();
+			String internalName = className.replace(".", "/");
+			
+			for(Map.Entry<String, MemoryByteCode> e : m.entrySet()) {
+				String name = e.getKey();
+				if(name.equals(className) || name.equals(internalName) 
+						|| name.startsWith(className + "$") || name.startsWith(internalName + "$")) {
+					classes.put(name, e.getValue().getBytes());
+				}
+			}
+			
+			return classes;
+		}
 	}
 
 	private static JavaCompiler javac = new EclipseCompiler();
@@ -149,4 +212,38 @@ public class EclipseECJWrapper {
 		return res? cl.findClass(className) : null;
 
 	}
+
+	/**
+	 * Compile a batch of classes in a single compiler invocation. Unlike {@link #compileClass},
+	 * each call uses its own compiler and class loader, so batches could be compiled in parallel
+	 * 
+	 * @param sources map from class name to class source
+	 * @param compilerOut compiler output
+	 * @return map from class name to bytecode (including nested classes), or null if the compilation failed
+	 */
+	public static Map<String, byte[]> compile(Map<String, String> sources, Writer compilerOut) {
+		JavaCompiler compiler = new EclipseCompiler();
+		StandardJavaFileManager sjfm = compiler.getStandardFileManager(null, null, null);
+		SpecialClassLoader xcl = new SpecialClassLoader();
+		SpecialJavaFileManager fileManager = new SpecialJavaFileManager(sjfm, xcl);
+		List<String> options = Collections.emptyList();
+		
+		List<MemorySource> compilationUnits = new ArrayList<MemorySource>();
+		for(Map.Entry<String, String> e : sources.entrySet()) {
+			compilationUnits.add(new MemorySource(e.getKey(), e.getValue()));
+		}
+		
+		DiagnosticListener<JavaFileObject> dianosticListener = new DiagnosticListener<JavaFileObject>() {
+			
+			@Override
+			public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+				System.err.printf("%s - [%d] %s%n", diagnostic.getKind(), diagnostic.getLineNumber(), diagnostic.getMessage(null));
+			}
+		};
+		
+		JavaCompiler.CompilationTask compile = compiler.getTask(compilerOut, fileManager,
+				dianosticListener, options, null, compilationUnits);
+		
+		return compile.call()? xcl.getByteCode() : null;
+	}
 }
@@ -0,0 +1,83 @@
+package name.kazennikov.annotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Shared helpers of the tests that compare documents annotated in different ways
+ */
+public class AnnotationTestUtils {
+
+	/**
+	 * Make random text of the alphabet characters
+	 *
+	 * @param rnd random generator
+	 * @param alphabet characters of the text
+	 * @param length text length
+	 */
+	public static String randomText(Random rnd, String alphabet, int length) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Make random text of the fragments
+	 *
+	 * @param rnd random generator
+	 * @param fragments fragments of the text
+	 * @param count number of fragments in the text
+	 */
+	public static String randomText(Random rnd, String[] fragments, int count) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			sb.append(fragments[rnd.nextInt(fragments.length)]);
+		}
+
+		return sb.toString();
+	}
+
+	static String toString(Annotation a) {
+		return a.getType() + "[" + a.getStart() + "," + a.getEnd() + "]" + new TreeMap<>(a.getFeatureMap());
+	}
+
+	/**
+	 * Dump document annotations in the document order as 'type[start,end]{features}'
+	 */
+	public static List<String> dump(Document doc) {
+		List<String> res = new ArrayList<>();
+		for(Annotation a : doc.getAll()) {
+			res.add(toString(a));
+		}
+
+		return res;
+	}
+
+	/**
+	 * Dump document annotations with their ids as 'id:type[start,end]{features}'
+	 */
+	public static List<String> dumpWithIds(Document doc) {
+		List<String> res = new ArrayList<>();
+		for(Annotation a : doc.getAll()) {
+			res.add(a.getId() + ":" + toString(a));
+		}
+
+		return res;
+	}
+
+	/**
+	 * Dump document annotations sorted by the dump strings, so the order of annotations
+	 * with same span doesn't matter
+	 */
+	public static List<String> sortedDump(Document doc) {
+		List<String> res = dump(doc);
+		Collections.sort(res);
+		return res;
+	}
+}
@@ -0,0 +1,59 @@
+package name.kazennikov.annotations;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks that the incrementally updated views match the views built from scratch
+ */
+public class AnnotationViewTests extends TestCase {
+	static final String[] TYPES = {"A", "B", "C"};
+
+	static void addRandom(Document doc, Random rnd, int count) {
+		int length = doc.getText().length();
+
+		for(int i = 0; i < count; i++) {
+			int start = rnd.nextInt(length + 1);
+			// some annotations are empty
+			int end = Math.min(length, start + rnd.nextInt(4));
+			doc.addAnnotation(TYPES[rnd.nextInt(TYPES.length)], start, end);
+		}
+	}
+
+	@Test
+	public void testUpdate() {
+		Set<String> types = new HashSet<>(Arrays.asList("A", "B"));
+		Random rnd = new Random(1);
+
+		for(int i = 0; i < 200; i++) {
+			Document doc = new Document("doc", "0123456789012345678901234567890123456789");
+			addRandom(doc, rnd, rnd.nextInt(20));
+			AnnotationView view = doc.getView(types);
+
+			for(int j = 0; j < 5; j++) {
+				AnnotationList before = view.getAnnotations();
+				int beforeSize = before.size();
+
+				addRandom(doc, rnd, rnd.nextInt(j == 0? 1 : 10));
+				view = doc.getView(types);
+				AnnotationList annotations = view.getAnnotations();
+
+				// lists obtained before the update are still valid
+				assertEquals(beforeSize, before.size());
+
+				assertEquals(doc.get("A", "B").size(), annotations.size());
+				for(int k = 1; k < annotations.size(); k++) {
+					assertTrue(Annotation.COMPARATOR.compare(annotations.get(k - 1), annotations.get(k)) <= 0);
+				}
+
+				assertTrue(Arrays.equals(AnnotationView.computeNext(annotations), view.getNext()));
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package name.kazennikov.annotations;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
@@ -61,6 +62,49 @@ public class SimpleAnnotationTests extends TestCase {
 		assertEquals(6, l.size());
 
 	}
+	
+	@Test
+	public void testBatch() {
+		Document d = new Document("doc", "foo bar baz");
+		d.beginBatch();
+		d.addAnnotation("Word", 8, 11);
+		d.addAnnotation("Word", 0, 3);
+		d.addAnnotation("Word", 4, 7);
+		assertEquals(0, d.get("Word").size());
+		d.commitBatch();
+		
+		AnnotationList l = d.get("Word");
+		assertEquals(3, l.size());
+		assertEquals(0, l.get(0).getStart());
+		assertTrue(l.get(0).getId() < l.get(1).getId());
+		assertTrue(l.get(1).getId() < l.get(2).getId());
+	}
+	
+	@Test
+	public void testFailedBatch() {
+		Document d = new Document("doc", "foo bar baz");
+		Annotation a = d.addAnnotation("Word", 0, 3);
+		d.beginBatch();
+		d.addAnnotation("Word", 4, 7);
+		d.addAnnotation(a.getId(), "Word", 8, 11, new HashMap<String, Object>());
+		
+		try {
+			d.commitBatch();
+			fail();
+		} catch(IllegalStateException e) {
+		}
+		
+		// the failed batch is closed and its buffer isn't committed again
+		assertFalse(d.isBatch());
+		assertEquals(2, d.get("Word").size());
+		
+		d.addAnnotation("Word", 8, 11);
+		assertEquals(3, d.get("Word").size());
+		
+		d.beginBatch();
+		d.commitBatch();
+		assertEquals(3, d.get("Word").size());
+	}
 
 	
 	
@@ -0,0 +1,98 @@
+package name.kazennikov.annotations;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.annotators.UnicodeTokenizer;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicates;
+
+/**
+ * Checks that the tokens attached to a document as a {@link TokenBuffer} are materialized
+ * as the eagerly added token annotations
+ */
+public class TokenBufferTests extends TestCase {
+	static final String ALPHABET = "abc019 \n.,-";
+
+	/**
+	 * Tokenize the document with annotations added before the tokenization, after it and in a batch
+	 */
+	static Document annotate(String text, boolean bufferOutput) {
+		UnicodeTokenizer t = new UnicodeTokenizer();
+		t.setBufferOutput(bufferOutput);
+
+		Document doc = new Document("doc", text);
+		doc.addAnnotation("Before", 0, text.length());
+		t.annotate(doc);
+		doc.addAnnotation("After", 0, 1);
+
+		doc.beginBatch();
+		doc.addAnnotation("Batch", 0, text.length());
+		doc.commitBatch();
+
+		return doc;
+	}
+
+	@Test
+	public void testLazyTokens() {
+		Random rnd = new Random(1);
+
+		for(int i = 0; i < 100; i++) {
+			String text = AnnotationTestUtils.randomText(rnd, ALPHABET, 1 + rnd.nextInt(60));
+			Document lazy = annotate(text, true);
+			assertNotNull(lazy.getTokens());
+			assertEquals(annotate(text, false).size(), lazy.size());
+			assertEquals(text, AnnotationTestUtils.dumpWithIds(annotate(text, false)), AnnotationTestUtils.dumpWithIds(lazy));
+			assertNull(lazy.getTokens());
+		}
+	}
+
+	@Test
+	public void testReservedIds() {
+		UnicodeTokenizer t = new UnicodeTokenizer();
+		t.setBufferOutput(true);
+		Document doc = new Document("doc", "foo bar");
+		t.annotate(doc);
+		assertEquals(3, doc.getTokens().size());
+		int free = doc.tokensID + 3;
+
+		try {
+			doc.addAnnotation(doc.tokensID + 1, "Foo", 0, 3, null);
+			fail("reserved token id is accepted");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+
+		assertFalse(doc.containsAdded(AnnotationConstants.TOKEN));
+		doc.addAnnotation(free, "Foo", 0, 3, null);
+		assertEquals(3, doc.get(AnnotationConstants.TOKEN).size());
+		assertEquals("Foo", doc.getById(free).getType());
+	}
+
+	/**
+	 * Queries of other types don't add the attached tokens, queries of the token type or of all types do
+	 */
+	@Test
+	public void testTypedQueries() {
+		String text = "foo bar, baz";
+		Document doc = annotate(text, true);
+
+		assertEquals(1, doc.get("Before").size());
+		assertFalse(doc.contains("Foo"));
+		assertEquals(1, doc.get("After", Predicates.<Annotation>alwaysTrue()).size());
+		assertEquals(1, doc.getView(Collections.singleton("Batch")).getAnnotations().size());
+		assertNotNull(doc.getTokens());
+
+		assertFalse(doc.get(AnnotationConstants.TOKEN).isEmpty());
+		assertNull(doc.getTokens());
+		assertEquals(AnnotationTestUtils.dumpWithIds(annotate(text, false)), AnnotationTestUtils.dumpWithIds(doc));
+
+		doc = annotate(text, true);
+		doc.get(Predicates.<Annotation>alwaysTrue());
+		assertNull(doc.getTokens());
+	}
+}
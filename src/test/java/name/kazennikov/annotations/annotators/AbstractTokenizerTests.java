@@ -0,0 +1,157 @@
+package name.kazennikov.annotations.annotators;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.AnnotationConstants;
+import name.kazennikov.annotations.AnnotationTestUtils;
+import name.kazennikov.annotations.BaseTokenType;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.TokenType;
+
+import org.junit.Test;
+
+/**
+ * Checks that the table driven {@link AbstractTokenizer} tokenizes as the per character
+ * classification by {@link AbstractTokenizer#isSeparator(char)} and {@link AbstractTokenizer#isWhitespace(char)}
+ */
+public class AbstractTokenizerTests extends TestCase {
+	static final String ALPHABET = "abcXYZ019 \t\n\r\u00a0.,-:;'\"$%()_\u00e9\u0416\u0436\u2013\u00bd\u0663";
+
+	static TokenType infer(String text, int start, int end) {
+		boolean hasDigits = false;
+		boolean hasLetters = false;
+
+		for(int i = start; i < end; i++) {
+			char ch = text.charAt(i);
+			if(Character.isLetter(ch)) {
+				hasLetters = true;
+			} else if(Character.isDigit(ch)) {
+				hasDigits = true;
+			} else {
+				return BaseTokenType.MISC;
+			}
+		}
+
+		if(hasDigits && hasLetters)
+			return BaseTokenType.ALPHANUM;
+
+		return hasDigits? BaseTokenType.DIGITS : BaseTokenType.LETTERS;
+	}
+
+	static void add(Document doc, String type, int start, int end, TokenType tokenType) {
+		Map<String, Object> fm = new HashMap<>();
+		fm.put(AnnotationConstants.TYPE, tokenType);
+		doc.addAnnotation(type, start, end, fm);
+	}
+
+	/**
+	 * Reference tokenization: each character is classified by the tokenizer predicates, content
+	 * token types are inferred by a rescan of the token
+	 */
+	static void tokenize(AbstractTokenizer t, Document doc) {
+		String text = doc.getText();
+		String type = t.getTokenAnnotationType();
+		int pos = 0;
+		int start = 0;
+
+		while(pos < text.length()) {
+			char ch = text.charAt(pos);
+			boolean isSep = t.isSeparator(ch);
+			boolean isWS = t.isWhitespace(ch);
+
+			if(!isSep && !isWS) {
+				pos++;
+				continue;
+			}
+
+			if(start != pos)
+				add(doc, type, start, pos, infer(text, start, pos));
+
+			int tokenStart = pos;
+
+			if(isWS) {
+				boolean newline = false;
+				while(pos < text.length() && t.isWhitespace(text.charAt(pos))) {
+					newline |= text.charAt(pos) == '\n' || text.charAt(pos) == '\r';
+					pos++;
+				}
+
+				add(doc, type, tokenStart, pos, newline? BaseTokenType.NEWLINE : BaseTokenType.SPACE);
+			} else {
+				pos++;
+				add(doc, type, tokenStart, pos, BaseTokenType.PUNC);
+			}
+
+			start = pos;
+		}
+
+		if(start != pos)
+			add(doc, type, start, pos, infer(text, start, pos));
+	}
+
+	void check(AbstractTokenizer t, Random rnd) {
+		for(int i = 0; i < 200; i++) {
+			String text = AnnotationTestUtils.randomText(rnd, ALPHABET, rnd.nextInt(60));
+			Document expected = new Document("doc", text);
+			tokenize(t, expected);
+			Document actual = new Document("doc", text);
+			t.annotate(actual);
+
+			assertEquals(t.getClass().getSimpleName() + " '" + text + "'", AnnotationTestUtils.dump(expected), AnnotationTestUtils.dump(actual));
+		}
+	}
+
+	@Test
+	public void testClassTable() {
+		Random rnd = new Random(1);
+		check(new UnicodeTokenizer(), rnd);
+
+		BasicTokenizer t = new BasicTokenizer();
+		t.setSeparator(",.!?()[]\"'$%^&*#{}\\|/-:");
+		check(t, rnd);
+
+		// the class table is rebuilt for the new separators
+		t.setSeparator("a;_\u2013");
+		check(t, rnd);
+	}
+
+	void checkParallel(AbstractTokenizer seq, AbstractTokenizer par, Random rnd) {
+		for(int i = 0; i < 50; i++) {
+			String text = AnnotationTestUtils.randomText(rnd, ALPHABET, rnd.nextInt(2000));
+			Document expected = new Document("doc", text);
+			seq.annotate(expected);
+			Document actual = new Document("doc", text);
+			par.annotate(actual);
+
+			assertEquals(seq.getClass().getSimpleName(), AnnotationTestUtils.dump(expected), AnnotationTestUtils.dump(actual));
+		}
+	}
+
+	@Test
+	public void testParallel() {
+		Random rnd = new Random(2);
+		ForkJoinPool pool = new ForkJoinPool(4);
+
+		try {
+			UnicodeTokenizer unicode = new UnicodeTokenizer();
+			unicode.setPool(pool);
+			unicode.setChunkSize(16);
+			checkParallel(new UnicodeTokenizer(), unicode, rnd);
+
+			BasicTokenizer seq = new BasicTokenizer();
+			seq.setSeparator(",.!?()[]\"'$%^&*#{}\\|/-:");
+			BasicTokenizer basic = new BasicTokenizer();
+			basic.setSeparator(",.!?()[]\"'$%^&*#{}\\|/-:");
+			basic.setPool(pool);
+			basic.setChunkSize(16);
+			checkParallel(seq, basic, rnd);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package name.kazennikov.annotations.gazetteer;
+
+import gnu.trove.list.array.TIntArrayList;
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.AnnotationConstants;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.annotators.UnicodeTokenizer;
+
+import org.junit.Test;
+
+/**
+ * Checks that the gazetteer reads the attached tokens from the buffer only when they are
+ * the only tokens of the document
+ */
+public class TokenDAFSAGazetteerTests extends TestCase {
+	static final String TEXT = "New York, New Jersey";
+
+	static Document tokenize(boolean bufferOutput) {
+		UnicodeTokenizer t = new UnicodeTokenizer();
+		t.setBufferOutput(bufferOutput);
+		Document doc = new Document("doc", TEXT);
+		t.annotate(doc);
+		return doc;
+	}
+
+	static TIntArrayList starts(Document doc) {
+		TIntArrayList starts = new TIntArrayList();
+		for(Annotation a : doc.get(AnnotationConstants.TOKEN)) {
+			starts.add(a.getStart());
+		}
+
+		return starts;
+	}
+
+	static TIntArrayList ends(Document doc) {
+		TIntArrayList ends = new TIntArrayList();
+		for(Annotation a : doc.get(AnnotationConstants.TOKEN)) {
+			ends.add(a.getEnd());
+		}
+
+		return ends;
+	}
+
+	@Test
+	public void testBufferTokens() {
+		TokenDAFSAGazetteer g = new TokenDAFSAGazetteer();
+		Document doc = tokenize(true);
+
+		assertEquals(starts(tokenize(false)), g.getStarts(doc));
+		assertEquals(ends(tokenize(false)), g.getEnds(doc));
+
+		// the buffer is read without making annotations
+		assertNotNull(doc.getTokens());
+	}
+
+	@Test
+	public void testAddedTokens() {
+		TokenDAFSAGazetteer g = new TokenDAFSAGazetteer();
+		Document doc = tokenize(true);
+		doc.addAnnotation(AnnotationConstants.TOKEN, 0, 8);
+		assertNotNull(doc.getTokens());
+
+		// a token added outside the buffer, the tokens are read from the annotations
+		TIntArrayList starts = g.getStarts(doc);
+		TIntArrayList ends = g.getEnds(doc);
+		assertNull(doc.getTokens());
+		assertEquals(starts(tokenize(false)).size() + 1, starts.size());
+		assertEquals(starts(doc), starts);
+		assertEquals(ends(doc), ends);
+	}
+}
@@ -0,0 +1,234 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.BaseTokenType;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.TokenType;
+
+import org.junit.Test;
+
+/**
+ * Checks the feature matchers of the JAPE grammars
+ */
+public class AnnotationMatchersTests extends TestCase {
+
+	static Document annotate(String grammar, Document doc) throws Exception {
+		Phase phase = SinglePhaseJapeASTParser.parsePhase(new JapeConfiguration(), grammar);
+		phase.compile();
+
+		IterativeJapeAnnotator a = new IterativeJapeAnnotator();
+		a.setPhase(phase);
+		a.init();
+		a.annotate(doc);
+		return doc;
+	}
+
+	static List<String> texts(Document doc, String type) {
+		List<String> res = new ArrayList<>();
+		for(Annotation a : doc.get(type)) {
+			res.add(a.getText());
+		}
+
+		return res;
+	}
+
+	static void addToken(Document doc, int start, int end, Object type) {
+		Annotation a = doc.addAnnotation("Token", start, end);
+		a.setFeature("type", type);
+	}
+
+	@Test
+	public void testSubtype() throws Exception {
+		Document doc = new Document("doc", "a, b\nc");
+		addToken(doc, 0, 1, BaseTokenType.LETTERS);
+		addToken(doc, 1, 2, BaseTokenType.PUNC);
+		addToken(doc, 2, 3, BaseTokenType.SPACE);
+		// type name as feature value
+		addToken(doc, 3, 4, "letters");
+		addToken(doc, 4, 5, BaseTokenType.NEWLINE);
+		addToken(doc, 5, 6, BaseTokenType.DIGITS);
+
+		annotate("Phase: P\nInput: Token\nOptions: control = all\n\n"
+				+ "Rule: Sep\n({Token.type <: sep}):m\n-->\n:m.Sep = {}\n\n"
+				+ "Rule: Ws\n({Token.type <: ws}):m\n-->\n:m.Ws = {}\n\n"
+				+ "Rule: Text\n({Token.type <: text}):m\n-->\n:m.Text = {}\n\n"
+				+ "Rule: Space\n({Token.type <: space}):m\n-->\n:m.Space = {}\n", doc);
+
+		// grandchildren of sep match it, punc isn't whitespace
+		assertEquals(Arrays.asList(",", " ", "\n"), texts(doc, "Sep"));
+		assertEquals(Arrays.asList(" ", "\n"), texts(doc, "Ws"));
+		assertEquals(Arrays.asList("a", "b", "c"), texts(doc, "Text"));
+		// newline is a sibling of space
+		assertEquals(Arrays.asList(" "), texts(doc, "Space"));
+	}
+
+	/**
+	 * The tokenizer "length" feature is a string, it is compared as a number with the numeric constants
+	 */
+	@Test
+	public void testCompareStringFeature() throws Exception {
+		Document doc = new Document("doc", "a bb ccccccccc dddddddddd x");
+		for(int start = 0; start < doc.getText().length();) {
+			int end = doc.getText().indexOf(' ', start);
+			if(end < 0)
+				end = doc.getText().length();
+
+			Annotation a = doc.addAnnotation("Token", start, end);
+			a.setFeature("length", Integer.toString(end - start));
+			a.setFeature("string", a.getText());
+			start = end + 1;
+		}
+
+		annotate("Phase: P\nInput: Token\nOptions: control = all\n\n"
+				+ "Rule: Long\n({Token.length > 9}):m\n-->\n:m.Long = {}\n\n"
+				+ "Rule: Short\n({Token.length <= 2}):m\n-->\n:m.Short = {}\n\n"
+				+ "Rule: Before\n({Token.string < \"c\"}):m\n-->\n:m.Before = {}\n\n"
+				+ "Rule: Mixed\n({Token.string > 1}):m\n-->\n:m.Mixed = {}\n", doc);
+
+		// numeric, not lexicographic comparison: "9" < "10"
+		assertEquals(Arrays.asList("dddddddddd"), texts(doc, "Long"));
+		assertEquals(Arrays.asList("a", "bb", "x"), texts(doc, "Short"));
+		assertEquals(Arrays.asList("a", "bb"), texts(doc, "Before"));
+		// non-numeric strings aren't comparable with a number
+		assertTrue(doc.get("Mixed").isEmpty());
+	}
+
+	@Test
+	public void testCompareNumbers() throws Exception {
+		Document doc = new Document("doc", "abcd");
+		Object[] values = {2, 3, 2.5, 3.0};
+		for(int i = 0; i < values.length; i++) {
+			Annotation a = doc.addAnnotation("Token", i, i + 1);
+			a.setFeature("n", values[i]);
+		}
+
+		annotate("Phase: P\nInput: Token\nOptions: control = all\n\n"
+				+ "Rule: Gt\n({Token.n > 2.5}):m\n-->\n:m.Gt = {}\n\n"
+				+ "Rule: Ge\n({Token.n >= 3}):m\n-->\n:m.Ge = {}\n\n"
+				+ "Rule: Lt\n({Token.n < 3}):m\n-->\n:m.Lt = {}\n\n"
+				+ "Rule: Le\n({Token.n <= 2.5}):m\n-->\n:m.Le = {}\n\n"
+				+ "Rule: Neg\n({Token.n > -2}):m\n-->\n:m.Neg = {}\n", doc);
+
+		assertEquals(Arrays.asList("b", "d"), texts(doc, "Gt"));
+		assertEquals(Arrays.asList("b", "d"), texts(doc, "Ge"));
+		assertEquals(Arrays.asList("a", "c"), texts(doc, "Lt"));
+		assertEquals(Arrays.asList("a", "c"), texts(doc, "Le"));
+		assertEquals(Arrays.asList("a", "b", "c", "d"), texts(doc, "Neg"));
+	}
+
+	static Document words(String text) {
+		Document doc = new Document("doc", text);
+		for(int start = 0; start < text.length();) {
+			int end = text.indexOf(' ', start);
+			if(end < 0)
+				end = text.length();
+
+			doc.addAnnotation("Token", start, end);
+			start = end + 1;
+		}
+
+		return doc;
+	}
+
+	/**
+	 * The @string and @length matchers work on the document text in place,
+	 * the regex matchers are limited to the annotation span
+	 */
+	@Test
+	public void testStringMeta() throws Exception {
+		Document doc = annotate("Phase: P\nInput: Token\nOptions: control = all\n\n"
+				+ "Rule: Eq\n({Token@string == \"bb\"}):m\n-->\n:m.Eq = {}\n\n"
+				+ "Rule: Neq\n({Token@string != \"bb\"}):m\n-->\n:m.Neq = {}\n\n"
+				+ "Rule: Length\n({Token@length == 3}):m\n-->\n:m.Length = {}\n\n"
+				+ "Rule: Short\n({Token@length < 3}):m\n-->\n:m.Short = {}\n\n"
+				+ "Rule: Match\n({Token@string ==~ \"b+\"}):m\n-->\n:m.Match = {}\n\n"
+				+ "Rule: Anchored\n({Token@string =~ \"^b\"}):m\n-->\n:m.Anchored = {}\n\n"
+				+ "Rule: Across\n({Token@string =~ \"c b\"}):m\n-->\n:m.Across = {}\n\n"
+				+ "Rule: Repeat\n({Token@string ==~ \"(.)\\\\1+\"}):m\n-->\n:m.Repeat = {}\n", words("aa bb abc bbb"));
+
+		assertEquals(Arrays.asList("bb"), texts(doc, "Eq"));
+		assertEquals(Arrays.asList("aa", "abc", "bbb"), texts(doc, "Neq"));
+		assertEquals(Arrays.asList("abc", "bbb"), texts(doc, "Length"));
+		assertEquals(Arrays.asList("aa", "bb"), texts(doc, "Short"));
+		assertEquals(Arrays.asList("bb", "bbb"), texts(doc, "Match"));
+		assertEquals(Arrays.asList("bb", "bbb"), texts(doc, "Anchored"));
+		assertTrue(doc.get("Across").isEmpty());
+		// back reference isn't compiled to DFA, so it is matched by java.util.regex
+		assertNull(RegexDFA.compile("(.)\\1+", false));
+		assertEquals(Arrays.asList("aa", "bb", "bbb"), texts(doc, "Repeat"));
+	}
+
+	/**
+	 * Equality constraints on @string are compiled to a value dispatch
+	 */
+	@Test
+	public void testStringDispatch() throws Exception {
+		StringBuilder sb = new StringBuilder("Phase: P\nInput: Token\nOptions: control = all\n\n");
+		String[] words = {"aa", "bb", "abc", "zz", "b"};
+		for(int i = 0; i < words.length; i++) {
+			sb.append(String.format("Rule: D%d\n({Token@string == \"%s\"}):m\n-->\n:m.D%d = {}\n\n", i, words[i], i));
+		}
+
+		Document doc = annotate(sb.toString(), words("aa bb abc bbb"));
+		assertEquals(Arrays.asList("aa"), texts(doc, "D0"));
+		assertEquals(Arrays.asList("bb"), texts(doc, "D1"));
+		assertEquals(Arrays.asList("abc"), texts(doc, "D2"));
+		assertTrue(doc.get("D3").isEmpty());
+		assertTrue(doc.get("D4").isEmpty());
+	}
+
+	@Test
+	public void testSerializedRegex() throws Exception {
+		AnnotationMatcher m = new AnnotationMatchers.FeatureRegexMatcher("Token",
+				new AnnotationMatchers.StringMetaFeatureAccessor(), "(.)\\1+");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(m);
+		}
+
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			m = (AnnotationMatcher) in.readObject();
+		}
+
+		Document doc = words("aa abc");
+		assertTrue(m.match(doc.get("Token").get(0)));
+		assertFalse(m.match(doc.get("Token").get(1)));
+	}
+
+	@Test
+	public void testTypeAncestors() {
+		assertTrue(BaseTokenType.SPACE.is(BaseTokenType.SPACE));
+		assertTrue(BaseTokenType.SPACE.is(BaseTokenType.WHITESPACE));
+		assertTrue(BaseTokenType.SPACE.is(BaseTokenType.SEPARATOR));
+
+		assertFalse(BaseTokenType.SPACE.is(BaseTokenType.NEWLINE));
+		assertFalse(BaseTokenType.PUNC.is(BaseTokenType.WHITESPACE));
+		assertFalse(BaseTokenType.SEPARATOR.is(BaseTokenType.SPACE));
+		assertFalse(BaseTokenType.SPACE.is(BaseTokenType.TEXT));
+
+		// the chain crosses the bitset words
+		TokenType root = BaseTokenType.add("test-chain-0", null);
+		TokenType sibling = BaseTokenType.add("test-chain-sibling", root);
+		TokenType t = root;
+		for(int i = 1; i < 70; i++) {
+			t = BaseTokenType.add("test-chain-" + i, t);
+		}
+
+		assertTrue(((BaseTokenType) t).getId() >= 64);
+		assertTrue(t.is(root));
+		assertFalse(root.is(t));
+		assertFalse(t.is(sibling));
+		assertFalse(sibling.is(t));
+		assertSame(t, BaseTokenType.getType(((BaseTokenType) t).getId()));
+	}
+}
@@ -0,0 +1,83 @@
+package name.kazennikov.annotations.patterns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.Document;
+
+import org.junit.Test;
+
+/**
+ * Checks the Java RHS access to the bindings map
+ */
+public class BindingsTests extends TestCase {
+	static final String GRAMMAR = "Phase: P\nInput: Token Lookup\nOptions: control = appelt\n\n"
+			+ "Rule: R\n({Lookup}):m\n-->\n:m.Out = {}\n";
+
+	/**
+	 * Run the rule with the Java RHS executed before the SimpleRHS, and trace RHS after them
+	 */
+	static Document run(String javaCode, List<String> trace) throws Exception {
+		Phase phase = SinglePhaseJapeASTParser.parsePhase(new JapeConfiguration(), GRAMMAR);
+		phase.compile();
+
+		Rule r = phase.getRules().get(0);
+		r.rhs().add(0, JavaRHSBuilder.build(null, null, javaCode));
+		r.rhs().add(new RecursiveJapeAnnotatorTests.TraceRHS(r.name, trace));
+
+		IterativeJapeAnnotator a = new IterativeJapeAnnotator();
+		a.setPhase(phase);
+		a.init();
+
+		Document doc = new RecursiveJapeAnnotatorTests().newDocument();
+		a.annotate(doc);
+		return doc;
+	}
+
+	static List<String> spans(Document doc, String type) {
+		List<String> res = new ArrayList<>();
+		for(Annotation a : doc.get(type)) {
+			res.add(a.getText());
+		}
+
+		return res;
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		List<String> trace = new ArrayList<>();
+		Document doc = run("{ if(bindings.get(\"m\").size() != 1 || !bindings.containsKey(\"m\") || bindings.size() != 1)"
+				+ " throw new IllegalStateException(); return true; }", trace);
+
+		assertEquals(3, trace.size());
+		assertEquals("R m=Lookup[16,22]", trace.get(0));
+		assertEquals(spans(doc, "Lookup"), spans(doc, "Out"));
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		List<String> trace = new ArrayList<>();
+		Document doc = run("{ bindings.put(\"moved\", bindings.remove(\"m\")); return true; }", trace);
+
+		// the removed binding isn't seen by the following RHS
+		assertEquals(3, trace.size());
+		assertEquals("R moved=Lookup[16,22]", trace.get(0));
+		assertTrue(doc.get("Out").isEmpty());
+	}
+
+	@Test
+	public void testPut() throws Exception {
+		List<String> trace = new ArrayList<>();
+		Document doc = run("{ AnnotationList l = new AnnotationList(); l.add(input.get(0));"
+				+ " bindings.put(\"m\", l); return true; }", trace);
+
+		assertEquals(3, trace.size());
+		assertEquals("R m=Token[0,4]", trace.get(0));
+		assertEquals(3, doc.get("Out").size());
+		for(Annotation a : doc.get("Out")) {
+			assertEquals("this", a.getText());
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.tokenizer.SimpleTokenizer;
+import name.kazennikov.annotations.tokenizer.TokenJoins;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+/**
+ * Checks that the phases loaded from a compiled grammar archive keep their LHS
+ */
+public class CompiledGrammarTests extends TestCase {
+
+	static Phase reload(File grammar) throws Exception {
+		CompiledGrammar g = CompiledGrammar.compile(new JapeConfiguration(), grammar);
+		File archive = File.createTempFile("grammar", ".bin");
+
+		try {
+			g.write(archive);
+			CompiledGrammar loaded = CompiledGrammar.read(archive);
+			assertEquals(1, loaded.getPhases().size());
+			return loaded.getPhases().get(0);
+		} finally {
+			archive.delete();
+		}
+	}
+
+	static List<String> issues(Phase phase) {
+		List<String> res = new ArrayList<>();
+		for(GrammarAnalyzer.Issue issue : new GrammarAnalyzer().analyze(phase)) {
+			res.add(issue.toString());
+		}
+
+		return res;
+	}
+
+	@Test
+	public void testFold() throws Exception {
+		Phase loaded = reload(TokenJoinCompilerTests.GRAMMAR);
+		SimpleTokenizer tokenizer = TokenJoinCompilerTests.newTokenizer();
+		TokenJoins joins = TokenJoinCompiler.fold(loaded, tokenizer.getTokenTypes());
+
+		// same folding as for the parsed phase
+		assertEquals(4, joins.size());
+		assertEquals(3, loaded.getRules().size());
+	}
+
+	@Test
+	public void testAnalyze() throws Exception {
+		File grammar = File.createTempFile("grammar", ".jape");
+
+		try {
+			Files.write("Phase: P\nInput: Token\nOptions: control = appelt\n\n"
+					+ "Rule: Nested\n((((({Token.string == \"a\"})+))+)):m\n-->\n:m.Nested = {}\n", grammar, Charset.forName("UTF-8"));
+
+			Phase parsed = JapeEngineUtils.compilePhase(new JapeConfiguration(), grammar);
+			Phase loaded = reload(grammar);
+
+			List<String> expected = issues(parsed);
+			assertFalse(expected.isEmpty());
+			assertEquals(expected, issues(loaded));
+		} finally {
+			grammar.delete();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package name.kazennikov.annotations.patterns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.AnnotationView;
+import name.kazennikov.annotations.Document;
+
+import org.junit.Test;
+
+/**
+ * Checks the start positions filtering by the phase first-set
+ */
+public class FirstSetTests extends TestCase {
+	static final String GRAMMAR = "Phase: P\nInput: Token Lookup\nOptions: control = %s\n\n"
+			+ "Rule: City\n({Lookup.majorType == \"city\"} {Token}):m\n-->\n:m.City = {}\n\n"
+			+ "Rule: Unit\n({Lookup.majorType == \"unit\"}):m\n-->\n:m.Unit = {}\n";
+
+	static Phase parse(String src) throws Exception {
+		Phase phase = SinglePhaseJapeASTParser.parsePhase(new JapeConfiguration(), src);
+		phase.compile();
+		return phase;
+	}
+
+	static Document newDocument() {
+		Document doc = new RecursiveJapeAnnotatorTests().newDocument();
+		for(Annotation a : doc.get("Lookup")) {
+			a.setFeature("majorType", a.getText().equals("km")? "unit" : "city");
+		}
+
+		// not a trigger of any rule
+		doc.get("Lookup").get(0).setFeature("majorType", "country");
+		return doc;
+	}
+
+	static List<String> run(Phase phase, AbstractPhaseAnnotator a) {
+		List<String> trace = new ArrayList<>();
+		for(Rule r : phase.getRules()) {
+			r.rhs().add(new RecursiveJapeAnnotatorTests.TraceRHS(r.name, trace));
+		}
+
+		a.setPhase(phase);
+		a.init();
+		a.annotate(newDocument());
+		return trace;
+	}
+
+	@Test
+	public void testTriggers() throws Exception {
+		Phase phase = parse(String.format(GRAMMAR, "appelt"));
+		FirstSet fs = phase.getFirstSet();
+		assertTrue(fs.isEnabled());
+
+		Document doc = newDocument();
+		AnnotationView view = doc.getView(phase.input);
+		AnnotationList input = view.getAnnotations();
+		int[] inputTypes = new int[input.size()];
+		for(int i = 0; i < input.size(); i++) {
+			inputTypes[i] = phase.getTypeId(input.get(i).getType());
+		}
+
+		List<String> triggers = new ArrayList<>();
+		for(int i = 0; i < input.size(); i++) {
+			if(fs.isTrigger(input, inputTypes, i))
+				triggers.add(input.get(i).getText());
+		}
+
+		assertEquals(2, triggers.size());
+		assertEquals("Paris", triggers.get(0));
+		assertEquals("km", triggers.get(1));
+
+		// positions before a trigger jump to it, the positions after the last trigger to the input end
+		int[] startIndex = fs.computeStartIndex(input, inputTypes, view.getNext());
+		assertEquals("Paris", input.get(startIndex[0]).getText());
+		assertEquals(input.size(), startIndex[input.size() - 1]);
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		// empty match
+		assertFalse(parse("Phase: P\nInput: Token\nOptions: control = appelt\n\n"
+				+ "Rule: R\n(({Token})*):m\n-->\n:m.R = {}\n").getFirstSet().isEnabled());
+		// negated constraint could start with an annotation of any type
+		assertFalse(parse("Phase: P\nInput: Token Lookup\nOptions: control = appelt\n\n"
+				+ "Rule: R\n({!Lookup}):m\n-->\n:m.R = {}\n").getFirstSet().isEnabled());
+	}
+
+	/**
+	 * The matches are the same as without filtering
+	 */
+	@Test
+	public void testMatches() throws Exception {
+		for(MatchMode mode : MatchMode.values()) {
+			String src = String.format(GRAMMAR, mode.name().toLowerCase());
+
+			Phase unfiltered = parse(src);
+			unfiltered.firstSet.enabled = false;
+			List<String> expected = run(unfiltered, new IterativeJapeAnnotator());
+			assertFalse(mode.toString(), expected.isEmpty());
+
+			assertEquals(mode.toString(), expected, run(parse(src), new IterativeJapeAnnotator()));
+			assertEquals(mode.toString(), expected, run(parse(src), new RecursiveJapeAnnotator()));
+			assertEquals(mode.toString(), expected, run(parse(src), new LatticeJapeAnnotator()));
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package name.kazennikov.annotations.patterns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.AnnotationTestUtils;
+import name.kazennikov.annotations.Annotator;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.annotators.BasicTokenizer;
+
+import org.junit.Test;
+
+/**
+ * Checks that the fused phases annotate as the phases executed one by one
+ */
+public class FusedPhaseAnnotatorTests extends TestCase {
+	static final String[] PHASES = {
+		"Phase: P1\nInput: Token\nOptions: control = appelt\n\n"
+			+ "Rule: Foos\n(({Token.kind == \"foo\"})+):m\n-->\n:m.Foos = {}\n",
+		"Phase: P2\nInput: Token Lookup\nOptions: control = brill\n\n"
+			+ "Rule: Pair\n({Lookup} {Token}):m\n-->\n:m.Pair = {}\n",
+		"Phase: P3\nInput: Token\nOptions: control = first\n\n"
+			+ "Rule: Bigram\n({Token} {Token}):m\n-->\n:m.Bigram = {}\n",
+		"Phase: P4\nInput: Lookup\nOptions: control = all\n\n"
+			+ "Rule: Lookups\n(({Lookup})+):m\n-->\n:m.Lookups = {}\n",
+		"Phase: P5\nInput: Token\nOptions: control = once\n\n"
+			+ "Rule: Once\n({Token.kind == \"foo\"}):m\n-->\n:m.Once = {}\n",
+		// reads the output of P1, starts a new group
+		"Phase: P6\nInput: Foos Token\nOptions: control = appelt\n\n"
+			+ "Rule: FooToken\n({Foos} {Token}):m\n-->\n:m.FooToken = {}\n",
+	};
+
+	static final String[] WORDS = {"foo", "bar", "baz", "Moscow", "Paris", "-", " ", " ", "."};
+
+	static List<Annotator> phases(String... phases) throws Exception {
+		List<Annotator> res = new ArrayList<>();
+
+		for(String src : phases) {
+			Phase phase = SinglePhaseJapeASTParser.parsePhase(new JapeConfiguration(), src);
+			IterativeJapeAnnotator a = new IterativeJapeAnnotator();
+			a.setPhase(phase);
+			a.init();
+			res.add(a);
+		}
+
+		return res;
+	}
+
+	static Document newDocument(String text) {
+		BasicTokenizer t = new BasicTokenizer();
+		t.setTokenAnnotationType("Token");
+		t.setSeparator(".-");
+		Document doc = new Document("doc", text);
+		t.annotate(doc);
+
+		for(Annotation a : doc.get("Token")) {
+			if(a.getText().startsWith("foo") || a.getText().startsWith("b"))
+				a.setFeature("kind", "foo");
+		}
+
+		for(String s : new String[] {"Moscow", "Paris"}) {
+			for(int i = text.indexOf(s); i >= 0; i = text.indexOf(s, i + 1)) {
+				doc.addAnnotation("Lookup", i, i + s.length());
+			}
+		}
+
+		return doc;
+	}
+
+	static void annotate(List<Annotator> annotators, Document doc) {
+		for(Annotator a : annotators) {
+			a.annotate(doc);
+		}
+	}
+
+	@Test
+	public void testFuse() throws Exception {
+		List<Annotator> fused = FusedPhaseAnnotator.fuse(phases(PHASES));
+
+		assertEquals(2, fused.size());
+		assertEquals("P1+P2+P3+P4+P5", fused.get(0).getName());
+		assertEquals("P6", fused.get(1).getName());
+	}
+
+	/**
+	 * Replace RHS removes the bound tokens, so the following Token phase isn't fused with it
+	 */
+	@Test
+	public void testReplace() throws Exception {
+		String[] phases = {
+			"Phase: P1\nInput: Token\nOptions: control = appelt\n\n"
+				+ "Rule: Join\n({Token.kind == \"foo\"} {Token.kind == \"foo\"}):m\n-->\n:m.Word := {}\n",
+			"Phase: P2\nInput: Token\nOptions: control = appelt\n\n"
+				+ "Rule: Bigram\n({Token} {Token}):m\n-->\n:m.Bigram = {}\n",
+		};
+
+		List<Annotator> fused = FusedPhaseAnnotator.fuse(phases(phases));
+		assertEquals(2, fused.size());
+		assertFalse(fused.get(0) instanceof FusedPhaseAnnotator);
+
+		checkEquivalence(phases(phases), fused);
+	}
+
+	@Test
+	public void testSequentialEquivalence() throws Exception {
+		checkEquivalence(phases(PHASES), FusedPhaseAnnotator.fuse(phases(PHASES)));
+	}
+
+	void checkEquivalence(List<Annotator> sequential, List<Annotator> fused) {
+		Random rnd = new Random(1);
+
+		for(int i = 0; i < 200; i++) {
+			String text = AnnotationTestUtils.randomText(rnd, WORDS, rnd.nextInt(40));
+			Document expected = newDocument(text);
+			annotate(sequential, expected);
+			Document actual = newDocument(text);
+			annotate(fused, actual);
+
+			assertEquals("'" + text + "'", AnnotationTestUtils.sortedDump(expected), AnnotationTestUtils.sortedDump(actual));
+		}
+	}
+}
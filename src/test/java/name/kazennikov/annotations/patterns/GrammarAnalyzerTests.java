@@ -0,0 +1,89 @@
+package name.kazennikov.annotations.patterns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks the hazards found by the {@link GrammarAnalyzer}
+ */
+public class GrammarAnalyzerTests extends TestCase {
+	static final String HEADER = "Phase: P\nInput: Token Lookup Number\nOptions: control = appelt\n\n";
+
+	static Phase parse(String rules) throws Exception {
+		Phase phase = SinglePhaseJapeASTParser.parsePhase(new JapeConfiguration(), HEADER + rules);
+		phase.compile();
+		return phase;
+	}
+
+	/**
+	 * Get found issues as 'severity kind' strings
+	 */
+	static List<String> issues(GrammarAnalyzer analyzer, String rules) throws Exception {
+		List<String> res = new ArrayList<>();
+		for(GrammarAnalyzer.Issue issue : analyzer.analyze(parse(rules))) {
+			res.add(issue.getSeverity() + " " + issue.getKind());
+		}
+
+		Collections.sort(res);
+		return res;
+	}
+
+	static List<String> issues(String rules) throws Exception {
+		return issues(new GrammarAnalyzer(), rules);
+	}
+
+	@Test
+	public void testClean() throws Exception {
+		assertEquals(Collections.<String>emptyList(),
+				issues("Rule: R\n({Lookup} ({Token})+):m\n-->\n:m.R = {}\n"));
+	}
+
+	@Test
+	public void testKleene() throws Exception {
+		assertEquals(Arrays.asList("WARNING nested-kleene"),
+				issues("Rule: R\n({Lookup} (({Token})+ {Number})+):m\n-->\n:m.R = {}\n"));
+		assertEquals(Arrays.asList("ERROR nullable-kleene"),
+				issues("Rule: R\n({Lookup} (({Token})?)+):m\n-->\n:m.R = {}\n"));
+	}
+
+	@Test
+	public void testFanOut() throws Exception {
+		String rule = "Rule: R%d\n({%s} {Token}):m\n-->\n:m.R = {}\n\n";
+		String rules = String.format(rule, 1, "Token") + String.format(rule, 2, "Lookup") + String.format(rule, 3, "Number");
+		assertEquals(Collections.<String>emptyList(), issues(rules));
+
+		// the start state makes a group start instance and an instance for each rule,
+		// the group start state makes an instance for each rule
+		GrammarAnalyzer analyzer = new GrammarAnalyzer();
+		analyzer.setFanOutThresholds(3, 4);
+		assertEquals(Arrays.asList("WARNING fan-out"), issues(analyzer, rules));
+
+		analyzer.setFanOutThresholds(2, 3);
+		assertEquals(Arrays.asList("ERROR fan-out", "WARNING fan-out"), issues(analyzer, rules));
+	}
+
+	@Test
+	public void testStates() throws Exception {
+		GrammarAnalyzer analyzer = new GrammarAnalyzer();
+		analyzer.setStateThresholds(2, 1000);
+		String rules = "Rule: R\n({Lookup} {Token} {Number}):m\n-->\n:m.R = {}\n";
+		assertEquals(Arrays.asList("WARNING states"), issues(analyzer, rules));
+
+		analyzer.setStateThresholds(1, 2);
+		assertEquals(Arrays.asList("ERROR states"), issues(analyzer, rules));
+	}
+
+	@Test
+	public void testWarningsAsErrors() throws Exception {
+		GrammarAnalyzer analyzer = new GrammarAnalyzer();
+		analyzer.setWarningsAsErrors(true);
+		assertEquals(Arrays.asList("ERROR nested-kleene"),
+				issues(analyzer, "Rule: R\n({Lookup} (({Token})+ {Number})+):m\n-->\n:m.R = {}\n"));
+	}
+}
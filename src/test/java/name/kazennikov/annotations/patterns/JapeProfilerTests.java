@@ -0,0 +1,120 @@
+package name.kazennikov.annotations.patterns;
+
+import gnu.trove.iterator.TIntObjectIterator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks that all phase engines report to the profiler, and that the rule costs
+ * don't exceed the total matching work
+ */
+public class JapeProfilerTests extends TestCase {
+
+	/**
+	 * Run profiled annotator over the test document
+	 *
+	 * @return numbers of the fired rules, as the rule names aren't unique
+	 */
+	List<String> run(Phase phase, AbstractPhaseAnnotator annotator, JapeProfiler profiler) {
+		List<String> trace = new ArrayList<>();
+		for(Rule r : phase.getRules()) {
+			r.rhs().add(new RecursiveJapeAnnotatorTests.TraceRHS(Integer.toString(r.getNumber()), trace));
+		}
+
+		try {
+			annotator.setPhase(phase);
+			annotator.setProfiler(profiler);
+			annotator.init();
+			annotator.annotate(new RecursiveJapeAnnotatorTests().newDocument());
+		} finally {
+			for(Rule r : phase.getRules()) {
+				r.rhs().remove(r.rhs().size() - 1);
+			}
+		}
+
+		List<String> rules = new ArrayList<>();
+		for(String s : trace) {
+			int pos = s.indexOf(' ');
+			rules.add(pos < 0? s : s.substring(0, pos));
+		}
+
+		return rules;
+	}
+
+	void check(String name, Phase phase, AbstractPhaseAnnotator annotator) {
+		JapeProfiler profiler = new JapeProfiler();
+		List<String> fired = run(phase, annotator, profiler);
+		JapeProfiler.PhaseProfile profile = profiler.getProfile(phase);
+		assertNotNull(name, profile);
+
+		long total = 0;
+		TIntObjectIterator<JapeProfiler.Counters> it = profile.states.iterator();
+		while(it.hasNext()) {
+			it.advance();
+			total += it.value().work();
+		}
+
+		assertTrue(name, total > 0);
+
+		long ruleWork = 0;
+		long firings = 0;
+		for(JapeProfiler.RuleStats rs : profile.ruleStats()) {
+			JapeProfiler.Counters c = rs.getCounters();
+			assertTrue(name, c.work() <= total);
+			ruleWork += c.work();
+			firings += c.firings;
+
+			int count = 0;
+			for(String r : fired) {
+				if(r.equals(Integer.toString(rs.getRule().getNumber())))
+					count++;
+			}
+
+			assertEquals(name + " " + rs.getRule().name, count, c.firings);
+			assertTrue(name + " " + rs.getRule().name, c.matches >= c.firings);
+		}
+
+		assertTrue(name, ruleWork <= total);
+		assertEquals(name, fired.size(), firings);
+	}
+
+	@Test
+	public void testEngines() throws Exception {
+		File[] files = new File("jape/parser").listFiles();
+		assertNotNull(files);
+
+		for(File f : files) {
+			if(!f.getName().endsWith(".jape"))
+				continue;
+
+			Phase phase = JapeEngineUtils.compilePhase(new JapeConfiguration(), f);
+
+			for(MatchMode mode : new MatchMode[] {MatchMode.ALL, MatchMode.APPELT}) {
+				phase.mode = mode;
+				String name = f.getName() + " " + mode;
+
+				check(name + " iterative", phase, new IterativeJapeAnnotator());
+				check(name + " recursive", phase, new RecursiveJapeAnnotator());
+				check(name + " lattice", phase, new LatticeJapeAnnotator());
+			}
+		}
+	}
+
+	@Test
+	public void testShare() {
+		long sum = 0;
+		for(int i = 0; i < 3; i++) {
+			sum += JapeProfiler.PhaseProfile.share(10, i, 3);
+		}
+
+		assertEquals(10, sum);
+		assertEquals(4, JapeProfiler.PhaseProfile.share(10, 0, 3));
+		assertEquals(3, JapeProfiler.PhaseProfile.share(10, 2, 3));
+	}
+}
@@ -0,0 +1,108 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Document;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+/**
+ * Checks batch compilation of the Java RHS and the class cache
+ */
+public class JavaRHSBuilderTests extends TestCase {
+	static final String GRAMMAR = "Phase: P\nInput: Lookup\nOptions: control = appelt\n\n"
+			+ "Rule: R\n({Lookup}):m\n-->\n{\n AnnotationList l = bindings.get(\"m\");\n"
+			+ " doc.addAnnotation(\"%s\", l.get(0).getStart(), l.get(0).getEnd());\n return true;\n}\n";
+
+	File cacheDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		cacheDir = Files.createTempDir();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for(File f : cacheDir.listFiles()) {
+			f.delete();
+		}
+
+		cacheDir.delete();
+	}
+
+	Phase parse(String outputType) throws Exception {
+		JapeConfiguration config = new JapeConfiguration();
+		config.setClassCacheDir(cacheDir);
+		Phase phase = SinglePhaseJapeASTParser.parsePhase(config, String.format(GRAMMAR, outputType));
+		phase.compile();
+		return phase;
+	}
+
+	static int annotate(Phase phase, String outputType) {
+		IterativeJapeAnnotator a = new IterativeJapeAnnotator();
+		a.setPhase(phase);
+		a.init();
+
+		Document doc = new RecursiveJapeAnnotatorTests().newDocument();
+		a.annotate(doc);
+		return doc.get(outputType).size();
+	}
+
+	List<String> cacheFiles() {
+		List<String> res = new ArrayList<>(Arrays.asList(cacheDir.list()));
+		Collections.sort(res);
+		return res;
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		assertEquals(3, annotate(parse("Out"), "Out"));
+		List<String> files = cacheFiles();
+		assertEquals(1, files.size());
+
+		// the cached classes aren't rewritten, as the batch isn't compiled again
+		File cached = new File(cacheDir, files.get(0));
+		long modified = 1000000000000L;
+		assertTrue(cached.setLastModified(modified));
+
+		assertEquals(3, annotate(parse("Out"), "Out"));
+		assertEquals(files, cacheFiles());
+		assertEquals(modified, cached.lastModified());
+	}
+
+	@Test
+	public void testChangedSource() throws Exception {
+		assertEquals(3, annotate(parse("Out"), "Out"));
+		List<String> files = cacheFiles();
+
+		assertEquals(3, annotate(parse("Changed"), "Changed"));
+		List<String> changed = cacheFiles();
+		assertEquals(2, changed.size());
+		assertTrue(changed.containsAll(files));
+	}
+
+	@Test
+	public void testCompileError() throws Exception {
+		JavaRHSBuilder builder = new JavaRHSBuilder(cacheDir);
+		JavaRHSBuilder.JavaRHS good = builder.add(null, "{ return true; }");
+		builder.add(null, "{ return undefinedVariable; }");
+		builder.add(null, "{ return false; }");
+
+		try {
+			builder.compile();
+			fail();
+		} catch(IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("undefinedVariable"));
+		}
+
+		assertNull(good.getCompiled());
+		assertTrue(cacheFiles().isEmpty());
+	}
+}
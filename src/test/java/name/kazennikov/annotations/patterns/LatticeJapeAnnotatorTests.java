@@ -0,0 +1,72 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Document;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link LatticeJapeAnnotator} fires the same matches as {@link IterativeJapeAnnotator}
+ */
+public class LatticeJapeAnnotatorTests extends TestCase {
+
+	List<String> run(Phase phase, AbstractPhaseAnnotator annotator, Document doc, List<String> trace) {
+		trace.clear();
+		annotator.setPhase(phase);
+		annotator.init();
+		annotator.annotate(doc);
+		return new ArrayList<>(trace);
+	}
+
+	void checkEquivalence(String name, Phase phase, Document... docs) {
+		List<String> trace = new ArrayList<>();
+		for(Rule r : phase.getRules()) {
+			r.rhs().add(new RecursiveJapeAnnotatorTests.TraceRHS(r.name, trace));
+		}
+
+		for(MatchMode mode : MatchMode.values()) {
+			phase.mode = mode;
+			for(Document doc : docs) {
+				List<String> expected = run(phase, new IterativeJapeAnnotator(), doc, trace);
+				List<String> actual = run(phase, new LatticeJapeAnnotator(), doc, trace);
+				assertEquals(name + " " + mode, expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void testEquivalence() throws Exception {
+		RecursiveJapeAnnotatorTests base = new RecursiveJapeAnnotatorTests();
+		File[] files = new File("jape/parser").listFiles();
+		assertNotNull(files);
+
+		for(File f : files) {
+			if(!f.getName().endsWith(".jape"))
+				continue;
+
+			Phase phase = JapeEngineUtils.compilePhase(new JapeConfiguration(), f);
+			checkEquivalence(f.getName(), phase, base.newDocument());
+		}
+	}
+
+	/**
+	 * Matches with same next input position but different ends must not be merged
+	 */
+	@Test
+	public void testDistinctEnds() throws Exception {
+		Phase phase = SinglePhaseJapeASTParser.parsePhase(new JapeConfiguration(),
+				"Phase: P\nInput: Token\nOptions: control = all\n\nRule: R\n({Token}):test\n-->\n:test.Match = {}\n");
+		phase.compile();
+
+		Document doc = new Document("foo bar baz");
+		doc.addAnnotation("Token", 0, 3);
+		doc.addAnnotation("Token", 0, 5);
+		doc.addAnnotation("Token", 7, 10);
+
+		checkEquivalence("ends", phase, doc);
+	}
+}
@@ -0,0 +1,189 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.fsm.JapePlusFSM;
+import name.kazennikov.annotations.fsm.JapePlusFSM.State;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Transition;
+
+import org.junit.Test;
+
+/**
+ * Checks that the lazily determinized phase FSM matches as the fully determinized one,
+ * that the uncached states keep their transitions and numbers, and that the states
+ * kept by the FSM are bounded by the cache size
+ */
+public class LazyDeterminizationTests extends TestCase {
+
+	Phase compile(File f, boolean lazy, int cacheSize) throws Exception {
+		JapeConfiguration config = new JapeConfiguration();
+		config.setLazyDeterminization(lazy);
+		config.setDfaCacheSize(cacheSize);
+		return JapeEngineUtils.compilePhase(config, f);
+	}
+
+	/**
+	 * Run annotator and get fired matches. The order of the ALL and Brill matches depends on the
+	 * transitions order, that differs in the minimized FSM. The rules of a final state are unordered,
+	 * so only the bindings of the ONCE and FIRST matches are kept
+	 */
+	List<String> run(Phase phase, AbstractPhaseAnnotator annotator) {
+		List<String> trace = new ArrayList<>();
+		for(Rule r : phase.getRules()) {
+			r.rhs().add(new RecursiveJapeAnnotatorTests.TraceRHS(r.name, trace));
+		}
+
+		try {
+			annotator.setPhase(phase);
+			annotator.init();
+			annotator.annotate(new RecursiveJapeAnnotatorTests().newDocument());
+		} finally {
+			for(Rule r : phase.getRules()) {
+				r.rhs().remove(r.rhs().size() - 1);
+			}
+		}
+
+		if(phase.mode == MatchMode.ONCE || phase.mode == MatchMode.FIRST) {
+			for(int i = 0; i < trace.size(); i++) {
+				trace.set(i, trace.get(i).substring(trace.get(i).indexOf(' ') + 1));
+			}
+		}
+
+		Collections.sort(trace);
+		return trace;
+	}
+
+	static Set<String> names(Set<Rule> rules) {
+		Set<String> names = new TreeSet<>();
+		for(Rule r : rules) {
+			names.add(r.name);
+		}
+
+		return names;
+	}
+
+	@Test
+	public void testEquivalence() throws Exception {
+		File[] files = new File("jape/parser").listFiles();
+		assertNotNull(files);
+
+		for(File f : files) {
+			if(!f.getName().endsWith(".jape"))
+				continue;
+
+			Phase eager = compile(f, false, 0);
+
+			for(int cacheSize : new int[] {1, 4}) {
+				Phase lazy = compile(f, true, cacheSize);
+				assertTrue(lazy.getFSM().isLazy());
+
+				for(MatchMode mode : MatchMode.values()) {
+					eager.mode = mode;
+					lazy.mode = mode;
+					String name = f.getName() + " " + mode + " " + cacheSize;
+
+					assertEquals(name, run(eager, new IterativeJapeAnnotator()), run(lazy, new IterativeJapeAnnotator()));
+					assertEquals(name, run(eager, new RecursiveJapeAnnotator()), run(lazy, new RecursiveJapeAnnotator()));
+					assertEquals(name, run(eager, new LatticeJapeAnnotator()), run(lazy, new LatticeJapeAnnotator()));
+					assertTrue(name, lazy.getFSM().getStateCount() <= cacheSize);
+				}
+
+				assertEquals(f.getName(), names(JapePlusFSM.reachableRules(eager.getFSM().getStart())),
+						names(JapePlusFSM.reachableRules(lazy.getFSM().getStart())));
+			}
+		}
+	}
+
+	@Test
+	public void testUncachedStates() throws Exception {
+		Phase phase = compile(new File("jape/parser/1.jape"), true, 1);
+		State start = phase.getFSM().getStart();
+		List<Transition> transitions = start.getTransitions();
+		assertFalse(transitions.isEmpty());
+		assertSame(transitions, start.getTransitions());
+
+		for(Transition t : transitions) {
+			State dest = t.getDest();
+			assertEquals(1, phase.getFSM().getStateCount());
+			assertSame(dest, t.getDest());
+			assertEquals(dest.getNumber(), t.getDest().getNumber());
+			assertSame(dest.getTransitions(), dest.getTransitions());
+		}
+	}
+
+	/**
+	 * Collect states reachable from the state
+	 */
+	static void reach(State s, int depth, List<State> states) {
+		states.add(s);
+
+		if(depth == 0)
+			return;
+
+		for(Transition t : s.getTransitions()) {
+			reach(t.getDest(), depth - 1, states);
+		}
+	}
+
+	/**
+	 * Evicted states aren't kept by the FSM, so they are reclaimed and their numbers are reused
+	 */
+	@Test
+	public void testReclaimedStates() throws Exception {
+		Phase phase = compile(new File("jape/parser/1.jape"), true, 2);
+		JapePlusFSM fsm = phase.getFSM();
+		int maxNumber = 0;
+		int maxCount = 0;
+
+		for(int i = 0; i < 20; i++) {
+			List<State> states = new ArrayList<>();
+			reach(fsm.getStart(), 3, states);
+			assertTrue(fsm.getStateCount() <= 2);
+
+			Set<State> distinct = Collections.newSetFromMap(new IdentityHashMap<State, Boolean>());
+			distinct.addAll(states);
+			distinct.remove(fsm.getStart());
+
+			List<WeakReference<State>> refs = new ArrayList<>();
+			for(State s : distinct) {
+				maxNumber = Math.max(maxNumber, s.getNumber());
+				refs.add(new WeakReference<>(s));
+			}
+
+			maxCount = Math.max(maxCount, distinct.size() + 1);
+			distinct = null;
+			states = null;
+
+			// only the cached states are left
+			for(int j = 0; j < 10 && live(refs) > 2; j++) {
+				System.gc();
+			}
+
+			assertTrue(live(refs) <= 2);
+
+			// let the collected references be enqueued
+			Thread.sleep(20);
+		}
+
+		// the numbers are reused, as there are at most maxCount states in use
+		assertTrue("state number " + maxNumber + ", states in use " + maxCount, maxNumber < maxCount);
+	}
+
+	static int live(List<WeakReference<State>> refs) {
+		int count = 0;
+		for(WeakReference<State> ref : refs) {
+			if(ref.get() != null)
+				count++;
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,483 @@
+package name.kazennikov.annotations.patterns;
+
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.fsm.JapePlusFSM;
+import name.kazennikov.annotations.fsm.JapePlusFSM.State;
+import name.kazennikov.annotations.fsm.JapePlusFSM.Transition;
+import name.kazennikov.annotations.fsm.JapePlusFSM.TypeMatcher;
+import name.kazennikov.logger.Logger;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Reference recursive JAPE engine: a copy of the original {@link RecursiveJapeAnnotator}, adapted
+ * only to compile against the current API. Used only for equivalence testing:
+ * <ul>
+ *     <li>the RHS are called with the map bindings, only the {@link RecursiveJapeAnnotatorTests.TraceRHS}
+ *     are executed;
+ *     <li><code>main()</code> is dropped.
+ * </ul>
+ * The intended behavior changes are applied to the copy, and marked as fixes:
+ * <ul>
+ *     <li>the following annotation index is the first annotation that starts at or after the annotation end.
+ *     The original binary search could return any of the annotations that start at the end, so the annotations
+ *     before it were never matched;
+ *     <li>the matching advances after an empty match, the original engine looped on it in the First mode;
+ *     <li>in the Brill and All modes, the matches of the same rule and span are executed once.
+ * </ul>
+ */
+public class LegacyRecursiveJapeAnnotator extends AbstractPhaseAnnotator {
+	private static final Logger logger = Logger.getLogger();
+
+	public static class FSMInstance {
+		List<AnnotationList> stack;
+		List<String> keys;
+		List<AnnotationList> values;
+		int position = 0;
+		int end = -1; // fix: end offset of the matched annotations
+		State state;
+		Rule rule;
+
+		public void init() {
+			keys = new ArrayList<>();
+			values = new ArrayList<>();
+			stack = new ArrayList<>();
+		}
+
+		public FSMInstance copy() {
+			FSMInstance copy = new FSMInstance();
+			copy.keys = new ArrayList<>(this.keys.size());
+			copy.values = new ArrayList<>(this.values.size());
+			copy.stack = new ArrayList<>();
+			copy.position = position;
+			copy.end = end;
+
+			for(AnnotationList l : stack) {
+				copy.stack.add(l.copy());
+			}
+			
+			for(int i = 0; i < keys.size(); i++) {
+				copy.keys.add(keys.get(i));
+				copy.values.add(values.get(i).copy());
+			}
+
+			return copy;
+		}
+
+		public void push() {
+			stack.add(new AnnotationList());
+		}
+
+		public void addMatching(Annotation a) {
+			end = Math.max(end, a.getEnd());
+			for(AnnotationList l : stack) {
+				l.add(a);
+			}
+		}
+
+		public void pop(String groupName) {
+			AnnotationList l = stack.get(stack.size() - 1);
+			stack.remove(stack.size() - 1);
+			keys.add(groupName);
+			values.add(l);
+		}
+
+		public static FSMInstance newInstance() {
+			FSMInstance inst = new FSMInstance();
+			inst.init();
+			return inst;
+		}
+
+		public Map<String, AnnotationList> bindings() {
+			Map<String, AnnotationList> map = new HashMap<String, AnnotationList>();
+			for(int i = 0; i < keys.size(); i++) {
+				map.put(keys.get(i), values.get(i));
+			}
+			return map;
+		}
+
+
+	}
+
+
+	public static class Matcher {
+		AnnotationList input;
+		int[] nextAnnotationIndex;
+		Document doc;
+		Phase phase;
+		
+		
+		List<FSMInstance> instances = new ArrayList<>();
+
+		public Matcher(Document doc, final Phase phase) {
+			this.phase = phase;
+			this.doc = doc;
+			input = doc.get(new Predicate<Annotation>() {
+
+				@Override
+				public boolean apply(Annotation input) {
+					return phase.input.contains(input.getType());
+				}
+
+			}); 
+
+			input.sort();		
+			nextAnnotationIndex = computeFollowingAnnotationIndex(input);
+		}
+
+		static void execute(RHS rhs, Map<String, AnnotationList> bindings) {
+			if(rhs instanceof RecursiveJapeAnnotatorTests.TraceRHS)
+				((RecursiveJapeAnnotatorTests.TraceRHS) rhs).record(bindings);
+		}
+
+
+		public void execute() {
+			int index = 0;
+
+
+			while(index < input.size()) {
+				
+				FSMInstance inst = FSMInstance.newInstance();
+				inst.position = index;
+				inst.state = phase.fsm.getStart();
+				tryExecute(inst);
+				
+				// if something matched
+				if(!instances.isEmpty()) {
+					int start = index;
+					index = applyRules(index);
+					instances.clear();
+
+					// fix: empty match, advance to avoid looping on the same position
+					if(index >= 0 && index <= start)
+						index = skipToNextIndex(start);
+				} else {
+					index = skipToNextIndex(index);
+				}
+				
+				if(index < 0)
+					break;
+				
+			}
+		}
+		
+		public int execOnce() {
+			FSMInstance inst = instances.get(0);
+			for(RHS rhs : inst.rule.rhs()) {
+				execute(rhs, inst.bindings());
+			}
+
+			return -1;
+		}
+		
+		public int execFirst() {
+			FSMInstance inst = instances.get(0);
+			for(RHS rhs : inst.rule.rhs()) {
+				execute(rhs, inst.bindings());
+			}
+
+			return inst.position;
+		}
+		
+		public int execAll(int startIndex) {
+			Set<String> spans = new HashSet<>();
+			for(int i = 0; i < instances.size(); i++) {
+				FSMInstance inst = instances.get(i);
+				// fix: same rule and span is executed once
+				if(!spans.add(inst.rule.getNumber() + ":" + inst.end))
+					continue;
+				for(RHS rhs : inst.rule.rhs()) {
+					execute(rhs, inst.bindings());
+				}
+			}
+			
+			return skipToNextIndex(startIndex);
+		}
+		
+		public int execBrill() {
+			int maxPos = Integer.MIN_VALUE;
+			Set<String> spans = new HashSet<>();
+			for(int i = 0; i < instances.size(); i++) {
+				FSMInstance inst = instances.get(i);
+				// fix: same rule and span is executed once
+				if(!spans.add(inst.rule.getNumber() + ":" + inst.end))
+					continue;
+				for(RHS rhs : inst.rule.rhs()) {
+					execute(rhs, inst.bindings());
+				}
+
+				maxPos = Math.max(maxPos, inst.position);
+			}
+			
+			return maxPos;
+		}
+		
+		public int execAppelt() {
+			Collections.sort(instances, new Comparator<FSMInstance>() {
+
+				@Override
+				public int compare(FSMInstance o1, FSMInstance o2) {
+					int res = o2.position - o1.position;
+					if(res != 0)
+						return res;
+					
+					res = o2.rule.getPriority() - o1.rule.getPriority();
+					if(res != 0)
+						return res;
+					
+					res = o2.rule.number - o1.rule.number;
+								
+					return res;
+				}
+			});
+			
+			for(RHS rhs : instances.get(0).rule.rhs()) {
+				execute(rhs, instances.get(0).bindings());
+			}
+
+			return instances.get(0).position;
+		}
+
+		
+		public int applyRules(int startIndex) {
+			switch(phase.mode) {
+			case ONCE:
+				return execOnce();
+			case FIRST:
+				return execFirst();
+			case ALL:
+				return execAll(startIndex);
+			case BRILL:
+				return execBrill();
+			case APPELT:
+				return execAppelt();
+			}
+			
+			return -1;
+		}
+		
+
+
+		/**
+		 * Попробовать отматчить fsm начиная с данной позиции
+		 * @param index
+		 * @return true, if we need to continue
+		 */
+		public boolean tryExecute(FSMInstance instance) {
+			State state = instance.state;
+			if(state.isFinal()) {
+				for(Rule r : state.getRules()) {
+					FSMInstance inst = instance.copy();
+					inst.rule = r;	
+					instances.add(inst);
+				}
+				
+				if(phase.mode == MatchMode.FIRST || phase.mode == MatchMode.ONCE)
+					return false;
+			}
+			
+			boolean singleTr = state.getTransitions().size() == 1;
+
+			for(Transition t : state.getTransitions()) {
+				int type = t.getType();
+				boolean res;
+				
+				if(type == JapePlusFSM.GROUP_START) {
+					FSMInstance inst = singleTr? instance : instance.copy();
+					inst.push();
+					inst.state = t.getDest();
+					res = tryExecute(inst);
+				} else if(type < 0) { // group end
+					String groupName = phase.fsm.getGroupName(-type - 1);
+					FSMInstance inst = singleTr? instance : instance.copy();
+					inst.pop(groupName);
+					inst.state = t.getDest();
+					res = tryExecute(inst);
+				} else {
+					
+					if(instance.position >= input.size())
+						return true;
+
+					res = tryMatch(instance, t, singleTr);
+				}
+				
+				if(!res)
+					return res;
+
+			}
+
+			return true;
+		}
+
+		public boolean tryMatch(FSMInstance instance, Transition t, boolean singleTr) {
+			List<TypeMatcher> matchers = t.getMatchers();
+			if(matchers.size() == 1) {
+				return trySingleConstraintMatch(instance, t.getDest(), matchers.get(0), singleTr);
+			} else {
+				int[] matchedAnnotations = new int[matchers.size()];
+				return tryConstraintsMatch(instance, t.getDest(), matchers, 0, matchedAnnotations);
+			}
+		}
+		
+		public boolean trySingleConstraintMatch(FSMInstance instance, State dest, TypeMatcher typeMatcher, boolean singleTr) {
+			List<AnnotationMatcher> matchers = typeMatcher.getMatchers();
+			TIntArrayList flags = typeMatcher.getFlags();
+			TIntArrayList matchedAnnots = new TIntArrayList();
+			int startPos = input.get(instance.position).getStart();
+
+			for(int annotIndex = instance.position; annotIndex < input.size(); annotIndex++) {
+				Annotation a = input.get(annotIndex);
+
+				if(a.getStart() != startPos)
+					break;
+				
+				boolean res = true;
+
+				for(int matcherIndex = 0; matcherIndex < matchers.size(); matcherIndex++) {
+					AnnotationMatcher matcher = matchers.get(matcherIndex);
+					int flag = flags.get(matcherIndex);
+					boolean res0 = matcher.match(a);
+
+					if(flag == 1)
+						res0 = !res0;
+
+					if(!res0) {
+						res = false;
+						break;
+					}
+				}
+
+				if(res) {
+					matchedAnnots.add(annotIndex);
+				}
+			}
+			
+			if(matchedAnnots.isEmpty())
+				return true;
+			
+			if(singleTr && matchedAnnots.size() == 1) {
+				int annotIndex = matchedAnnots.get(0);
+				instance.addMatching(input.get(annotIndex));
+				int nextIndex = nextAnnotationIndex[annotIndex];
+				
+				instance.position = nextIndex;
+				instance.state = dest;
+				return tryExecute(instance);
+			} else {
+				TIntIterator it = matchedAnnots.iterator();
+				while(it.hasNext()) {
+					int annotIndex = it.next();
+					FSMInstance inst = instance.copy();
+					inst.addMatching(input.get(annotIndex));
+					int nextIndex = nextAnnotationIndex[annotIndex];
+					
+					inst.position = nextIndex;
+					inst.state = dest;
+					return tryExecute(inst);
+					
+				}
+			}
+			
+			return true;
+		}
+
+
+		public boolean tryConstraintsMatch(FSMInstance instance, State dest, 
+				List<TypeMatcher> typeMatchers, int tmIndex, int[] matched) {
+
+			if(tmIndex == typeMatchers.size()) {
+				FSMInstance inst = instance.copy();
+				int nextIndex = Integer.MIN_VALUE;
+				for(int annotIndex : matched) {
+					inst.addMatching(input.get(annotIndex));
+					nextIndex = Math.max(nextIndex, nextAnnotationIndex[annotIndex]);
+				}
+				inst.position = nextIndex;
+				inst.state = dest;
+				
+				return tryExecute(inst);
+			} else {
+				TypeMatcher m = typeMatchers.get(tmIndex);
+				List<AnnotationMatcher> matchers = m.getMatchers();
+				TIntArrayList flags = m.getFlags();
+				int startPos = input.get(instance.position).getStart();
+				
+
+				for(int annotIndex = instance.position; annotIndex < input.size(); annotIndex++) {
+					Annotation a = input.get(annotIndex);
+					
+					if(a.getStart() != startPos)
+						return true;
+					
+					boolean res = true;
+					for(int matcherIndex = 0; matcherIndex < matchers.size(); matcherIndex++) {
+						AnnotationMatcher matcher = matchers.get(matcherIndex);
+						int flag = flags.get(matcherIndex);
+						boolean res0 = matcher.match(a);
+
+						if(flag == 1)
+							res0 = !res0;
+						
+						if(!res0) {
+							res = false;
+							break;
+						}
+					}
+					// if all matchers
+					if(res) {
+						matched[tmIndex] = annotIndex;
+						tryConstraintsMatch(instance, dest, typeMatchers, tmIndex + 1, matched);
+					}
+
+				}				
+			}
+			
+			return true;
+		}
+
+
+		public int skipToNextIndex(int index) {
+			if(index >= input.size())
+				return index;
+			return nextAnnotationIndex[index];
+		}
+	}
+
+	/**
+	 * Compute following annotation index, as the original <code>JapeEngineUtils.computeFollowingAnnotationIndex()</code>
+	 */
+	public static int[] computeFollowingAnnotationIndex(AnnotationList input) {
+		int nextAnnotationIndex[] = new int[input.size()];
+		
+		for(int i = 0; i < input.size(); i++) {
+			// fix: first annotation that starts at or after the end
+			int index = 0;
+			while(index < input.size() && input.get(index).getStart() < input.get(i).getEnd()) {
+				index++;
+			}
+			nextAnnotationIndex[i] = index;
+		}
+
+		return nextAnnotationIndex;
+	}
+
+	@Override
+	public void annotate(Document doc) {
+		Matcher m = new Matcher(doc, phase);
+		m.execute();
+	}
+}
@@ -0,0 +1,101 @@
+package name.kazennikov.annotations.patterns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.Document;
+
+import org.junit.Test;
+
+/**
+ * Checks selection of the fired matches: the Appelt winner and deduplication of the Brill and All matches
+ */
+public class MatchSelectionTests extends TestCase {
+
+	static Document newDocument() {
+		Document doc = new Document("doc", "a b c");
+		for(int i = 0; i < 3; i++) {
+			Annotation a = doc.addAnnotation("Token", 2 * i, 2 * i + 1);
+			if(i != 1)
+				a.setFeature("kind", "foo");
+		}
+
+		doc.addAnnotation("Lookup", 0, 1);
+		return doc;
+	}
+
+	/**
+	 * Run the phase by each engine, check that the engines fire same matches
+	 */
+	static List<String> run(String src) throws Exception {
+		List<String> expected = null;
+
+		for(AbstractPhaseAnnotator a : new AbstractPhaseAnnotator[] {new IterativeJapeAnnotator(),
+				new RecursiveJapeAnnotator(), new LatticeJapeAnnotator()}) {
+			Phase phase = SinglePhaseJapeASTParser.parsePhase(new JapeConfiguration(), src);
+			phase.compile();
+
+			List<String> trace = new ArrayList<>();
+			for(Rule r : phase.getRules()) {
+				r.rhs().add(new RecursiveJapeAnnotatorTests.TraceRHS(r.name, trace));
+			}
+
+			a.setPhase(phase);
+			a.init();
+			a.annotate(newDocument());
+
+			if(expected == null) {
+				expected = trace;
+			} else {
+				assertEquals(a.getClass().getSimpleName(), expected, trace);
+			}
+		}
+
+		return expected;
+	}
+
+	@Test
+	public void testAppeltLongest() throws Exception {
+		List<String> trace = run("Phase: P\nInput: Token Lookup\nOptions: control = appelt\n\n"
+				+ "Rule: Short\nPriority: 10\n({Lookup}):m\n-->\n:m.Short = {}\n\n"
+				+ "Rule: Long\n({Lookup} {Token}):m\n-->\n:m.Long = {}\n");
+
+		// the longest match wins over the higher priority
+		assertEquals(Arrays.asList("Long m=Lookup[0,1]Token[2,3]"), trace);
+	}
+
+	@Test
+	public void testAppeltPriority() throws Exception {
+		List<String> trace = run("Phase: P\nInput: Token\nOptions: control = appelt\n\n"
+				+ "Rule: High\nPriority: 10\n({Token}):m\n-->\n:m.High = {}\n\n"
+				+ "Rule: Low\nPriority: 5\n({Token}):m\n-->\n:m.Low = {}\n");
+
+		assertEquals(Arrays.asList("High m=Token[0,1]", "High m=Token[2,3]", "High m=Token[4,5]"), trace);
+	}
+
+	@Test
+	public void testAppeltRuleOrder() throws Exception {
+		List<String> trace = run("Phase: P\nInput: Token\nOptions: control = appelt\n\n"
+				+ "Rule: First\n({Token}):m\n-->\n:m.First = {}\n\n"
+				+ "Rule: Second\n({Token}):m\n-->\n:m.Second = {}\n");
+
+		// same span and priority, the later rule wins
+		assertEquals(Arrays.asList("Second m=Token[0,1]", "Second m=Token[2,3]", "Second m=Token[4,5]"), trace);
+	}
+
+	/**
+	 * The alternatives reach the same rule with the same span, it is fired once
+	 */
+	@Test
+	public void testDedup() throws Exception {
+		for(String mode : new String[] {"brill", "all"}) {
+			List<String> trace = run("Phase: P\nInput: Token\nOptions: control = " + mode + "\n\n"
+					+ "Rule: Either\n(({Token}) | ({Token.kind == \"foo\"})):m\n-->\n:m.Either = {}\n");
+
+			assertEquals(mode, Arrays.asList("Either m=Token[0,1]", "Either m=Token[2,3]", "Either m=Token[4,5]"), trace);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.AnnotationView;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.annotators.BasicTokenizer;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Checks that {@link PartitionedJapeAnnotator} fires the same matches as {@link IterativeJapeAnnotator}
+ */
+public class PartitionedJapeAnnotatorTests extends TestCase {
+	static final int SENTENCES = 5;
+
+	/**
+	 * Make document of several sentences, each one is the {@link RecursiveJapeAnnotatorTests#TEXT}
+	 */
+	static Document newDocument() {
+		String sentence = RecursiveJapeAnnotatorTests.TEXT;
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < SENTENCES; i++) {
+			sb.append(sentence).append('\n');
+		}
+
+		String text = sb.toString();
+		BasicTokenizer t = new BasicTokenizer();
+		t.setTokenAnnotationType("Token");
+		t.setSeparator(",.!?()[]\"'$%^&*#{}\\|/-:");
+		Document d = new Document("doc", text);
+		t.annotate(d);
+
+		for(Annotation a : d.get("Token")) {
+			if(a.getStart() % 2 == 0)
+				a.setFeature("kind", "foo");
+		}
+
+		for(int i = 0; i < SENTENCES; i++) {
+			int offset = i * (sentence.length() + 1);
+			d.addAnnotation("Sentence", offset, offset + sentence.length());
+
+			for(String s : new String[] {"Moscow", "Paris", "km"}) {
+				int start = offset + sentence.indexOf(s);
+				d.addAnnotation("Lookup", start, start + s.length());
+			}
+		}
+
+		return d;
+	}
+
+	/**
+	 * Make document with the annotations of a single sentence, i.e. starting from the sentence start
+	 * up to the start of the next sentence
+	 */
+	static Document newDocument(int sentence) {
+		final int from = sentence * (RecursiveJapeAnnotatorTests.TEXT.length() + 1);
+		final int to = from + RecursiveJapeAnnotatorTests.TEXT.length() + 1;
+		Document d = newDocument();
+		d.removeIf(new Predicate<Annotation>() {
+			@Override
+			public boolean apply(Annotation a) {
+				return a.getStart() < from || a.getStart() >= to;
+			}
+		});
+
+		return d;
+	}
+
+	static List<String> run(Phase phase, AbstractPhaseAnnotator annotator, Document doc, List<String> trace) {
+		trace.clear();
+		annotator.setPhase(phase);
+		annotator.init();
+		annotator.annotate(doc);
+		return new ArrayList<>(trace);
+	}
+
+	/**
+	 * Sequential matching of each sentence by itself, as the partitioned matching assumes
+	 * that the matches don't cross the sentences
+	 */
+	static List<String> runSentences(Phase phase, List<String> trace) {
+		List<String> res = new ArrayList<>();
+
+		for(int i = 0; i < SENTENCES; i++) {
+			res.addAll(run(phase, new IterativeJapeAnnotator(), newDocument(i), trace));
+
+			if(phase.mode == MatchMode.ONCE && !res.isEmpty())
+				break;
+		}
+
+		return res;
+	}
+
+	@Test
+	public void testEquivalence() throws Exception {
+		File[] files = new File("jape/parser").listFiles();
+		assertNotNull(files);
+		ForkJoinPool pool = new ForkJoinPool(4);
+
+		try {
+			for(File f : files) {
+				if(!f.getName().endsWith(".jape"))
+					continue;
+
+				Phase phase = JapeEngineUtils.compilePhase(new JapeConfiguration(), f);
+				List<String> trace = new ArrayList<>();
+				for(Rule r : phase.getRules()) {
+					r.rhs().add(new RecursiveJapeAnnotatorTests.TraceRHS(r.name, trace));
+				}
+
+				for(MatchMode mode : MatchMode.values()) {
+					phase.mode = mode;
+					PartitionedJapeAnnotator partitioned = new PartitionedJapeAnnotator();
+					partitioned.setPool(pool);
+
+					List<String> expected = runSentences(phase, trace);
+					assertFalse(f.getName() + " " + mode, expected.isEmpty());
+					assertEquals(f.getName() + " " + mode, expected, run(phase, partitioned, newDocument(), trace));
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testPartition() throws Exception {
+		Phase phase = JapeEngineUtils.compilePhase(new JapeConfiguration(), new File("jape/parser/4.jape"));
+		PartitionedJapeAnnotator a = new PartitionedJapeAnnotator();
+		a.setPhase(phase);
+		a.init();
+
+		Document doc = newDocument();
+		assertEquals(SENTENCES, a.partition(doc, doc.getView(phase.input).getAnnotations()).size());
+	}
+
+	/**
+	 * The following annotation index points at the first of the annotations that start at the end
+	 * of the annotation. A binary search for the end could land on any of them, so the matcher skipped
+	 * the ones before it. Here it lands on B[3,8], so B[3,9] was never matched after A
+	 */
+	@Test
+	public void testFollowingAnnotations() throws Exception {
+		Phase phase = SinglePhaseJapeASTParser.parsePhase(new JapeConfiguration(),
+				"Phase: P\nInput: A B\nOptions: control = all\n\nRule: R\n({A} {B}):m\n-->\n:m.M = {}\n");
+		phase.compile();
+
+		Document doc = new Document("doc", "0123456789");
+		doc.addAnnotation("A", 0, 3);
+		for(int end = 9; end > 4; end--) {
+			doc.addAnnotation("B", 3, end);
+		}
+
+		AnnotationView view = doc.getView(phase.input);
+		assertEquals(1, view.getNext()[0]);
+
+		List<String> trace = new ArrayList<>();
+		phase.getRules().get(0).rhs().add(new RecursiveJapeAnnotatorTests.TraceRHS("R", trace));
+
+		// the recursive annotator follows only the first matched annotation, so it isn't checked here
+		for(AbstractPhaseAnnotator a : new AbstractPhaseAnnotator[] {new IterativeJapeAnnotator(), new PartitionedJapeAnnotator(),
+				new LatticeJapeAnnotator()}) {
+			trace.clear();
+			a.setPhase(phase);
+			a.init();
+			a.annotate(doc);
+			assertEquals(a.getClass().getSimpleName(), 5, trace.size());
+			assertTrue(a.getClass().getSimpleName(), trace.contains("R m=A[0,3]B[3,9]"));
+		}
+	}
+}
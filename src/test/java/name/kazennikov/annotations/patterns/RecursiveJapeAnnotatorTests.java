@@ -0,0 +1,159 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.AnnotationList;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.annotators.BasicTokenizer;
+
+import org.junit.Test;
+
+/**
+ * Checks that the stack-based {@link RecursiveJapeAnnotator} fires the same matches as
+ * the reference recursive engine
+ */
+public class RecursiveJapeAnnotatorTests extends TestCase {
+	static final String TEXT = "this--is table: Moscow-Paris foo 10 km";
+
+	/**
+	 * RHS that records fired rules and their bindings
+	 */
+	static class TraceRHS implements RHS {
+		final String rule;
+		final List<String> trace;
+
+		public TraceRHS(String rule, List<String> trace) {
+			this.rule = rule;
+			this.trace = trace;
+		}
+
+		@Override
+		public boolean execute(Document doc, AnnotationList input, Bindings bindings) {
+			record(bindings);
+			return true;
+		}
+
+		void record(Map<String, AnnotationList> bindings) {
+			StringBuilder sb = new StringBuilder(rule);
+			for(Map.Entry<String, AnnotationList> e : new TreeMap<>(bindings).entrySet()) {
+				sb.append(' ').append(e.getKey()).append('=');
+				for(Annotation a : e.getValue()) {
+					sb.append(a.getType()).append('[').append(a.getStart()).append(',').append(a.getEnd()).append(']');
+				}
+			}
+			trace.add(sb.toString());
+		}
+	}
+
+	Document newDocument() {
+		BasicTokenizer t = new BasicTokenizer();
+		t.setTokenAnnotationType("Token");
+		t.setSeparator(",.!?()[]\"'$%^&*#{}\\|/-:");
+		Document d = new Document("doc", TEXT);
+		t.annotate(d);
+
+		for(Annotation a : d.get("Token")) {
+			if(a.getStart() % 2 == 0)
+				a.setFeature("kind", "foo");
+		}
+
+		for(String s : new String[] {"Moscow", "Paris", "km"}) {
+			int start = TEXT.indexOf(s);
+			d.addAnnotation("Lookup", start, start + s.length());
+		}
+
+		return d;
+	}
+
+	List<String> run(Phase phase, AbstractPhaseAnnotator annotator, List<String> trace) {
+		trace.clear();
+		annotator.setPhase(phase);
+		annotator.init();
+		annotator.annotate(newDocument());
+		return new ArrayList<>(trace);
+	}
+
+	@Test
+	public void testEquivalence() throws Exception {
+		File[] files = new File("jape/parser").listFiles();
+		assertNotNull(files);
+		int checked = 0;
+
+		for(File f : files) {
+			if(!f.getName().endsWith(".jape"))
+				continue;
+
+			Phase phase = JapeEngineUtils.compilePhase(new JapeConfiguration(), f);
+
+			List<String> trace = new ArrayList<>();
+			for(Rule r : phase.getRules()) {
+				r.rhs().add(new TraceRHS(r.name, trace));
+			}
+
+			for(MatchMode mode : MatchMode.values()) {
+				phase.mode = mode;
+				List<String> expected = run(phase, new LegacyRecursiveJapeAnnotator(), trace);
+				List<String> actual = run(phase, new RecursiveJapeAnnotator(), trace);
+				assertEquals(f.getName() + " " + mode, expected, actual);
+			}
+
+			checked++;
+		}
+
+		assertTrue(checked > 0);
+	}
+
+	/**
+	 * Rules are tried in the transition order, when the equality transitions are dispatched by value
+	 */
+	@Test
+	public void testDispatchOrder() throws Exception {
+		StringBuilder src = new StringBuilder("Phase: P\nInput: Token\nOptions: control = first\n\n");
+		for(String s : new String[] {"a", "b", null, "c", "d"}) {
+			String name = s != null? s.toUpperCase() : "ANY";
+			src.append("Rule: R").append(name).append("\n");
+			src.append(s != null? "({Token.string == \"" + s + "\"})" : "({Token})").append(":m\n");
+			src.append("-->\n:m.M").append(name).append(" = {}\n\n");
+		}
+
+		Phase phase = SinglePhaseJapeASTParser.parsePhase(new JapeConfiguration(), src.toString());
+		phase.compile();
+
+		List<String> trace = new ArrayList<>();
+		for(Rule r : phase.getRules()) {
+			r.rhs().add(new TraceRHS(r.name, trace));
+		}
+
+		AbstractPhaseAnnotator[] annotators = {new LegacyRecursiveJapeAnnotator(), new RecursiveJapeAnnotator(),
+				new IterativeJapeAnnotator(), new LatticeJapeAnnotator()};
+
+		for(MatchMode mode : new MatchMode[] {MatchMode.FIRST, MatchMode.ONCE}) {
+			phase.mode = mode;
+
+			for(AbstractPhaseAnnotator annotator : annotators) {
+				String name = annotator.getClass().getSimpleName() + " " + mode;
+				annotator.setPhase(phase);
+				annotator.init();
+
+				for(String s : new String[] {"a", "c"}) {
+					Document doc = new Document("doc", s);
+					Map<String, Object> fm = new HashMap<>();
+					fm.put("string", s);
+					doc.addAnnotation("Token", 0, 1, fm);
+
+					trace.clear();
+					annotator.annotate(doc);
+					assertEquals(name, Arrays.asList((s.equals("a")? "RA" : "RANY") + " m=Token[0,1]"), trace);
+				}
+			}
+		}
+	}
+}
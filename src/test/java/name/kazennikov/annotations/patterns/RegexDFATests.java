@@ -0,0 +1,84 @@
+package name.kazennikov.annotations.patterns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link RegexDFA} matches as <code>java.util.regex</code> on random inputs
+ */
+public class RegexDFATests extends TestCase {
+	static final String[] REGEXES = {
+		"abc", "a*", "a+b?", "(ab|ba)*", "(?:a|b){2,3}c", "a{3}", "a{2,}", "[a-c]+", "[^ab]*", "[a\\-c]",
+		".*", ".b.", "\\d+", "\\D\\w\\W?", "\\s*x\\S", "^ab", "ab$", "^a.*b$", "a*?b", "(a|ab)(c|bcd)",
+		"[A-Z][a-z]*", "\\.", "x\\x41\\u0042", "[0-9]{1,3}(\\.[0-9]+)?", "(a|)+b", "a|b|", "\\t\\n",
+		"[\\d\\s]+", "[^\\w]", "(?:(?:a|b)c)+",
+	};
+
+	static final String ALPHABET = "abcdxAB019 .-\t\n\r\u0085\u00e9";
+
+	static List<String> inputs(Random rnd) {
+		List<String> inputs = new ArrayList<>();
+		inputs.add("");
+
+		for(int i = 0; i < 300; i++) {
+			int length = rnd.nextInt(8);
+			StringBuilder sb = new StringBuilder();
+
+			for(int j = 0; j < length; j++) {
+				sb.append(ALPHABET.charAt(rnd.nextInt(ALPHABET.length())));
+			}
+
+			inputs.add(sb.toString());
+		}
+
+		return inputs;
+	}
+
+	static int expected(Matcher m, boolean find) {
+		return (find? m.find() : m.matches())? RegexDFA.MATCH : RegexDFA.NO_MATCH;
+	}
+
+	@Test
+	public void testEquivalence() {
+		Random rnd = new Random(42);
+		List<String> inputs = inputs(rnd);
+
+		for(String regex : REGEXES) {
+			Pattern p = Pattern.compile(regex);
+
+			for(boolean find : new boolean[] {false, true}) {
+				RegexDFA dfa = RegexDFA.compile(regex, find);
+				assertNotNull(regex, dfa);
+
+				for(String s : inputs) {
+					String name = regex + " " + find + " '" + s + "'";
+					assertEquals(name, expected(p.matcher(s), find), dfa.run(s, 0, s.length()));
+
+					// matching over a region of a larger text, as for the annotation text
+					String text = "ab" + s + "ba";
+					Matcher m = p.matcher(text);
+					m.region(2, 2 + s.length());
+					assertEquals(name, expected(m, find), dfa.run(text, 2, 2 + s.length()));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFallback() {
+		for(String regex : new String[] {"(a)\\1", "a(?=b)", "(?i)abc", "\\bab", "a*+", "[a-z&&[^c]]"}) {
+			assertNull(regex, RegexDFA.compile(regex, false));
+		}
+
+		RegexDFA dfa = RegexDFA.compile(".", false);
+		String s = new String(Character.toChars(0x1F600));
+		assertEquals(RegexDFA.FALLBACK, dfa.run(s, 0, s.length()));
+	}
+}
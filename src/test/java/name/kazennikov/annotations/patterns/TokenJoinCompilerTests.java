@@ -0,0 +1,88 @@
+package name.kazennikov.annotations.patterns;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.AnnotationTestUtils;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.tokenizer.SimpleTokenizer;
+import name.kazennikov.annotations.tokenizer.TokenJoins;
+
+import org.junit.Test;
+
+/**
+ * Checks that the tokenizer with the folded token joins annotates as the tokenizer
+ * followed by the JAPE phase
+ */
+public class TokenJoinCompilerTests extends TestCase {
+	static final File GRAMMAR = new File("jape/join.jape");
+	static final String[] FRAGMENTS = {
+		"'", "s", "ll", "n", "o", "clock", "am", "o'clock", "O'clock", "ma'am", "Ma'am", "'n'", "'s", "$", " ", " ", "\n", ".",
+	};
+
+	static SimpleTokenizer newTokenizer() throws Exception {
+		SimpleTokenizer t = new SimpleTokenizer();
+		t.setRulesURL(new File("data/tokenizer/DefaultTokeniser.rules").toURI().toURL());
+		return t.init();
+	}
+
+	static void annotate(Document doc, SimpleTokenizer t, Phase phase) {
+		t.annotate(doc);
+		IterativeJapeAnnotator annotator = new IterativeJapeAnnotator();
+		annotator.setPhase(phase);
+		annotator.init();
+		annotator.annotate(doc);
+	}
+
+	@Test
+	public void testFold() throws Exception {
+		Phase phase = JapeEngineUtils.compilePhase(new JapeConfiguration(), GRAMMAR);
+		SimpleTokenizer tokenizer = newTokenizer();
+
+		Phase rest = JapeEngineUtils.compilePhase(new JapeConfiguration(), GRAMMAR);
+		SimpleTokenizer folded = newTokenizer();
+		TokenJoins joins = TokenJoinCompiler.fold(rest, folded.getTokenTypes());
+		folded.setJoins(joins);
+
+		// clock and maam rules are folded
+		assertEquals(4, joins.size());
+		assertEquals(3, rest.getRules().size());
+
+		SimpleTokenizer chunked = newTokenizer();
+		chunked.setJoins(joins);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		chunked.setPool(pool);
+		chunked.setChunkSize(16);
+
+		Random rnd = new Random(1);
+
+		try {
+			for(int i = 0; i < 300; i++) {
+				String text = AnnotationTestUtils.randomText(rnd, FRAGMENTS, rnd.nextInt(i < 200? 20 : 400));
+				Document expected = new Document("doc", text);
+				annotate(expected, tokenizer, phase);
+				Document actual = new Document("doc", text);
+				annotate(actual, folded, rest);
+				Document actualChunked = new Document("doc", text);
+				annotate(actualChunked, chunked, rest);
+
+				assertEquals("'" + text + "'", AnnotationTestUtils.sortedDump(expected), AnnotationTestUtils.sortedDump(actual));
+				assertEquals("'" + text + "'", AnnotationTestUtils.sortedDump(expected), AnnotationTestUtils.sortedDump(actualChunked));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSkippedInput() throws Exception {
+		Phase phase = JapeEngineUtils.compilePhase(new JapeConfiguration(), GRAMMAR);
+		phase.input.remove("SpaceToken");
+
+		assertTrue(TokenJoinCompiler.fold(phase, newTokenizer().getTokenTypes()).isEmpty());
+		assertEquals(5, phase.getRules().size());
+	}
+}
@@ -0,0 +1,210 @@
+package name.kazennikov.annotations.tokenizer;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import name.kazennikov.annotations.Annotation;
+import name.kazennikov.annotations.AnnotationTestUtils;
+import name.kazennikov.annotations.Document;
+import name.kazennikov.annotations.tokenizer.SimpleTokenizer.RHS;
+import name.kazennikov.fsa.FSAState;
+
+import org.junit.Test;
+
+/**
+ * Checks that the table driven {@link SimpleTokenizer} tokenizes as the walk over the tokenizer FSM
+ */
+public class SimpleTokenizerTests extends TestCase {
+	static final String[] RULES = {"data/tokenizer/DefaultTokeniser.rules", "data/tokenizer/AlternateTokeniser.rules"};
+	static final String ALPHABET = "abcXYZ019 \t\n\r.,-'\"$%()\u00e9\u0416\u0436\u00a0\u2013\u00bd";
+
+	static SimpleTokenizer newTokenizer(String rules) throws Exception {
+		SimpleTokenizer t = new SimpleTokenizer();
+		t.setRulesURL(new File(rules).toURI().toURL());
+		return t.init();
+	}
+
+	static void addToken(Document doc, int start, int end, List<RHS> rhss) {
+		Map<String, Object> fm = new HashMap<>();
+		String s = doc.getText().substring(start, end);
+		fm.put("string", s);
+		fm.put("length", Integer.toString(s.length()));
+		String type = null;
+
+		for(RHS rhs : rhss) {
+			type = rhs.type;
+			for(int i = 0; i < rhs.attrName.size(); i++) {
+				fm.put(rhs.attrName.get(i), rhs.attrValue.get(i));
+			}
+		}
+
+		doc.addAnnotation(type, start, end, fm);
+	}
+
+	/**
+	 * Reference tokenization: longest match walk over the FSM states, characters are typed
+	 * by {@link Character#getType(char)}
+	 */
+	static void tokenize(SimpleTokenizer t, Document doc) {
+		String text = doc.getText();
+		FSAState<List<RHS>> current = t.fsm.getStart();
+		FSAState<List<RHS>> lastMatch = null;
+		int tokenStart = 0;
+		int lastMatchEnd = -1;
+		int pos = 0;
+
+		while(pos < text.length()) {
+			FSAState<List<RHS>> next = current.next(Character.getType(text.charAt(pos)));
+
+			if(next != null) {
+				current = next;
+				pos++;
+
+				if(t.fsm.isFinal(current)) {
+					lastMatchEnd = pos;
+					lastMatch = current;
+				}
+
+				continue;
+			}
+
+			if(lastMatch != null) {
+				addToken(doc, tokenStart, lastMatchEnd, lastMatch.getFinals());
+				pos = lastMatchEnd;
+			} else {
+				Map<String, Object> fm = new HashMap<>();
+				fm.put("type", "UNKNOWN");
+				fm.put("string", text.substring(tokenStart, tokenStart + 1));
+				fm.put("length", "1");
+				doc.addAnnotation("DEFAULT_TOKEN", tokenStart, tokenStart + 1, fm);
+				pos = tokenStart + 1;
+			}
+
+			lastMatch = null;
+			current = t.fsm.getStart();
+			tokenStart = pos;
+		}
+
+		if(lastMatch != null)
+			addToken(doc, tokenStart, lastMatchEnd, lastMatch.getFinals());
+	}
+
+	@Test
+	public void testTable() throws Exception {
+		Random rnd = new Random(1);
+
+		for(String rules : RULES) {
+			SimpleTokenizer t = newTokenizer(rules);
+
+			for(int i = 0; i < 200; i++) {
+				String text = AnnotationTestUtils.randomText(rnd, ALPHABET, rnd.nextInt(60));
+				Document expected = new Document("doc", text);
+				tokenize(t, expected);
+				Document actual = new Document("doc", text);
+				t.annotate(actual);
+
+				assertEquals(rules + " '" + text + "'", AnnotationTestUtils.dump(expected), AnnotationTestUtils.dump(actual));
+			}
+		}
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		Random rnd = new Random(2);
+		ForkJoinPool pool = new ForkJoinPool(4);
+
+		try {
+			for(String rules : RULES) {
+				SimpleTokenizer seq = newTokenizer(rules);
+				SimpleTokenizer par = newTokenizer(rules);
+				par.setPool(pool);
+				par.setChunkSize(16);
+
+				for(int i = 0; i < 50; i++) {
+					String text = AnnotationTestUtils.randomText(rnd, ALPHABET, rnd.nextInt(2000));
+					Document expected = new Document("doc", text);
+					seq.annotate(expected);
+					Document actual = new Document("doc", text);
+					par.annotate(actual);
+
+					assertEquals(rules, AnnotationTestUtils.dump(expected), AnnotationTestUtils.dump(actual));
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSurrogates() throws Exception {
+		SimpleTokenizer t = newTokenizer(RULES[0]);
+		String emoji = new String(Character.toChars(0x1F600));
+		Document doc = new Document("doc", "a" + emoji + "b");
+		t.annotate(doc);
+
+		for(Annotation a : doc.getAll()) {
+			assertFalse(Character.isLowSurrogate(doc.getText().charAt(a.getStart())));
+			assertFalse(Character.isHighSurrogate(doc.getText().charAt(a.getEnd() - 1)));
+		}
+	}
+
+	/**
+	 * Tokens of the same rule share the rule features, the changes of a token are not seen by the others
+	 */
+	@Test
+	public void testFeatures() throws Exception {
+		SimpleTokenizer t = newTokenizer(RULES[0]);
+		Document doc = new Document("doc", "foo bars");
+		t.annotate(doc);
+
+		List<Annotation> tokens = doc.get("Token");
+		assertEquals(2, tokens.size());
+		Annotation foo = tokens.get(0);
+		Annotation bars = tokens.get(1);
+		assertEquals("foo", foo.getFeature(TokenFeatureMap.STRING));
+		assertEquals("3", foo.getFeature(TokenFeatureMap.LENGTH));
+		assertEquals("bars", bars.getFeature(TokenFeatureMap.STRING));
+		assertEquals("4", bars.getFeature(TokenFeatureMap.LENGTH));
+
+		Map<String, Object> expected = new HashMap<>();
+		expected.put("kind", "word");
+		expected.put("orth", "lowercase");
+		expected.put(TokenFeatureMap.STRING, "foo");
+		expected.put(TokenFeatureMap.LENGTH, "3");
+		assertEquals(expected, new HashMap<>(foo.getFeatureMap()));
+		assertEquals(4, foo.getFeatureMap().size());
+
+		foo.setFeature("kind", "stop");
+		foo.getFeatureMap().remove("orth");
+		assertEquals("stop", foo.getFeature("kind"));
+		assertFalse(foo.getFeatureMap().containsKey("orth"));
+		assertEquals("word", bars.getFeature("kind"));
+		assertEquals("lowercase", bars.getFeature("orth"));
+
+		Document other = new Document("doc", "baz");
+		t.annotate(other);
+		assertEquals("word", other.get("Token").get(0).getFeature("kind"));
+		assertEquals("lowercase", other.get("Token").get(0).getFeature("orth"));
+	}
+
+	@Test
+	public void testRuleFeaturesOverride() throws Exception {
+		Map<String, Object> shared = new HashMap<>();
+		shared.put(TokenFeatureMap.STRING, "bar");
+		TokenFeatureMap feats = new TokenFeatureMap("foo", 0, 3, shared);
+
+		assertEquals("bar", feats.get(TokenFeatureMap.STRING));
+		assertEquals("3", feats.get(TokenFeatureMap.LENGTH));
+		assertEquals(2, feats.size());
+
+		feats.put("kind", "word");
+		assertEquals("bar", feats.get(TokenFeatureMap.STRING));
+		assertEquals(3, feats.size());
+		assertEquals(1, shared.size());
+	}
+}